@@ -0,0 +1,92 @@
+package jmh.java.io.kvstore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares JMH results written with -rf csv against the checked-in baseline.
+ * Prints the change of every benchmark found in both, and exits with 1 if one got worse by more than
+ * the tolerance: lower throughput, or higher time per operation.
+ * Usage: Baseline <baseline.csv> <results.csv> [tolerance, default 0.10]
+ */
+public class Baseline
+{
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2)
+		{
+			System.err.println("Usage: Baseline <baseline.csv> <results.csv> [tolerance]");
+			System.exit(2);
+		}
+		Map<String, double[]> baseline = read(args[0]);
+		Map<String, double[]> results = read(args[1]);
+		double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.10;
+
+		int regressions = 0;
+		for (Map.Entry<String, double[]> entry : results.entrySet())
+		{
+			double[] before = baseline.get(entry.getKey());
+			if (before == null)
+			{
+				System.out.println(entry.getKey() + "\tnew");
+				continue;
+			}
+			double change = entry.getValue()[0] / before[0] - 1;
+			// [1] is 1 for throughput, -1 for time per operation: positive is better
+			boolean regressed = change * before[1] < -tolerance;
+			if (regressed)
+			{
+				regressions++;
+			}
+			System.out.println(String.format("%s\t%+.1f%%%s", entry.getKey(), change * 100, regressed ? "\tREGRESSION" : ""));
+		}
+		System.exit(regressions > 0 ? 1 : 0);
+	}
+
+	/**
+	 * @param path
+	 * @return score and direction (1 if higher is better, -1 otherwise), by benchmark, mode, threads and parameters
+	 * @throws IOException
+	 */
+	private static Map<String, double[]> read(String path) throws IOException
+	{
+		List<String> lines = Files.readAllLines(Paths.get(path));
+		List<String> header = split(lines.get(0));
+		int score = header.indexOf("Score");
+		Map<String, double[]> scores = new LinkedHashMap<>();
+		for (String line : lines.subList(1, lines.size()))
+		{
+			List<String> columns = split(line);
+			StringBuilder name = new StringBuilder(columns.get(0)).append(' ').append(columns.get(1))
+					.append(" t=").append(columns.get(2));
+			for (int i = 0; i < header.size(); i++)
+			{
+				if (header.get(i).startsWith("Param: ") && !columns.get(i).isEmpty())
+				{
+					name.append(' ').append(header.get(i).substring(7)).append('=').append(columns.get(i));
+				}
+			}
+			double direction = columns.get(1).equals("thrpt") ? 1 : -1;
+			scores.put(name.toString(), new double[] { Double.parseDouble(columns.get(score)), direction });
+		}
+		return scores;
+	}
+
+	/**
+	 * Splits a CSV line of JMH, whose strings are quoted and contain no quotes.
+	 */
+	private static List<String> split(String line)
+	{
+		List<String> columns = new ArrayList<>();
+		for (String column : line.split(",", -1))
+		{
+			columns.add(column.replace("\"", ""));
+		}
+		return columns;
+	}
+}
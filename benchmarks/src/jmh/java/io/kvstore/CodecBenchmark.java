@@ -0,0 +1,125 @@
+package jmh.java.io.kvstore;
+
+import main.java.io.kvstore.store.StoreMessage;
+import main.java.io.kvstore.utils.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the client (Message) and replica (StoreMessage) wire formats,
+ * for a small and a large value. Decoding extracts every field a coordinator or a store reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark
+{
+	@Param({"32", "1024"})
+	private int valueBytes;
+
+	private byte[] id;
+	private byte[] key;
+	private byte[] value;
+	private byte[] clientRequest;
+	private byte[] clientResponse;
+	private byte[] storeRequest;
+	private byte[] storeResponse;
+
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(0);
+		this.id = new byte[Message.ID_BYTES];
+		this.key = new byte[Message.KEY_BYTES];
+		this.value = new byte[this.valueBytes];
+		random.nextBytes(this.id);
+		random.nextBytes(this.key);
+		random.nextBytes(this.value);
+		this.clientRequest = Message.createRequest(this.id, Message.Command.PUT, this.key, this.value, 7, 60000);
+		this.clientResponse = Message.createResponse(this.id, Message.Code.SUCCESSFUL, this.value, 7);
+		this.storeRequest = StoreMessage.createPutRequest(this.id, this.key, this.value, 7, 1L << 40);
+		this.storeResponse = StoreMessage.withExpiry(
+				StoreMessage.createResponse(this.id, StoreMessage.StoreResponseType.SUCCESSFUL, 7, this.value), 1L << 40);
+	}
+
+	@Benchmark
+	public byte[] encodeClientRequest()
+	{
+		return Message.createRequest(this.id, Message.Command.PUT, this.key, this.value, 7, 60000);
+	}
+
+	@Benchmark
+	public void decodeClientRequest(Blackhole bh)
+	{
+		bh.consume(Message.id(this.clientRequest));
+		bh.consume(Message.command(this.clientRequest));
+		bh.consume(Message.key(this.clientRequest));
+		bh.consume(Message.requestValue(this.clientRequest));
+		bh.consume(Message.requestVersion(this.clientRequest));
+		bh.consume(Message.requestTtl(this.clientRequest));
+	}
+
+	@Benchmark
+	public byte[] encodeClientResponse()
+	{
+		return Message.createResponse(this.id, Message.Code.SUCCESSFUL, this.value, 7);
+	}
+
+	@Benchmark
+	public void decodeClientResponse(Blackhole bh)
+	{
+		bh.consume(Message.code(this.clientResponse));
+		bh.consume(Message.responseValue(this.clientResponse));
+		bh.consume(Message.responseVersion(this.clientResponse));
+	}
+
+	@Benchmark
+	public byte[] encodeStoreRequest()
+	{
+		return StoreMessage.createPutRequest(this.id, this.key, this.value, 7, 1L << 40);
+	}
+
+	@Benchmark
+	public void decodeStoreRequest(Blackhole bh)
+	{
+		bh.consume(StoreMessage.id(this.storeRequest));
+		bh.consume(StoreMessage.storeRequestType(this.storeRequest));
+		bh.consume(StoreMessage.key(this.storeRequest));
+		bh.consume(StoreMessage.requestValue(this.storeRequest));
+		bh.consume(StoreMessage.requestValueVersion(this.storeRequest));
+		bh.consume(StoreMessage.requestExpiresAt(this.storeRequest));
+	}
+
+	@Benchmark
+	public byte[] encodeStoreResponse()
+	{
+		return StoreMessage.withExpiry(
+				StoreMessage.createResponse(this.id, StoreMessage.StoreResponseType.SUCCESSFUL, 7, this.value), 1L << 40);
+	}
+
+	@Benchmark
+	public void decodeStoreResponse(Blackhole bh)
+	{
+		bh.consume(StoreMessage.storeResponseType(this.storeResponse));
+		bh.consume(StoreMessage.responseValue(this.storeResponse));
+		bh.consume(StoreMessage.responseValueVersion(this.storeResponse));
+		bh.consume(StoreMessage.responseExpiresAt(this.storeResponse));
+	}
+}
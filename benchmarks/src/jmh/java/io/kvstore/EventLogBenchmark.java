@@ -0,0 +1,94 @@
+package jmh.java.io.kvstore;
+
+import main.java.io.kvstore.log.EventLog;
+import main.java.io.kvstore.log.LogSite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of logging a failed send on the calling thread, from one thread and from threads logging at once:
+ * an event written by the event log, an event over the rate of its site, and the println it replaces
+ * (string concatenation and the lock of a PrintStream), all writing nowhere.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventLogBenchmark
+{
+	private static final OutputStream NOWHERE = new OutputStream()
+	{
+		@Override
+		public void write(int b) {}
+
+		@Override
+		public void write(byte[] b, int off, int len) {}
+	};
+
+	private static final LogSite UNLIMITED = LogSite.warn("bench.unlimited", "client").limit(1e12);
+	private static final LogSite LIMITED = LogSite.warn("bench.limited", "client");
+
+	private final PrintStream out = new PrintStream(NOWHERE);
+	private final InetSocketAddress client = new InetSocketAddress("10.0.0.1", 55555);
+	private final IOException error = new SocketException("Network is unreachable");
+
+	@Setup
+	public void setup()
+	{
+		EventLog.redirect(NOWHERE);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void event()
+	{
+		EventLog.event(UNLIMITED, this.error, this.client);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void event4Threads()
+	{
+		EventLog.event(UNLIMITED, this.error, this.client);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void suppressed()
+	{
+		EventLog.event(LIMITED, this.error, this.client);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void println()
+	{
+		this.out.println("Reply to " + this.client + " failed: " + this.error);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void println4Threads()
+	{
+		this.out.println("Reply to " + this.client + " failed: " + this.error);
+	}
+}
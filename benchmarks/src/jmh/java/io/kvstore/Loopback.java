@@ -0,0 +1,26 @@
+package jmh.java.io.kvstore;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Threads of the stores and clients that benchmarks serve over loopback. They are daemons, so that
+ * the forked benchmark VM exits when the measurement is over.
+ */
+final class Loopback
+{
+	static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r);
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private Loopback() {}
+
+	static void daemon(Runnable loop)
+	{
+		Thread thread = new Thread(loop);
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,80 @@
+package jmh.java.io.kvstore;
+
+import main.java.io.kvstore.metrics.Counter;
+import main.java.io.kvstore.metrics.Histogram;
+import main.java.io.kvstore.metrics.Metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot-path cost of the metrics: a counter increment, a histogram record, and the timing of a request
+ * (two System.nanoTime calls and a record), from one thread and from threads sharing the metrics.
+ * nanoTime alone is the cost of the clock, which dominates the timing on some virtual machines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark
+{
+	private final Metrics metrics = new Metrics();
+	private final Counter counter = this.metrics.counter("bench_total", "");
+	private final Histogram histogram = this.metrics.histogram("bench_seconds", "");
+
+	@Benchmark
+	@Threads(1)
+	public void counterIncrement()
+	{
+		this.counter.increment();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void counterIncrement4Threads()
+	{
+		this.counter.increment();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void histogramRecord()
+	{
+		this.histogram.record(ThreadLocalRandom.current().nextLong(1 << 30));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void histogramRecord4Threads()
+	{
+		this.histogram.record(ThreadLocalRandom.current().nextLong(1 << 30));
+	}
+
+	@Benchmark
+	@Threads(1)
+	public long nanoTime()
+	{
+		return System.nanoTime();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void timedRequest()
+	{
+		long start = System.nanoTime();
+		this.histogram.record(System.nanoTime() - start);
+	}
+}
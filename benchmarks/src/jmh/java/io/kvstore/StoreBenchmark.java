@@ -0,0 +1,93 @@
+package jmh.java.io.kvstore;
+
+import main.java.io.kvstore.Keyspace;
+import main.java.io.kvstore.store.Store;
+import main.java.io.kvstore.utils.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.SocketException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Store.put and Store.get through the in-process StorageEngine path, on a store holding keyCount keys,
+ * from one thread and from several threads sharing the store. Keys are picked uniformly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark
+{
+	private static final int VALUE_BYTES = 100;
+
+	@Param({"1000", "100000"})
+	private int keyCount;
+
+	private Store store;
+	private byte[][] keys;
+	private byte[] value;
+
+	@Setup
+	public void setup() throws SocketException
+	{
+		Random random = new Random(0);
+		this.store = new Store(0); // never served: only its socket is bound, to any free port
+		this.keys = new byte[this.keyCount][Message.KEY_BYTES];
+		this.value = new byte[VALUE_BYTES];
+		random.nextBytes(this.value);
+		for (byte[] key : this.keys)
+		{
+			random.nextBytes(key);
+			this.store.put(Keyspace.DEFAULT, key, this.value, 0, 0);
+		}
+	}
+
+	private byte[] randomKey()
+	{
+		return this.keys[ThreadLocalRandom.current().nextInt(this.keys.length)];
+	}
+
+	@Benchmark
+	@Threads(1)
+	public byte[] get()
+	{
+		return this.store.get(Keyspace.DEFAULT, this.randomKey(), true);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public byte[] put()
+	{
+		return this.store.put(Keyspace.DEFAULT, this.randomKey(), this.value, 0, 0);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public byte[] get4Threads()
+	{
+		return this.store.get(Keyspace.DEFAULT, this.randomKey(), true);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public byte[] put4Threads()
+	{
+		return this.store.put(Keyspace.DEFAULT, this.randomKey(), this.value, 0, 0);
+	}
+}
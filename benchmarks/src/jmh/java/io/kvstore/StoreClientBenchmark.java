@@ -0,0 +1,84 @@
+package jmh.java.io.kvstore;
+
+import main.java.io.kvstore.Keyspace;
+import main.java.io.kvstore.store.Store;
+import main.java.io.kvstore.store.StoreClient;
+import main.java.io.kvstore.store.StoreMessage;
+import main.java.io.kvstore.utils.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of a GET through StoreClient.send and StoreClient.receive to a store served over loopback:
+ * encoding, two datagrams, the store's lookup and the callback. Several threads share the client,
+ * as the coordinator's request threads do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0") // the client's retry thread never stops
+public class StoreClientBenchmark
+{
+	private static final int VALUE_BYTES = 100;
+
+	private static final int PORT = 56420;
+
+	private InetAddress addr;
+	private StoreClient client;
+	private byte[] key;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		Random random = new Random(0);
+		this.addr = InetAddress.getByName("localhost");
+		this.key = new byte[Message.KEY_BYTES];
+		byte[] value = new byte[VALUE_BYTES];
+		random.nextBytes(this.key);
+		random.nextBytes(value);
+		Store store = new Store(PORT);
+		store.put(Keyspace.DEFAULT, this.key, value, 0, 0);
+		Loopback.daemon(() -> store.serve(Loopback.EXECUTOR));
+		this.client = new StoreClient(0, 5, 10000); // as in Runner
+		Loopback.daemon(() -> this.client.receive(Loopback.EXECUTOR));
+	}
+
+	private byte[] roundTrip() throws Exception
+	{
+		CompletableFuture<byte[]> response = new CompletableFuture<>();
+		this.client.send(this.addr, PORT, StoreMessage.createGetRequest(StoreMessage.createId(), this.key), response::complete,
+				req -> response.completeExceptionally(new IllegalStateException("timeout")));
+		return response.get();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public byte[] get() throws Exception
+	{
+		return this.roundTrip();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public byte[] get4Threads() throws Exception
+	{
+		return this.roundTrip();
+	}
+}
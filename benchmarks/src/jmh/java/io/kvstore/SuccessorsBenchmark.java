@@ -0,0 +1,104 @@
+package jmh.java.io.kvstore;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.coordinator.Monitor;
+import main.java.io.kvstore.coordinator.Node;
+import main.java.io.kvstore.coordinator.Partitioner;
+import main.java.io.kvstore.store.Store;
+import main.java.io.kvstore.store.StoreClient;
+import main.java.io.kvstore.utils.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Monitor.getSuccessors with each partitioner, on a ring of Config.PORT_STORE.length nodes that all answer
+ * their heartbeats, from one thread and from several threads sharing the ring.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0") // the monitor's heartbeat thread never stops
+public class SuccessorsBenchmark
+{
+	private static final int NUM_KEYS = 4096;
+
+	/**
+	 * Store port of the first node, apart from the ones of Runner.
+	 */
+	private static final int BASE_PORT = 56400;
+
+	@Param({"MURMUR3", "SHA-512"})
+	private String partitioner;
+
+	private Monitor monitor;
+	private byte[][] keys;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		InetAddress addr = InetAddress.getByName("localhost");
+		Node[] nodes = new Node[Config.PORT_STORE.length];
+		for (int i = 0; i < nodes.length; i++)
+		{
+			int port = BASE_PORT + i;
+			nodes[i] = new Node(addr, port + Config.PORT_STORE.length, port, true); // coordinators are not started
+			Store store = new Store(port);
+			Loopback.daemon(() -> store.serve(Loopback.EXECUTOR));
+		}
+		StoreClient client = new StoreClient(0, 1, 1000);
+		Loopback.daemon(() -> client.receive(Loopback.EXECUTOR));
+		this.monitor = new Monitor(nodes, client, Partitioner.forName(this.partitioner));
+		for (Node node : nodes)
+		{
+			while (!node.getAvailable())
+			{
+				Thread.sleep(100);
+			}
+		}
+
+		Random random = new Random(0);
+		this.keys = new byte[NUM_KEYS][Message.KEY_BYTES];
+		for (byte[] key : this.keys)
+		{
+			random.nextBytes(key);
+		}
+	}
+
+	private byte[] randomKey()
+	{
+		return this.keys[ThreadLocalRandom.current().nextInt(NUM_KEYS)];
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Set<Node> getSuccessors()
+	{
+		return this.monitor.getSuccessors(this.randomKey(), Config.REPLICATION_FACTOR);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Set<Node> getSuccessors4Threads()
+	{
+		return this.monitor.getSuccessors(this.randomKey(), Config.REPLICATION_FACTOR);
+	}
+}
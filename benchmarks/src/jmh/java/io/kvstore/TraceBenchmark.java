@@ -0,0 +1,53 @@
+package jmh.java.io.kvstore;
+
+import main.java.io.kvstore.coordinator.Node;
+import main.java.io.kvstore.coordinator.RequestTrace;
+import main.java.io.kvstore.utils.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the trace of one quorum request at its coordinator: the phases a GET goes through with
+ * five replicas, recorded or not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceBenchmark
+{
+	private static final int REPLICAS = 5;
+
+	@Param({"false", "true"})
+	public boolean sampled;
+
+	private final Node node = null;
+
+	@Benchmark
+	public RequestTrace request()
+	{
+		RequestTrace trace = new RequestTrace(Message.Command.GET, 0, this.sampled);
+		trace.mark(RequestTrace.Phase.DISPATCHED);
+		trace.mark(RequestTrace.Phase.FAN_OUT);
+		for (int i = 0; i < REPLICAS; i++)
+		{
+			trace.mark(RequestTrace.Phase.ACK, this.node);
+		}
+		trace.mark(RequestTrace.Phase.QUORUM);
+		trace.mark(RequestTrace.Phase.REPLIED);
+		return trace;
+	}
+}
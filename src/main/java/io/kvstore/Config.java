@@ -1,15 +1,397 @@
 package main.java.io.kvstore;
 
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
 public class Config {
-	public final static int[] PORT_COORDINATOR = {55555, 55556, 55557, 55558, 55559};
-	
-	public final static int[] PORT_STORE = {55560, 55561, 55562, 55563, 55564};
-	
-	public final static int REPLICATION_FACTOR = 5;
-	
-	public final static int WRITE_QUORUM = REPLICATION_FACTOR / 2 + 1;
-	
-	public final static int READ_QUORUM = REPLICATION_FACTOR - WRITE_QUORUM + 1;
+	/**
+	 * File the settings are read from at startup: the system property kvstore.config, or kvstore.properties
+	 * in the working directory if it exists. Its keys are the names of the settings below, e.g.
+	 * REPLICATION_FACTOR = 3; missing settings keep their default, unknown ones are an error.
+	 */
+	public final static String FILE = System.getProperty("kvstore.config", "kvstore.properties");
+
+	/**
+	 * Names of the settings read so far, to reject the unknown keys of the file.
+	 */
+	private final static Set<String> NAMES = new HashSet<>();
+
+	private final static Properties PROPERTIES = load(FILE, System.getProperty("kvstore.config") != null);
+
+	/**
+	 * The nodes of the cluster, "host:coordinatorPort:storePort" separated by commas. An empty host is
+	 * this machine (InetAddress.getLocalHost).
+	 */
+	public final static String[] NODES = stringValue("NODES",
+			":55555:55560, :55556:55561, :55557:55562, :55558:55563, :55559:55564").split("\\s*,\\s*");
+
+	public final static String[] NODE_HOSTS = part(NODES, 0);
+
+	public final static int[] PORT_COORDINATOR = Arrays.stream(part(NODES, 1)).mapToInt(Integer::parseInt).toArray();
+
+	public final static int[] PORT_STORE = Arrays.stream(part(NODES, 2)).mapToInt(Integer::parseInt).toArray();
+
+	/**
+	 * Number of replicas of each key; by default 5, or every node in smaller clusters.
+	 */
+	public final static int REPLICATION_FACTOR = intValue("REPLICATION_FACTOR", Math.min(5, NODES.length));
+
+	/**
+	 * Replicas that must acknowledge a write, and answer a read; by default majorities, so that
+	 * every read quorum overlaps every write quorum.
+	 */
+	public final static int WRITE_QUORUM = intValue("WRITE_QUORUM", REPLICATION_FACTOR / 2 + 1);
+
+	public final static int READ_QUORUM = intValue("READ_QUORUM", REPLICATION_FACTOR - WRITE_QUORUM + 1);
+
+	/**
+	 * Memory budget of the default keyspace in each store, in bytes, 0 for none. Writes of values to a
+	 * keyspace over its budget fail with OUT_OF_SPACE until removes and expiries free some memory.
+	 */
+	public final static long MEMORY_BYTES = longValue("MEMORY_BYTES", 0);
+
+	/**
+	 * Keyspaces besides the default one, "name:engine:replicationFactor:writeQuorum:readQuorum:memoryBytes"
+	 * separated by commas, e.g. "sessions:memory:1:1:1:67108864, orders:durable:3". The engine is "memory" or
+	 * "durable"; the replication factor defaults to the one of the default keyspace, the quorums are derived from
+	 * it like WRITE_QUORUM and READ_QUORUM, and the memory budget defaults to none.
+	 * Requests and hints carry the number of their keyspace, its position in this list from 1, so every node
+	 * and client must use the same list, and new keyspaces go at its end.
+	 */
+	public final static String[] KEYSPACES = stringValue("KEYSPACES", "").isEmpty() ? new String[0]
+			: stringValue("KEYSPACES", "").split("\\s*,\\s*");
+
+	/**
+	 * Directory of the logs of the durable keyspaces, one subdirectory per store port.
+	 */
+	public final static String DATA_DIR = stringValue("DATA_DIR", "data");
+
+	/**
+	 * Interval between two fsyncs of the log of a durable keyspace, 0 to sync every write. Writes reach the
+	 * OS before they are acknowledged, so a crash of the process loses none; a crash of the machine loses
+	 * the writes of the last interval.
+	 */
+	public final static int DURABLE_SYNC_MS = intValue("DURABLE_SYNC_MS", 100);
+
+	/**
+	 * Size at which the log of a durable keyspace is compacted, once it also doubled since its last compaction.
+	 */
+	public final static long DURABLE_COMPACT_BYTES = longValue("DURABLE_COMPACT_BYTES", 64 << 20);
+
+	/**
+	 * Threads serving the requests of each process, 0 for a pool growing as needed.
+	 */
+	public final static int EXECUTOR_THREADS = intValue("EXECUTOR_THREADS", 0);
+
+	/**
+	 * Sends of a request from a coordinator to a store before it fails, and the time to wait for each.
+	 */
+	public final static int STORE_CLIENT_ATTEMPTS = intValue("STORE_CLIENT_ATTEMPTS", 5);
+
+	public final static int STORE_CLIENT_TIMEOUT_MS = intValue("STORE_CLIENT_TIMEOUT_MS", 10000);
 	
-	public final static String HASHING_ALGORITHM = "SHA-512";
+	/**
+	 * "MURMUR3" for the fast non-cryptographic partitioner, or any MessageDigest algorithm such as "SHA-512".
+	 */
+	public final static String HASHING_ALGORITHM = stringValue("HASHING_ALGORITHM", "MURMUR3");
+
+	/**
+	 * Interval between heartbeats sent by the monitor to every store.
+	 */
+	public final static int HEARTBEAT_INTERVAL_MS = intValue("HEARTBEAT_INTERVAL_MS", 500);
+
+	/**
+	 * Suspicion level at which the phi-accrual detector marks a node unavailable.
+	 * With the defaults below, about two missed heartbeats in a row.
+	 */
+	public final static double PHI_THRESHOLD = doubleValue("PHI_THRESHOLD", 8.0);
+
+	/**
+	 * Number of heartbeat inter-arrival times kept by the detector.
+	 */
+	public final static int PHI_WINDOW_SIZE = intValue("PHI_WINDOW_SIZE", 100);
+
+	/**
+	 * Minimum standard deviation assumed for inter-arrival times.
+	 */
+	public final static double PHI_MIN_STD_DEV_MS = doubleValue("PHI_MIN_STD_DEV_MS", 100);
+
+	/**
+	 * Interval between gossip rounds.
+	 */
+	public final static int GOSSIP_INTERVAL_MS = intValue("GOSSIP_INTERVAL_MS", 1000);
+
+	/**
+	 * Number of tokens owned by each node on the ring.
+	 */
+	public final static int VIRTUAL_NODES = intValue("VIRTUAL_NODES", 16);
+
+	/**
+	 * Bandwidth limit when streaming key ranges to new replicas.
+	 */
+	public final static long STREAM_BYTES_PER_SECOND = longValue("STREAM_BYTES_PER_SECOND", 1 << 20);
+
+	/**
+	 * Coordinator read cache: "OFF", "DIRECT" (hits skip the replicas) or "VALIDATE"
+	 * (hits are confirmed by version-only reads, so no value travels).
+	 */
+	public final static String READ_CACHE_MODE = stringValue("READ_CACHE_MODE", "OFF");
+
+	/**
+	 * Maximum number of entries of the read cache.
+	 */
+	public final static int READ_CACHE_CAPACITY = intValue("READ_CACHE_CAPACITY", 10000);
+
+	/**
+	 * On reads, fetch the value from one replica and only the version from the others.
+	 */
+	public final static boolean READ_VERSION_PROBE = booleanValue("READ_VERSION_PROBE", true);
+
+	/**
+	 * Depth of the Merkle trees kept by the stores (2^depth leaves, at most 15).
+	 */
+	public final static int MERKLE_DEPTH = intValue("MERKLE_DEPTH", 10);
+
+	/**
+	 * Interval between anti-entropy exchanges with a random replica.
+	 */
+	public final static int ANTI_ENTROPY_INTERVAL_MS = intValue("ANTI_ENTROPY_INTERVAL_MS", 60000);
+
+	/**
+	 * Directory of the hint logs of the coordinators, one subdirectory per coordinator port.
+	 */
+	public final static String HINT_DIR = stringValue("HINT_DIR", "hints");
+
+	/**
+	 * Size bound of the hints kept for one replica. Further hints are dropped.
+	 */
+	public final static long HINT_MAX_BYTES_PER_NODE = longValue("HINT_MAX_BYTES_PER_NODE", 16 << 20);
+
+	/**
+	 * Number of hinted writes replayed before waiting for their acknowledgements.
+	 */
+	public final static int HINT_REPLAY_BATCH = intValue("HINT_REPLAY_BATCH", 64);
+
+	/**
+	 * Interval between replays of the hints written while their replica was seen as available.
+	 */
+	public final static int HINT_SWEEP_INTERVAL_MS = intValue("HINT_SWEEP_INTERVAL_MS", 10000);
+
+	/**
+	 * Fraction of the stale replicas found by reads that get repaired. 0 disables read repair.
+	 */
+	public final static double READ_REPAIR_CHANCE = doubleValue("READ_REPAIR_CHANCE", 1.0);
+
+	/**
+	 * Maximum number of keys queued for read repair per second, per coordinator. Findings of a key already queued are not counted.
+	 */
+	public final static int READ_REPAIR_PER_SECOND = intValue("READ_REPAIR_PER_SECOND", 1000);
+
+	/**
+	 * Maximum number of distinct keys waiting for repair on one replica.
+	 */
+	public final static int READ_REPAIR_QUEUE_MAX = intValue("READ_REPAIR_QUEUE_MAX", 10000);
+
+	/**
+	 * Interval between two batches of read repairs.
+	 */
+	public final static int READ_REPAIR_INTERVAL_MS = intValue("READ_REPAIR_INTERVAL_MS", 100);
+
+	/**
+	 * Read the value from the replica with the lowest response time EWMA and outstanding requests,
+	 * instead of the first one in ring order.
+	 */
+	public final static boolean LATENCY_AWARE_READS = booleanValue("LATENCY_AWARE_READS", true);
+
+	/**
+	 * Weight of the latest sample in the response time EWMA of a node.
+	 */
+	public final static double LATENCY_EWMA_ALPHA = doubleValue("LATENCY_EWMA_ALPHA", 0.1);
+
+	/**
+	 * Number of sends of a client request before it fails, each to the next replica of its key.
+	 */
+	public final static int CLIENT_ATTEMPTS = intValue("CLIENT_ATTEMPTS", 4);
+
+	/**
+	 * Client retransmission timeout before the first response of a coordinator.
+	 */
+	public final static int CLIENT_INITIAL_RTO_MS = intValue("CLIENT_INITIAL_RTO_MS", 500);
+
+	/**
+	 * Bounds of the adaptive client retransmission timeout.
+	 */
+	public final static int CLIENT_MIN_RTO_MS = intValue("CLIENT_MIN_RTO_MS", 50);
+
+	public final static int CLIENT_MAX_RTO_MS = intValue("CLIENT_MAX_RTO_MS", 5000);
+
+	/**
+	 * Let concurrent GETs of a key share one quorum read.
+	 */
+	public final static boolean COALESCE_READS = booleanValue("COALESCE_READS", true);
+
+	/**
+	 * Time after which a client request or a read still in flight is assumed lost:
+	 * retransmissions are processed again and GETs no longer join the read.
+	 */
+	public final static int IN_FLIGHT_TIMEOUT_MS = intValue("IN_FLIGHT_TIMEOUT_MS", 2000);
+
+	/**
+	 * Number of recent conditional writes and counter additions each store remembers, to recognize their retransmissions.
+	 */
+	public final static int CONDITIONAL_WRITE_IDS = intValue("CONDITIONAL_WRITE_IDS", 65536);
+
+	/**
+	 * Resolution of the expiry of the values with a TTL, and period of the expirer of each store.
+	 */
+	public final static int TTL_TICK_MS = intValue("TTL_TICK_MS", 100);
+
+	/**
+	 * Each level of the expiry timing wheel has 2^TTL_WHEEL_BITS slots. With TTL_WHEEL_LEVELS levels,
+	 * the wheel places deadlines up to TTL_TICK_MS * 2^(TTL_WHEEL_BITS * TTL_WHEEL_LEVELS) ahead (19 days);
+	 * later ones are rescheduled as they come closer.
+	 */
+	public final static int TTL_WHEEL_BITS = intValue("TTL_WHEEL_BITS", 6);
+	public final static int TTL_WHEEL_LEVELS = intValue("TTL_WHEEL_LEVELS", 4);
+
+	/**
+	 * Fraction of the client requests whose phases are traced, 0 to trace none.
+	 */
+	public final static double TRACE_SAMPLE_RATE = doubleValue("TRACE_SAMPLE_RATE", 0.01);
+
+	/**
+	 * Client requests slower than this go to the slow log of their coordinator.
+	 */
+	public final static int SLOW_REQUEST_MS = intValue("SLOW_REQUEST_MS", 50);
+
+	/**
+	 * Number of requests kept by the slow log of each coordinator.
+	 */
+	public final static int SLOW_LOG_CAPACITY = intValue("SLOW_LOG_CAPACITY", 256);
+
+	/**
+	 * Number of events the event log buffers for its writer, a power of two. Events logged while it is
+	 * full are dropped and counted.
+	 */
+	public final static int EVENT_LOG_CAPACITY = intValue("EVENT_LOG_CAPACITY", 8192);
+
+	/**
+	 * Default number of events per second each log site writes; the others are counted and reported
+	 * with the next one written.
+	 */
+	public final static double EVENT_LOG_EVENTS_PER_SECOND = doubleValue("EVENT_LOG_EVENTS_PER_SECOND", 10);
+
+	/**
+	 * Time the writer of the event log sleeps when it finds no event.
+	 */
+	public final static int EVENT_LOG_IDLE_MS = intValue("EVENT_LOG_IDLE_MS", 10);
+
+	/**
+	 * Number of changes (values and tombstones written) each store keeps for its change feed, and the
+	 * bytes of their values it keeps at most. Subscribers further behind miss the older changes.
+	 */
+	public final static int CHANGE_LOG_CAPACITY = intValue("CHANGE_LOG_CAPACITY", 65536);
+	public final static long CHANGE_LOG_BYTES = longValue("CHANGE_LOG_BYTES", 64 << 20);
+
+	/**
+	 * Time a store waits after a change before pushing it to the subscribers, so that the changes of the
+	 * meantime go in the same batch.
+	 */
+	public final static int CHANGE_FEED_DELAY_MS = intValue("CHANGE_FEED_DELAY_MS", 5);
+
+	/**
+	 * Time after which the batches a subscriber has not acknowledged are pushed again.
+	 */
+	public final static int CHANGE_FEED_RETRANSMIT_MS = intValue("CHANGE_FEED_RETRANSMIT_MS", 500);
+
+	/**
+	 * Time after which a subscriber that acknowledged nothing is dropped. Subscribers acknowledge at least
+	 * three times per period while idle.
+	 */
+	public final static int CHANGE_FEED_TIMEOUT_MS = intValue("CHANGE_FEED_TIMEOUT_MS", 10000);
+
+	static
+	{
+		for (String key : PROPERTIES.stringPropertyNames())
+		{
+			if (!NAMES.contains(key))
+			{
+				throw new IllegalArgumentException("Unknown setting " + key + " in " + FILE);
+			}
+		}
+		if (WRITE_QUORUM < 1 || WRITE_QUORUM > REPLICATION_FACTOR || READ_QUORUM < 1 || READ_QUORUM > REPLICATION_FACTOR)
+		{
+			throw new IllegalArgumentException("Quorums W=" + WRITE_QUORUM + ", R=" + READ_QUORUM
+					+ " must be between 1 and the replication factor " + REPLICATION_FACTOR);
+		}
+	}
+
+	private static Properties load(String file, boolean required)
+	{
+		Properties properties = new Properties();
+		try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+			properties.load(in);
+		} catch (FileNotFoundException e) {
+			if (required)
+			{
+				throw new IllegalArgumentException("Config file " + file + " not found");
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return properties;
+	}
+
+	private static String stringValue(String name, String defaultValue)
+	{
+		NAMES.add(name);
+		return PROPERTIES.getProperty(name, defaultValue).trim();
+	}
+
+	private static int intValue(String name, int defaultValue)
+	{
+		return Integer.parseInt(stringValue(name, String.valueOf(defaultValue)));
+	}
+
+	private static long longValue(String name, long defaultValue)
+	{
+		return Long.parseLong(stringValue(name, String.valueOf(defaultValue)));
+	}
+
+	private static double doubleValue(String name, double defaultValue)
+	{
+		return Double.parseDouble(stringValue(name, String.valueOf(defaultValue)));
+	}
+
+	private static boolean booleanValue(String name, boolean defaultValue)
+	{
+		return Boolean.parseBoolean(stringValue(name, String.valueOf(defaultValue)));
+	}
+
+	/**
+	 * @return one ':'-separated part of each node of NODES
+	 */
+	private static String[] part(String[] nodes, int index)
+	{
+		String[] parts = new String[nodes.length];
+		for (int i = 0; i < nodes.length; i++)
+		{
+			String[] fields = nodes[i].split(":", -1);
+			if (fields.length != 3)
+			{
+				throw new IllegalArgumentException("Node " + nodes[i] + " is not host:coordinatorPort:storePort");
+			}
+			parts[i] = fields[index].trim();
+		}
+		return parts;
+	}
 }
@@ -0,0 +1,142 @@
+/**
+ * Keyspace.java
+ * A named set of keys with its own replication factor, quorums, storage engine and memory budget, e.g.
+ * a cache held once in memory next to durable data written to three replicas. The keyspaces are the
+ * default one, number 0, and the ones of Config.KEYSPACES numbered from 1; requests carry the number.
+ */
+package main.java.io.kvstore;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public final class Keyspace
+{
+	public enum Engine
+	{
+		/**
+		 * Values and counters in memory only, lost when the store stops; other replicas refill them.
+		 */
+		MEMORY,
+		/**
+		 * In memory, and appended to a log file replayed when the store starts.
+		 */
+		DURABLE
+	}
+
+	public static final Keyspace DEFAULT = new Keyspace(0, "default", Engine.MEMORY, Config.REPLICATION_FACTOR,
+			Config.WRITE_QUORUM, Config.READ_QUORUM, Config.MEMORY_BYTES);
+
+	private static final List<Keyspace> ALL = Collections.unmodifiableList(Arrays.asList(parse(Config.KEYSPACES)));
+
+	private final int _id;
+	private final String _name;
+	private final Engine _engine;
+	private final int _replicationFactor;
+	private final int _writeQuorum;
+	private final int _readQuorum;
+	private final long _memoryBytes;
+
+	private Keyspace(int id, String name, Engine engine, int replicationFactor, int writeQuorum, int readQuorum, long memoryBytes)
+	{
+		if (writeQuorum < 1 || writeQuorum > replicationFactor || readQuorum < 1 || readQuorum > replicationFactor)
+		{
+			throw new IllegalArgumentException("Quorums W=" + writeQuorum + ", R=" + readQuorum + " of keyspace " + name
+					+ " must be between 1 and its replication factor " + replicationFactor);
+		}
+		this._id = id;
+		this._name = name;
+		this._engine = engine;
+		this._replicationFactor = replicationFactor;
+		this._writeQuorum = writeQuorum;
+		this._readQuorum = readQuorum;
+		this._memoryBytes = memoryBytes;
+	}
+
+	/**
+	 * @return every keyspace, by number
+	 */
+	public static List<Keyspace> all() { return ALL; }
+
+	/**
+	 * @param id the number of a keyspace, as carried by requests
+	 * @return the keyspace, or null if there is none with that number
+	 */
+	public static Keyspace get(int id)
+	{
+		return id < ALL.size() ? ALL.get(id) : null;
+	}
+
+	/**
+	 * @param name
+	 * @return the keyspace
+	 * @throws IllegalArgumentException if there is none with that name
+	 */
+	public static Keyspace named(String name)
+	{
+		for (Keyspace keyspace : ALL)
+		{
+			if (keyspace._name.equals(name))
+			{
+				return keyspace;
+			}
+		}
+		throw new IllegalArgumentException("Unknown keyspace " + name);
+	}
+
+	public int getId() { return this._id; }
+
+	public String getName() { return this._name; }
+
+	public Engine getEngine() { return this._engine; }
+
+	public int getReplicationFactor() { return this._replicationFactor; }
+
+	public int getWriteQuorum() { return this._writeQuorum; }
+
+	public int getReadQuorum() { return this._readQuorum; }
+
+	/**
+	 * @return the memory budget of the keyspace in each store, in bytes, 0 for none
+	 */
+	public long getMemoryBytes() { return this._memoryBytes; }
+
+	@Override
+	public String toString() { return this._name; }
+
+	/**
+	 * Parses the keyspaces of Config.KEYSPACES, after the default one.
+	 */
+	private static Keyspace[] parse(String[] specs)
+	{
+		if (specs.length > 255)
+		{
+			throw new IllegalArgumentException("At most 255 keyspaces, " + specs.length + " configured");
+		}
+		Keyspace[] keyspaces = new Keyspace[specs.length + 1];
+		keyspaces[0] = DEFAULT;
+		for (int i = 0; i < specs.length; i++)
+		{
+			String[] fields = specs[i].split("\\s*:\\s*");
+			if (fields.length < 2 || fields.length > 6)
+			{
+				throw new IllegalArgumentException("Keyspace " + specs[i]
+						+ " is not name:engine[:replicationFactor[:writeQuorum[:readQuorum[:memoryBytes]]]]");
+			}
+			for (int j = 0; j < i + 1; j++)
+			{
+				if (keyspaces[j]._name.equals(fields[0]))
+				{
+					throw new IllegalArgumentException("Keyspace " + fields[0] + " is configured twice");
+				}
+			}
+			int replicationFactor = fields.length > 2 ? Integer.parseInt(fields[2]) : Config.REPLICATION_FACTOR;
+			int writeQuorum = fields.length > 3 ? Integer.parseInt(fields[3]) : replicationFactor / 2 + 1;
+			int readQuorum = fields.length > 4 ? Integer.parseInt(fields[4]) : replicationFactor - writeQuorum + 1;
+			long memoryBytes = fields.length > 5 ? Long.parseLong(fields[5]) : 0;
+			keyspaces[i + 1] = new Keyspace(i + 1, fields[0], Engine.valueOf(fields[1].toUpperCase()), replicationFactor,
+					writeQuorum, readQuorum, memoryBytes);
+		}
+		return keyspaces;
+	}
+}
@@ -1,51 +1,115 @@
 package main.java.io.kvstore;
 
+import main.java.io.kvstore.coordinator.AntiEntropy;
 import main.java.io.kvstore.coordinator.Coordinator;
+import main.java.io.kvstore.coordinator.HintedHandoff;
 import main.java.io.kvstore.coordinator.Monitor;
 import main.java.io.kvstore.coordinator.Node;
+import main.java.io.kvstore.coordinator.Rebalancer;
+import main.java.io.kvstore.log.EventLog;
+import main.java.io.kvstore.log.LogSite;
+import main.java.io.kvstore.metrics.Metrics;
 import main.java.io.kvstore.store.Store;
 import main.java.io.kvstore.store.StoreClient;
-import main.java.io.kvstore.utils.Utils;
+import main.java.io.kvstore.transport.Network;
+import main.java.io.kvstore.transport.UdpNetwork;
+import main.java.io.kvstore.utils.Clock;
 
+import java.io.File;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class Runner
 {
+	private static final LogSite STORE_SERVING = LogSite.info("store.serving", "port");
+	private static final LogSite COORDINATOR_SERVING = LogSite.info("coordinator.serving", "port");
+	private static final LogSite CONFIG = LogSite.info("config.loaded", "file", "nodes", "replication_factor");
+
+	/**
+	 * Without arguments, starts the nodes of Config in this process.
+	 * With "node index", starts only the node at that index of Config.NODES, e.g. one process per node.
+	 * With "join coordinatorPort storePort seedHost seedCoordinatorPort", starts one more node
+	 * that joins the running cluster through the seed.
+	 * @param args
+	 * @throws Exception
+	 */
 	public static void main(String[] args) throws Exception
 	{
-		ExecutorService executor = Executors.newCachedThreadPool();
+		ExecutorService executor = Config.EXECUTOR_THREADS > 0 ? Executors.newFixedThreadPool(Config.EXECUTOR_THREADS)
+				: Executors.newCachedThreadPool();
+		EventLog.event(CONFIG, new File(Config.FILE).exists() ? Config.FILE : "none", Config.NODES.length, Config.REPLICATION_FACTOR);
 
-		int numNodes = Config.PORT_COORDINATOR.length;
-		Node[] nodes = new Node[numNodes];
-		for (int i = 0; i < numNodes; i++)
+		if (args.length == 5 && args[0].equals("join"))
 		{
-			InetAddress addr = InetAddress.getLocalHost();
-			boolean isLocalhost = addr.equals(InetAddress.getLocalHost());
-			nodes[i] = new Node(addr, Config.PORT_COORDINATOR[i], Config.PORT_STORE[i], isLocalhost);
+			Node self = new Node(InetAddress.getLocalHost(), Integer.parseInt(args[1]), Integer.parseInt(args[2]), true);
+			InetSocketAddress seed = new InetSocketAddress(args[3], Integer.parseInt(args[4]));
+			startNode(self, new Node[] {self}, Collections.singletonList(seed), executor, new UdpNetwork());
+			return;
 		}
 
-		for (int i = 0; i < numNodes; i++)
+		Node[] nodes = Node.configured();
+		if (args.length == 2 && args[0].equals("node"))
+		{
+			int index = Integer.parseInt(args[1]);
+			startNode(nodes[index], nodes, new ArrayList<>(), executor, new UdpNetwork());
+			return;
+		}
+		for (int i = 0; i < nodes.length; i++)
 		{
-			final int coordinatorPort = Config.PORT_COORDINATOR[i];
-			final int storePort = Config.PORT_STORE[i];
-
-			// start store service
-			Store store = new Store(storePort);
-			new Thread(() -> store.serve(executor)).start();
-			Utils.print("Store serving on port " + storePort + "...");
-
-			// create store client
-			StoreClient client = new StoreClient(storePort, 5, 10000);
-			new Thread(() -> client.receive(executor)).start();
-
-			// start coordinator service
-			Monitor monitor = new Monitor(nodes, client);
-			Coordinator coordinator = new Coordinator(coordinatorPort, monitor, client);
-			new Thread(() -> coordinator.serve(executor)).start();
-			Utils.print("Coordinator serving on port " + coordinatorPort + "...");
+			startNode(nodes[i], nodes, new ArrayList<>(), executor, new UdpNetwork());
 		}
 	}
 
+	/**
+	 * Starts the store and the coordinator of a node.
+	 * @param self the node to start
+	 * @param nodes the initial ring
+	 * @param seeds coordinators to gossip with while no other member is known
+	 * @param executor runs the requests: a thread pool, or the scheduler of a Simulation
+	 * @param network creates the endpoints of the node: UDP sockets, or endpoints of a simulated network
+	 *        at the address of the node
+	 * @return the coordinator of the node
+	 * @throws Exception
+	 */
+	public static Coordinator startNode(Node self, Node[] nodes, List<InetSocketAddress> seeds, ExecutorService executor,
+			Network network) throws Exception
+	{
+		final int coordinatorPort = self.getCoordinatorPort();
+		final int storePort = self.getStorePort();
+		Metrics metrics = new Metrics(); // per node, answered by the coordinator to STATS requests
+		metrics.counter("kvstore_log_events_written_total", "Events written by the event log of the process",
+				EventLog::getWritten);
+		metrics.counter("kvstore_log_events_dropped_total", "Events dropped because the event log was full",
+				EventLog::getDropped);
+
+		// start store service
+		Store store = new Store(network.bind(new InetSocketAddress(self.getAddress(), storePort)), self.getId(), metrics);
+		Clock.start(() -> store.serve(executor));
+		EventLog.event(STORE_SERVING, storePort);
+
+		// create store client
+		StoreClient client = new StoreClient(storePort, network.bind(new InetSocketAddress(self.getAddress(), 0)),
+				Config.STORE_CLIENT_ATTEMPTS, Config.STORE_CLIENT_TIMEOUT_MS, metrics);
+		Clock.start(() -> client.receive(executor));
+
+		// start coordinator service
+		Monitor monitor = new Monitor(nodes, client, metrics);
+		monitor.addListener(new Rebalancer(self, store, client));
+		HintedHandoff hints = new HintedHandoff(new File(Config.HINT_DIR, String.valueOf(coordinatorPort)), client);
+		monitor.addAvailabilityListener(hints);
+		Coordinator coordinator = new Coordinator(network.bind(new InetSocketAddress(self.getAddress(), coordinatorPort)),
+				monitor, client, hints, self, store, metrics);
+		Clock.start(() -> coordinator.serve(executor));
+		EventLog.event(COORDINATOR_SERVING, coordinatorPort);
+
+		monitor.startGossip(self, seeds);
+		new AntiEntropy(self, store, monitor, client, metrics).start();
+		return coordinator;
+	}
+
 }
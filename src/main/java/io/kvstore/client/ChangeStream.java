@@ -0,0 +1,314 @@
+/**
+ * ChangeStream.java
+ * Subscriber of the change feed of one store: the values and removes applied to the store in a keyspace,
+ * pushed in batches as they are written and passed to a listener in the order of their numbers.
+ * Each batch is acknowledged once the listener returned, and the store pushes at most a window of batches
+ * ahead of the acknowledgements, so a slow listener slows down its own stream only. Batches lost or not
+ * acknowledged are pushed again, so a change may be passed twice; a stream that fell behind the changes
+ * the store holds, or that resumed after the store restarted, is told of the gap.
+ * Every replica of a key applies its changes, in any order and at various times: to follow a keyspace,
+ * subscribe to each store and keep the highest version of each key, a remove winning over a value of the
+ * same version. An expiry is such a remove: its tombstone keeps the version of the value that expired.
+ * A change of a value larger than a batch comes without the value, to be read from the cluster.
+ */
+package main.java.io.kvstore.client;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.Keyspace;
+import main.java.io.kvstore.coordinator.Node;
+import main.java.io.kvstore.log.EventLog;
+import main.java.io.kvstore.log.LogSite;
+import main.java.io.kvstore.store.StoreMessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class ChangeStream implements Closeable
+{
+	private static final LogSite RECEIVE_FAILED = LogSite.warn("change_stream.receive_failed", "store");
+	private static final LogSite LISTENER_FAILED = LogSite.error("change_stream.listener_failed", "store", "seq");
+
+	/**
+	 * A value written to the store, or a remove.
+	 */
+	public static final class Change
+	{
+		private final long _seq;
+		private final byte[] _key;
+		private final byte[] _value;
+		private final int _version;
+		private final long _expiresAt;
+
+		Change(long seq, byte[] key, byte[] value, int version, long expiresAt)
+		{
+			this._seq = seq;
+			this._key = key;
+			this._value = value;
+			this._version = version;
+			this._expiresAt = expiresAt;
+		}
+
+		/**
+		 * @return the number of the change in the store, to resume from
+		 */
+		public long getSeq() { return this._seq; }
+
+		/**
+		 * @return the hashed key, as stored
+		 */
+		public byte[] getKey() { return this._key; }
+
+		/**
+		 * @return the value written, empty for a remove, or null if it was too large for a batch
+		 */
+		public byte[] getValue() { return this._value; }
+
+		public int getVersion() { return this._version; }
+
+		/**
+		 * @return epoch milliseconds, 0 if the value does not expire
+		 */
+		public long getExpiresAt() { return this._expiresAt; }
+
+		/**
+		 * @return whether the change removes the key, including an expiry, which has the version of the
+		 * value it removes
+		 */
+		public boolean isRemove() { return this._value != null && this._value.length == 0; }
+	}
+
+	public interface Listener
+	{
+		/**
+		 * Called on the receiver thread of the stream, for each change in order.
+		 * @param change
+		 */
+		void onChange(Change change);
+
+		/**
+		 * Called before the changes that follow changes the stream missed.
+		 */
+		default void onGap() {}
+	}
+
+	private final InetSocketAddress _store;
+
+	private final Keyspace _keyspace;
+
+	private final int _window;
+
+	private final Listener _listener;
+
+	/**
+	 * ID of the subscription, carried by its batches.
+	 */
+	private final byte[] _id = StoreMessage.createId();
+
+	private final DatagramChannel _channel;
+
+	private final ScheduledExecutorService _timer;
+
+	/**
+	 * Epoch of the store and number after the last change processed; written by the receiver thread.
+	 */
+	private volatile long _epoch;
+	private volatile long _next;
+
+	/**
+	 * Whether the store confirmed the subscription with a batch.
+	 */
+	private volatile boolean _subscribed;
+
+	private volatile boolean _closed;
+
+	/**
+	 * Stream of the changes of a node's store written from now on.
+	 * @param node
+	 * @param keyspace
+	 * @param listener
+	 * @throws IOException
+	 */
+	public ChangeStream(Node node, Keyspace keyspace, Listener listener) throws IOException
+	{
+		this(new InetSocketAddress(node.getAddress(), node.getStorePort()), keyspace, 0, 0, 16, listener);
+	}
+
+	/**
+	 * @param store the address of the store
+	 * @param keyspace
+	 * @param epoch the epoch of the store the number comes from, from getEpoch, or 0 if unknown
+	 * @param from the number of the first change wanted, from getNextSeq, or 0 for the changes written from now on
+	 * @param window number of batches the store may push ahead of the acknowledgements
+	 * @param listener
+	 * @throws IOException
+	 */
+	public ChangeStream(InetSocketAddress store, Keyspace keyspace, long epoch, long from, int window, Listener listener)
+			throws IOException
+	{
+		this._store = store;
+		this._keyspace = keyspace;
+		this._window = window;
+		this._listener = listener;
+		this._epoch = epoch;
+		this._next = from;
+		this._channel = DatagramChannel.open();
+		this._channel.bind(null);
+		this._timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "change-stream-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Thread receiver = new Thread(this::receive, "change-stream-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+		long keepaliveMs = Math.max(1, Config.CHANGE_FEED_TIMEOUT_MS / 3);
+		this._timer.scheduleWithFixedDelay(this::keepalive, 0, keepaliveMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the epoch of the store, to resume with
+	 */
+	public long getEpoch() { return this._epoch; }
+
+	/**
+	 * @return the number after the last change processed, to resume from
+	 */
+	public long getNextSeq() { return this._next; }
+
+	public Keyspace getKeyspace() { return this._keyspace; }
+
+	@Override
+	public void close() throws IOException
+	{
+		this._closed = true;
+		this._timer.shutdownNow();
+		this._channel.close();
+	}
+
+	/**
+	 * Subscribes until the store confirms, then acknowledges the last batch again, so that the store keeps
+	 * the subscription and pushes the batches it lost.
+	 */
+	private void keepalive()
+	{
+		if (this._subscribed)
+		{
+			this.send(StoreMessage.createChangesAckRequest(this._id, this._next, this._window));
+		}
+		else
+		{
+			this.send(StoreMessage.createSubscribeRequest(this._id, this._epoch, this._next, this._window));
+		}
+	}
+
+	private void send(byte[] request)
+	{
+		try {
+			this._channel.send(ByteBuffer.wrap(StoreMessage.withKeyspace(request, this._keyspace.getId())), this._store);
+		} catch (IOException e) {
+			// lost like a datagram; sent again by the keepalive
+		}
+	}
+
+	/**
+	 * Receives the batches, passes their changes to the listener and acknowledges them.
+	 */
+	private void receive()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(StoreMessage.MAX_RES_BYTES);
+		while (!this._closed)
+		{
+			try {
+				buffer.clear();
+				if (!this._store.equals(this._channel.receive(buffer)))
+				{
+					continue;
+				}
+				byte[] response = Arrays.copyOf(buffer.array(), buffer.position());
+				if (response.length < StoreMessage.MIN_BYTES || !Arrays.equals(StoreMessage.id(response), this._id))
+				{
+					continue;
+				}
+				switch (StoreMessage.storeResponseType(response))
+				{
+					case CHANGES:
+						this.accept(StoreMessage.responseValue(response));
+						break;
+					case UNRECOGNIZED_COMMAND: // the store dropped the subscription, or restarted
+						this._subscribed = false;
+						this.keepalive();
+						break;
+					default:
+						break;
+				}
+			} catch (IOException e) {
+				if (!this._closed)
+				{
+					EventLog.event(RECEIVE_FAILED, e, this._store);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Processes a batch that follows the changes processed, or starts a new run of the store; the others
+	 * are duplicates or arrived out of order, and pushed again by the store.
+	 */
+	private void accept(byte[] batch)
+	{
+		if (batch.length < StoreMessage.CHANGES_HEADER_BYTES)
+		{
+			return;
+		}
+		ByteBuffer changes = ByteBuffer.wrap(batch);
+		long epoch = changes.getLong();
+		long from = changes.getLong();
+		long next = changes.getLong();
+		boolean gap = (changes.get() & StoreMessage.CHANGES_GAP) != 0;
+		if (epoch != this._epoch || from == this._next)
+		{
+			this._epoch = epoch;
+			this._subscribed = true;
+			long seq = from;
+			try {
+				if (gap)
+				{
+					this._listener.onGap();
+				}
+				while (changes.remaining() >= StoreMessage.changeEntryBytes(new byte[0]))
+				{
+					seq = changes.getLong();
+					byte[] key = new byte[StoreMessage.KEY_BYTES];
+					changes.get(key);
+					int version = changes.getShort() & 0xFFFF;
+					long expiresAt = changes.getLong();
+					int length = changes.getShort() & 0xFFFF;
+					byte[] value = null;
+					if (length != StoreMessage.CHANGE_VALUE_OMITTED)
+					{
+						value = new byte[length];
+						changes.get(value);
+					}
+					this._listener.onChange(new Change(seq, key, value, version, expiresAt));
+				}
+			} catch (RuntimeException e) {
+				// not acknowledged: the store pushes the batch again
+				EventLog.event(LISTENER_FAILED, e, this._store, seq);
+				return;
+			}
+			this._next = next;
+		}
+		else if (next > this._next)
+		{
+			return;
+		}
+		this.send(StoreMessage.createChangesAckRequest(this._id, this._next, this._window));
+	}
+}
@@ -0,0 +1,595 @@
+/**
+ * KVClient.java
+ * Asynchronous client of the coordinators.
+ * All requests share one non-blocking socket and are matched to their responses by ID, so any number
+ * can be in flight. Each key is sent to a coordinator that is also one of its replicas, picked at
+ * random to spread the load, and retransmitted with the same ID to the next replica after an
+ * adaptive timeout. Coordinators answer a retransmission like the original request.
+ * A client works on the default keyspace; keyspace(name) returns a view of it on another one.
+ */
+package main.java.io.kvstore.client;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.Keyspace;
+import main.java.io.kvstore.coordinator.Node;
+import main.java.io.kvstore.coordinator.Partitioner;
+import main.java.io.kvstore.coordinator.Ring;
+import main.java.io.kvstore.log.EventLog;
+import main.java.io.kvstore.log.LogSite;
+import main.java.io.kvstore.utils.Message;
+import main.java.io.kvstore.utils.Utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+public class KVClient implements Closeable
+{
+	private static final LogSite RECEIVE_FAILED = LogSite.warn("client.receive_failed");
+	private static final LogSite RECEIVER_FAILED = LogSite.error("client.receiver_failed");
+
+	/**
+	 * A request waiting for its response.
+	 */
+	private static class Pending
+	{
+		final byte[] request;
+		final List<Node> targets;
+		final CompletableFuture<byte[]> response = new CompletableFuture<>();
+
+		/**
+		 * Number of the current attempt, and its send time and timer. Guarded by this.
+		 */
+		int attempt;
+		long sentNanos;
+		ScheduledFuture<?> timer;
+
+		Pending(byte[] request, List<Node> targets)
+		{
+			this.request = request;
+			this.targets = targets;
+		}
+
+		Node target() { return this.targets.get(this.attempt % this.targets.size()); }
+	}
+
+	/**
+	 * The keyspace of the keys of this client.
+	 */
+	private final Keyspace _keyspace;
+
+	/**
+	 * The client that owns the socket and the state below: this one, or the one this view was made from.
+	 */
+	private final KVClient _root;
+
+	private final Ring _ring;
+
+	private final DatagramChannel _channel;
+
+	private final Selector _selector;
+
+	/**
+	 * Requests in flight, by hex ID.
+	 */
+	private final ConcurrentHashMap<String, Pending> _pending;
+
+	/**
+	 * Retransmission timeouts by coordinator.
+	 */
+	private final ConcurrentHashMap<Node, RttEstimator> _rtt;
+
+	private final ScheduledExecutorService _timer;
+
+	private final SecureRandom _random;
+
+	private final LongAdder _requests;
+	private final LongAdder _retransmits;
+	private final LongAdder _timeouts;
+
+	private volatile boolean _closed;
+
+	/**
+	 * Client of the nodes of Config.NODES.
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public KVClient() throws IOException, NoSuchAlgorithmException
+	{
+		this(Arrays.asList(Node.configured()));
+	}
+
+	/**
+	 * Client of the coordinators of Config running on a host.
+	 * @param host
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public KVClient(InetAddress host) throws IOException, NoSuchAlgorithmException
+	{
+		this(configNodes(host));
+	}
+
+	/**
+	 * @param nodes the nodes of the cluster, with their coordinator and store ports
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public KVClient(List<Node> nodes) throws IOException, NoSuchAlgorithmException
+	{
+		this._keyspace = Keyspace.DEFAULT;
+		this._root = this;
+		this._pending = new ConcurrentHashMap<>();
+		this._rtt = new ConcurrentHashMap<>();
+		this._timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "kvclient-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this._random = new SecureRandom();
+		this._requests = new LongAdder();
+		this._retransmits = new LongAdder();
+		this._timeouts = new LongAdder();
+		this._ring = new Ring(nodes, Partitioner.forName(Config.HASHING_ALGORITHM));
+		this._channel = DatagramChannel.open();
+		this._channel.configureBlocking(false);
+		this._channel.bind(null);
+		this._selector = Selector.open();
+		this._channel.register(this._selector, SelectionKey.OP_READ);
+		Thread receiver = new Thread(this::receive, "kvclient-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	private KVClient(KVClient root, Keyspace keyspace)
+	{
+		this._keyspace = keyspace;
+		this._root = root;
+		this._ring = root._ring;
+		this._channel = root._channel;
+		this._selector = root._selector;
+		this._pending = root._pending;
+		this._rtt = root._rtt;
+		this._timer = root._timer;
+		this._random = root._random;
+		this._requests = root._requests;
+		this._retransmits = root._retransmits;
+		this._timeouts = root._timeouts;
+	}
+
+	/**
+	 * A view of this client on the keys of a keyspace, routed with its replication factor. The view shares
+	 * the socket, the requests in flight and the counters of this client; closing either closes both.
+	 * @param name the name of one of Keyspace.all
+	 * @return
+	 * @throws IllegalArgumentException if there is no such keyspace
+	 */
+	public KVClient keyspace(String name)
+	{
+		return new KVClient(this._root, Keyspace.named(name));
+	}
+
+	public Keyspace getKeyspace() { return this._keyspace; }
+
+	/**
+	 * @param key
+	 * @return the value, or null if the key does not exist
+	 */
+	public CompletableFuture<byte[]> get(byte[] key)
+	{
+		return this.send(Message.Command.GET, key, null, -1).thenApply(res -> {
+			Message.Code code = Message.code(res);
+			if (code == Message.Code.NON_EXISTENT_KEY)
+			{
+				return null;
+			}
+			check(code);
+			return Message.responseValue(res);
+		});
+	}
+
+	public CompletableFuture<Void> put(byte[] key, byte[] value)
+	{
+		return this.put(key, value, 0);
+	}
+
+	/**
+	 * Writes a value that expires: once the TTL elapsed, reads find the key removed.
+	 * @param key
+	 * @param value
+	 * @param ttlMs time to live in milliseconds, 0 for none
+	 */
+	public CompletableFuture<Void> put(byte[] key, byte[] value, long ttlMs)
+	{
+		return this.send(Message.Command.PUT, key, value, -1, ttlMs).thenAccept(res -> check(Message.code(res)));
+	}
+
+	/**
+	 * @param key
+	 * @return whether the key existed
+	 */
+	public CompletableFuture<Boolean> remove(byte[] key)
+	{
+		return this.send(Message.Command.REMOVE, key, null, -1).thenApply(res -> {
+			Message.Code code = Message.code(res);
+			if (code == Message.Code.NON_EXISTENT_KEY)
+			{
+				return false;
+			}
+			check(code);
+			return true;
+		});
+	}
+
+	/**
+	 * @param key
+	 * @return the value and its version, or null if the key does not exist
+	 */
+	public CompletableFuture<Versioned> getVersioned(byte[] key)
+	{
+		return this.send(Message.Command.GET, key, null, -1).thenApply(res -> {
+			Message.Code code = Message.code(res);
+			if (code == Message.Code.NON_EXISTENT_KEY)
+			{
+				return null;
+			}
+			check(code);
+			return new Versioned(Message.responseValue(res), Message.responseVersion(res));
+		});
+	}
+
+	/**
+	 * Writes a value if the key was not written since it was read at the expected version.
+	 * A conflict does not guarantee that no replica applied the write, see README.
+	 * @param key
+	 * @param value
+	 * @param expected the version returned by getVersioned
+	 * @return false on a version conflict
+	 */
+	public CompletableFuture<Boolean> compareAndSet(byte[] key, byte[] value, int expected)
+	{
+		return this.send(Message.Command.CAS, key, value, expected).thenApply(KVClient::applied);
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return false if the key exists
+	 */
+	public CompletableFuture<Boolean> putIfAbsent(byte[] key, byte[] value)
+	{
+		return this.putIfAbsent(key, value, 0);
+	}
+
+	/**
+	 * Writes a value that expires if the key does not exist, e.g. to take a lease.
+	 * @param key
+	 * @param value
+	 * @param ttlMs time to live in milliseconds, 0 for none
+	 * @return false if the key exists
+	 */
+	public CompletableFuture<Boolean> putIfAbsent(byte[] key, byte[] value, long ttlMs)
+	{
+		return this.send(Message.Command.PUT_IF_ABSENT, key, value, -1, ttlMs).thenApply(KVClient::applied);
+	}
+
+	/**
+	 * Removes a key if it was not written since it was read at the expected version.
+	 * @param key
+	 * @param expected
+	 * @return false on a version conflict
+	 */
+	public CompletableFuture<Boolean> removeIfVersion(byte[] key, int expected)
+	{
+		return this.send(Message.Command.REMOVE_IF_VERSION, key, null, expected).thenApply(KVClient::applied);
+	}
+
+	/**
+	 * Adds to a counter, without conflicts with concurrent increments.
+	 * Counters are separate from the values of get and put, even under the same key.
+	 * @param key
+	 * @param amount
+	 * @return the counter value after the increment
+	 */
+	public CompletableFuture<Long> increment(byte[] key, long amount)
+	{
+		return this.send(Message.Command.INCREMENT, key, longBytes(amount), -1).thenApply(KVClient::counterValue);
+	}
+
+	/**
+	 * @param key
+	 * @param amount
+	 * @return the counter value after the decrement
+	 */
+	public CompletableFuture<Long> decrement(byte[] key, long amount)
+	{
+		return this.send(Message.Command.DECREMENT, key, longBytes(amount), -1).thenApply(KVClient::counterValue);
+	}
+
+	/**
+	 * @param key
+	 * @return the counter value, 0 if it was never incremented
+	 */
+	public CompletableFuture<Long> getCounter(byte[] key)
+	{
+		return this.send(Message.Command.GET_COUNTER, key, null, -1).thenApply(res -> {
+			if (Message.code(res) == Message.Code.NON_EXISTENT_KEY)
+			{
+				return 0L;
+			}
+			return counterValue(res);
+		});
+	}
+
+	/**
+	 * Reads the metrics of a node.
+	 * @param node one of getNodes
+	 * @param prefix only the metric families whose name starts with it, e.g. "kvstore_coordinator_", or "" for all
+	 * @return the metrics in the Prometheus text format, cut at about Message.VALUE_BYTES
+	 */
+	public CompletableFuture<String> stats(Node node, String prefix)
+	{
+		return this.send(Message.Command.STATS, new byte[Message.KEY_BYTES], prefix.getBytes(StandardCharsets.UTF_8), -1, 0,
+				Collections.singletonList(node)).thenApply(res -> new String(Message.responseValue(res), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads the slow log of a node: its latest requests slower than Config.SLOW_REQUEST_MS, one per line,
+	 * with the time of their phases if they were sampled.
+	 * @param node one of getNodes
+	 * @return the newest requests first, cut at about Message.VALUE_BYTES
+	 */
+	public CompletableFuture<String> slowLog(Node node)
+	{
+		return this.send(Message.Command.SLOW_LOG, new byte[Message.KEY_BYTES], null, -1, 0,
+				Collections.singletonList(node)).thenApply(res -> new String(Message.responseValue(res), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the nodes of the ring the client routes to
+	 */
+	public List<Node> getNodes() { return this._ring.getNodes(); }
+
+	public long getRequests() { return this._requests.sum(); }
+
+	public long getRetransmits() { return this._retransmits.sum(); }
+
+	/**
+	 * @return requests that got no response after Config.CLIENT_ATTEMPTS attempts
+	 */
+	public long getTimeouts() { return this._timeouts.sum(); }
+
+	public int getInFlight() { return this._pending.size(); }
+
+	/**
+	 * @param node
+	 * @return the smoothed round-trip time to a coordinator, 0 before the first response
+	 */
+	public double getSrttMs(Node node)
+	{
+		RttEstimator rtt = this._rtt.get(node);
+		return rtt == null ? 0 : rtt.getSrttMs();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (this._root != this)
+		{
+			this._root.close();
+			return;
+		}
+		this._closed = true;
+		this._selector.wakeup();
+		this._timer.shutdownNow();
+		this._channel.close();
+		this._selector.close();
+		for (Pending pending : this._pending.values())
+		{
+			pending.response.completeExceptionally(new IOException("client closed"));
+		}
+		this._pending.clear();
+	}
+
+	private CompletableFuture<byte[]> send(Message.Command command, byte[] key, byte[] value, int version)
+	{
+		return this.send(command, key, value, version, 0);
+	}
+
+	/**
+	 * Sends a request to the replicas of its key, a random one first.
+	 */
+	private CompletableFuture<byte[]> send(Message.Command command, byte[] key, byte[] value, int version, long ttlMs)
+	{
+		List<Node> targets = new ArrayList<>(this._ring.getReplicas(key, this._keyspace.getReplicationFactor()));
+		Collections.rotate(targets, ThreadLocalRandom.current().nextInt(Math.max(1, targets.size())));
+		return this.send(command, key, value, version, ttlMs, targets);
+	}
+
+	/**
+	 * Sends a request to the given coordinators, in turn.
+	 */
+	private CompletableFuture<byte[]> send(Message.Command command, byte[] key, byte[] value, int version, long ttlMs,
+			List<Node> targets)
+	{
+		byte[] id = new byte[Message.ID_BYTES];
+		this._random.nextBytes(id);
+		Pending pending = new Pending(Message.createRequest(id, command, key, value, version, ttlMs, this._keyspace.getId()), targets);
+		this._pending.put(Utils.hexString(id), pending);
+		this._requests.increment();
+		synchronized (pending) {
+			this.transmit(Utils.hexString(id), pending);
+		}
+		return pending.response;
+	}
+
+	/**
+	 * Sends the current attempt of a request and arms its timer. Called with the request locked.
+	 */
+	private void transmit(String id, Pending pending)
+	{
+		Node target = pending.target();
+		pending.sentNanos = System.nanoTime();
+		try {
+			// a full socket buffer drops the datagram like the network would
+			this._channel.send(ByteBuffer.wrap(pending.request), new InetSocketAddress(target.getAddress(), target.getCoordinatorPort()));
+		} catch (IOException e) {
+			if (this._root._closed)
+			{
+				return;
+			}
+		}
+		long timeout = this.rtt(target).rtoNanos(pending.attempt);
+		pending.timer = this._timer.schedule(() -> this.timeout(id, pending), timeout, TimeUnit.NANOSECONDS);
+	}
+
+	private void timeout(String id, Pending pending)
+	{
+		synchronized (pending) {
+			if (pending.response.isDone())
+			{
+				return;
+			}
+			if (pending.attempt + 1 >= Config.CLIENT_ATTEMPTS)
+			{
+				this._pending.remove(id);
+				this._timeouts.increment();
+				pending.response.completeExceptionally(new TimeoutException("no response after " + Config.CLIENT_ATTEMPTS + " attempts"));
+				return;
+			}
+			pending.attempt++;
+			this._retransmits.increment();
+			this.transmit(id, pending);
+		}
+	}
+
+	/**
+	 * Receives the responses and completes their requests.
+	 */
+	private void receive()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(Message.RES_MAX_BYTES);
+		while (!this._closed)
+		{
+			try {
+				this._selector.select();
+				this._selector.selectedKeys().clear();
+				while (true)
+				{
+					buffer.clear();
+					if (this._channel.receive(buffer) == null)
+					{
+						break;
+					}
+					byte[] response = new byte[buffer.position()];
+					System.arraycopy(buffer.array(), 0, response, 0, response.length);
+					if (response.length >= Message.MIN_BYTES)
+					{
+						this.complete(response);
+					}
+				}
+			} catch (IOException e) {
+				if (!this._closed)
+				{
+					EventLog.event(RECEIVE_FAILED, e);
+				}
+			} catch (Exception e) {
+				if (!this._closed)
+				{
+					EventLog.event(RECEIVER_FAILED, e);
+				}
+				return;
+			}
+		}
+	}
+
+	private void complete(byte[] response)
+	{
+		Pending pending = this._pending.remove(Utils.hexString(Message.id(response)));
+		if (pending == null)
+		{
+			return; // late duplicate
+		}
+		synchronized (pending) {
+			pending.timer.cancel(false);
+			if (pending.attempt == 0)
+			{
+				this.rtt(pending.target()).sample(System.nanoTime() - pending.sentNanos);
+			}
+		}
+		pending.response.complete(response);
+	}
+
+	private RttEstimator rtt(Node node)
+	{
+		return this._rtt.computeIfAbsent(node, n -> new RttEstimator(
+				TimeUnit.MILLISECONDS.toNanos(Config.CLIENT_INITIAL_RTO_MS),
+				TimeUnit.MILLISECONDS.toNanos(Config.CLIENT_MIN_RTO_MS),
+				TimeUnit.MILLISECONDS.toNanos(Config.CLIENT_MAX_RTO_MS)));
+	}
+
+	/**
+	 * @return whether a conditional write was applied
+	 */
+	private static boolean applied(byte[] response)
+	{
+		Message.Code code = Message.code(response);
+		if (code == Message.Code.VERSION_CONFLICT)
+		{
+			return false;
+		}
+		check(code);
+		return true;
+	}
+
+	private static long counterValue(byte[] response)
+	{
+		check(Message.code(response));
+		return ByteBuffer.wrap(Message.responseValue(response)).getLong();
+	}
+
+	private static byte[] longBytes(long value)
+	{
+		return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+	}
+
+	private static void check(Message.Code code)
+	{
+		if (code != Message.Code.SUCCESSFUL)
+		{
+			throw new CompletionException(new KVException(code));
+		}
+	}
+
+	private static List<Node> configNodes(InetAddress host)
+	{
+		ArrayList<Node> nodes = new ArrayList<>();
+		for (int i = 0; i < Config.PORT_COORDINATOR.length; i++)
+		{
+			nodes.add(new Node(host, Config.PORT_COORDINATOR[i], Config.PORT_STORE[i], true));
+		}
+		return nodes;
+	}
+}
@@ -0,0 +1,22 @@
+/**
+ * KVException.java
+ * A request answered with an error code.
+ */
+package main.java.io.kvstore.client;
+
+import main.java.io.kvstore.utils.Message;
+
+public class KVException extends Exception
+{
+	private static final long serialVersionUID = 1L;
+
+	private final Message.Code _code;
+
+	public KVException(Message.Code code)
+	{
+		super(code.toString());
+		this._code = code;
+	}
+
+	public Message.Code getCode() { return this._code; }
+}
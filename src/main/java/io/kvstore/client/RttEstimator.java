@@ -0,0 +1,59 @@
+/**
+ * RttEstimator.java
+ * Retransmission timeout of one coordinator, computed from the smoothed round-trip time and
+ * its variation as in TCP (RFC 6298).
+ */
+package main.java.io.kvstore.client;
+
+public class RttEstimator
+{
+	private final long _minRtoNanos;
+	private final long _maxRtoNanos;
+
+	/**
+	 * Smoothed round-trip time and mean deviation, 0 until the first sample. Guarded by this.
+	 */
+	private double _srttNanos;
+	private double _rttVarNanos;
+
+	private long _rtoNanos;
+
+	public RttEstimator(long initialRtoNanos, long minRtoNanos, long maxRtoNanos)
+	{
+		this._minRtoNanos = minRtoNanos;
+		this._maxRtoNanos = maxRtoNanos;
+		this._rtoNanos = initialRtoNanos;
+	}
+
+	/**
+	 * Adds the round-trip time of a request that was sent once (Karn's rule: retransmitted
+	 * requests are ambiguous and must not be sampled).
+	 * @param rttNanos
+	 */
+	public synchronized void sample(long rttNanos)
+	{
+		if (this._srttNanos == 0)
+		{
+			this._srttNanos = rttNanos;
+			this._rttVarNanos = rttNanos / 2.0;
+		}
+		else
+		{
+			this._rttVarNanos = 0.75 * this._rttVarNanos + 0.25 * Math.abs(this._srttNanos - rttNanos);
+			this._srttNanos = 0.875 * this._srttNanos + 0.125 * rttNanos;
+		}
+		long rto = (long) (this._srttNanos + 4 * this._rttVarNanos);
+		this._rtoNanos = Math.max(this._minRtoNanos, Math.min(this._maxRtoNanos, rto));
+	}
+
+	/**
+	 * @param attempt 0 for the first send
+	 * @return the timeout of an attempt, doubled for every retransmission
+	 */
+	public synchronized long rtoNanos(int attempt)
+	{
+		return Math.min(this._maxRtoNanos, this._rtoNanos << Math.min(attempt, 16));
+	}
+
+	public synchronized double getSrttMs() { return this._srttNanos / 1e6; }
+}
@@ -0,0 +1,17 @@
+/**
+ * Versioned.java
+ * A value and the version it was read at, to be passed to a conditional write.
+ */
+package main.java.io.kvstore.client;
+
+public class Versioned
+{
+	public final byte[] value;
+	public final int version;
+
+	public Versioned(byte[] value, int version)
+	{
+		this.value = value;
+		this.version = version;
+	}
+}
@@ -0,0 +1,310 @@
+/**
+ * AntiEntropy.java
+ * Background anti-entropy between the local store and the other replicas.
+ * Every Config.ANTI_ENTROPY_INTERVAL_MS, the local Merkle tree of each keyspace is compared with the one
+ * of a random available node, descending only into differing subtrees. Only the keys of differing leaves are listed,
+ * and only the entries whose versions differ are streamed, in both directions.
+ */
+package main.java.io.kvstore.coordinator;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.Keyspace;
+import main.java.io.kvstore.log.EventLog;
+import main.java.io.kvstore.log.LogSite;
+import main.java.io.kvstore.metrics.Counter;
+import main.java.io.kvstore.metrics.Metrics;
+import main.java.io.kvstore.store.Store;
+import main.java.io.kvstore.store.StoreClient;
+import main.java.io.kvstore.store.StoreMessage;
+import main.java.io.kvstore.utils.Clock;
+import main.java.io.kvstore.utils.RateLimiter;
+import main.java.io.kvstore.utils.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class AntiEntropy
+{
+	private static final LogSite ABORTED = LogSite.warn("anti_entropy.aborted", "peer");
+
+	/**
+	 * Tree nodes per MERKLE_HASHES request, so that the 8-byte hashes fit in one response.
+	 */
+	private static final int HASHES_PER_REQUEST = 1024;
+
+	/**
+	 * Leaves per MERKLE_KEYS request.
+	 */
+	private static final int LEAVES_PER_REQUEST = 16;
+
+	private final Node _self;
+	private final Store _store;
+	private final Monitor _monitor;
+	private final StoreClient _client;
+
+	/**
+	 * Bandwidth limit of the repair writes, in bytes.
+	 */
+	private final RateLimiter _limiter = new RateLimiter(Config.STREAM_BYTES_PER_SECOND);
+
+	private final ScheduledExecutorService _executor = Clock.newScheduledExecutor();
+
+	private final Counter _exchanges;
+	private final Counter _leavesDiffering;
+	private final Counter _keysPulled;
+	private final Counter _keysPushed;
+
+	public AntiEntropy(Node self, Store store, Monitor monitor, StoreClient client)
+	{
+		this(self, store, monitor, client, new Metrics());
+	}
+
+	/**
+	 * @param self
+	 * @param store
+	 * @param monitor
+	 * @param client
+	 * @param metrics registry of the exchange counts
+	 */
+	public AntiEntropy(Node self, Store store, Monitor monitor, StoreClient client, Metrics metrics)
+	{
+		this._self = self;
+		this._store = store;
+		this._monitor = monitor;
+		this._client = client;
+		this._exchanges = metrics.counter("kvstore_anti_entropy_exchanges_total", "Merkle tree exchanges with a peer");
+		this._leavesDiffering = metrics.counter("kvstore_anti_entropy_leaves_differing_total",
+				"Merkle tree leaves found different from the peer's");
+		this._keysPulled = metrics.counter("kvstore_anti_entropy_keys_pulled_total", "Newer values fetched from peers");
+		this._keysPushed = metrics.counter("kvstore_anti_entropy_keys_pushed_total", "Newer values sent to peers");
+	}
+
+	public void start()
+	{
+		this._executor.scheduleWithFixedDelay(this::round, Config.ANTI_ENTROPY_INTERVAL_MS,
+				Config.ANTI_ENTROPY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public long getExchanges() { return this._exchanges.get(); }
+
+	public long getLeavesDiffering() { return this._leavesDiffering.get(); }
+
+	public long getKeysPulled() { return this._keysPulled.get(); }
+
+	public long getKeysPushed() { return this._keysPushed.get(); }
+
+	private void round()
+	{
+		ArrayList<Node> peers = new ArrayList<>();
+		for (Node node : this._monitor.getRing().getNodes())
+		{
+			if (!node.equals(this._self) && node.getAvailable())
+			{
+				peers.add(node);
+			}
+		}
+		if (peers.isEmpty())
+		{
+			return;
+		}
+		Node peer = peers.get(Clock.random().nextInt(peers.size()));
+		try {
+			this.exchange(peer);
+		} catch (Exception e) {
+			EventLog.event(ABORTED, e, peer);
+		}
+	}
+
+	/**
+	 * Compares the trees of every keyspace with a peer and repairs the differing entries on both sides.
+	 * @param peer
+	 * @throws Exception if the peer does not answer
+	 */
+	public void exchange(Node peer) throws Exception
+	{
+		this._exchanges.increment();
+		for (Keyspace keyspace : Keyspace.all())
+		{
+			this.exchange(peer, keyspace);
+		}
+	}
+
+	private void exchange(Node peer, Keyspace keyspace) throws Exception
+	{
+		long[] local = this._store.merkleSnapshot(keyspace);
+		int leafCount = this._store.merkleLeafCount();
+
+		// descend from the root into the differing subtrees only
+		ArrayList<Integer> leaves = new ArrayList<>();
+		List<Integer> frontier = new ArrayList<>();
+		frontier.add(1);
+		while (!frontier.isEmpty())
+		{
+			ArrayList<Integer> next = new ArrayList<>();
+			for (int from = 0; from < frontier.size(); from += HASHES_PER_REQUEST)
+			{
+				List<Integer> batch = frontier.subList(from, Math.min(frontier.size(), from + HASHES_PER_REQUEST));
+				ByteBuffer remote = ByteBuffer.wrap(StoreMessage.responseValue(
+						this.call(peer, keyspace, StoreMessage.createMerkleHashesRequest(toArray(batch)))));
+				for (int node : batch)
+				{
+					if (remote.remaining() < 8 || remote.getLong() == local[node])
+					{
+						continue;
+					}
+					if (node >= leafCount)
+					{
+						leaves.add(node - leafCount);
+					}
+					else
+					{
+						next.add(2 * node);
+						next.add(2 * node + 1);
+					}
+				}
+			}
+			frontier = next;
+		}
+		this._leavesDiffering.add(leaves.size());
+
+		for (int from = 0; from < leaves.size(); from += LEAVES_PER_REQUEST)
+		{
+			this.repair(peer, keyspace, leaves.subList(from, Math.min(leaves.size(), from + LEAVES_PER_REQUEST)));
+		}
+	}
+
+	/**
+	 * Lists the entries of some leaves on both sides and streams the newer versions across.
+	 * Keys that are not replicated on both nodes are ignored.
+	 * @param peer
+	 * @param keyspace
+	 * @param leaves
+	 * @throws Exception
+	 */
+	private void repair(Node peer, Keyspace keyspace, List<Integer> leaves) throws Exception
+	{
+		byte[] response = this.call(peer, keyspace, StoreMessage.createMerkleKeysRequest(toArray(leaves)));
+		boolean truncated = StoreMessage.responseValueVersion(response) == 1;
+		if (truncated && leaves.size() > 1)
+		{
+			// too many keys for one response: split the leaves
+			int half = leaves.size() / 2;
+			this.repair(peer, keyspace, leaves.subList(0, half));
+			this.repair(peer, keyspace, leaves.subList(half, leaves.size()));
+			return;
+		}
+		HashMap<String, Integer> remote = new HashMap<>();
+		ByteBuffer entries = ByteBuffer.wrap(StoreMessage.responseValue(response));
+		byte[] key = new byte[StoreMessage.KEY_BYTES];
+		while (entries.remaining() >= StoreMessage.KEY_BYTES + StoreMessage.VALUE_VER_BYTES)
+		{
+			entries.get(key);
+			remote.put(Utils.hexString(key), entries.getShort() & 0xFFFF);
+		}
+
+		// push what is newer here, listing the local versions in the same pass
+		HashMap<String, Integer> local = new HashMap<>();
+		this._store.forEachInLeaves(keyspace, new HashSet<>(leaves), (k, value, version, expiresAt) -> {
+			String keyString = Utils.hexString(k);
+			local.put(keyString, version);
+			Integer remoteVersion = remote.get(keyString);
+			// a key missing from a truncated listing may exist on the peer, so it is left for the next exchange
+			boolean newer = remoteVersion == null ? !truncated : remoteVersion < version;
+			if (newer && this.sharedBy(keyspace, k, peer))
+			{
+				byte[] request = StoreMessage.withKeyspace(StoreMessage.createPutRequest(StoreMessage.createId(), k, value, version,
+						expiresAt), keyspace.getId());
+				this._limiter.acquire(request.length);
+				this._client.send(peer.getAddress(), peer.getStorePort(), request, res -> {}, req -> {});
+				this._keysPushed.increment();
+			}
+		});
+
+		// pull what is newer there: the reads are sent together, and the throttled writes made on this thread
+		// as their responses arrive, not on the threads of the client
+		HashMap<String, CompletableFuture<byte[]>> reads = new HashMap<>();
+		for (String keyString : remote.keySet())
+		{
+			byte[] k = Utils.hexBytes(keyString);
+			if (remote.get(keyString) > local.getOrDefault(keyString, 0) && this.sharedBy(keyspace, k, peer))
+			{
+				reads.put(keyString, this.read(peer, keyspace, k));
+			}
+		}
+		for (String keyString : reads.keySet())
+		{
+			CompletableFuture<byte[]> read = reads.get(keyString);
+			Clock.await(read);
+			this.write(keyspace, Utils.hexBytes(keyString), read.getNow(null));
+		}
+	}
+
+	/**
+	 * Reads a key from the peer.
+	 * @return the response, or null if the peer did not answer
+	 */
+	private CompletableFuture<byte[]> read(Node peer, Keyspace keyspace, byte[] key)
+	{
+		CompletableFuture<byte[]> response = new CompletableFuture<>();
+		byte[] get = StoreMessage.withKeyspace(StoreMessage.createGetRequest(StoreMessage.createId(), key), keyspace.getId());
+		this._client.send(peer.getAddress(), peer.getStorePort(), get, response::complete, req -> response.complete(null));
+		return response;
+	}
+
+	/**
+	 * Writes a value read from the peer to the local store with its version, within the bandwidth limit.
+	 * @param keyspace
+	 * @param key
+	 * @param response the response of the peer, or null
+	 */
+	private void write(Keyspace keyspace, byte[] key, byte[] response)
+	{
+		int version = response == null ? 0 : StoreMessage.responseValueVersion(response);
+		if (version > 0)
+		{
+			byte[] request = StoreMessage.withKeyspace(StoreMessage.createPutRequest(StoreMessage.createId(), key,
+					StoreMessage.responseValue(response), version, StoreMessage.responseExpiresAt(response)), keyspace.getId());
+			this._limiter.acquire(request.length);
+			this._client.send(this._self.getAddress(), this._self.getStorePort(), request, r -> {}, r -> {});
+			this._keysPulled.increment();
+		}
+	}
+
+	/**
+	 * Whether both this node and the peer are replicas of the key in its keyspace.
+	 */
+	private boolean sharedBy(Keyspace keyspace, byte[] key, Node peer)
+	{
+		List<Node> replicas = this._monitor.getReplicas(key, keyspace.getReplicationFactor());
+		return replicas.contains(this._self) && replicas.contains(peer);
+	}
+
+	/**
+	 * Sends a request on a keyspace to a peer's store and waits for the response.
+	 */
+	private byte[] call(Node peer, Keyspace keyspace, byte[] request) throws Exception
+	{
+		CompletableFuture<byte[]> response = new CompletableFuture<>();
+		this._client.send(peer.getAddress(), peer.getStorePort(), StoreMessage.withKeyspace(request, keyspace.getId()), response::complete,
+				req -> response.completeExceptionally(new TimeoutException("no response from " + peer)));
+		Clock.await(response);
+		return response.get();
+	}
+
+	private static int[] toArray(List<Integer> list)
+	{
+		int[] result = new int[list.size()];
+		for (int i = 0; i < result.length; i++)
+		{
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,15 @@
+/**
+ * AvailabilityListener.java
+ * Notified by the Monitor when the failure detector sees a node again.
+ */
+package main.java.io.kvstore.coordinator;
+
+public interface AvailabilityListener
+{
+	/**
+	 * Called on the heartbeat thread when a node that was suspected (or never heard of) answers a heartbeat.
+	 * Must not block.
+	 * @param node
+	 */
+	void onNodeUp(Node node);
+}
@@ -6,22 +6,47 @@
 package main.java.io.kvstore.coordinator;
 
 import main.java.io.kvstore.Config;
+import main.java.io.kvstore.Keyspace;
+import main.java.io.kvstore.log.EventLog;
+import main.java.io.kvstore.log.LogSite;
+import main.java.io.kvstore.metrics.Counter;
+import main.java.io.kvstore.metrics.Histogram;
+import main.java.io.kvstore.metrics.Metrics;
+import main.java.io.kvstore.store.PNCounter;
+import main.java.io.kvstore.store.StorageEngine;
 import main.java.io.kvstore.store.StoreClient;
 import main.java.io.kvstore.store.StoreMessage;
+import main.java.io.kvstore.transport.Transport;
+import main.java.io.kvstore.transport.UdpTransport;
+import main.java.io.kvstore.utils.Clock;
 import main.java.io.kvstore.utils.Message;
 import main.java.io.kvstore.utils.Utils;
 
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class Coordinator {
-	private final DatagramSocket _socket;
+	private static final LogSite REPLY_FAILED = LogSite.warn("coordinator.reply_failed", "client");
+
+	/**
+	 * The endpoint clients send their requests to.
+	 */
+	private final Transport _socket;
 
 	/**
 	 * The monitor that keeps track of the nodes in the system.
@@ -32,13 +57,199 @@ public class Coordinator {
 	 * The client that sends requests to the store nodes.
 	 */
 	private final StoreClient _client;
+
+	/**
+	 * The read cache, null when Config.READ_CACHE_MODE is OFF.
+	 */
+	private final ReadCache _cache;
+
+	/**
+	 * The hints of the writes that missed a replica, null to drop such writes.
+	 */
+	private final HintedHandoff _hints;
+
+	/**
+	 * The read repair queue, null when Config.READ_REPAIR_CHANCE is 0.
+	 */
+	private final ReadRepair _repair;
+
+	/**
+	 * The node of this coordinator and its storage engine, called directly when this node is a replica.
+	 * Null when the store runs in another process.
+	 */
+	private final Node _self;
+	private final StorageEngine _local;
+
+	/**
+	 * Quorum reads in flight, by cache key, joined by concurrent GETs of the same key.
+	 */
+	private final ConcurrentHashMap<String, ReadState> _reads = new ConcurrentHashMap<>();
+
+	/**
+	 * Client requests being processed, by sender and request ID, with their trace.
+	 * Retransmissions of these requests are dropped.
+	 */
+	private final ConcurrentHashMap<String, RequestTrace> _inFlight = new ConcurrentHashMap<>();
+
+	/**
+	 * Requests slower than Config.SLOW_REQUEST_MS.
+	 */
+	private final SlowLog _slowLog = new SlowLog(Config.SLOW_LOG_CAPACITY);
+
+	private final Metrics _metrics;
+
+	/**
+	 * Time from the arrival of a key command to its response, by Message.Command ordinal, created on first use.
+	 */
+	private final Histogram[] _latency = new Histogram[Message.Command.values().length];
+
+	/**
+	 * Responses by Message.Command ordinal and Message.Code ordinal, created on first use.
+	 */
+	private final Counter[][] _responses = new Counter[Message.Command.values().length][Message.Code.values().length];
+
+	private final Counter _coalesced;
+	private final Counter _duplicates;
 	
 	public Coordinator(int port, Monitor monitor, StoreClient client) throws SocketException
 	{
-		this._socket = new DatagramSocket(port);
-		this._socket.setReuseAddress(true);
+		this(port, monitor, client, null, null, null);
+	}
+
+	public Coordinator(int port, Monitor monitor, StoreClient client, HintedHandoff hints, Node self, StorageEngine local) throws SocketException
+	{
+		this(port, monitor, client, hints, self, local, new Metrics());
+	}
+
+	/**
+	 * @param port
+	 * @param monitor
+	 * @param client
+	 * @param hints the hinted handoff, or null to drop the writes that miss a replica
+	 * @param self the node of this coordinator, or null
+	 * @param local the store of self in this process, or null
+	 * @param metrics registry of the request metrics, answered to STATS requests with the metrics of the other
+	 *        components of the node
+	 * @throws SocketException
+	 */
+	public Coordinator(int port, Monitor monitor, StoreClient client, HintedHandoff hints, Node self, StorageEngine local,
+			Metrics metrics) throws SocketException
+	{
+		this(new UdpTransport(port), monitor, client, hints, self, local, metrics);
+	}
+
+	/**
+	 * @param transport the endpoint of the coordinator, e.g. on a simulated network
+	 * @param monitor
+	 * @param client
+	 * @param hints the hinted handoff, or null to drop the writes that miss a replica
+	 * @param self the node of this coordinator, or null
+	 * @param local the store of self in this process, or null
+	 * @param metrics registry of the request metrics
+	 */
+	public Coordinator(Transport transport, Monitor monitor, StoreClient client, HintedHandoff hints, Node self, StorageEngine local,
+			Metrics metrics)
+	{
+		this._socket = transport;
 		this._monitor = monitor;
 		this._client = client;
+		this._hints = hints;
+		this._self = self;
+		this._local = local;
+		this._repair = Config.READ_REPAIR_CHANCE > 0 ? new ReadRepair(client) : null;
+		ReadCache.Mode mode = ReadCache.Mode.valueOf(Config.READ_CACHE_MODE);
+		this._cache = mode == ReadCache.Mode.OFF ? null : new ReadCache(mode, Config.READ_CACHE_CAPACITY);
+		this._metrics = metrics;
+		this._coalesced = metrics.counter("kvstore_coordinator_coalesced_reads_total",
+				"GETs answered by the quorum read of a concurrent GET of the same key");
+		this._duplicates = metrics.counter("kvstore_coordinator_duplicate_requests_total",
+				"Retransmitted client requests dropped while the original was being processed");
+		this.registerMetrics(metrics);
+		Clock.newScheduledExecutor().scheduleWithFixedDelay(this::expire,
+				Config.IN_FLIGHT_TIMEOUT_MS, Config.IN_FLIGHT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the read cache with its hit-ratio and bytes-saved metrics, or null if disabled
+	 */
+	public ReadCache getReadCache() { return this._cache; }
+
+	/**
+	 * @return the hinted handoff with its backlog and replay metrics, or null if disabled
+	 */
+	public HintedHandoff getHintedHandoff() { return this._hints; }
+
+	/**
+	 * @return the read repair queue with its metrics, or null if disabled
+	 */
+	public ReadRepair getReadRepair() { return this._repair; }
+
+	/**
+	 * @return GETs answered by a quorum read started for another GET of the same key
+	 */
+	public long getCoalescedReads() { return this._coalesced.get(); }
+
+	/**
+	 * @return retransmitted client requests dropped because the original was still being processed
+	 */
+	public long getDuplicateRequests() { return this._duplicates.get(); }
+
+	/**
+	 * @return the metrics of this node
+	 */
+	public Metrics getMetrics() { return this._metrics; }
+
+	/**
+	 * @return the latest requests slower than Config.SLOW_REQUEST_MS
+	 */
+	public SlowLog getSlowLog() { return this._slowLog; }
+
+	/**
+	 * Registers the metrics kept by the slow log, the read cache, the read repair queue and the hinted handoff.
+	 */
+	private void registerMetrics(Metrics metrics)
+	{
+		metrics.counter("kvstore_coordinator_slow_requests_total", "Client requests slower than Config.SLOW_REQUEST_MS",
+				this._slowLog::getLogged);
+		if (this._cache != null)
+		{
+			metrics.counter("kvstore_read_cache_hits_total", "Reads answered from the cache", this._cache::getHits);
+			metrics.counter("kvstore_read_cache_misses_total", "Reads not answered from the cache", this._cache::getMisses);
+			metrics.counter("kvstore_read_cache_saved_bytes_total", "Replica response bytes saved by cache hits",
+					this._cache::getBytesSaved);
+		}
+		if (this._repair != null)
+		{
+			metrics.counter("kvstore_read_repair_findings_total", "Stale replicas found by reads", this._repair::getFindings);
+			metrics.counter("kvstore_read_repair_skipped_total", "Stale replicas not repaired because of the repair chance, the rate limit or a full queue",
+					this._repair::getSkipped);
+			metrics.counter("kvstore_read_repair_merged_total", "Repairs merged into a queued repair of the same key",
+					this._repair::getMerged);
+			metrics.counter("kvstore_read_repair_repaired_total", "Repairs sent", this._repair::getRepaired);
+			metrics.counter("kvstore_read_repair_batches_total", "Batches of repairs sent", this._repair::getBatches);
+			metrics.gauge("kvstore_read_repair_queued", "Repairs waiting for the next batch", this._repair::getQueued);
+		}
+		if (this._hints != null)
+		{
+			metrics.gauge("kvstore_hints_backlog", "Hints waiting for their replica", this._hints::getBacklog);
+			metrics.gauge("kvstore_hints_backlog_bytes", "Bytes of the hint logs", this._hints::getBacklogBytes);
+			metrics.counter("kvstore_hints_written_total", "Hints written", this._hints::getHintsWritten);
+			metrics.counter("kvstore_hints_dropped_total", "Hints dropped because the log of the replica was full",
+					this._hints::getHintsDropped);
+			metrics.counter("kvstore_hints_replayed_total", "Hints delivered", this._hints::getHintsReplayed);
+			metrics.gauge("kvstore_hints_replay_rate", "Hints delivered per second of replay", this._hints::getReplayRate);
+		}
+	}
+
+	/**
+	 * Forgets the requests and reads that were never answered, e.g. because all replicas failed.
+	 */
+	private void expire()
+	{
+		long oldest = Clock.currentTimeMillis() - Config.IN_FLIGHT_TIMEOUT_MS;
+		long oldestNanos = Clock.nanoTime() - TimeUnit.MILLISECONDS.toNanos(Config.IN_FLIGHT_TIMEOUT_MS);
+		this._inFlight.values().removeIf(trace -> trace.getReceived() - oldestNanos < 0);
+		this._reads.values().removeIf(state -> state.startMs < oldest);
 	}
 
 	/**
@@ -47,43 +258,74 @@ public class Coordinator {
 	 */
 	public void serve(ExecutorService executor)
 	{
-		while (true)
-		{
-			byte[] request = new byte[Message.REQ_MAX_BYTES];
-			DatagramPacket packet = new DatagramPacket(request, request.length);
-			try {
-				this._socket.receive(packet);
-				executor.execute(() -> {
-					byte[] id = Message.id(request);
-					Message.Command command = Message.command(request);
-					switch (command)
-					{
-						case PUT:
-							this.put(packet);
-							break;
-						case GET:
-							this.get(packet);
-							break;
-						case REMOVE:
-							this.remove(packet);
-							break;
-						case SHUTDOWN:
-							this.shutdown(packet);
-							break;
-						default:
-							try {
-								packet.setData(Message.createResponse(id, Message.Code.UNRECOGNIZED_COMMAND));
-								this._socket.send(packet);
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
-							break;
-					}
-				});
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
+		this._socket.listen(Message.REQ_MAX_BYTES, packet -> {
+			byte[] request = packet.getData();
+			long received = Clock.nanoTime();
+			executor.execute(() -> {
+				byte[] id = Message.id(request);
+				Message.Command command = Message.command(request);
+				RequestTrace trace = new RequestTrace(command, received, sample());
+				if (isKeyCommand(command) && this._inFlight.putIfAbsent(requestKey(packet, id), trace) != null)
+				{
+					this._duplicates.increment(); // a retransmission: the original will be answered
+					return;
+				}
+				trace.mark(RequestTrace.Phase.DISPATCHED);
+				Keyspace keyspace = isKeyCommand(command) ? Keyspace.get(Message.requestKeyspace(request)) : Keyspace.DEFAULT;
+				if (keyspace == null) // a keyspace this cluster does not have
+				{
+					this.reply(packet, Message.createResponse(id, Message.Code.UNRECOGNIZED_COMMAND));
+					return;
+				}
+				switch (command)
+				{
+					case PUT:
+						this.put(packet, keyspace, trace);
+						break;
+					case GET:
+						this.get(packet, keyspace, trace);
+						break;
+					case REMOVE:
+						this.remove(packet, keyspace, trace);
+						break;
+					case CAS:
+					case PUT_IF_ABSENT:
+					case REMOVE_IF_VERSION:
+						this.putIf(packet, keyspace, command, trace);
+						break;
+					case INCREMENT:
+					case DECREMENT:
+						this.increment(packet, keyspace, command, trace);
+						break;
+					case GET_COUNTER:
+						this.getCounter(packet, keyspace, trace);
+						break;
+					case SHUTDOWN:
+						this.shutdown(packet);
+						break;
+					case GOSSIP:
+						this.gossip(packet);
+						break;
+					case LEAVE:
+						this.leave(packet);
+						break;
+					case STATS:
+						this.stats(packet);
+						break;
+					case SLOW_LOG:
+						this.slowLog(packet);
+						break;
+					default:
+						try {
+							packet.setData(Message.createResponse(id, Message.Code.UNRECOGNIZED_COMMAND));
+							this._socket.send(packet);
+						} catch (Exception e) {
+							EventLog.event(REPLY_FAILED, e, packet.getSocketAddress());
+						}
+						break;
+				}
+			});
+		});
 	}
 
 	/**
@@ -98,105 +340,1280 @@ public class Coordinator {
 			packet.setData(Message.createResponse(id, Message.Code.SUCCESSFUL));
 			this._socket.send(packet);
 		} catch (Exception e) {
-			e.printStackTrace();
+			EventLog.event(REPLY_FAILED, e, packet.getSocketAddress());
 		}
 		System.exit(1);
 	}
 
-	private void put(DatagramPacket packet)
+	/**
+	 * Answers a gossip exchange from another coordinator.
+	 * @param packet
+	 */
+	private void gossip(DatagramPacket packet)
+	{
+		byte[] request = Arrays.copyOf(packet.getData(), packet.getLength());
+		byte[] response = this._monitor.onGossip(request);
+		if (response == null)
+		{
+			response = Message.createResponse(Message.id(request), Message.Code.UNRECOGNIZED_COMMAND);
+		}
+		try {
+			packet.setData(response);
+			this._socket.send(packet);
+		} catch (Exception e) {
+			EventLog.event(REPLY_FAILED, e, packet.getSocketAddress());
+		}
+	}
+
+	/**
+	 * Announces that this node leaves the cluster. It keeps answering requests,
+	 * while the other nodes take over its ranges.
+	 * @param packet
+	 */
+	private void leave(DatagramPacket packet)
+	{
+		byte[] id = Message.id(packet.getData());
+		Message.Code code = this._monitor.leave() ? Message.Code.SUCCESSFUL : Message.Code.UNRECOGNIZED_COMMAND;
+		try {
+			packet.setData(Message.createResponse(id, code));
+			this._socket.send(packet);
+		} catch (Exception e) {
+			EventLog.event(REPLY_FAILED, e, packet.getSocketAddress());
+		}
+	}
+
+	/**
+	 * Answers the metrics of this node in the Prometheus text format, cut at the last line that fits
+	 * in a response. The request value, if any, is a prefix selecting the metric families to answer.
+	 * @param packet
+	 */
+	private void stats(DatagramPacket packet)
+	{
+		byte[] request = Arrays.copyOf(packet.getData(), packet.getLength());
+		String prefix = new String(Message.requestValue(request), StandardCharsets.UTF_8);
+		this.replyText(packet, this._metrics.toPrometheus(prefix));
+	}
+
+	/**
+	 * Answers the slow log of this coordinator, newest requests first, cut at the last line that fits
+	 * in a response.
+	 * @param packet
+	 */
+	private void slowLog(DatagramPacket packet)
+	{
+		this.replyText(packet, this._slowLog.dump());
+	}
+
+	/**
+	 * Answers a text of lines, cut at the last line that fits in a response.
+	 * @param packet
+	 * @param lines
+	 */
+	private void replyText(DatagramPacket packet, String lines)
+	{
+		byte[] id = Message.id(packet.getData());
+		byte[] text = lines.getBytes(StandardCharsets.UTF_8);
+		int length = text.length;
+		if (length > Message.VALUE_BYTES)
+		{
+			length = Message.VALUE_BYTES;
+			while (length > 0 && text[length - 1] != '\n')
+			{
+				length--;
+			}
+		}
+		try {
+			packet.setData(Message.createResponse(id, Message.Code.SUCCESSFUL, Arrays.copyOf(text, length)));
+			this._socket.send(packet);
+		} catch (Exception e) {
+			EventLog.event(REPLY_FAILED, e, packet.getSocketAddress());
+		}
+	}
+
+	private void put(DatagramPacket packet, Keyspace keyspace, RequestTrace trace)
 	{
 		byte[] request = packet.getData();
 		byte[] id = Message.id(request);
 		byte[] key = Message.key(request);
 		byte[] val = Message.requestValue(request);
-		put(packet, id, key, val);
+		put(packet, keyspace, id, key, val, expiresAt(request), trace);
 	}
 
-	private void remove(DatagramPacket packet)
+	private void remove(DatagramPacket packet, Keyspace keyspace, RequestTrace trace)
 	{
 		byte[] request = packet.getData();
 		byte[] id = Message.id(request);
 		byte[] key = Message.key(request);
-		put(packet, id, key, new byte[0]);
+		put(packet, keyspace, id, key, new byte[0], 0, trace);
+	}
+
+	/**
+	 * The key of the read cache and of the reads in flight: the hex key, prefixed by the number of its
+	 * keyspace outside the default one.
+	 * @param keyspace
+	 * @param key
+	 * @return
+	 */
+	private static String cacheKey(Keyspace keyspace, byte[] key)
+	{
+		return keyspace.getId() == 0 ? Utils.hexString(key) : keyspace.getId() + "/" + Utils.hexString(key);
+	}
+
+	/**
+	 * The expiry time of the value of a write, from its TTL. Replicas get the same absolute time,
+	 * so they expire the value together.
+	 * @param request
+	 * @return epoch milliseconds, 0 if the value does not expire
+	 */
+	private static long expiresAt(byte[] request)
+	{
+		long ttl = Message.requestTtl(request);
+		return ttl > 0 ? Clock.currentTimeMillis() + ttl : 0;
+	}
+
+	/**
+	 * State of one replicated write.
+	 */
+	private static class WriteState
+	{
+		final HashMap<Node, byte[]> responses = new HashMap<Node, byte[]>();
+
+		/**
+		 * Replicas that missed the write and still need a hint.
+		 */
+		final ArrayList<Node> missed = new ArrayList<Node>();
+
+		/**
+		 * Highest version acknowledged so far, 0 before the first acknowledgement.
+		 */
+		int version;
+
+		/**
+		 * Expiry time of the value written, 0 if it does not expire.
+		 */
+		long expiresAt;
+
+		/**
+		 * Replicas that refused the write because its keyspace is full.
+		 */
+		int refused;
+
+		boolean answered;
 	}
 
 	/**
 	 * Sends put request to the store nodes.
+	 * Replicas that are unavailable or do not answer get a hint, written once another replica
+	 * acknowledges the write and thereby gives it a version. The write fails with OUT_OF_SPACE as soon as
+	 * too many replicas refused it for a quorum, because its keyspace is full.
 	 * @param packet
+	 * @param keyspace
 	 * @param id
 	 * @param key
 	 * @param val
+	 * @param expiresAt
+	 * @param trace
 	 */
-	private void put(DatagramPacket packet,  byte[] id, byte[] key, byte[] val)
+	private void put(DatagramPacket packet, Keyspace keyspace, byte[] id, byte[] key, byte[] val, long expiresAt, RequestTrace trace)
 	{
-		byte[] storeRequest = StoreMessage.createPutRequest(id, key, val, 0);
-		HashMap<Node, byte[]> responses = new HashMap<Node, byte[]>();
-		Set<Node> nodes = this._monitor.getSuccessors(key, Config.REPLICATION_FACTOR);
+		String keyString = cacheKey(keyspace, key);
+		if (this._cache != null)
+		{
+			this._cache.invalidate(keyString);
+		}
+		this.retireRead(keyString); // later GETs must not join a read that may miss this write
+		byte[] storeRequest = StoreMessage.withKeyspace(StoreMessage.createPutRequest(id, key, val, 0, expiresAt), keyspace.getId());
+		WriteState state = new WriteState();
+		state.expiresAt = expiresAt;
+		Set<Node> nodes = this._monitor.getSuccessors(key, keyspace.getReplicationFactor());
+		if (nodes.size() < keyspace.getWriteQuorum())
+		{
+			this.reply(packet, Message.createResponse(id, Message.Code.INTERNAL_FAILURE));
+			return;
+		}
+		if (this._hints != null)
+		{
+			for (Node replica : this._monitor.getReplicas(key, keyspace.getReplicationFactor()))
+			{
+				if (!nodes.contains(replica))
+				{
+					state.missed.add(replica);
+				}
+			}
+		}
+		trace.mark(RequestTrace.Phase.FAN_OUT);
 		for (Node node : nodes) {
 			Consumer<byte[]> onSuccess = res -> {
-				/**
-				 * ToDo: Implement the logic to handle the success responses from the store node.
-				 * 1. Set the node available.
-				 * 2. Lock the responses map.
-				 * 3. If the votes are greater than or equal to the write quorum, send the response to the client.
-				 *   3.1 Set the response code based on the store response.
-				 *   3.2 Create the response message.
-				 *   3.3 Send the response to the client.
-				 */
-				// code here
-
-				synchronized (responses) { // lock the responses map
-					// code here
-
-					responses.put(node, res);
+				node.responded(); // piggybacked liveness for the failure detector
+				Message.Code code;
+				int version;
+				synchronized (state) { // lock the write state
+					if (StoreMessage.storeResponseType(res) == StoreMessage.StoreResponseType.OUT_OF_SPACE)
+					{
+						state.refused++;
+						if (state.answered || nodes.size() - state.refused >= keyspace.getWriteQuorum())
+						{
+							return;
+						}
+						state.answered = true;
+						code = Message.Code.OUT_OF_SPACE;
+						version = 0;
+					}
+					else
+					{
+						state.responses.put(node, res);
+						state.version = Math.max(state.version, version(res));
+						this.hintMissed(keyspace, key, val, state);
+						if (state.answered || state.responses.size() != keyspace.getWriteQuorum())
+						{
+							return; // no quorum yet, or already answered
+						}
+						state.answered = true;
+						// a remove of a key that no replica has reports NON_EXISTENT_KEY
+						code = Message.Code.NON_EXISTENT_KEY;
+						for (byte[] response : state.responses.values())
+						{
+							if (StoreMessage.storeResponseType(response) == StoreMessage.StoreResponseType.SUCCESSFUL)
+							{
+								code = Message.Code.SUCCESSFUL;
+							}
+						}
+						version = state.version;
+					}
 				}
+				// a read started meanwhile may miss the write, or have cached the old value
+				this.retireRead(keyString);
+				if (this._cache != null)
+				{
+					this._cache.invalidate(keyString);
+				}
+				this.reply(packet, Message.createResponse(id, code, new byte[0], version));
 			};
 			
 			Consumer<byte[]> onFailure = req -> {
-				node.setAvailable(false);
+				// availability is left to the failure detector
+				if (this._hints != null)
+				{
+					synchronized (state) {
+						state.missed.add(node);
+						this.hintMissed(keyspace, key, val, state);
+					}
+				}
 			};
-			this._client.send(node.getAddress(), node.getStorePort(), storeRequest, onSuccess, onFailure);
+			this.send(node, trace, storeRequest, local -> local.put(keyspace, key, val, 0, expiresAt), onSuccess, onFailure);
+		}
+	}
+
+	/**
+	 * Writes the hints of a write, once its version is known. Called with the state locked.
+	 * @param keyspace
+	 * @param key
+	 * @param val
+	 * @param state
+	 */
+	private void hintMissed(Keyspace keyspace, byte[] key, byte[] val, WriteState state)
+	{
+		if (this._hints == null || state.version == 0)
+		{
+			return; // nothing written anywhere yet
 		}
+		for (Node node : state.missed)
+		{
+			this._hints.hint(node, keyspace, key, val, state.version, state.expiresAt);
+		}
+		state.missed.clear();
+	}
+
+	/**
+	 * State of one conditional write.
+	 */
+	private static class CasState extends WriteState
+	{
+		int successes;
+		int conflicts;
+		int failures;
+
+		/**
+		 * Highest version reported by a conflicting replica.
+		 */
+		int conflictVersion;
 	}
 
 	/**
-	 * Sends get request to the store nodes.
+	 * Serves CAS, PUT_IF_ABSENT and REMOVE_IF_VERSION. Every replica applies the condition atomically
+	 * against its own version. The write succeeds once a write quorum accepted it, and fails with
+	 * VERSION_CONFLICT as soon as a quorum can no longer accept it. Two conflicting writes cannot both
+	 * succeed, since each replica accepts only one of them and write quorums overlap.
 	 * @param packet
+	 * @param keyspace
+	 * @param command
+	 * @param trace
 	 */
-	private void get(DatagramPacket packet)
+	private void putIf(DatagramPacket packet, Keyspace keyspace, Message.Command command, RequestTrace trace)
 	{
 		byte[] request = packet.getData();
 		byte[] id = Message.id(request);
 		byte[] key = Message.key(request);
-		byte[] storeRequest = StoreMessage.createGetRequest(id, key);
-		HashMap<Node, byte[]> responses = new HashMap<Node, byte[]>();
-		Set<Node> nodes = _monitor.getSuccessors(key, Config.REPLICATION_FACTOR);
+		byte[] val = command == Message.Command.REMOVE_IF_VERSION ? new byte[0] : Message.requestValue(request);
+		int expected = command == Message.Command.PUT_IF_ABSENT ? -1 : Message.requestVersion(request);
+		long expiresAt = command == Message.Command.REMOVE_IF_VERSION ? 0 : expiresAt(request);
+		String keyString = cacheKey(keyspace, key);
+		if (this._cache != null)
+		{
+			this._cache.invalidate(keyString);
+		}
+		this.retireRead(keyString);
+		// the client's request ID goes to the replicas, which recognize retransmissions sent through other coordinators
+		byte[] storeRequest = StoreMessage.withKeyspace(expected < 0 ? StoreMessage.createPutIfAbsentRequest(id, key, val, expiresAt)
+				: StoreMessage.createPutIfVersionRequest(id, key, val, expected, expiresAt), keyspace.getId());
+		CasState state = new CasState();
+		state.expiresAt = expiresAt;
+		Set<Node> nodes = this._monitor.getSuccessors(key, keyspace.getReplicationFactor());
+		if (nodes.size() < keyspace.getWriteQuorum())
+		{
+			this.reply(packet, Message.createResponse(id, Message.Code.INTERNAL_FAILURE));
+			return;
+		}
+		if (this._hints != null)
+		{
+			for (Node replica : this._monitor.getReplicas(key, keyspace.getReplicationFactor()))
+			{
+				if (!nodes.contains(replica))
+				{
+					state.missed.add(replica);
+				}
+			}
+		}
+		int sent = nodes.size();
+		trace.mark(RequestTrace.Phase.FAN_OUT);
 		for (Node node : nodes) {
 			Consumer<byte[]> onSuccess = res -> {
-				/**
-				 * ToDo: Implement the logic to handle the success responses from the store node.
-				 * 1. Set the node available.
-				 * 2. Lock the responses map.
-				 * 3. If the votes are greater than or equal to the read quorum, send the response to the client.
-				 * 	 3.1 Select the response with the highest version.
-				 * 	 3.3 Judge the response value whether it is empty or not.
-				 *   3.4 Create the response message.
-				 *   3.5 Send the response to the client.
-				 *   3.6 If exists old value, send repair request to nodes. (optional)
-				 */
-				// code here
-				synchronized (responses) { // lock the responses map
-					// code here
-					
-					responses.put(node, res);
+				node.responded();
+				byte[] response = null;
+				synchronized (state) {
+					StoreMessage.StoreResponseType type = StoreMessage.storeResponseType(res);
+					if (type == StoreMessage.StoreResponseType.SUCCESSFUL)
+					{
+						state.successes++;
+						state.version = Math.max(state.version, version(res));
+						if (state.successes >= keyspace.getWriteQuorum())
+						{
+							this.hintMissed(keyspace, key, val, state); // only a successful write is handed off
+						}
+					}
+					else if (type == StoreMessage.StoreResponseType.OUT_OF_SPACE)
+					{
+						state.refused++;
+					}
+					else
+					{
+						state.conflicts++;
+						state.conflictVersion = Math.max(state.conflictVersion, version(res));
+					}
+					response = this.casResponse(id, keyspace, state, sent);
+				}
+				if (response != null)
+				{
+					this.retireRead(keyString);
+					if (this._cache != null)
+					{
+						this._cache.invalidate(keyString);
+					}
+					this.reply(packet, response);
 				}
 			};
-			
 			Consumer<byte[]> onFailure = req -> {
-				node.setAvailable(false);
+				byte[] response;
+				synchronized (state) {
+					state.failures++;
+					if (this._hints != null)
+					{
+						state.missed.add(node);
+						if (state.successes >= keyspace.getWriteQuorum())
+						{
+							this.hintMissed(keyspace, key, val, state);
+						}
+					}
+					response = this.casResponse(id, keyspace, state, sent);
+				}
+				if (response != null)
+				{
+					this.retireRead(keyString); // some replicas may have applied the write
+					this.reply(packet, response);
+				}
 			};
-			
-			_client.send(node.getAddress(), node.getStorePort(), storeRequest, onSuccess, onFailure);
+			this.send(node, trace, storeRequest, local -> local.putIf(keyspace, id, key, val, expected, expiresAt), onSuccess, onFailure);
+		}
+	}
+
+	/**
+	 * Decides a conditional write once its outcome is known. A conflict is reported before a full keyspace,
+	 * since retrying the write cannot succeed either way. Called with the state locked.
+	 * @return the response, or null if undecided or already answered
+	 */
+	private byte[] casResponse(byte[] id, Keyspace keyspace, CasState state, int sent)
+	{
+		if (state.answered)
+		{
+			return null;
+		}
+		if (state.successes >= keyspace.getWriteQuorum())
+		{
+			state.answered = true;
+			return Message.createResponse(id, Message.Code.SUCCESSFUL, new byte[0], state.version);
+		}
+		if (sent - state.conflicts - state.refused - state.failures < keyspace.getWriteQuorum())
+		{
+			state.answered = true;
+			if (state.conflicts > 0)
+			{
+				return Message.createResponse(id, Message.Code.VERSION_CONFLICT, new byte[0], state.conflictVersion);
+			}
+			return Message.createResponse(id, state.refused > 0 ? Message.Code.OUT_OF_SPACE : Message.Code.INTERNAL_FAILURE);
+		}
+		return null;
+	}
+
+	private static class CounterState
+	{
+		/**
+		 * Merge of the states returned by the replicas so far.
+		 */
+		PNCounter counter = PNCounter.EMPTY;
+
+		/**
+		 * States returned by each replica.
+		 */
+		final HashMap<Node, PNCounter> responses = new HashMap<Node, PNCounter>();
+
+		int failures;
+		boolean answered;
+	}
+
+	/**
+	 * Serves INCREMENT and DECREMENT, whose value is the amount (8 bytes). An available replica of the
+	 * preference list of the key, the first one from an index picked by the request ID, adds the amount to
+	 * its own slot of the counter, without reading or checking versions, so concurrent increments never
+	 * conflict. Retransmissions, through any coordinator, reach the same replica as long as the availability
+	 * of the replicas does not change, and it applies them once. Its new state is then merged into the other
+	 * available replicas, and the counter value is answered once a write quorum of replicas hold the change;
+	 * the request fails only if fewer than a write quorum are available. A full keyspace at that replica fails
+	 * the request with OUT_OF_SPACE.
+	 * @param packet
+	 * @param keyspace
+	 * @param command
+	 * @param trace
+	 */
+	private void increment(DatagramPacket packet, Keyspace keyspace, Message.Command command, RequestTrace trace)
+	{
+		byte[] request = packet.getData();
+		byte[] id = Message.id(request);
+		byte[] key = Message.key(request);
+		byte[] amount = Message.requestValue(request);
+		if (amount.length != Long.BYTES)
+		{
+			this.reply(packet, Message.createResponse(id, Message.Code.UNRECOGNIZED_COMMAND));
+			return;
+		}
+		long delta = command == Message.Command.DECREMENT ? -ByteBuffer.wrap(amount).getLong() : ByteBuffer.wrap(amount).getLong();
+		List<Node> replicas = this._monitor.getReplicas(key, keyspace.getReplicationFactor());
+		Node leader = counterLeader(replicas, id);
+		List<Node> nodes = new ArrayList<Node>();
+		if (leader != null)
+		{
+			nodes.add(leader);
+		}
+		for (Node node : this._monitor.getRing().walk(key, keyspace.getReplicationFactor(), Node::getAvailable))
+		{
+			if (node != leader)
+			{
+				nodes.add(node);
+			}
+		}
+		if (leader == null || nodes.size() < keyspace.getWriteQuorum())
+		{
+			this.reply(packet, Message.createResponse(id, Message.Code.INTERNAL_FAILURE));
+			return;
+		}
+		CounterState state = new CounterState();
+		trace.mark(RequestTrace.Phase.FAN_OUT);
+		byte[] addRequest = StoreMessage.withKeyspace(StoreMessage.createCounterAddRequest(id, key, delta), keyspace.getId());
+		this.send(leader, trace, addRequest, local -> local.counterAdd(keyspace, id, key, delta), res -> {
+			leader.responded();
+			if (StoreMessage.storeResponseType(res) != StoreMessage.StoreResponseType.SUCCESSFUL)
+			{
+				this.reply(packet, Message.createResponse(id, Message.Code.OUT_OF_SPACE));
+				return;
+			}
+			byte[] counter = StoreMessage.responseValue(res);
+			byte[] mergeRequest = StoreMessage.withKeyspace(StoreMessage.createCounterMergeRequest(key, counter), keyspace.getId());
+			byte[] response;
+			synchronized (state) {
+				response = this.counterResponse(id, keyspace, state, leader, PNCounter.fromBytes(counter), nodes.size());
+			}
+			if (response != null)
+			{
+				this.reply(packet, response);
+			}
+			for (Node node : nodes.subList(1, nodes.size()))
+			{
+				this.send(node, trace, mergeRequest, local -> local.counterMerge(keyspace, key, counter), merged -> {
+					node.responded();
+					byte[] answer;
+					synchronized (state) {
+						answer = this.counterResponse(id, keyspace, state, node, PNCounter.fromBytes(StoreMessage.responseValue(merged)),
+								nodes.size());
+					}
+					if (answer != null)
+					{
+						this.reply(packet, answer);
+					}
+				}, req -> {
+					byte[] answer;
+					synchronized (state) {
+						answer = this.counterResponse(id, keyspace, state, node, null, nodes.size());
+					}
+					if (answer != null)
+					{
+						this.reply(packet, answer);
+					}
+				});
+			}
+		}, req -> this.reply(packet, Message.createResponse(id, Message.Code.INTERNAL_FAILURE)));
+	}
+
+	/**
+	 * Picks the replica that applies an increment: the first available one of the preference list from an
+	 * index given by the request ID, so that retransmissions reach it again while availability holds.
+	 * @param replicas the preference list of the key
+	 * @param id
+	 * @return null if no replica is available
+	 */
+	private static Node counterLeader(List<Node> replicas, byte[] id)
+	{
+		int start = Math.floorMod(Arrays.hashCode(id), replicas.size());
+		for (int i = 0; i < replicas.size(); i++)
+		{
+			Node replica = replicas.get((start + i) % replicas.size());
+			if (replica.getAvailable())
+			{
+				return replica;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Records the state returned by a replica, or its failure (null), and answers once
+	 * a write quorum of replicas returned their state, or as soon as they cannot. Called with the state locked.
+	 * @return the response, or null if undecided or already answered
+	 */
+	private byte[] counterResponse(byte[] id, Keyspace keyspace, CounterState state, Node node, PNCounter counter, int sent)
+	{
+		if (counter == null)
+		{
+			state.failures++;
+		}
+		else
+		{
+			state.responses.put(node, counter);
+			state.counter = state.counter.merge(counter);
+		}
+		if (state.answered)
+		{
+			return null;
+		}
+		if (state.responses.size() >= keyspace.getWriteQuorum())
+		{
+			state.answered = true;
+			return Message.createResponse(id, Message.Code.SUCCESSFUL, longBytes(state.counter.value()));
+		}
+		if (sent - state.failures < keyspace.getWriteQuorum())
+		{
+			state.answered = true;
+			return Message.createResponse(id, Message.Code.INTERNAL_FAILURE);
+		}
+		return null;
+	}
+
+	/**
+	 * Serves GET_COUNTER: merges the counter states of a read quorum and answers with their value.
+	 * Replicas whose state misses changes of the merge, including late ones, get the merge.
+	 * @param packet
+	 * @param keyspace
+	 * @param trace
+	 */
+	private void getCounter(DatagramPacket packet, Keyspace keyspace, RequestTrace trace)
+	{
+		byte[] request = packet.getData();
+		byte[] id = Message.id(request);
+		byte[] key = Message.key(request);
+		int readQuorum = keyspace.getReadQuorum();
+		Collection<Node> nodes = Config.LATENCY_AWARE_READS ? this._monitor.getReadReplicas(key, keyspace.getReplicationFactor())
+				: this._monitor.getSuccessors(key, keyspace.getReplicationFactor());
+		if (nodes.size() < readQuorum)
+		{
+			this.reply(packet, Message.createResponse(id, Message.Code.INTERNAL_FAILURE));
+			return;
+		}
+		CounterState state = new CounterState();
+		trace.mark(RequestTrace.Phase.FAN_OUT);
+		for (Node node : nodes) {
+			Consumer<byte[]> onSuccess = res -> {
+				node.responded();
+				PNCounter counter = StoreMessage.storeResponseType(res) == StoreMessage.StoreResponseType.SUCCESSFUL
+						? PNCounter.fromBytes(StoreMessage.responseValue(res)) : PNCounter.EMPTY;
+				byte[] answer = null;
+				HashMap<Node, PNCounter> repairs = new HashMap<Node, PNCounter>();
+				PNCounter merged;
+				synchronized (state) {
+					state.responses.put(node, counter);
+					state.counter = state.counter.merge(counter);
+					merged = state.counter;
+					if (!state.answered && state.responses.size() >= readQuorum)
+					{
+						state.answered = true;
+						answer = state.counter.size() == 0 ? Message.createResponse(id, Message.Code.NON_EXISTENT_KEY)
+								: Message.createResponse(id, Message.Code.SUCCESSFUL, longBytes(state.counter.value()));
+						repairs.putAll(state.responses);
+					}
+					else if (state.answered)
+					{
+						repairs.put(node, counter);
+					}
+				}
+				if (answer != null)
+				{
+					this.reply(packet, answer);
+				}
+				for (Node stale : repairs.keySet())
+				{
+					if (!repairs.get(stale).covers(merged))
+					{
+						byte[] bytes = merged.toBytes();
+						byte[] mergeRequest = StoreMessage.withKeyspace(StoreMessage.createCounterMergeRequest(key, bytes), keyspace.getId());
+						this.send(stale, null, mergeRequest, local -> local.counterMerge(keyspace, key, bytes), ack -> {}, req -> {});
+					}
+				}
+			};
+			Consumer<byte[]> onFailure = req -> {
+				boolean failed;
+				synchronized (state) {
+					state.failures++;
+					failed = !state.answered && nodes.size() - state.failures < readQuorum;
+					state.answered |= failed;
+				}
+				if (failed)
+				{
+					this.reply(packet, Message.createResponse(id, Message.Code.INTERNAL_FAILURE));
+				}
+			};
+			this.send(node, trace, StoreMessage.withKeyspace(StoreMessage.createCounterGetRequest(key), keyspace.getId()),
+					local -> local.counterGet(keyspace, key), onSuccess, onFailure);
+		}
+	}
+
+	private static byte[] longBytes(long value)
+	{
+		return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+	}
+
+	/**
+	 * Serves get requests, from the read cache when possible.
+	 * @param packet
+	 * @param keyspace
+	 * @param trace
+	 */
+	private void get(DatagramPacket packet, Keyspace keyspace, RequestTrace trace)
+	{
+		byte[] request = packet.getData();
+		byte[] id = Message.id(request);
+		byte[] key = Message.key(request);
+		ReadCache.Entry cached = this._cache == null ? null : this._cache.get(cacheKey(keyspace, key));
+		if (cached != null && cached.expiresAt != 0 && cached.expiresAt <= Clock.currentTimeMillis())
+		{
+			// expiry keeps the version, so VALIDATE would confirm the expired value
+			this._cache.invalidate(cacheKey(keyspace, key));
+			cached = null;
+		}
+		if (cached == null)
+		{
+			if (this._cache != null)
+			{
+				this._cache.recordMiss();
+			}
+			this.read(packet, keyspace, id, key, trace);
+		}
+		else if (this._cache.getMode() == ReadCache.Mode.DIRECT)
+		{
+			this._cache.recordHit(cached.value.length * keyspace.getReadQuorum());
+			this.reply(packet, Message.createResponse(id, Message.Code.SUCCESSFUL, cached.value, cached.version));
+		}
+		else
+		{
+			this.validate(packet, keyspace, id, key, cached, trace);
+		}
+	}
+
+	/**
+	 * State of one quorum read.
+	 */
+	private static class ReadState
+	{
+		/**
+		 * Client requests answered by this read: the first one and the GETs coalesced with it.
+		 */
+		final ArrayList<DatagramPacket> packets = new ArrayList<DatagramPacket>();
+		final ArrayList<byte[]> ids = new ArrayList<byte[]>();
+
+		final byte[] id;
+
+		final Keyspace keyspace;
+
+		/**
+		 * Trace of the first request, which the replica responses are recorded in.
+		 */
+		final RequestTrace trace;
+
+		final long startMs = Clock.currentTimeMillis();
+
+		/**
+		 * Epoch of the read cache when the read started; its value is not cached if the key was invalidated since.
+		 */
+		final long cacheEpoch;
+
+		/**
+		 * Latest response of each replica, full or version-only.
+		 */
+		final HashMap<Node, byte[]> responses = new HashMap<Node, byte[]>();
+
+		/**
+		 * Highest-version response that carries the value.
+		 */
+		byte[] full;
+
+		boolean answered;
+
+		/**
+		 * Whether a write of the key started or completed since the read started, so that GETs must not join it.
+		 */
+		boolean retired;
+
+		/**
+		 * Whether a full GET is in flight after the first one failed or turned out stale.
+		 */
+		boolean fetching;
+
+		/**
+		 * Replicas whose full GET failed, not asked for the value again.
+		 */
+		final HashSet<Node> fetchFailed = new HashSet<Node>();
+
+		/**
+		 * Replicas the read was sent to, and those of them that did not answer.
+		 */
+		int sent;
+		int failures;
+
+		ReadState(byte[] id, Keyspace keyspace, RequestTrace trace, long cacheEpoch)
+		{
+			this.id = id;
+			this.keyspace = keyspace;
+			this.trace = trace;
+			this.cacheEpoch = cacheEpoch;
+		}
+	}
+
+	/**
+	 * Reads a key from a read quorum and answers with the highest version.
+	 * With Config.READ_VERSION_PROBE, only one replica returns the value and the others return
+	 * their version. With Config.LATENCY_AWARE_READS, that replica is the one with the best score.
+	 * The value is fetched again from another replica only if a newer version shows up.
+	 * The read fails once too many replicas did not answer for a quorum, or once every replica with the newest
+	 * version failed to return the value.
+	 * With Config.COALESCE_READS, a GET of a key that is already being read waits for that read.
+	 * @param packet
+	 * @param keyspace
+	 * @param id
+	 * @param key
+	 * @param trace
+	 */
+	private void read(DatagramPacket packet, Keyspace keyspace, byte[] id, byte[] key, RequestTrace trace)
+	{
+		ReadState state = new ReadState(id, keyspace, trace, this._cache == null ? 0 : this._cache.epoch());
+		state.packets.add(packet);
+		state.ids.add(id);
+		if (Config.COALESCE_READS && !this.lead(cacheKey(keyspace, key), state))
+		{
+			return;
+		}
+		Collection<Node> nodes = Config.LATENCY_AWARE_READS ? this._monitor.getReadReplicas(key, keyspace.getReplicationFactor())
+				: this._monitor.getSuccessors(key, keyspace.getReplicationFactor());
+		if (nodes.size() < keyspace.getReadQuorum())
+		{
+			this.replyAll(key, state, Message.Code.INTERNAL_FAILURE, new byte[0], -1);
+			return;
+		}
+		Node dataNode = nodes.iterator().next(); // the fastest replica with LATENCY_AWARE_READS
+		synchronized (state) {
+			state.sent = nodes.size();
+		}
+		trace.mark(RequestTrace.Phase.FAN_OUT);
+		for (Node node : nodes) {
+			boolean full = !Config.READ_VERSION_PROBE || node == dataNode;
+			this.readFrom(key, node, full, state);
+		}
+	}
+
+	/**
+	 * Registers a read as the one in flight for its key, or adds its client to the read in flight.
+	 * Reads older than Config.IN_FLIGHT_TIMEOUT_MS are not joined, since they may never be answered, nor reads
+	 * started before a write of the key.
+	 * @param keyString the cache key
+	 * @param state a new read with a single client
+	 * @return whether the read must be run, false if its client joined another read
+	 */
+	private boolean lead(String keyString, ReadState state)
+	{
+		while (true)
+		{
+			ReadState current = this._reads.putIfAbsent(keyString, state);
+			if (current == null)
+			{
+				return true;
+			}
+			if (Clock.currentTimeMillis() - current.startMs < Config.IN_FLIGHT_TIMEOUT_MS)
+			{
+				synchronized (current) {
+					if (!current.answered && !current.retired)
+					{
+						current.packets.add(state.packets.get(0));
+						current.ids.add(state.ids.get(0));
+						this._coalesced.increment();
+						return false;
+					}
+				}
+			}
+			this._reads.remove(keyString, current); // answered or given up meanwhile
+		}
+	}
+
+	/**
+	 * Stops GETs of a key from joining the read of the key in flight, which may miss a write of the key.
+	 * Called when a write starts, and again when it is answered, for the reads started meanwhile.
+	 * @param keyString the cache key
+	 */
+	private void retireRead(String keyString)
+	{
+		ReadState read = this._reads.remove(keyString);
+		if (read != null)
+		{
+			synchronized (read) {
+				read.retired = true;
+			}
+		}
+	}
+
+	/**
+	 * Sends one full or version-only GET of a quorum read.
+	 * @param key
+	 * @param node
+	 * @param full
+	 * @param state
+	 */
+	private void readFrom(byte[] key, Node node, boolean full, ReadState state)
+	{
+		byte[] storeRequest = StoreMessage.withKeyspace(full ? StoreMessage.createGetRequest(state.id, key)
+				: StoreMessage.createGetVersionRequest(state.id, key), state.keyspace.getId());
+		Consumer<byte[]> onSuccess = res -> {
+			node.responded(); // piggybacked liveness for the failure detector
+			byte[] answer = null;
+			Node fetchFrom = null;
+			boolean failed = false;
+			ArrayList<Node> stale = new ArrayList<Node>();
+			byte[] latestFull;
+			synchronized (state) {
+				state.responses.put(node, res);
+				if (full)
+				{
+					state.fetching = false;
+					if (state.full == null || version(res) > version(state.full))
+					{
+						state.full = res;
+					}
+				}
+				latestFull = state.full;
+				if (state.answered)
+				{
+					if (version(res) < version(latestFull))
+					{
+						stale.add(node); // a late response can be repaired too
+					}
+				}
+				else if (state.responses.size() >= state.keyspace.getReadQuorum())
+				{
+					Node latest = latest(state.responses);
+					if (state.full != null && version(state.full) >= version(state.responses.get(latest)))
+					{
+						state.answered = true;
+						answer = state.full;
+						for (Node replica : state.responses.keySet())
+						{
+							if (version(state.responses.get(replica)) < version(answer))
+							{
+								stale.add(replica);
+							}
+						}
+					}
+					else if (!state.fetching && (state.full != null || !state.fetchFailed.isEmpty()))
+					{
+						// a probe saw a newer version than the value we have
+						fetchFrom = fetchCandidate(state);
+						state.fetching = fetchFrom != null;
+						failed = state.answered = fetchFrom == null;
+					}
+				}
+			}
+			if (answer != null)
+			{
+				this.answerRead(key, state, answer);
+			}
+			else if (failed)
+			{
+				this.replyAll(key, state, Message.Code.INTERNAL_FAILURE, new byte[0], -1);
+			}
+			else if (fetchFrom != null)
+			{
+				this.readFrom(key, fetchFrom, true, state);
+			}
+			// queued after answering, so repairs stay off the read's critical path
+			if (this._repair != null)
+			{
+				for (Node replica : stale)
+				{
+					this._repair.stale(replica, state.keyspace, key, StoreMessage.responseValue(latestFull), version(latestFull),
+							StoreMessage.responseExpiresAt(latestFull));
+				}
+			}
+		};
+		Consumer<byte[]> onFailure = req -> {
+			// availability is left to the failure detector
+			Node fetchFrom = null;
+			boolean failed = false;
+			synchronized (state) {
+				if (full)
+				{
+					state.fetchFailed.add(node);
+					state.fetching = false;
+				}
+				if (!state.responses.containsKey(node))
+				{
+					state.failures++; // not a value fetched again from a replica that answered its probe
+				}
+				if (state.answered)
+				{
+					return;
+				}
+				if (state.responses.size() < state.keyspace.getReadQuorum())
+				{
+					// failed once a quorum can no longer answer
+					failed = state.answered = state.sent - state.failures < state.keyspace.getReadQuorum();
+				}
+				else if (full)
+				{
+					fetchFrom = fetchCandidate(state);
+					state.fetching = fetchFrom != null;
+					failed = state.answered = fetchFrom == null;
+				}
+			}
+			if (failed)
+			{
+				this.replyAll(key, state, Message.Code.INTERNAL_FAILURE, new byte[0], -1);
+			}
+			else if (fetchFrom != null)
+			{
+				this.readFrom(key, fetchFrom, true, state);
+			}
+		};
+		this.send(node, state.trace, storeRequest, local -> local.get(state.keyspace, key, full), onSuccess, onFailure);
+	}
+
+	/**
+	 * Answers a quorum read with the selected store response and caches its value, unless a write of the
+	 * key started since the read did.
+	 * @param key
+	 * @param state
+	 * @param latest
+	 */
+	private void answerRead(byte[] key, ReadState state, byte[] latest)
+	{
+		byte[] value = StoreMessage.responseValue(latest);
+		if (value.length > 0 && this._cache != null)
+		{
+			this._cache.put(cacheKey(state.keyspace, key), value, version(latest), StoreMessage.responseExpiresAt(latest),
+					state.cacheEpoch);
+		}
+		Message.Code code = value.length > 0 ? Message.Code.SUCCESSFUL : Message.Code.NON_EXISTENT_KEY;
+		this.replyAll(key, state, code, value, version(latest));
+	}
+
+	/**
+	 * Answers every client of a read. Clients can no longer join it afterwards.
+	 * @param key
+	 * @param state
+	 * @param code
+	 * @param value
+	 * @param version the version read, or -1
+	 */
+	private void replyAll(byte[] key, ReadState state, Message.Code code, byte[] value, int version)
+	{
+		ArrayList<DatagramPacket> packets;
+		ArrayList<byte[]> ids;
+		synchronized (state) {
+			state.answered = true;
+			packets = new ArrayList<DatagramPacket>(state.packets);
+			ids = new ArrayList<byte[]>(state.ids);
+		}
+		this._reads.remove(cacheKey(state.keyspace, key), state);
+		for (int i = 0; i < packets.size(); i++)
+		{
+			this.reply(packets.get(i), Message.createResponse(ids.get(i), code, value, version));
+		}
+	}
+
+	/**
+	 * Asks the replicas for their version only, and answers with the cached value if a read quorum
+	 * confirms the cached version. Falls back to a full read otherwise. Fails like a read if too many
+	 * replicas do not answer for a quorum.
+	 * @param packet
+	 * @param keyspace
+	 * @param id
+	 * @param key
+	 * @param cached
+	 * @param trace
+	 */
+	private void validate(DatagramPacket packet, Keyspace keyspace, byte[] id, byte[] key, ReadCache.Entry cached, RequestTrace trace)
+	{
+		byte[] storeRequest = StoreMessage.withKeyspace(StoreMessage.createGetVersionRequest(id, key), keyspace.getId());
+		HashMap<Node, byte[]> responses = new HashMap<Node, byte[]>();
+		int[] failures = new int[1];
+		Set<Node> nodes = _monitor.getSuccessors(key, keyspace.getReplicationFactor());
+		if (nodes.size() < keyspace.getReadQuorum())
+		{
+			this.reply(packet, Message.createResponse(id, Message.Code.INTERNAL_FAILURE));
+			return;
+		}
+		trace.mark(RequestTrace.Phase.FAN_OUT);
+		for (Node node : nodes) {
+			Consumer<byte[]> onSuccess = res -> {
+				node.responded();
+				int version;
+				synchronized (responses) {
+					responses.put(node, res);
+					if (responses.size() != keyspace.getReadQuorum())
+					{
+						return;
+					}
+					version = version(responses.get(latest(responses)));
+				}
+				if (version == cached.version)
+				{
+					this._cache.recordHit(cached.value.length * keyspace.getReadQuorum());
+					this.reply(packet, Message.createResponse(id, Message.Code.SUCCESSFUL, cached.value, cached.version));
+				}
+				else
+				{
+					this._cache.recordMiss();
+					this.read(packet, keyspace, id, key, trace);
+				}
+			};
+			Consumer<byte[]> onFailure = req -> {
+				synchronized (responses) {
+					// decided once a quorum answered, or once one no longer can
+					if (responses.size() >= keyspace.getReadQuorum() || nodes.size() - ++failures[0] != keyspace.getReadQuorum() - 1)
+					{
+						return;
+					}
+				}
+				this._cache.recordMiss();
+				this.reply(packet, Message.createResponse(id, Message.Code.INTERNAL_FAILURE));
+			};
+			this.send(node, trace, storeRequest, local -> local.get(keyspace, key, false), onSuccess, onFailure);
+		}
+	}
+
+	/**
+	 * Selects the replica to fetch the value of a read from, when a probe saw a version newer than the value:
+	 * a replica with the highest version whose full GET did not fail.
+	 * @param state
+	 * @return null if there is none left
+	 */
+	private static Node fetchCandidate(ReadState state)
+	{
+		int newest = version(state.responses.get(latest(state.responses)));
+		for (Node node : state.responses.keySet())
+		{
+			if (version(state.responses.get(node)) == newest && !state.fetchFailed.contains(node))
+			{
+				return node;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Selects the replica whose response has the highest version.
+	 * @param responses
+	 * @return
+	 */
+	private static Node latest(HashMap<Node, byte[]> responses)
+	{
+		Node latest = null;
+		for (Node node : responses.keySet())
+		{
+			if (latest == null || version(responses.get(node)) > version(responses.get(latest)))
+			{
+				latest = node;
+			}
+		}
+		return latest;
+	}
+
+	private static int version(byte[] response)
+	{
+		return StoreMessage.responseValueVersion(response);
+	}
+
+	/**
+	 * Sends a request to a replica. The local replica, if any, is called directly and answers
+	 * before this method returns, without going through the socket and the retransmit timers.
+	 * The response time and the outstanding requests of the replica are tracked for read replica selection.
+	 * @param node
+	 * @param trace the trace of the client request, which records the response, or null
+	 * @param storeRequest the request for a remote replica
+	 * @param local the same request on the local storage engine
+	 * @param onSuccess
+	 * @param onFailure
+	 */
+	private void send(Node node, RequestTrace trace, byte[] storeRequest, Function<StorageEngine, byte[]> local,
+			Consumer<byte[]> onSuccess, Consumer<byte[]> onFailure)
+	{
+		long start = Clock.nanoTime();
+		node.requestSent();
+		if (this._local != null && node.equals(this._self))
+		{
+			byte[] response = local.apply(this._local);
+			node.requestDone(Clock.nanoTime() - start);
+			mark(trace, RequestTrace.Phase.ACK, node);
+			onSuccess.accept(response);
+			return;
+		}
+		this._client.send(node.getAddress(), node.getStorePort(), storeRequest, res -> {
+			node.requestDone(Clock.nanoTime() - start);
+			mark(trace, RequestTrace.Phase.ACK, node);
+			onSuccess.accept(res);
+		}, req -> {
+			node.requestDone(Clock.nanoTime() - start);
+			mark(trace, RequestTrace.Phase.FAILED, node);
+			onFailure.accept(req);
+		});
+	}
+
+	private static void mark(RequestTrace trace, RequestTrace.Phase phase, Node node)
+	{
+		if (trace != null)
+		{
+			trace.mark(phase, node);
+		}
+	}
+
+	/**
+	 * @return whether to trace the phases of a new request, with probability Config.TRACE_SAMPLE_RATE
+	 */
+	private static boolean sample()
+	{
+		return Config.TRACE_SAMPLE_RATE > 0 && Clock.random().nextDouble() < Config.TRACE_SAMPLE_RATE;
+	}
+
+	private static boolean isKeyCommand(Message.Command command)
+	{
+		switch (command)
+		{
+			case PUT:
+			case GET:
+			case REMOVE:
+			case CAS:
+			case PUT_IF_ABSENT:
+			case REMOVE_IF_VERSION:
+			case INCREMENT:
+			case DECREMENT:
+			case GET_COUNTER:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Identifies a client request by its sender and ID.
+	 */
+	private static String requestKey(DatagramPacket packet, byte[] id)
+	{
+		return packet.getSocketAddress() + "/" + Utils.hexString(id);
+	}
+
+	private Histogram latency(Message.Command command)
+	{
+		Histogram histogram = this._latency[command.ordinal()];
+		if (histogram == null)
+		{
+			// racing threads get the same histogram from the registry
+			histogram = this._metrics.histogram("kvstore_coordinator_request_seconds",
+					"Time from the arrival of a client request to its response", "command", command.name());
+			this._latency[command.ordinal()] = histogram;
+		}
+		return histogram;
+	}
+
+	private Counter responses(Message.Command command, Message.Code code)
+	{
+		Counter counter = this._responses[command.ordinal()][code.ordinal()];
+		if (counter == null)
+		{
+			// racing threads get the same counter from the registry
+			counter = this._metrics.counter("kvstore_coordinator_responses_total", "Responses to client requests",
+					"command", command.name(), "code", code.name());
+			this._responses[command.ordinal()][code.ordinal()] = counter;
+		}
+		return counter;
+	}
+
+	/**
+	 * Sends a response to the client of the request.
+	 * @param packet the request packet, reused for the response
+	 * @param response
+	 */
+	private void reply(DatagramPacket packet, byte[] response)
+	{
+		RequestTrace trace = this._inFlight.remove(requestKey(packet, Message.id(response)));
+		Message.Command command = Message.command(packet.getData());
+		if (trace != null)
+		{
+			trace.mark(RequestTrace.Phase.QUORUM);
+			this.latency(command).record(trace.finish(Clock.nanoTime()));
+		}
+		this.responses(command, Message.code(response)).increment();
+		try {
+			packet.setData(response);
+			this._socket.send(packet);
+		} catch (Exception e) {
+			EventLog.event(REPLY_FAILED, e, packet.getSocketAddress());
+		}
+		if (trace != null && trace.getDuration() >= TimeUnit.MILLISECONDS.toNanos(Config.SLOW_REQUEST_MS))
+		{
+			trace.mark(RequestTrace.Phase.REPLIED);
+			trace.identify(packet.getSocketAddress(), Message.id(response));
+			this._slowLog.add(trace);
 		}
 	}
 }
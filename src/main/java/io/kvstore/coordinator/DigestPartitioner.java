@@ -0,0 +1,45 @@
+/**
+ * DigestPartitioner.java
+ * Partitioner based on a cryptographic MessageDigest (e.g. SHA-512).
+ * MessageDigest is not thread-safe, so every thread gets its own instance.
+ */
+package main.java.io.kvstore.coordinator;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class DigestPartitioner implements Partitioner
+{
+	/**
+	 * One digest per thread.
+	 */
+	private final ThreadLocal<MessageDigest> _digest;
+
+	public DigestPartitioner(String algorithm) throws NoSuchAlgorithmException
+	{
+		MessageDigest.getInstance(algorithm); // fail fast on unknown algorithms
+		this._digest = ThreadLocal.withInitial(() -> {
+			try {
+				return MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	/**
+	 * The token is the low-order 64 bits of the digest, i.e. its last 8 bytes read big-endian.
+	 * This is what BigInteger.longValue() would return, without building the BigInteger.
+	 */
+	@Override
+	public long token(byte[] key)
+	{
+		byte[] d = this._digest.get().digest(key);
+		long token = 0;
+		for (int i = d.length - 8; i < d.length; i++)
+		{
+			token = (token << 8) | (d[i] & 0xFF);
+		}
+		return token;
+	}
+}
@@ -0,0 +1,296 @@
+/**
+ * Gossiper.java
+ * Push-pull gossip of cluster membership.
+ * Every Config.GOSSIP_INTERVAL_MS the node sends its whole membership view to one random peer,
+ * which merges it and answers with its own view. Each member's state is versioned by
+ * (generation, version): the generation changes when a node restarts and the version
+ * increases every round, so newer state always wins the merge.
+ *
+ * Request:  id (16) | command GOSSIP (1) | count (2) | entries
+ * Response: id (16) | code (1) | length (2) | count (2) | entries
+ * Entry:    address length (1) | address | coordinator port (2) | store port (2) | generation (8) | version (8) | status (1)
+ */
+package main.java.io.kvstore.coordinator;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.log.EventLog;
+import main.java.io.kvstore.log.LogSite;
+import main.java.io.kvstore.store.StoreClient;
+import main.java.io.kvstore.utils.Clock;
+import main.java.io.kvstore.utils.Message;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class Gossiper
+{
+	private static final LogSite ROUND_FAILED = LogSite.error("gossip.round_failed");
+
+	enum Status
+	{
+		UP,
+		LEFT
+	}
+
+	/**
+	 * Versioned state of one member.
+	 */
+	static class Member
+	{
+		final Node node;
+		final long generation;
+		final long version;
+		final Status status;
+		Member(Node node, long generation, long version, Status status)
+		{
+			this.node = node;
+			this.generation = generation;
+			this.version = version;
+			this.status = status;
+		}
+
+		boolean newerThan(Member other)
+		{
+			return other == null || this.generation > other.generation
+					|| (this.generation == other.generation && this.version > other.version);
+		}
+	}
+
+	/**
+	 * Address length, ports, generation, version and status of an entry, without the address itself.
+	 */
+	private static final int ENTRY_FIXED_BYTES = 1 + 2 + 2 + 8 + 8 + 1;
+
+	/**
+	 * The node this gossiper runs on.
+	 */
+	private final Node _self;
+
+	/**
+	 * The monitor whose ring is updated.
+	 */
+	private final Monitor _monitor;
+
+	/**
+	 * The client used to reach other coordinators.
+	 */
+	private final StoreClient _client;
+
+	/**
+	 * Membership view, including members that left so that their departure keeps spreading.
+	 */
+	private final ConcurrentHashMap<Node, Member> _members = new ConcurrentHashMap<>();
+
+	/**
+	 * The generation of this node.
+	 */
+	private final long _generation = Clock.currentTimeMillis();
+
+	private final ScheduledExecutorService _executor = Clock.newScheduledExecutor();
+
+	/**
+	 * Coordinator addresses contacted while no other member is known.
+	 */
+	private volatile List<InetSocketAddress> _seeds = new ArrayList<>();
+
+	public Gossiper(Node self, Monitor monitor, StoreClient client)
+	{
+		this._self = self;
+		this._monitor = monitor;
+		this._client = client;
+		this._members.put(self, new Member(self, this._generation, 0, Status.UP));
+	}
+
+	/**
+	 * Starts the gossip rounds.
+	 * @param seeds
+	 */
+	public void start(List<InetSocketAddress> seeds)
+	{
+		this._seeds = new ArrayList<>(seeds);
+		this._executor.scheduleWithFixedDelay(this::round, 0, Config.GOSSIP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Marks this node as left, removes it from the local ring and tells every known peer right away.
+	 */
+	public void leave()
+	{
+		this.bump(Status.LEFT);
+		this._monitor.removeNode(this._self);
+		this._executor.execute(() -> {
+			for (InetSocketAddress peer : this.peers())
+			{
+				this.gossipTo(peer);
+			}
+		});
+	}
+
+	/**
+	 * Handles a gossip request: merges the sender's view and answers with ours.
+	 * @param request
+	 * @return the response
+	 */
+	public byte[] onGossip(byte[] request)
+	{
+		this.merge(ByteBuffer.wrap(request, Message.MIN_BYTES, request.length - Message.MIN_BYTES));
+		return Message.createResponse(Message.id(request), Message.Code.SUCCESSFUL, this.encode());
+	}
+
+	/**
+	 * One gossip round: bump our version and exchange views with a random peer.
+	 */
+	private void round()
+	{
+		try {
+			Member self = this._members.get(this._self);
+			this.bump(self.status);
+			List<InetSocketAddress> peers = this.peers();
+			if (peers.isEmpty())
+			{
+				peers = this._seeds;
+			}
+			if (!peers.isEmpty())
+			{
+				this.gossipTo(peers.get(Clock.random().nextInt(peers.size())));
+			}
+		} catch (Exception e) {
+			EventLog.event(ROUND_FAILED, e); // never let an exception cancel the schedule
+		}
+	}
+
+	private void gossipTo(InetSocketAddress peer)
+	{
+		byte[] members = this.encode();
+		byte[] request = new byte[Message.MIN_BYTES + members.length];
+		System.arraycopy(Message.createRequest(Message.Command.GOSSIP), 0, request, 0, Message.MIN_BYTES);
+		System.arraycopy(members, 0, request, Message.MIN_BYTES, members.length);
+		this._client.send(peer.getAddress(), peer.getPort(), request,
+				res -> this.merge(ByteBuffer.wrap(Message.responseValue(res))), req -> {},
+				1, Config.GOSSIP_INTERVAL_MS);
+	}
+
+	/**
+	 * Coordinator addresses of the other members of the ring.
+	 */
+	private List<InetSocketAddress> peers()
+	{
+		ArrayList<InetSocketAddress> peers = new ArrayList<>();
+		for (Node node : this._monitor.getRing().getNodes())
+		{
+			if (!node.equals(this._self))
+			{
+				peers.add(new InetSocketAddress(node.getAddress(), node.getCoordinatorPort()));
+			}
+		}
+		return peers;
+	}
+
+	private void bump(Status status)
+	{
+		this._members.compute(this._self, (node, member) -> new Member(node, this._generation, member.version + 1, status));
+	}
+
+	/**
+	 * Merges a received view and applies the membership changes to the ring.
+	 * @param buf
+	 */
+	private void merge(ByteBuffer buf)
+	{
+		if (buf.remaining() < 2)
+		{
+			return;
+		}
+		int count = buf.getShort() & 0xFFFF;
+		for (int i = 0; i < count && buf.remaining() >= ENTRY_FIXED_BYTES; i++)
+		{
+			Member received = decode(buf);
+			if (received == null || received.node.equals(this._self))
+			{
+				continue; // only this node speaks for itself
+			}
+			Member[] applied = new Member[1];
+			this._members.compute(received.node, (node, current) -> {
+				if (received.newerThan(current))
+				{
+					applied[0] = received;
+					return received;
+				}
+				return current;
+			});
+			if (applied[0] != null)
+			{
+				if (applied[0].status == Status.UP)
+				{
+					this._monitor.addNode(applied[0].node);
+				}
+				else
+				{
+					this._monitor.removeNode(applied[0].node);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Encodes the whole view, prefixed by the number of entries.
+	 */
+	private byte[] encode()
+	{
+		Collection<Member> members = this._members.values();
+		ByteBuffer buf = ByteBuffer.allocate(Message.VALUE_BYTES);
+		int countPosition = buf.position();
+		buf.putShort((short) 0);
+		int count = 0;
+		for (Member member : members)
+		{
+			byte[] addr = member.node.getAddress().getAddress();
+			if (buf.remaining() < ENTRY_FIXED_BYTES + addr.length)
+			{
+				break;
+			}
+			buf.put((byte) addr.length);
+			buf.put(addr);
+			buf.putShort((short) member.node.getCoordinatorPort());
+			buf.putShort((short) member.node.getStorePort());
+			buf.putLong(member.generation);
+			buf.putLong(member.version);
+			buf.put((byte) member.status.ordinal());
+			count++;
+		}
+		buf.putShort(countPosition, (short) count);
+		byte[] result = new byte[buf.position()];
+		System.arraycopy(buf.array(), 0, result, 0, result.length);
+		return result;
+	}
+
+	private static Member decode(ByteBuffer buf)
+	{
+		byte[] addr = new byte[buf.get() & 0xFF];
+		if (buf.remaining() < addr.length + ENTRY_FIXED_BYTES - 1)
+		{
+			buf.position(buf.limit());
+			return null;
+		}
+		buf.get(addr);
+		int coordinatorPort = buf.getShort() & 0xFFFF;
+		int storePort = buf.getShort() & 0xFFFF;
+		long generation = buf.getLong();
+		long version = buf.getLong();
+		int status = buf.get();
+		try {
+			Node node = new Node(InetAddress.getByAddress(addr), coordinatorPort, storePort, false);
+			return new Member(node, generation, version, status == Status.LEFT.ordinal() ? Status.LEFT : Status.UP);
+		} catch (UnknownHostException e) {
+			return null; // malformed address
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * HintLog.java
+ * Append-only file of the writes a coordinator could not deliver to one replica.
+ * Record: key (32 bytes), keyspace number (2 bytes), version (2 bytes), expiry time (8 bytes), value length
+ * (2 bytes), value. Logs written before keyspaces had a 4-byte version there, read as keyspace 0.
+ * The file is bounded: once Config.HINT_MAX_BYTES_PER_NODE is reached, new hints are dropped and
+ * the replica is left to read repair and anti-entropy. Hints stay in the file until they are delivered.
+ * Appends are not fsynced one by one but by sync(), so a crash of the machine, unlike one of the process,
+ * loses the hints appended since the last sync.
+ */
+package main.java.io.kvstore.coordinator;
+
+import main.java.io.kvstore.store.StoreMessage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class HintLog
+{
+	private static final int HEADER_BYTES = StoreMessage.KEY_BYTES + 2 + 2 + 8 + 2;
+
+	/**
+	 * One undelivered write.
+	 */
+	public static class Hint
+	{
+		/**
+		 * Number of the keyspace of the key.
+		 */
+		public final int keyspace;
+		public final byte[] key;
+		public final byte[] value;
+		public final int version;
+
+		/**
+		 * Expiry time of the value in epoch milliseconds, 0 if it does not expire.
+		 */
+		public final long expiresAt;
+		public Hint(int keyspace, byte[] key, byte[] value, int version, long expiresAt)
+		{
+			this.keyspace = keyspace;
+			this.key = key;
+			this.value = value;
+			this.version = version;
+			this.expiresAt = expiresAt;
+		}
+
+		int size() { return HEADER_BYTES + this.value.length; }
+	}
+
+	private final File _file;
+
+	private final long _maxBytes;
+
+	/**
+	 * Open stream to the end of the file, null until the first append. Guarded by this.
+	 */
+	private FileOutputStream _out;
+
+	private long _bytes;
+
+	private int _count;
+
+	/**
+	 * Whether hints were appended since the last sync.
+	 */
+	private boolean _dirty;
+
+	/**
+	 * Opens the log of a replica, counting the hints left by a previous run.
+	 * @param file
+	 * @param maxBytes
+	 * @throws IOException
+	 */
+	public HintLog(File file, long maxBytes) throws IOException
+	{
+		this._file = file;
+		this._maxBytes = maxBytes;
+		for (Hint hint : read(file))
+		{
+			this._bytes += hint.size();
+			this._count++;
+		}
+	}
+
+	public synchronized long getBytes() { return this._bytes; }
+
+	public synchronized int getCount() { return this._count; }
+
+	/**
+	 * Appends a hint. The record is written with a single call, so a crash loses at most the last record.
+	 * @param hint
+	 * @return false if the log is full
+	 * @throws IOException
+	 */
+	public synchronized boolean append(Hint hint) throws IOException
+	{
+		if (this._bytes + hint.size() > this._maxBytes)
+		{
+			return false;
+		}
+		if (this._out == null)
+		{
+			this._out = new FileOutputStream(this._file, true);
+		}
+		this._out.write(record(hint));
+		this._bytes += hint.size();
+		this._count++;
+		this._dirty = true;
+		return true;
+	}
+
+	/**
+	 * Reads the hints of the log, which stay in it until remove is called for them.
+	 * @return the hints, oldest first
+	 * @throws IOException
+	 */
+	public synchronized List<Hint> peek() throws IOException
+	{
+		return read(this._file);
+	}
+
+	/**
+	 * Removes the first hints of the log, once they are delivered, keeping some of them. The file is
+	 * rewritten with the hints kept and the hints after the removed ones, then fsynced.
+	 * @param count number of hints removed, from the start of the log, as returned by peek
+	 * @param keep hints among them that were not delivered, kept at the start of the log
+	 * @throws IOException
+	 */
+	public synchronized void remove(int count, List<Hint> keep) throws IOException
+	{
+		if (count == 0)
+		{
+			return;
+		}
+		List<Hint> hints = read(this._file);
+		File rewritten = new File(this._file.getPath() + ".rewriting");
+		long bytes = 0;
+		int left = 0;
+		try (FileOutputStream out = new FileOutputStream(rewritten)) {
+			for (List<Hint> part : List.of(keep, hints.subList(Math.min(count, hints.size()), hints.size())))
+			{
+				for (Hint hint : part)
+				{
+					out.write(record(hint));
+					bytes += hint.size();
+					left++;
+				}
+			}
+			out.getChannel().force(false);
+		}
+		if (this._out != null)
+		{
+			this._out.close();
+			this._out = null;
+		}
+		Files.move(rewritten.toPath(), this._file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this._bytes = bytes;
+		this._count = left;
+		this._dirty = false;
+	}
+
+	/**
+	 * Forces the hints appended so far to the disk.
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException
+	{
+		if (this._dirty)
+		{
+			this._out.getChannel().force(false);
+			this._dirty = false;
+		}
+	}
+
+	private static byte[] record(Hint hint)
+	{
+		ByteBuffer record = ByteBuffer.allocate(hint.size());
+		record.put(hint.key, 0, StoreMessage.KEY_BYTES);
+		record.putShort((short) hint.keyspace);
+		record.putShort((short) hint.version);
+		record.putLong(hint.expiresAt);
+		record.putShort((short) hint.value.length);
+		record.put(hint.value);
+		return record.array();
+	}
+
+	/**
+	 * Reads the complete records of a log file. A truncated last record is ignored.
+	 */
+	private static List<Hint> read(File file) throws IOException
+	{
+		ArrayList<Hint> hints = new ArrayList<>();
+		if (!file.exists())
+		{
+			return hints;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true)
+			{
+				byte[] key = new byte[StoreMessage.KEY_BYTES];
+				in.readFully(key);
+				int keyspace = in.readUnsignedShort();
+				int version = in.readUnsignedShort();
+				long expiresAt = in.readLong();
+				byte[] value = new byte[in.readUnsignedShort()];
+				in.readFully(value);
+				hints.add(new Hint(keyspace, key, value, version, expiresAt));
+			}
+		} catch (EOFException e) {
+			return hints;
+		}
+	}
+}
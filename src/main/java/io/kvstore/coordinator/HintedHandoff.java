@@ -0,0 +1,269 @@
+/**
+ * HintedHandoff.java
+ * Keeps the writes that could not reach a replica, one HintLog per replica, and replays them
+ * once the failure detector sees the replica again. Hints carry the version acknowledged by the
+ * other replicas, so a replayed hint never overwrites a newer value.
+ * Hints written while the replica is seen as up (e.g. a lost datagram) are replayed by a periodic sweep.
+ * Replay runs in batches of Config.HINT_REPLAY_BATCH writes, throttled to Config.STREAM_BYTES_PER_SECOND.
+ * Hints are removed from their log only once their replica acknowledged them, so a crash during a replay
+ * delivers some hints again, which their versions make harmless. The logs are fsynced by the sweep.
+ */
+package main.java.io.kvstore.coordinator;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.Keyspace;
+import main.java.io.kvstore.log.EventLog;
+import main.java.io.kvstore.log.LogSite;
+import main.java.io.kvstore.store.StoreClient;
+import main.java.io.kvstore.store.StoreMessage;
+import main.java.io.kvstore.utils.Clock;
+import main.java.io.kvstore.utils.RateLimiter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class HintedHandoff implements AvailabilityListener
+{
+	private static final LogSite HINT_FAILED = LogSite.warn("hints.write_failed", "node");
+	private static final LogSite REPLAYED = LogSite.info("hints.replayed", "node", "delivered", "left");
+	private static final LogSite REPLAY_FAILED = LogSite.warn("hints.replay_failed", "node");
+	private static final LogSite SYNC_FAILED = LogSite.warn("hints.sync_failed");
+
+	private final File _dir;
+
+	private final StoreClient _client;
+
+	/**
+	 * Hint logs by file name, i.e. by replica.
+	 */
+	private final ConcurrentHashMap<String, HintLog> _logs = new ConcurrentHashMap<>();
+
+	/**
+	 * Replicas hinted since startup, by file name.
+	 */
+	private final ConcurrentHashMap<String, Node> _nodes = new ConcurrentHashMap<>();
+
+	/**
+	 * Replicas being replayed to.
+	 */
+	private final Set<Node> _replaying = ConcurrentHashMap.newKeySet();
+
+	private final ScheduledExecutorService _executor = Clock.newScheduledExecutor();
+
+	private final RateLimiter _limiter = new RateLimiter(Config.STREAM_BYTES_PER_SECOND);
+
+	private final LongAdder _hintsWritten = new LongAdder();
+	private final LongAdder _hintsDropped = new LongAdder();
+	private final LongAdder _hintsReplayed = new LongAdder();
+	private final LongAdder _replayNanos = new LongAdder();
+
+	/**
+	 * @param dir directory of the hint logs, created if needed. Logs left there by a previous run are kept.
+	 * @param client
+	 * @throws IOException
+	 */
+	public HintedHandoff(File dir, StoreClient client) throws IOException
+	{
+		this._dir = dir;
+		this._client = client;
+		if (!dir.isDirectory() && !dir.mkdirs())
+		{
+			throw new IOException("Cannot create " + dir);
+		}
+		File[] files = dir.listFiles();
+		for (File file : files == null ? new File[0] : files)
+		{
+			this._logs.put(file.getName(), new HintLog(file, Config.HINT_MAX_BYTES_PER_NODE));
+		}
+		this._executor.scheduleWithFixedDelay(this::sweep, Config.HINT_SWEEP_INTERVAL_MS,
+				Config.HINT_SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stores a write for a replica that did not receive it.
+	 * @param node the replica
+	 * @param keyspace
+	 * @param key
+	 * @param value
+	 * @param version the version acknowledged by the other replicas
+	 * @param expiresAt expiry time of the value, 0 if it does not expire
+	 */
+	public void hint(Node node, Keyspace keyspace, byte[] key, byte[] value, int version, long expiresAt)
+	{
+		this._nodes.putIfAbsent(fileName(node), node);
+		try {
+			if (this.log(node).append(new HintLog.Hint(keyspace.getId(), key, value, version, expiresAt)))
+			{
+				this._hintsWritten.increment();
+			}
+			else
+			{
+				this._hintsDropped.increment();
+			}
+		} catch (IOException e) {
+			this._hintsDropped.increment();
+			EventLog.event(HINT_FAILED, e, node);
+		}
+	}
+
+	@Override
+	public void onNodeUp(Node node)
+	{
+		this._nodes.putIfAbsent(fileName(node), node);
+		HintLog log = this._logs.get(fileName(node));
+		if (log != null && log.getCount() > 0)
+		{
+			this._executor.execute(() -> this.replay(node));
+		}
+	}
+
+	/**
+	 * Forces the hint logs to the disk, and replays the hints of the known replicas that are available.
+	 */
+	private void sweep()
+	{
+		for (HintLog log : this._logs.values())
+		{
+			try {
+				log.sync();
+			} catch (IOException e) {
+				EventLog.event(SYNC_FAILED, e);
+			}
+		}
+		for (Node node : this._nodes.values())
+		{
+			if (node.getAvailable())
+			{
+				this.onNodeUp(node);
+			}
+		}
+	}
+
+	/**
+	 * @return number of hints waiting for their replica
+	 */
+	public long getBacklog()
+	{
+		long count = 0;
+		for (HintLog log : this._logs.values())
+		{
+			count += log.getCount();
+		}
+		return count;
+	}
+
+	public long getBacklogBytes()
+	{
+		long bytes = 0;
+		for (HintLog log : this._logs.values())
+		{
+			bytes += log.getBytes();
+		}
+		return bytes;
+	}
+
+	public long getHintsWritten() { return this._hintsWritten.sum(); }
+
+	/**
+	 * @return hints lost because a log was full or could not be written
+	 */
+	public long getHintsDropped() { return this._hintsDropped.sum(); }
+
+	public long getHintsReplayed() { return this._hintsReplayed.sum(); }
+
+	/**
+	 * @return hints replayed per second of replay
+	 */
+	public double getReplayRate()
+	{
+		long nanos = this._replayNanos.sum();
+		return nanos == 0 ? 0 : this.getHintsReplayed() * 1e9 / nanos;
+	}
+
+	/**
+	 * Delivers the hints of a replica. Stops at the first batch with a failure, since the replica is
+	 * probably down again, and keeps the undelivered hints for the next time it comes back. The delivered
+	 * hints are removed from the log at the end; if the replay fails before, they stay and are delivered again.
+	 * @param node
+	 */
+	private void replay(Node node)
+	{
+		if (!this._replaying.add(node))
+		{
+			return;
+		}
+		long start = Clock.nanoTime();
+		int delivered = 0;
+		try {
+			HintLog log = this.log(node);
+			List<HintLog.Hint> hints = log.peek();
+			ArrayList<HintLog.Hint> failed = new ArrayList<>();
+			int from = 0;
+			while (from < hints.size() && failed.isEmpty() && node.getAvailable())
+			{
+				List<HintLog.Hint> batch = hints.subList(from, Math.min(hints.size(), from + Config.HINT_REPLAY_BATCH));
+				ArrayList<CompletableFuture<Boolean>> acks = new ArrayList<>();
+				for (HintLog.Hint hint : batch)
+				{
+					byte[] request = StoreMessage.withKeyspace(StoreMessage.createPutRequest(StoreMessage.createId(), hint.key,
+							hint.value, hint.version, hint.expiresAt), hint.keyspace);
+					this._limiter.acquire(request.length);
+					CompletableFuture<Boolean> ack = new CompletableFuture<>();
+					this._client.send(node.getAddress(), node.getStorePort(), request,
+							res -> ack.complete(true), req -> ack.complete(false));
+					acks.add(ack);
+				}
+				for (int i = 0; i < batch.size(); i++)
+				{
+					Clock.await(acks.get(i));
+					if (acks.get(i).join())
+					{
+						delivered++;
+					}
+					else
+					{
+						failed.add(batch.get(i));
+					}
+				}
+				from += batch.size();
+			}
+			log.remove(from, failed); // the hints after them stay too
+			EventLog.event(REPLAYED, node, delivered, log.getCount());
+		} catch (IOException e) {
+			EventLog.event(REPLAY_FAILED, e, node);
+		} finally {
+			this._hintsReplayed.add(delivered);
+			this._replayNanos.add(Clock.nanoTime() - start);
+			this._replaying.remove(node);
+		}
+	}
+
+	private HintLog log(Node node) throws IOException
+	{
+		String name = fileName(node);
+		HintLog log = this._logs.get(name);
+		if (log == null)
+		{
+			HintLog created = new HintLog(new File(this._dir, name), Config.HINT_MAX_BYTES_PER_NODE);
+			log = this._logs.putIfAbsent(name, created);
+			if (log == null)
+			{
+				log = created;
+			}
+		}
+		return log;
+	}
+
+	private static String fileName(Node node)
+	{
+		return node.getAddress().getHostAddress().replace(':', '_') + "_" + node.getStorePort() + ".hints";
+	}
+}
@@ -0,0 +1,15 @@
+/**
+ * MembershipListener.java
+ * Notified by the Monitor when nodes join or leave the ring.
+ */
+package main.java.io.kvstore.coordinator;
+
+public interface MembershipListener
+{
+	/**
+	 * Called after the ring has been replaced. Must not block.
+	 * @param previous
+	 * @param current
+	 */
+	void onRingChanged(Ring previous, Ring current);
+}
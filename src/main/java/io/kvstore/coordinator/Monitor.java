@@ -1,88 +1,274 @@
 /**
  * Monitor.java
  * Monitor the nodes in the system.
+ * Keeps the current ring, heartbeats its nodes and, once gossip is started, tracks nodes joining and leaving.
  */
 package main.java.io.kvstore.coordinator;
 
 import main.java.io.kvstore.Config;
+import main.java.io.kvstore.metrics.Counter;
+import main.java.io.kvstore.metrics.Metrics;
 import main.java.io.kvstore.store.StoreClient;
 import main.java.io.kvstore.store.StoreMessage;
+import main.java.io.kvstore.utils.Clock;
 
-import java.math.BigInteger;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 public class Monitor
 {
 	/**
-	 * The nodes in the system.
+	 * The current ring. Replaced as a whole on membership changes.
 	 */
-	private final Node[] _nodes;
+	private volatile Ring _ring;
 
+	/**
+	 * Maps keys to tokens.
+	 */
+	private final Partitioner _partitioner;
+
+	/**
+	 * The client used for heartbeats and gossip.
+	 */
+	private final StoreClient _client;
+
+	/**
+	 * Listeners notified when the ring changes.
+	 */
+	private final CopyOnWriteArrayList<MembershipListener> _listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Listeners notified when a node becomes available.
+	 */
+	private final CopyOnWriteArrayList<AvailabilityListener> _availabilityListeners = new CopyOnWriteArrayList<>();
 
 	/**
-	 * The hashing algorithm.
+	 * The gossiper, null until gossip is started.
 	 */
-	private final MessageDigest _digest;
+	private volatile Gossiper _gossiper;
+
+	private final Metrics _metrics;
 
 	public Monitor(Node[] nodes, StoreClient client) throws SocketException, NoSuchAlgorithmException
 	{
-		this._nodes = nodes;
-		this._digest = MessageDigest.getInstance(Config.HASHING_ALGORITHM);
-		Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(
+		this(nodes, client, new Metrics());
+	}
+
+	/**
+	 * @param nodes
+	 * @param client
+	 * @param metrics registry of the ring and heartbeat state
+	 * @throws NoSuchAlgorithmException
+	 */
+	public Monitor(Node[] nodes, StoreClient client, Metrics metrics) throws NoSuchAlgorithmException
+	{
+		this(nodes, client, Partitioner.forName(Config.HASHING_ALGORITHM), metrics);
+	}
+
+	public Monitor(Node[] nodes, StoreClient client, Partitioner partitioner)
+	{
+		this(nodes, client, partitioner, new Metrics());
+	}
+
+	public Monitor(Node[] nodes, StoreClient client, Partitioner partitioner, Metrics metrics)
+	{
+		this._ring = new Ring(Arrays.asList(nodes), partitioner);
+		this._partitioner = partitioner;
+		this._client = client;
+		this._metrics = metrics;
+		metrics.gauge("kvstore_monitor_ring_nodes", "Nodes in the ring", () -> this._ring.getNodes().size());
+		metrics.gauges("kvstore_monitor_node_up", "1 if the failure detector trusts the node, 0 if it suspects it",
+				sink -> this._ring.getNodes().forEach(node -> sink.accept(label(node), node.getAvailable() ? 1.0 : 0.0)));
+		metrics.gauges("kvstore_monitor_node_phi", "Suspicion level of the node",
+				sink -> this._ring.getNodes().forEach(node -> sink.accept(label(node), node.getPhi())));
+		metrics.gauges("kvstore_monitor_node_latency_seconds", "Smoothed response time of the node's store",
+				sink -> this._ring.getNodes().forEach(node -> sink.accept(label(node), node.getLatencyMs() / 1000)));
+		Clock.newScheduledExecutor().scheduleAtFixedRate(
 				() -> {
-					for (Node node : this._nodes) {
+					for (Node node : this._ring.getNodes()) {
+						// one attempt: a lost heartbeat is simply a missing sample for the detector
 						client.send(node.getAddress(), node.getStorePort(), StoreMessage.createHeartbeatRequest(),
-								res -> node.setAvailable(true), req -> node.setAvailable(false));
+								res -> this.heartbeat(node), req -> this.heartbeatCounter(node, "missed").increment(),
+								1, Config.HEARTBEAT_INTERVAL_MS);
 					}
-				}, 0, 1, TimeUnit.MINUTES);
+				}, 0, Config.HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
 	}
 
+	public Ring getRing() { return this._ring; }
+
+	public void addListener(MembershipListener listener) { this._listeners.add(listener); }
+
+	public void addAvailabilityListener(AvailabilityListener listener) { this._availabilityListeners.add(listener); }
+
 	/**
-	 * Get the id of the node that should store the data.
-	 * @param data
-	 * @return
+	 * Records a heartbeat acknowledgement and notifies the listeners if the node was not available before.
+	 * @param node
 	 */
-	public int getId(byte[] data)
+	private void heartbeat(Node node)
+	{
+		this.heartbeatCounter(node, "ack").increment();
+		boolean wasAvailable = node.getAvailable();
+		node.heartbeat();
+		if (!wasAvailable && node.getAvailable())
+		{
+			for (AvailabilityListener listener : this._availabilityListeners)
+			{
+				listener.onNodeUp(node);
+			}
+		}
+	}
+
+	private Counter heartbeatCounter(Node node, String result)
 	{
-		this._digest.update(data);
-		BigInteger bigInt = new BigInteger(this._digest.digest());
-		return bigInt.intValue() & Integer.MAX_VALUE % this._nodes.length;
+		return this._metrics.counter("kvstore_monitor_heartbeats_total", "Heartbeats sent, by node and result",
+				"node", node.toString(), "result", result);
 	}
-	
-	/*
-	 * Gets all the successors for this key, until numAvailable available nodes are retrieved.
+
+	private static String label(Node node)
+	{
+		return Metrics.labels("node", node.toString());
+	}
+
+	/**
+	 * Adds a node to the ring if it is not already part of it.
+	 * @param node
 	 */
-	public Set<Node> getSuccessors(byte[] key, int numAvailable)
+	public void addNode(Node node)
 	{
-		int id = getId(key);
-		if (id < 0 || numAvailable < 1 || this._nodes.length < 1)
+		Ring previous;
+		Ring current;
+		synchronized (this)
 		{
-			return new HashSet<Node>();
+			previous = this._ring;
+			if (previous.contains(node))
+			{
+				return;
+			}
+			ArrayList<Node> nodes = new ArrayList<>(previous.getNodes());
+			nodes.add(node);
+			current = new Ring(nodes, this._partitioner);
+			this._ring = current;
 		}
-		HashSet<Node> successors = new HashSet<>();
-		int availableNodes = 0;
-		/**
-		 * ToDo:
-		 * Issue: If the number of available nodes is less than numAvailable,
-		 * the function will be stuck in an infinite loop.
-		 * And repeatedly add the same node to the successors possibly.
-		 */
-		while (availableNodes < numAvailable)
+		for (MembershipListener listener : this._listeners)
 		{
-			Node node = this._nodes[id % this._nodes.length];
-			successors.add(node);
-			if (node.getAvailable())
+			listener.onRingChanged(previous, current);
+		}
+	}
+
+	/**
+	 * Removes a node from the ring.
+	 * @param node
+	 */
+	public void removeNode(Node node)
+	{
+		Ring previous;
+		Ring current;
+		synchronized (this)
+		{
+			previous = this._ring;
+			if (!previous.contains(node))
 			{
-				availableNodes++;
+				return;
 			}
-			id++;
+			ArrayList<Node> nodes = new ArrayList<>(previous.getNodes());
+			nodes.remove(node);
+			current = new Ring(nodes, this._partitioner);
+			this._ring = current;
+		}
+		for (MembershipListener listener : this._listeners)
+		{
+			listener.onRingChanged(previous, current);
 		}
-		return successors;
+	}
+
+	/**
+	 * Starts gossiping membership with the other nodes of the ring and the seeds.
+	 * @param self the node this monitor runs on
+	 * @param seeds coordinator addresses used to join an existing cluster
+	 */
+	public synchronized void startGossip(Node self, List<InetSocketAddress> seeds)
+	{
+		if (this._gossiper == null)
+		{
+			this._gossiper = new Gossiper(self, this, this._client);
+			this._gossiper.start(seeds);
+		}
+	}
+
+	/**
+	 * Handles a gossip request received by the coordinator.
+	 * @param request
+	 * @return the response, or null if gossip is not started
+	 */
+	public byte[] onGossip(byte[] request)
+	{
+		Gossiper gossiper = this._gossiper;
+		return gossiper == null ? null : gossiper.onGossip(request);
+	}
+
+	/**
+	 * Announces that this node leaves the cluster.
+	 * @return whether gossip is started
+	 */
+	public boolean leave()
+	{
+		Gossiper gossiper = this._gossiper;
+		if (gossiper == null)
+		{
+			return false;
+		}
+		gossiper.leave();
+		return true;
+	}
+
+	/*
+	 * Gets the first numAvailable available successors for this key in ring order.
+	 * Suspected nodes are skipped and every node is visited at most once,
+	 * so fewer than numAvailable nodes are returned when not enough are available.
+	 */
+	public Set<Node> getSuccessors(byte[] key, int numAvailable)
+	{
+		return new HashSet<>(this._ring.walk(key, numAvailable, Node::getAvailable));
+	}
+
+	/**
+	 * Gets the same replicas as getSuccessors, fastest first according to Node.getScore.
+	 * Equal scores keep the ring order.
+	 * @param key
+	 * @param numAvailable
+	 * @return
+	 */
+	public List<Node> getReadReplicas(byte[] key, int numAvailable)
+	{
+		List<Node> nodes = this._ring.walk(key, numAvailable, Node::getAvailable);
+		// scores change concurrently, so sort on a snapshot
+		HashMap<Node, Double> scores = new HashMap<>();
+		for (Node node : nodes)
+		{
+			scores.put(node, node.getScore());
+		}
+		nodes.sort(Comparator.comparingDouble(scores::get));
+		return nodes;
+	}
+
+	/**
+	 * Gets the preference list of the key, regardless of availability.
+	 * @param key
+	 * @param n
+	 * @return
+	 */
+	public List<Node> getReplicas(byte[] key, int n)
+	{
+		return this._ring.getReplicas(key, n);
 	}
 }
@@ -0,0 +1,18 @@
+/**
+ * Murmur3Partitioner.java
+ * Non-cryptographic partitioner based on MurmurHash3. Allocates nothing and needs no lock.
+ */
+package main.java.io.kvstore.coordinator;
+
+import main.java.io.kvstore.utils.Murmur3;
+
+public class Murmur3Partitioner implements Partitioner
+{
+	public static final String NAME = "MURMUR3";
+
+	@Override
+	public long token(byte[] key)
+	{
+		return Murmur3.hash64(key);
+	}
+}
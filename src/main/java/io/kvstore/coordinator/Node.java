@@ -4,7 +4,14 @@
  */
 package main.java.io.kvstore.coordinator;
 
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.utils.Clock;
+import main.java.io.kvstore.utils.Murmur3;
+
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Node {
 	/**
@@ -23,25 +30,128 @@ public class Node {
 	private int _storePort;
 
 	/**
-	 * Whether the node is available.
+	 * Decides whether the node is available from its heartbeats and responses.
+	 */
+	private final PhiAccrualFailureDetector _detector;
+
+	/**
+	 * EWMA of the response time of the requests sent to the node, 0 until the first response.
+	 * Written under the lock of this.
+	 */
+	private volatile double _latencyMs;
+
+	/**
+	 * Requests sent to the node and not answered yet.
 	 */
-	private boolean _available;
+	private final AtomicInteger _outstanding = new AtomicInteger();
 	
 	public Node(InetAddress addr, int coordinatorPort, int storePort, boolean localhost)
 	{
 		this._address = addr;
 		this._coordinatorPort = coordinatorPort;
 		this._storePort = storePort;
-		this._available = false;
+		this._detector = new PhiAccrualFailureDetector(Config.PHI_THRESHOLD, Config.PHI_WINDOW_SIZE,
+				Config.PHI_MIN_STD_DEV_MS, Config.HEARTBEAT_INTERVAL_MS);
 	}
 	
+	/**
+	 * @return the nodes of Config.NODES, in order
+	 * @throws UnknownHostException
+	 */
+	public static Node[] configured() throws UnknownHostException
+	{
+		Node[] nodes = new Node[Config.NODES.length];
+		for (int i = 0; i < nodes.length; i++)
+		{
+			String host = Config.NODE_HOSTS[i];
+			InetAddress addr = host.isEmpty() ? InetAddress.getLocalHost() : InetAddress.getByName(host);
+			nodes[i] = new Node(addr, Config.PORT_COORDINATOR[i], Config.PORT_STORE[i], addr.equals(InetAddress.getLocalHost()));
+		}
+		return nodes;
+	}
+
 	public InetAddress getAddress() { return this._address; }
 
 	public int getCoordinatorPort() { return this._coordinatorPort; }
 
 	public int getStorePort() { return this._storePort; }
 	
-	public boolean getAvailable() { return this._available; }
+	/**
+	 * A node is available until its suspicion level reaches Config.PHI_THRESHOLD.
+	 * Nodes that have never answered are not available.
+	 */
+	public boolean getAvailable() { return !this._detector.isSuspected(Clock.currentTimeMillis()); }
+
+	public double getPhi() { return this._detector.phi(Clock.currentTimeMillis()); }
+
+	/**
+	 * Records a heartbeat acknowledgement.
+	 */
+	public void heartbeat() { this._detector.heartbeat(Clock.currentTimeMillis()); }
+
+	/**
+	 * Records any other response from the node's store.
+	 */
+	public void responded() { this._detector.seen(Clock.currentTimeMillis()); }
+
+	/**
+	 * Records a request sent to the node's store.
+	 */
+	public void requestSent() { this._outstanding.incrementAndGet(); }
+
+	/**
+	 * Records the end of a request, answered or given up.
+	 * @param latencyNanos time from the send to the response or to the failure
+	 */
+	public synchronized void requestDone(long latencyNanos)
+	{
+		this._outstanding.decrementAndGet();
+		double latencyMs = latencyNanos / 1e6;
+		this._latencyMs = this._latencyMs == 0 ? latencyMs
+				: this._latencyMs + Config.LATENCY_EWMA_ALPHA * (latencyMs - this._latencyMs);
+	}
+
+	public double getLatencyMs() { return this._latencyMs; }
+
+	public int getOutstanding() { return this._outstanding.get(); }
+
+	/**
+	 * Expected cost of one more request: the response time EWMA scaled by the requests already queued,
+	 * as in the peak-EWMA load balancers. Lower is better.
+	 */
+	public double getScore() { return this._latencyMs * (1 + this._outstanding.get()); }
+
+	/**
+	 * @return a stable ID of the node, derived from its address and store port like equals
+	 */
+	public long getId()
+	{
+		byte[] address = this._address.getAddress();
+		return Murmur3.hash64(ByteBuffer.allocate(address.length + Integer.BYTES).put(address).putInt(this._storePort).array());
+	}
+
+	/**
+	 * Nodes are identified by their address and store port, so that members learned through gossip
+	 * match the ones built at startup.
+	 */
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o)
+		{
+			return true;
+		}
+		if (!(o instanceof Node))
+		{
+			return false;
+		}
+		Node other = (Node) o;
+		return this._storePort == other._storePort && this._address.equals(other._address);
+	}
+
+	@Override
+	public int hashCode() { return 31 * this._address.hashCode() + this._storePort; }
 
-	public void setAvailable(boolean val) { this._available = val;}
+	@Override
+	public String toString() { return this._address.getHostAddress() + ":" + this._coordinatorPort + "/" + this._storePort; }
 }
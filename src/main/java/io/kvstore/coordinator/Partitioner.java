@@ -0,0 +1,34 @@
+/**
+ * Partitioner.java
+ * Maps keys to 64-bit tokens that decide their placement.
+ * Implementations must be thread-safe: the coordinator calls them from every executor thread.
+ */
+package main.java.io.kvstore.coordinator;
+
+import java.security.NoSuchAlgorithmException;
+
+public interface Partitioner
+{
+	/**
+	 * Computes the token of a key.
+	 * @param key
+	 * @return the token
+	 */
+	long token(byte[] key);
+
+	/**
+	 * Creates the partitioner for the given algorithm name, e.g. Config.HASHING_ALGORITHM.
+	 * "MURMUR3" selects the fast non-cryptographic hash, any other name is treated as a MessageDigest algorithm.
+	 * @param algorithm
+	 * @return
+	 * @throws NoSuchAlgorithmException
+	 */
+	static Partitioner forName(String algorithm) throws NoSuchAlgorithmException
+	{
+		if (Murmur3Partitioner.NAME.equalsIgnoreCase(algorithm))
+		{
+			return new Murmur3Partitioner();
+		}
+		return new DigestPartitioner(algorithm);
+	}
+}
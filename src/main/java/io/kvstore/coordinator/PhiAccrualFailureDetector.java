@@ -0,0 +1,147 @@
+/**
+ * PhiAccrualFailureDetector.java
+ * Phi-accrual failure detector (Hayashibara et al.).
+ * Instead of a boolean, it reports a suspicion level phi that grows the longer a node stays silent
+ * compared to its usual heartbeat inter-arrival times.
+ */
+package main.java.io.kvstore.coordinator;
+
+public class PhiAccrualFailureDetector
+{
+	/**
+	 * Suspicion level above which the node is considered down.
+	 */
+	private final double _threshold;
+
+	/**
+	 * Lower bound of the standard deviation, so that very regular heartbeats do not make phi explode.
+	 */
+	private final double _minStdDevMs;
+
+	/**
+	 * Expected heartbeat interval, used to bootstrap the history.
+	 */
+	private final long _expectedIntervalMs;
+
+	/**
+	 * Sliding window of heartbeat inter-arrival times.
+	 */
+	private final long[] _intervals;
+	private int _count;
+	private int _next;
+	private double _sum;
+	private double _sumSquares;
+
+	/**
+	 * Arrival time of the last heartbeat, -1 if none. Guarded by this.
+	 */
+	private long _lastHeartbeatMs = -1;
+
+	/**
+	 * Last time anything was heard from the node, -1 if never.
+	 */
+	private volatile long _lastSeenMs = -1;
+
+	private volatile double _mean;
+
+	private volatile double _stdDev;
+
+	public PhiAccrualFailureDetector(double threshold, int windowSize, double minStdDevMs, long expectedIntervalMs)
+	{
+		this._threshold = threshold;
+		this._intervals = new long[windowSize];
+		this._minStdDevMs = minStdDevMs;
+		this._expectedIntervalMs = expectedIntervalMs;
+	}
+
+	/**
+	 * Records a heartbeat arrival. Its inter-arrival time becomes part of the history.
+	 * @param nowMs
+	 */
+	public synchronized void heartbeat(long nowMs)
+	{
+		if (this._lastHeartbeatMs < 0)
+		{
+			// bootstrap with mean = expected interval and stdDev = expected interval / 4
+			long stdDev = this._expectedIntervalMs / 4;
+			this.add(this._expectedIntervalMs - stdDev);
+			this.add(this._expectedIntervalMs + stdDev);
+		}
+		else
+		{
+			this.add(nowMs - this._lastHeartbeatMs);
+		}
+		this._lastHeartbeatMs = nowMs;
+		this.seen(nowMs);
+	}
+
+	/**
+	 * Records that the node answered something other than a heartbeat, e.g. a piggybacked store response.
+	 * It proves liveness but does not change the inter-arrival history, so bursts of traffic
+	 * do not make the detector oversensitive once traffic stops.
+	 * @param nowMs
+	 */
+	public void seen(long nowMs)
+	{
+		if (nowMs > this._lastSeenMs)
+		{
+			this._lastSeenMs = nowMs;
+		}
+	}
+
+	/**
+	 * Computes the current suspicion level.
+	 * @param nowMs
+	 * @return phi, or positive infinity if the node has never been heard from
+	 */
+	public double phi(long nowMs)
+	{
+		long lastSeen = this._lastSeenMs;
+		if (lastSeen < 0)
+		{
+			return Double.POSITIVE_INFINITY;
+		}
+		double delta = nowMs - lastSeen;
+		double mean = this._mean;
+		double stdDev = Math.max(this._stdDev, this._minStdDevMs);
+		// logistic approximation of the normal CDF
+		double y = (delta - mean) / stdDev;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (delta > mean)
+		{
+			return -Math.log10(e / (1.0 + e));
+		}
+		return -Math.log10(1.0 - 1.0 / (1.0 + e));
+	}
+
+	/**
+	 * @param nowMs
+	 * @return whether phi is above the threshold
+	 */
+	public boolean isSuspected(long nowMs)
+	{
+		return this.phi(nowMs) >= this._threshold;
+	}
+
+	private void add(long interval)
+	{
+		if (this._count == this._intervals.length)
+		{
+			long oldest = this._intervals[this._next];
+			this._sum -= oldest;
+			this._sumSquares -= (double) oldest * oldest;
+		}
+		else
+		{
+			this._count++;
+		}
+		this._intervals[this._next] = interval;
+		this._next = (this._next + 1) % this._intervals.length;
+		this._sum += interval;
+		this._sumSquares += (double) interval * interval;
+
+		double mean = this._sum / this._count;
+		this._mean = mean;
+		this._stdDev = Math.sqrt(Math.max(0, this._sumSquares / this._count - mean * mean));
+	}
+}
@@ -0,0 +1,332 @@
+/**
+ * ReadCache.java
+ * Bounded coordinator-side cache of (value, version) pairs with a W-TinyLFU admission policy.
+ * New entries go to a small LRU window. Entries evicted from the window only enter the main
+ * segmented LRU if a frequency sketch says they are used more often than the main victim,
+ * so one-off reads cannot flush the hot set.
+ */
+package main.java.io.kvstore.coordinator;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ReadCache
+{
+	public enum Mode
+	{
+		/**
+		 * No cache.
+		 */
+		OFF,
+
+		/**
+		 * Hits are answered without contacting the replicas. Writes through other coordinators
+		 * are only seen once the entry is evicted.
+		 */
+		DIRECT,
+
+		/**
+		 * Hits are answered once a read quorum of version-only replies confirms the cached version.
+		 */
+		VALIDATE
+	}
+
+	/**
+	 * Cached value and the version it was read at.
+	 */
+	public static class Entry
+	{
+		public final byte[] value;
+		public final int version;
+
+		/**
+		 * Expiry time of the value in epoch milliseconds, 0 if it does not expire.
+		 */
+		public final long expiresAt;
+		Entry(byte[] value, int version, long expiresAt)
+		{
+			this.value = value;
+			this.version = version;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final Mode _mode;
+
+	private final int _windowCapacity;
+	private final int _protectedCapacity;
+	private final int _mainCapacity;
+
+	/**
+	 * The segments, in LRU order (eldest first). Guarded by this.
+	 */
+	private final LinkedHashMap<String, Entry> _window = new LinkedHashMap<>();
+	private final LinkedHashMap<String, Entry> _probation = new LinkedHashMap<>();
+	private final LinkedHashMap<String, Entry> _protected = new LinkedHashMap<>();
+	private final List<LinkedHashMap<String, Entry>> _segments = List.of(this._window, this._probation, this._protected);
+
+	/**
+	 * Number of invalidations so far, and the number at the last invalidation of the keys of each slot,
+	 * by key hash. Reads started before the last invalidation of their key do not cache their value,
+	 * which a write may have replaced meanwhile. Keys sharing a slot only skip caching more often.
+	 * Guarded by this.
+	 */
+	private long _epoch;
+	private final long[] _invalidations;
+
+	/**
+	 * Approximate access frequencies. Guarded by this.
+	 */
+	private final FrequencySketch _sketch;
+
+	private final LongAdder _hits = new LongAdder();
+	private final LongAdder _misses = new LongAdder();
+	private final LongAdder _bytesSaved = new LongAdder();
+
+	public ReadCache(Mode mode, int capacity)
+	{
+		this._mode = mode;
+		this._windowCapacity = Math.max(1, capacity / 100);
+		this._mainCapacity = Math.max(1, capacity - this._windowCapacity);
+		this._protectedCapacity = this._mainCapacity * 4 / 5;
+		this._sketch = new FrequencySketch(capacity);
+		this._invalidations = new long[Integer.highestOneBit(Math.max(16, capacity) - 1) << 1];
+	}
+
+	public Mode getMode() { return this._mode; }
+
+	/**
+	 * Looks up a key and records the access in the frequency sketch.
+	 * Hits and misses are counted by the caller, since in VALIDATE mode a lookup hit may still turn into a miss.
+	 * @param key
+	 * @return the entry, or null
+	 */
+	public synchronized Entry get(String key)
+	{
+		this._sketch.increment(key.hashCode());
+		Entry entry = this._window.get(key);
+		if (entry != null)
+		{
+			touch(this._window, key, entry);
+			return entry;
+		}
+		entry = this._protected.get(key);
+		if (entry != null)
+		{
+			touch(this._protected, key, entry);
+			return entry;
+		}
+		entry = this._probation.remove(key);
+		if (entry != null)
+		{
+			// promote, demoting the protected LRU if needed
+			this._protected.put(key, entry);
+			if (this._protected.size() > this._protectedCapacity)
+			{
+				Map.Entry<String, Entry> eldest = removeEldest(this._protected);
+				this._probation.put(eldest.getKey(), eldest.getValue());
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * @return the number of invalidations so far, taken by a read when it starts to cache its value
+	 */
+	public synchronized long epoch() { return this._epoch; }
+
+	/**
+	 * Caches the value read at a version, unless a newer version is already cached or the key was
+	 * invalidated since the read started.
+	 * @param key
+	 * @param value
+	 * @param version
+	 * @param expiresAt
+	 * @param epoch the epoch when the read started
+	 */
+	public synchronized void put(String key, byte[] value, int version, long expiresAt, long epoch)
+	{
+		if (this._invalidations[this.slot(key)] > epoch)
+		{
+			return; // a write of the key started after the read, which may have missed it
+		}
+		Entry entry = new Entry(value, version, expiresAt);
+		for (LinkedHashMap<String, Entry> segment : this._segments)
+		{
+			Entry current = segment.get(key);
+			if (current != null)
+			{
+				if (version >= current.version)
+				{
+					segment.put(key, entry);
+				}
+				return;
+			}
+		}
+		this._window.put(key, entry);
+		if (this._window.size() > this._windowCapacity)
+		{
+			this.admit(removeEldest(this._window));
+		}
+	}
+
+	/**
+	 * Drops a key, e.g. because this coordinator writes it.
+	 * @param key
+	 */
+	public synchronized void invalidate(String key)
+	{
+		this._invalidations[this.slot(key)] = ++this._epoch;
+		for (LinkedHashMap<String, Entry> segment : this._segments)
+		{
+			if (segment.remove(key) != null)
+			{
+				return;
+			}
+		}
+	}
+
+	public void recordHit(int bytesSaved)
+	{
+		this._hits.increment();
+		this._bytesSaved.add(bytesSaved);
+	}
+
+	public void recordMiss() { this._misses.increment(); }
+
+	public long getHits() { return this._hits.sum(); }
+
+	public long getMisses() { return this._misses.sum(); }
+
+	/**
+	 * @return value bytes that did not travel from the replicas thanks to hits
+	 */
+	public long getBytesSaved() { return this._bytesSaved.sum(); }
+
+	public double getHitRatio()
+	{
+		long hits = this.getHits();
+		long total = hits + this.getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public synchronized int size()
+	{
+		return this._window.size() + this._probation.size() + this._protected.size();
+	}
+
+	/**
+	 * TinyLFU admission of a window victim into the main segments.
+	 */
+	private void admit(Map.Entry<String, Entry> candidate)
+	{
+		if (this._probation.size() + this._protected.size() < this._mainCapacity)
+		{
+			this._probation.put(candidate.getKey(), candidate.getValue());
+			return;
+		}
+		Map.Entry<String, Entry> victim = this._probation.isEmpty() ? null : this._probation.entrySet().iterator().next();
+		if (victim == null)
+		{
+			return;
+		}
+		if (this._sketch.frequency(candidate.getKey().hashCode()) > this._sketch.frequency(victim.getKey().hashCode()))
+		{
+			this._probation.remove(victim.getKey());
+			this._probation.put(candidate.getKey(), candidate.getValue());
+		}
+	}
+
+	private int slot(String key)
+	{
+		int h = key.hashCode() * 0x9E3779B1;
+		return (h ^ (h >>> 16)) & (this._invalidations.length - 1);
+	}
+
+	private static void touch(LinkedHashMap<String, Entry> segment, String key, Entry entry)
+	{
+		segment.remove(key);
+		segment.put(key, entry);
+	}
+
+	private static Map.Entry<String, Entry> removeEldest(LinkedHashMap<String, Entry> segment)
+	{
+		Iterator<Map.Entry<String, Entry>> it = segment.entrySet().iterator();
+		Map.Entry<String, Entry> eldest = it.next();
+		Map.Entry<String, Entry> copy = new AbstractMap.SimpleImmutableEntry<>(eldest);
+		it.remove();
+		return copy;
+	}
+
+	/**
+	 * Count-min sketch with four rows of counters saturating at 15.
+	 * All counters are halved every 10 * capacity increments, so old popularity fades.
+	 */
+	static class FrequencySketch
+	{
+		private static final int ROWS = 4;
+		private static final int MAX_COUNT = 15;
+		private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+		private final byte[][] _counters;
+		private final int _mask;
+		private final int _sampleSize;
+		private int _additions;
+
+		FrequencySketch(int capacity)
+		{
+			int width = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+			this._counters = new byte[ROWS][width];
+			this._mask = width - 1;
+			this._sampleSize = 10 * Math.max(16, capacity);
+		}
+
+		void increment(int hash)
+		{
+			for (int row = 0; row < ROWS; row++)
+			{
+				int index = this.index(hash, row);
+				if (this._counters[row][index] < MAX_COUNT)
+				{
+					this._counters[row][index]++;
+				}
+			}
+			if (++this._additions >= this._sampleSize)
+			{
+				this.reset();
+			}
+		}
+
+		int frequency(int hash)
+		{
+			int min = MAX_COUNT;
+			for (int row = 0; row < ROWS; row++)
+			{
+				min = Math.min(min, this._counters[row][this.index(hash, row)]);
+			}
+			return min;
+		}
+
+		private int index(int hash, int row)
+		{
+			int h = (hash ^ SEEDS[row]) * 0x9E3779B1;
+			return (h ^ (h >>> 16)) & this._mask;
+		}
+
+		private void reset()
+		{
+			for (byte[] row : this._counters)
+			{
+				for (int i = 0; i < row.length; i++)
+				{
+					row[i] >>= 1;
+				}
+			}
+			this._additions /= 2;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * ReadRepair.java
+ * Asynchronous read repair. Quorum reads report the replicas that answered with an older version;
+ * the findings are queued per replica, with one entry per key holding the newest version seen,
+ * and sent every Config.READ_REPAIR_INTERVAL_MS as BATCH_PUT requests, one keyspace per request, off the read path.
+ * Only a Config.READ_REPAIR_CHANCE fraction of the findings is kept, and at most
+ * Config.READ_REPAIR_PER_SECOND new keys are queued per second. Findings of a key already queued only
+ * update its entry and are not charged to that rate, so hot keys cannot flood the replicas nor crowd out
+ * the repairs of other keys.
+ */
+package main.java.io.kvstore.coordinator;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.Keyspace;
+import main.java.io.kvstore.store.StoreClient;
+import main.java.io.kvstore.store.StoreMessage;
+import main.java.io.kvstore.utils.Clock;
+import main.java.io.kvstore.utils.RateLimiter;
+import main.java.io.kvstore.utils.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ReadRepair
+{
+	/**
+	 * A pending repair of one key on one replica.
+	 */
+	private static class Repair
+	{
+		final int keyspace;
+		final byte[] key;
+		final byte[] value;
+		final int version;
+		final long expiresAt;
+		Repair(int keyspace, byte[] key, byte[] value, int version, long expiresAt)
+		{
+			this.keyspace = keyspace;
+			this.key = key;
+			this.value = value;
+			this.version = version;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final StoreClient _client;
+
+	/**
+	 * Pending repairs of each replica, by keyspace number and key. Each map is guarded by itself.
+	 */
+	private final ConcurrentHashMap<Node, LinkedHashMap<String, Repair>> _pending = new ConcurrentHashMap<>();
+
+	private final RateLimiter _limiter = new RateLimiter(Config.READ_REPAIR_PER_SECOND);
+
+	private final ScheduledExecutorService _executor = Clock.newScheduledExecutor();
+
+	private final LongAdder _findings = new LongAdder();
+	private final LongAdder _skipped = new LongAdder();
+	private final LongAdder _merged = new LongAdder();
+	private final LongAdder _repaired = new LongAdder();
+	private final LongAdder _batches = new LongAdder();
+
+	public ReadRepair(StoreClient client)
+	{
+		this._client = client;
+		this._executor.scheduleWithFixedDelay(this::flush, Config.READ_REPAIR_INTERVAL_MS,
+				Config.READ_REPAIR_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reports a replica that answered a read with an older version than the latest one.
+	 * @param node the stale replica
+	 * @param keyspace
+	 * @param key
+	 * @param value the latest value
+	 * @param version the latest version
+	 * @param expiresAt expiry time of the latest value, 0 if it does not expire
+	 */
+	public void stale(Node node, Keyspace keyspace, byte[] key, byte[] value, int version, long expiresAt)
+	{
+		this._findings.increment();
+		if (Clock.random().nextDouble() >= Config.READ_REPAIR_CHANCE)
+		{
+			this._skipped.increment();
+			return;
+		}
+		LinkedHashMap<String, Repair> pending = this._pending.computeIfAbsent(node, n -> new LinkedHashMap<>());
+		synchronized (pending) {
+			String keyString = keyspace.getId() + "/" + Utils.hexString(key);
+			Repair current = pending.get(keyString);
+			if (current != null)
+			{
+				this._merged.increment();
+				if (current.version >= version)
+				{
+					return;
+				}
+			}
+			else if (pending.size() >= Config.READ_REPAIR_QUEUE_MAX || !this._limiter.tryAcquire(1))
+			{
+				this._skipped.increment();
+				return;
+			}
+			pending.put(keyString, new Repair(keyspace.getId(), key, value, version, expiresAt));
+		}
+	}
+
+	/**
+	 * @return stale replicas reported by reads
+	 */
+	public long getFindings() { return this._findings.sum(); }
+
+	/**
+	 * @return findings dropped by the repair chance, the rate limit or a full queue
+	 */
+	public long getSkipped() { return this._skipped.sum(); }
+
+	/**
+	 * @return findings merged with a pending repair of the same key
+	 */
+	public long getMerged() { return this._merged.sum(); }
+
+	public long getRepaired() { return this._repaired.sum(); }
+
+	public long getBatches() { return this._batches.sum(); }
+
+	public int getQueued()
+	{
+		int queued = 0;
+		for (LinkedHashMap<String, Repair> pending : this._pending.values())
+		{
+			synchronized (pending) {
+				queued += pending.size();
+			}
+		}
+		return queued;
+	}
+
+	/**
+	 * Sends the pending repairs, as many of a keyspace per request as fit in one datagram.
+	 */
+	private void flush()
+	{
+		for (Node node : this._pending.keySet())
+		{
+			LinkedHashMap<String, Repair> pending = this._pending.get(node);
+			ArrayList<Repair> repairs = new ArrayList<>();
+			synchronized (pending) {
+				repairs.addAll(pending.values());
+				pending.clear();
+			}
+			repairs.sort(Comparator.comparingInt(repair -> repair.keyspace)); // stable: keeps the order within a keyspace
+			ByteBuffer entries = ByteBuffer.allocate(StoreMessage.VALUE_MAX_BYTES);
+			int count = 0;
+			int keyspace = 0;
+			for (Repair repair : repairs)
+			{
+				if (StoreMessage.batchEntryBytes(repair.value) > entries.capacity())
+				{
+					// too large for a batch entry: a PUT of its own
+					this._client.send(node.getAddress(), node.getStorePort(), StoreMessage.withKeyspace(StoreMessage.createPutRequest(
+							StoreMessage.createId(), repair.key, repair.value, repair.version, repair.expiresAt), repair.keyspace),
+							res -> this._repaired.increment(), req -> {});
+					continue;
+				}
+				if (count > 0 && (repair.keyspace != keyspace || StoreMessage.batchEntryBytes(repair.value) > entries.remaining()))
+				{
+					this.send(node, keyspace, entries, count);
+					entries.clear();
+					count = 0;
+				}
+				keyspace = repair.keyspace;
+				StoreMessage.putBatchEntry(entries, repair.key, repair.value, repair.version, repair.expiresAt);
+				count++;
+			}
+			if (count > 0)
+			{
+				this.send(node, keyspace, entries, count);
+			}
+		}
+	}
+
+	private void send(Node node, int keyspace, ByteBuffer entries, int count)
+	{
+		byte[] value = new byte[entries.position()];
+		System.arraycopy(entries.array(), 0, value, 0, value.length);
+		this._client.send(node.getAddress(), node.getStorePort(),
+				StoreMessage.withKeyspace(StoreMessage.createBatchPutRequest(value), keyspace),
+				res -> this._repaired.add(count), req -> {});
+		this._batches.increment();
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * Rebalancer.java
+ * Streams key ranges to their new replicas when the ring changes.
+ * Runs in the background at Config.STREAM_BYTES_PER_SECOND while the node keeps serving traffic.
+ */
+package main.java.io.kvstore.coordinator;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.Keyspace;
+import main.java.io.kvstore.log.EventLog;
+import main.java.io.kvstore.log.LogSite;
+import main.java.io.kvstore.store.Store;
+import main.java.io.kvstore.store.StoreClient;
+import main.java.io.kvstore.store.StoreMessage;
+import main.java.io.kvstore.utils.Clock;
+import main.java.io.kvstore.utils.RateLimiter;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+public class Rebalancer implements MembershipListener
+{
+	private static final LogSite STREAMED = LogSite.info("rebalance.streamed", "keys", "bytes", "ms");
+
+	/**
+	 * The node whose store is streamed.
+	 */
+	private final Node _self;
+
+	/**
+	 * The local store.
+	 */
+	private final Store _store;
+
+	/**
+	 * The client used to send the streamed writes.
+	 */
+	private final StoreClient _client;
+
+	/**
+	 * Streams run one after the other, in the order of the ring changes.
+	 */
+	private final ExecutorService _executor = Clock.newExecutor();
+
+	/**
+	 * Bandwidth limit of the streams, in bytes.
+	 */
+	private final RateLimiter _limiter;
+
+	public Rebalancer(Node self, Store store, StoreClient client)
+	{
+		this(self, store, client, Config.STREAM_BYTES_PER_SECOND);
+	}
+
+	public Rebalancer(Node self, Store store, StoreClient client, long bytesPerSecond)
+	{
+		this._self = self;
+		this._store = store;
+		this._client = client;
+		this._limiter = new RateLimiter(bytesPerSecond);
+	}
+
+	@Override
+	public void onRingChanged(Ring previous, Ring current)
+	{
+		this._executor.execute(() -> this.stream(previous, current));
+	}
+
+	/**
+	 * Sends every local key and counter of every keyspace to the replicas it gained between the two rings.
+	 * For each key only one of its previous replicas streams it, so new replicas receive it once.
+	 * @param previous
+	 * @param current
+	 */
+	private void stream(Ring previous, Ring current)
+	{
+		long start = Clock.currentTimeMillis();
+		long[] sent = new long[2]; // keys, bytes
+		for (Keyspace keyspace : Keyspace.all())
+		{
+			int id = keyspace.getId();
+			this._store.forEach(keyspace, (key, value, version, expiresAt) -> this.stream(keyspace, key, previous, current,
+					() -> StoreMessage.withKeyspace(StoreMessage.createPutRequest(StoreMessage.createId(), key, value, version, expiresAt), id),
+					sent));
+			this._store.forEachCounter(keyspace, (key, counter) -> this.stream(keyspace, key, previous, current,
+					() -> StoreMessage.withKeyspace(StoreMessage.createCounterMergeRequest(key, counter.toBytes()), id), sent));
+		}
+		if (sent[0] > 0)
+		{
+			EventLog.event(STREAMED, sent[0], sent[1], Clock.currentTimeMillis() - start);
+		}
+	}
+
+	/**
+	 * Sends one key to its new replicas if this node is its sender.
+	 * @param keyspace
+	 * @param key
+	 * @param previous
+	 * @param current
+	 * @param request creates the request writing the key
+	 * @param sent keys and bytes sent so far
+	 */
+	private void stream(Keyspace keyspace, byte[] key, Ring previous, Ring current, Supplier<byte[]> request, long[] sent)
+	{
+		List<Node> before = previous.getReplicas(key, keyspace.getReplicationFactor());
+		if (!this._self.equals(sender(before, current)))
+		{
+			return;
+		}
+		for (Node target : current.getReplicas(key, keyspace.getReplicationFactor()))
+		{
+			if (before.contains(target))
+			{
+				continue;
+			}
+			byte[] bytes = request.get();
+			this._limiter.acquire(bytes.length);
+			// failed writes are left to anti-entropy and read repair
+			this._client.send(target.getAddress(), target.getStorePort(), bytes, res -> target.responded(), req -> {});
+			sent[0]++;
+			sent[1] += bytes.length;
+		}
+	}
+
+	/**
+	 * The previous replica responsible for streaming a key: the first one still in the ring,
+	 * or the first one at all when every previous replica left (e.g. this node is leaving).
+	 */
+	private static Node sender(List<Node> before, Ring current)
+	{
+		for (Node node : before)
+		{
+			if (current.contains(node))
+			{
+				return node;
+			}
+		}
+		return before.isEmpty() ? null : before.get(0);
+	}
+}
@@ -0,0 +1,195 @@
+/**
+ * RequestTrace.java
+ * Timeline of one client request at its coordinator. Every key request gets a trace holding its arrival
+ * time, from which its latency is measured. Sampled traces also record the time of each phase of the
+ * request, so that a slow request shows where its time went.
+ */
+package main.java.io.kvstore.coordinator;
+
+import main.java.io.kvstore.utils.Clock;
+import main.java.io.kvstore.utils.Message;
+import main.java.io.kvstore.utils.Utils;
+
+import java.net.SocketAddress;
+import java.time.Instant;
+import java.util.Arrays;
+
+public class RequestTrace
+{
+	public enum Phase
+	{
+		/**
+		 * Taken by an executor thread. The time before it is spent queueing.
+		 */
+		DISPATCHED,
+
+		/**
+		 * Replicas selected on the ring; the first replica request is about to be sent.
+		 */
+		FAN_OUT,
+
+		/**
+		 * A replica answered.
+		 */
+		ACK,
+
+		/**
+		 * A replica did not answer after the retransmissions of the store client.
+		 */
+		FAILED,
+
+		/**
+		 * The outcome of the request is known, from a quorum of the replicas or their failures.
+		 */
+		QUORUM,
+
+		/**
+		 * The response is sent.
+		 */
+		REPLIED
+	}
+
+	private final Message.Command _command;
+
+	/**
+	 * Arrival time of the request (Clock.nanoTime), before it was queued for an executor thread.
+	 */
+	private final long _received;
+
+	private final boolean _sampled;
+
+	/**
+	 * Phases of a sampled trace, in the order they were recorded, with their time (Clock.nanoTime)
+	 * and their replica, if any.
+	 */
+	private Phase[] _phases;
+	private long[] _times;
+	private Node[] _nodes;
+	private int _events;
+
+	private long _duration;
+	private long _finishedMs;
+	private SocketAddress _client;
+	private byte[] _id;
+
+	/**
+	 * @param command
+	 * @param received arrival time of the request (Clock.nanoTime)
+	 * @param sampled whether to record the phases of the request
+	 */
+	public RequestTrace(Message.Command command, long received, boolean sampled)
+	{
+		this._command = command;
+		this._received = received;
+		this._sampled = sampled;
+		if (sampled)
+		{
+			this._phases = new Phase[8];
+			this._times = new long[8];
+			this._nodes = new Node[8];
+		}
+	}
+
+	/**
+	 * Records that the request reached a phase now. Does nothing if the trace is not sampled.
+	 * @param phase
+	 */
+	public void mark(Phase phase)
+	{
+		if (this._sampled)
+		{
+			this.add(phase, null, Clock.nanoTime());
+		}
+	}
+
+	/**
+	 * Records that a replica answered or failed now. Does nothing if the trace is not sampled.
+	 * @param phase ACK or FAILED
+	 * @param node
+	 */
+	public void mark(Phase phase, Node node)
+	{
+		if (this._sampled)
+		{
+			this.add(phase, node, Clock.nanoTime());
+		}
+	}
+
+	private synchronized void add(Phase phase, Node node, long time)
+	{
+		if (this._events == this._phases.length)
+		{
+			this._phases = Arrays.copyOf(this._phases, this._events * 2);
+			this._times = Arrays.copyOf(this._times, this._events * 2);
+			this._nodes = Arrays.copyOf(this._nodes, this._events * 2);
+		}
+		this._phases[this._events] = phase;
+		this._times[this._events] = time;
+		this._nodes[this._events] = node;
+		this._events++;
+	}
+
+	/**
+	 * Ends the trace when the request is answered.
+	 * @param now Clock.nanoTime
+	 * @return the latency of the request in nanoseconds
+	 */
+	long finish(long now)
+	{
+		this._duration = now - this._received;
+		return this._duration;
+	}
+
+	/**
+	 * Identifies the request of a trace going to the slow log.
+	 * @param client
+	 * @param id
+	 */
+	void identify(SocketAddress client, byte[] id)
+	{
+		this._client = client;
+		this._id = id;
+		this._finishedMs = Clock.currentTimeMillis();
+	}
+
+	public Message.Command getCommand() { return this._command; }
+
+	public boolean isSampled() { return this._sampled; }
+
+	/**
+	 * @return the arrival time of the request (Clock.nanoTime)
+	 */
+	public long getReceived() { return this._received; }
+
+	/**
+	 * @return nanoseconds from the arrival of the request to its response, 0 before the response
+	 */
+	public long getDuration() { return this._duration; }
+
+	/**
+	 * One line: the time of the response, the request, its latency and, if sampled, the time of each
+	 * phase in milliseconds since the arrival of the request, e.g.
+	 * 2026-01-01T00:00:00Z GET 12.500ms /127.0.0.1:40000 0A1B... DISPATCHED+0.020 FAN_OUT+0.041 ACK(127.0.0.1:55556/55561)+1.210 ...
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder line = new StringBuilder();
+		line.append(Instant.ofEpochMilli(this._finishedMs)).append(' ').append(this._command)
+				.append(String.format(" %.3fms", this._duration / 1e6));
+		if (this._client != null)
+		{
+			line.append(' ').append(this._client).append(' ').append(Utils.hexString(this._id));
+		}
+		for (int i = 0; i < this._events; i++)
+		{
+			line.append(' ').append(this._phases[i]);
+			if (this._nodes[i] != null)
+			{
+				line.append('(').append(this._nodes[i]).append(')');
+			}
+			line.append(String.format("+%.3f", (this._times[i] - this._received) / 1e6));
+		}
+		return line.toString();
+	}
+}
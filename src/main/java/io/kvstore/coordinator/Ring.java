@@ -0,0 +1,147 @@
+/**
+ * Ring.java
+ * Immutable consistent-hashing ring. Every node owns Config.VIRTUAL_NODES tokens,
+ * and a key is placed on the first distinct nodes found walking clockwise from its token.
+ * Adding or removing a node therefore only moves the ranges next to its tokens.
+ */
+package main.java.io.kvstore.coordinator;
+
+import main.java.io.kvstore.Config;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Predicate;
+
+public class Ring
+{
+	/**
+	 * Sorted tokens.
+	 */
+	private final long[] _tokens;
+
+	/**
+	 * Owner of each token.
+	 */
+	private final Node[] _owners;
+
+	/**
+	 * Distinct nodes, in insertion order.
+	 */
+	private final List<Node> _nodes;
+
+	/**
+	 * Maps keys to tokens.
+	 */
+	private final Partitioner _partitioner;
+
+	public Ring(Collection<Node> nodes, Partitioner partitioner)
+	{
+		this(nodes, partitioner, Config.VIRTUAL_NODES);
+	}
+
+	public Ring(Collection<Node> nodes, Partitioner partitioner, int virtualNodes)
+	{
+		this._nodes = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(nodes)));
+		this._partitioner = partitioner;
+
+		int count = this._nodes.size() * virtualNodes;
+		long[] tokens = new long[count];
+		Node[] owners = new Node[count];
+		Integer[] order = new Integer[count];
+		int i = 0;
+		for (Node node : this._nodes)
+		{
+			for (int v = 0; v < virtualNodes; v++)
+			{
+				tokens[i] = partitioner.token(tokenSeed(node, v));
+				owners[i] = node;
+				order[i] = i;
+				i++;
+			}
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(tokens[a], tokens[b]));
+		this._tokens = new long[count];
+		this._owners = new Node[count];
+		for (i = 0; i < count; i++)
+		{
+			this._tokens[i] = tokens[order[i]];
+			this._owners[i] = owners[order[i]];
+		}
+	}
+
+	/**
+	 * Bytes hashed to get the token of a virtual node.
+	 */
+	private static byte[] tokenSeed(Node node, int virtualNode)
+	{
+		byte[] addr = node.getAddress().getAddress();
+		return ByteBuffer.allocate(addr.length + 8)
+				.put(addr)
+				.putInt(node.getStorePort())
+				.putInt(virtualNode)
+				.array();
+	}
+
+	/**
+	 * @return the distinct nodes of the ring
+	 */
+	public List<Node> getNodes() { return this._nodes; }
+
+	public boolean contains(Node node) { return this._nodes.contains(node); }
+
+	public Partitioner getPartitioner() { return this._partitioner; }
+
+	/**
+	 * Walks the ring clockwise from the key's token and returns up to n distinct nodes accepted by the filter.
+	 * Each node is visited at most once.
+	 * @param key
+	 * @param n
+	 * @param filter
+	 * @return the nodes in ring order
+	 */
+	public List<Node> walk(byte[] key, int n, Predicate<Node> filter)
+	{
+		ArrayList<Node> result = new ArrayList<>(Math.max(n, 0));
+		int count = this._tokens.length;
+		if (n < 1 || count == 0)
+		{
+			return result;
+		}
+		int start = Arrays.binarySearch(this._tokens, this._partitioner.token(key));
+		if (start < 0)
+		{
+			start = -start - 1; // first token greater than the key's
+		}
+		ArrayList<Node> seen = new ArrayList<>();
+		for (int i = 0; i < count && result.size() < n && seen.size() < this._nodes.size(); i++)
+		{
+			Node node = this._owners[(start + i) % count];
+			if (seen.contains(node))
+			{
+				continue;
+			}
+			seen.add(node);
+			if (filter.test(node))
+			{
+				result.add(node);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the preference list of the key: its first n distinct nodes, regardless of availability.
+	 * @param key
+	 * @param n
+	 * @return
+	 */
+	public List<Node> getReplicas(byte[] key, int n)
+	{
+		return this.walk(key, n, node -> true);
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * SlowLog.java
+ * The latest client requests slower than Config.SLOW_REQUEST_MS, in a ring buffer that overwrites
+ * the oldest ones. Sampled requests are logged with their phases.
+ */
+package main.java.io.kvstore.coordinator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class SlowLog
+{
+	private final AtomicReferenceArray<RequestTrace> _traces;
+
+	/**
+	 * Number of traces logged so far; the next one goes to slot _logged % capacity.
+	 */
+	private final AtomicLong _logged = new AtomicLong();
+
+	/**
+	 * @param capacity number of traces kept
+	 */
+	public SlowLog(int capacity)
+	{
+		this._traces = new AtomicReferenceArray<RequestTrace>(capacity);
+	}
+
+	/**
+	 * Logs a finished trace, overwriting the oldest one if the log is full.
+	 * @param trace
+	 */
+	public void add(RequestTrace trace)
+	{
+		long slot = this._logged.getAndIncrement();
+		this._traces.set((int) (slot % this._traces.length()), trace);
+	}
+
+	/**
+	 * @return the traces kept, newest first
+	 */
+	public List<RequestTrace> getTraces()
+	{
+		long logged = this._logged.get();
+		int capacity = this._traces.length();
+		List<RequestTrace> traces = new ArrayList<RequestTrace>();
+		for (long slot = logged - 1; slot >= 0 && slot >= logged - capacity; slot--)
+		{
+			RequestTrace trace = this._traces.get((int) (slot % capacity));
+			if (trace != null) // a concurrent add may not have filled its slot yet
+			{
+				traces.add(trace);
+			}
+		}
+		return traces;
+	}
+
+	/**
+	 * @return the number of requests logged since the start, including the overwritten ones
+	 */
+	public long getLogged() { return this._logged.get(); }
+
+	/**
+	 * @return the traces kept, newest first, one per line
+	 */
+	public String dump()
+	{
+		StringBuilder out = new StringBuilder();
+		for (RequestTrace trace : this.getTraces())
+		{
+			out.append(trace).append('\n');
+		}
+		return out.toString();
+	}
+}
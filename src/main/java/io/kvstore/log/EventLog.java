@@ -0,0 +1,271 @@
+/**
+ * EventLog.java
+ * Asynchronous event log of the process. Threads logging an event claim a slot of a bounded ring with
+ * one compare-and-set and fill it with references to the event's fields; a background writer formats
+ * the events in logfmt (time, level, site, then key=value fields) and writes them in batches to stdout.
+ * Logging never blocks and formats nothing on the calling thread: events over the rate of their site are
+ * counted instead of written, and events finding the ring full are dropped and counted.
+ */
+package main.java.io.kvstore.log;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.utils.Clock;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public final class EventLog
+{
+	/**
+	 * A slot of the ring. Its fields are written by the thread that claimed it, then published by
+	 * setting sequence to the claimed sequence + 1; the writer clears them before freeing the slot.
+	 */
+	private static final class Slot
+	{
+		volatile long sequence;
+		LogSite site;
+		long timeMs;
+		String thread;
+		Throwable error;
+		Object a;
+		Object b;
+		Object c;
+	}
+
+	private static final Object NONE = new Object();
+
+	private static final EventLog INSTANCE = new EventLog(Config.EVENT_LOG_CAPACITY);
+
+	private final Slot[] _slots;
+	private final int _mask;
+
+	/**
+	 * Next sequence to claim, by the logging threads.
+	 */
+	private final AtomicLong _head = new AtomicLong();
+
+	/**
+	 * Next sequence to write, by the writer; the slots before it are free.
+	 */
+	private final AtomicLong _tail = new AtomicLong();
+
+	private final LongAdder _dropped = new LongAdder();
+	private final LongAdder _written = new LongAdder();
+
+	private volatile Writer _out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out),
+			StandardCharsets.UTF_8), 1 << 16);
+
+	private EventLog(int capacity)
+	{
+		if (Integer.bitCount(capacity) != 1)
+		{
+			throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+		}
+		this._slots = new Slot[capacity];
+		for (int i = 0; i < capacity; i++)
+		{
+			this._slots[i] = new Slot();
+		}
+		this._mask = capacity - 1;
+		Thread writer = new Thread(this::write, "event-log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "event-log-flush"));
+	}
+
+	/**
+	 * Logs an event of a site, with its fields in the order of the keys of the site. A Throwable passed
+	 * first is the error of the event, written with its stack trace at level ERROR. The writer formats the
+	 * fields later, on its own thread, so they must not change once logged.
+	 * @param site
+	 */
+	public static void event(LogSite site) { INSTANCE.log(site, null, NONE, NONE, NONE); }
+
+	public static void event(LogSite site, Throwable error) { INSTANCE.log(site, error, NONE, NONE, NONE); }
+
+	public static void event(LogSite site, Object a) { INSTANCE.log(site, null, a, NONE, NONE); }
+
+	public static void event(LogSite site, Throwable error, Object a) { INSTANCE.log(site, error, a, NONE, NONE); }
+
+	public static void event(LogSite site, Object a, Object b) { INSTANCE.log(site, null, a, b, NONE); }
+
+	public static void event(LogSite site, Throwable error, Object a, Object b) { INSTANCE.log(site, error, a, b, NONE); }
+
+	public static void event(LogSite site, Object a, Object b, Object c) { INSTANCE.log(site, null, a, b, c); }
+
+	/**
+	 * Writes the events to a stream instead of stdout, e.g. a file, or nowhere in benchmarks.
+	 * @param out
+	 */
+	public static void redirect(OutputStream out)
+	{
+		INSTANCE._out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	/**
+	 * @return events dropped because the ring was full
+	 */
+	public static long getDropped() { return INSTANCE._dropped.sum(); }
+
+	/**
+	 * @return events written so far
+	 */
+	public static long getWritten() { return INSTANCE._written.sum(); }
+
+	private void log(LogSite site, Throwable error, Object a, Object b, Object c)
+	{
+		if (!site.admit())
+		{
+			return;
+		}
+		long sequence;
+		do {
+			sequence = this._head.get();
+			if (sequence - this._tail.get() >= this._slots.length)
+			{
+				this._dropped.increment();
+				return;
+			}
+		} while (!this._head.compareAndSet(sequence, sequence + 1));
+		Slot slot = this._slots[(int) sequence & this._mask];
+		slot.site = site;
+		slot.timeMs = Clock.currentTimeMillis();
+		slot.thread = Thread.currentThread().getName();
+		slot.error = error;
+		slot.a = a;
+		slot.b = b;
+		slot.c = c;
+		slot.sequence = sequence + 1;
+	}
+
+	/**
+	 * Loop of the writer thread.
+	 */
+	private void write()
+	{
+		while (true)
+		{
+			if (this.drain() == 0)
+			{
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Config.EVENT_LOG_IDLE_MS));
+			}
+		}
+	}
+
+	/**
+	 * Writes the events published so far, in the order they were claimed.
+	 * @return the number of events written
+	 */
+	private synchronized int drain()
+	{
+		Writer out = this._out;
+		StringBuilder line = new StringBuilder(256);
+		int count = 0;
+		long tail = this._tail.get();
+		while (true)
+		{
+			Slot slot = this._slots[(int) tail & this._mask];
+			if (slot.sequence != tail + 1)
+			{
+				break; // not published yet
+			}
+			line.setLength(0);
+			format(line, slot);
+			slot.site = null;
+			slot.thread = null;
+			slot.error = null;
+			slot.a = slot.b = slot.c = null;
+			this._tail.set(++tail);
+			try {
+				out.write(line.toString());
+			} catch (IOException e) {
+				// nowhere left to report it
+			}
+			count++;
+		}
+		if (count > 0)
+		{
+			this._written.add(count);
+			try {
+				out.flush();
+			} catch (IOException e) {
+				// nowhere left to report it
+			}
+		}
+		return count;
+	}
+
+	private static void format(StringBuilder line, Slot slot)
+	{
+		LogSite site = slot.site;
+		line.append(Instant.ofEpochMilli(slot.timeMs)).append(' ').append(site.getLevel()).append(' ').append(site.getName());
+		field(line, "thread", slot.thread);
+		String[] keys = site.getKeys();
+		Object[] values = {slot.a, slot.b, slot.c};
+		for (int i = 0; i < values.length && values[i] != NONE; i++)
+		{
+			field(line, i < keys.length ? keys[i] : "field" + i, values[i]);
+		}
+		if (slot.error != null)
+		{
+			field(line, "error", slot.error);
+		}
+		long suppressed = site.takeSuppressed();
+		if (suppressed > 0)
+		{
+			field(line, "suppressed", suppressed);
+		}
+		line.append('\n');
+		if (slot.error != null && site.getLevel() == LogSite.Level.ERROR)
+		{
+			StringWriter trace = new StringWriter();
+			slot.error.printStackTrace(new PrintWriter(trace));
+			line.append(trace);
+		}
+	}
+
+	/**
+	 * Appends key=value, quoting values with spaces, quotes or line breaks.
+	 */
+	private static void field(StringBuilder line, String key, Object value)
+	{
+		String text = String.valueOf(value);
+		line.append(' ').append(key).append('=');
+		if (!text.isEmpty() && text.indexOf(' ') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0)
+		{
+			line.append(text);
+			return;
+		}
+		line.append('"');
+		for (int i = 0; i < text.length(); i++)
+		{
+			char ch = text.charAt(i);
+			if (ch == '"' || ch == '\\')
+			{
+				line.append('\\').append(ch);
+			}
+			else if (ch == '\n')
+			{
+				line.append("\\n");
+			}
+			else
+			{
+				line.append(ch);
+			}
+		}
+		line.append('"');
+	}
+}
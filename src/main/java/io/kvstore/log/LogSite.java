@@ -0,0 +1,134 @@
+/**
+ * LogSite.java
+ * A place in the code that logs an event: its level, its name, the keys of its fields, and how often
+ * it may write. Sites are static constants of the classes logging them; checking the rate limit and the
+ * sampling is lock-free and allocates nothing, so a site can be hit from every request thread at once.
+ */
+package main.java.io.kvstore.log;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.utils.Clock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class LogSite
+{
+	public enum Level
+	{
+		INFO,
+		WARN,
+		/**
+		 * Unexpected failures, written with their stack trace.
+		 */
+		ERROR
+	}
+
+	private final Level _level;
+	private final String _name;
+	private final String[] _keys;
+
+	/**
+	 * Time it takes to earn the right to write one event, and the burst of events saved up (1 second).
+	 */
+	private volatile long _nanosPerEvent;
+	private volatile long _burstNanos;
+
+	/**
+	 * Only 1 in _every events that pass the rate limit is written.
+	 */
+	private volatile int _every = 1;
+
+	private final AtomicLong _nextFreeNanos = new AtomicLong(Long.MIN_VALUE / 2);
+	private final AtomicLong _hits = new AtomicLong();
+
+	/**
+	 * Events not written since the last one written.
+	 */
+	private final AtomicLong _suppressed = new AtomicLong();
+
+	private LogSite(Level level, String name, String[] keys)
+	{
+		this._level = level;
+		this._name = name;
+		this._keys = keys;
+		this.limit(Config.EVENT_LOG_EVENTS_PER_SECOND);
+	}
+
+	/**
+	 * @param name dotted name of the event, e.g. "hints.replayed"
+	 * @param keys names of the fields of the event, in the order they are logged
+	 */
+	public static LogSite info(String name, String... keys) { return new LogSite(Level.INFO, name, keys); }
+
+	public static LogSite warn(String name, String... keys) { return new LogSite(Level.WARN, name, keys); }
+
+	public static LogSite error(String name, String... keys) { return new LogSite(Level.ERROR, name, keys); }
+
+	/**
+	 * Sets how many events per second the site writes at most, instead of Config.EVENT_LOG_EVENTS_PER_SECOND.
+	 * @param eventsPerSecond
+	 * @return this site
+	 */
+	public LogSite limit(double eventsPerSecond)
+	{
+		this._nanosPerEvent = (long) (TimeUnit.SECONDS.toNanos(1) / eventsPerSecond);
+		this._burstNanos = TimeUnit.SECONDS.toNanos(1);
+		return this;
+	}
+
+	/**
+	 * Writes only 1 in a number of events, for frequent events whose trend matters more than each one.
+	 * @param every
+	 * @return this site
+	 */
+	public LogSite sample(int every)
+	{
+		this._every = every;
+		return this;
+	}
+
+	public Level getLevel() { return this._level; }
+
+	public String getName() { return this._name; }
+
+	String[] getKeys() { return this._keys; }
+
+	/**
+	 * Decides whether an event of this site is written, counting it as suppressed if not.
+	 * @return true if it should be written
+	 */
+	boolean admit()
+	{
+		int every = this._every;
+		if ((every > 1 && this._hits.getAndIncrement() % every != 0) || !this.acquire())
+		{
+			this._suppressed.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	private boolean acquire()
+	{
+		long now = Clock.nanoTime();
+		while (true)
+		{
+			long next = this._nextFreeNanos.get();
+			long start = Math.max(next, now - this._burstNanos);
+			if (start > now)
+			{
+				return false;
+			}
+			if (this._nextFreeNanos.compareAndSet(next, start + this._nanosPerEvent))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return the events suppressed since the last call, reported with the event being written
+	 */
+	long takeSuppressed() { return this._suppressed.getAndSet(0); }
+}
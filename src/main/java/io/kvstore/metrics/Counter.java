@@ -0,0 +1,18 @@
+/**
+ * Counter.java
+ * Monotonic counter, striped over cells (LongAdder) so that concurrent increments do not contend.
+ */
+package main.java.io.kvstore.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class Counter
+{
+	private final LongAdder _value = new LongAdder();
+
+	public void increment() { this._value.increment(); }
+
+	public void add(long delta) { this._value.add(delta); }
+
+	public long get() { return this._value.sum(); }
+}
@@ -0,0 +1,103 @@
+/**
+ * Histogram.java
+ * Lock-free log-linear histogram of non-negative values, e.g. latencies in nanoseconds.
+ * Each power of two is split into 2^SUB_BITS buckets, so quantiles are within 1/2^SUB_BITS (12.5%)
+ * of the recorded values. Recording is an index computation and one atomic increment, without
+ * allocation; reads scan the buckets and are weakly consistent with concurrent records.
+ */
+package main.java.io.kvstore.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram
+{
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/**
+	 * Values below SUB_BUCKETS have a bucket each, then SUB_BUCKETS per power of two up to 2^63.
+	 */
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+
+	private final LongAdder _sum = new LongAdder();
+
+	/**
+	 * @param value negative values count as 0
+	 */
+	public void record(long value)
+	{
+		value = Math.max(value, 0);
+		this._buckets.getAndIncrement(index(value));
+		this._sum.add(value);
+	}
+
+	public long getCount()
+	{
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			count += this._buckets.get(i);
+		}
+		return count;
+	}
+
+	public long getSum() { return this._sum.sum(); }
+
+	/**
+	 * @param quantile in [0, 1]
+	 * @return the upper bound of the bucket holding the quantile, or NaN if nothing was recorded
+	 */
+	public double getQuantile(double quantile)
+	{
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			counts[i] = this._buckets.get(i);
+			count += counts[i];
+		}
+		if (count == 0)
+		{
+			return Double.NaN;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			rank -= counts[i];
+			if (rank <= 0)
+			{
+				return upperBound(i);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	private static int index(long value)
+	{
+		if (value < SUB_BUCKETS)
+		{
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the highest value of a bucket
+	 */
+	private static double upperBound(int index)
+	{
+		if (index < SUB_BUCKETS)
+		{
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		double width = Math.pow(2, exponent - SUB_BITS);
+		return (SUB_BUCKETS + sub + 1) * width - 1;
+	}
+}
@@ -0,0 +1,231 @@
+/**
+ * Metrics.java
+ * Registry of the metrics of a node, written in the Prometheus text format.
+ * Components get their counters and histograms once, at construction, and update them on the hot path
+ * without touching the registry. Values that components already keep are registered as functions,
+ * read when the metrics are written.
+ * Metrics are grouped in families by name; the series of a family differ by their labels.
+ */
+package main.java.io.kvstore.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+public class Metrics
+{
+	/**
+	 * Series whose labels are only known when the metrics are written, e.g. one per node of the ring.
+	 */
+	public interface Sampler
+	{
+		/**
+		 * @param sink takes the labels (see labels) and the value of each series
+		 */
+		void sample(BiConsumer<String, Double> sink);
+	}
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private static class Family
+	{
+		final String help;
+		final String type;
+
+		/**
+		 * Series by labels: Counter, Histogram, LongSupplier or DoubleSupplier.
+		 */
+		final ConcurrentSkipListMap<String, Object> series = new ConcurrentSkipListMap<>();
+
+		final CopyOnWriteArrayList<Sampler> samplers = new CopyOnWriteArrayList<>();
+
+		Family(String help, String type)
+		{
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private final ConcurrentSkipListMap<String, Family> _families = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Gets or creates a counter.
+	 * @param name ends with _total by convention
+	 * @param help
+	 * @param labels name and value pairs
+	 * @return
+	 */
+	public Counter counter(String name, String help, String... labels)
+	{
+		return (Counter) this.family(name, help, "counter").series.computeIfAbsent(labels(labels), l -> new Counter());
+	}
+
+	/**
+	 * Registers a counter kept by a component.
+	 * @param name
+	 * @param help
+	 * @param value
+	 * @param labels
+	 */
+	public void counter(String name, String help, LongSupplier value, String... labels)
+	{
+		this.family(name, help, "counter").series.put(labels(labels), value);
+	}
+
+	/**
+	 * Registers a gauge, read when the metrics are written.
+	 * @param name
+	 * @param help
+	 * @param value
+	 * @param labels
+	 */
+	public void gauge(String name, String help, DoubleSupplier value, String... labels)
+	{
+		this.family(name, help, "gauge").series.put(labels(labels), value);
+	}
+
+	/**
+	 * Registers gauges whose series are listed when the metrics are written.
+	 * @param name
+	 * @param help
+	 * @param sampler
+	 */
+	public void gauges(String name, String help, Sampler sampler)
+	{
+		this.family(name, help, "gauge").samplers.add(sampler);
+	}
+
+	/**
+	 * Gets or creates a histogram of durations, recorded in nanoseconds and written in seconds as a summary
+	 * with its quantiles.
+	 * @param name ends with _seconds by convention
+	 * @param help
+	 * @param labels
+	 * @return
+	 */
+	public Histogram histogram(String name, String help, String... labels)
+	{
+		return (Histogram) this.family(name, help, "summary").series.computeIfAbsent(labels(labels), l -> new Histogram());
+	}
+
+	private Family family(String name, String help, String type)
+	{
+		Family family = this._families.computeIfAbsent(name, n -> new Family(help, type));
+		if (!family.type.equals(type))
+		{
+			throw new IllegalArgumentException(name + " is a " + family.type + ", not a " + type);
+		}
+		return family;
+	}
+
+	/**
+	 * Formats labels, e.g. labels("command", "GET") is {command="GET"}.
+	 * @param pairs name and value pairs
+	 * @return
+	 */
+	public static String labels(String... pairs)
+	{
+		if (pairs.length == 0)
+		{
+			return "";
+		}
+		StringBuilder labels = new StringBuilder("{");
+		for (int i = 0; i + 1 < pairs.length; i += 2)
+		{
+			if (i > 0)
+			{
+				labels.append(',');
+			}
+			labels.append(pairs[i]).append("=\"")
+					.append(pairs[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+		}
+		return labels.append('}').toString();
+	}
+
+	/**
+	 * @return every metric in the Prometheus text format
+	 */
+	public String toPrometheus()
+	{
+		return this.toPrometheus("");
+	}
+
+	/**
+	 * @param prefix only the families whose name starts with it
+	 * @return the metrics in the Prometheus text format
+	 */
+	public String toPrometheus(String prefix)
+	{
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String, Family> entry : this._families.tailMap(prefix).entrySet())
+		{
+			String name = entry.getKey();
+			if (!name.startsWith(prefix))
+			{
+				break;
+			}
+			Family family = entry.getValue();
+			out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+			for (Map.Entry<String, Object> series : family.series.entrySet())
+			{
+				write(out, name, series.getKey(), series.getValue());
+			}
+			for (Sampler sampler : family.samplers)
+			{
+				sampler.sample((labels, value) -> sample(out, name, labels, value));
+			}
+		}
+		return out.toString();
+	}
+
+	private static void write(StringBuilder out, String name, String labels, Object metric)
+	{
+		if (metric instanceof Counter)
+		{
+			sample(out, name, labels, ((Counter) metric).get());
+		}
+		else if (metric instanceof LongSupplier)
+		{
+			sample(out, name, labels, ((LongSupplier) metric).getAsLong());
+		}
+		else if (metric instanceof DoubleSupplier)
+		{
+			sample(out, name, labels, ((DoubleSupplier) metric).getAsDouble());
+		}
+		else
+		{
+			Histogram histogram = (Histogram) metric;
+			String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+			for (double quantile : QUANTILES)
+			{
+				sample(out, name, prefix + "quantile=\"" + quantile + "\"}", histogram.getQuantile(quantile) / 1e9);
+			}
+			sample(out, name + "_sum", labels, histogram.getSum() / 1e9);
+			sample(out, name + "_count", labels, histogram.getCount());
+		}
+	}
+
+	private static void sample(StringBuilder out, String name, String labels, Number value)
+	{
+		out.append(name).append(labels).append(' ');
+		double d = value.doubleValue();
+		if (value instanceof Long)
+		{
+			out.append(value.longValue());
+		}
+		else if (Double.isInfinite(d))
+		{
+			out.append(d > 0 ? "+Inf" : "-Inf");
+		}
+		else
+		{
+			out.append(d);
+		}
+		out.append('\n');
+	}
+}
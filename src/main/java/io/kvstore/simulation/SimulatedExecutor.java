@@ -0,0 +1,86 @@
+/**
+ * SimulatedExecutor.java
+ * ScheduledExecutorService whose tasks are events of a Simulation. Shared by every component of
+ * every node, in place of their own threads; shutting it down does nothing.
+ */
+package main.java.io.kvstore.simulation;
+
+import main.java.io.kvstore.log.EventLog;
+import main.java.io.kvstore.log.LogSite;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+class SimulatedExecutor extends AbstractExecutorService implements ScheduledExecutorService
+{
+	private static final LogSite TASK_FAILED = LogSite.error("simulation.task_failed");
+
+	private final Simulation _simulation;
+
+	SimulatedExecutor(Simulation simulation)
+	{
+		this._simulation = simulation;
+	}
+
+	/**
+	 * Runs a task as soon as the events already due have run. Like a thread would, prints what it throws.
+	 */
+	@Override
+	public void execute(Runnable command)
+	{
+		this._simulation.schedule(this._simulation.new Task<Object>(() -> {
+			try {
+				command.run();
+			} catch (RuntimeException e) {
+				EventLog.event(TASK_FAILED, e);
+			}
+		}, this._simulation.at(0), 0));
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+	{
+		return this._simulation.schedule(this._simulation.new Task<Object>(Executors.callable(command), this._simulation.at(unit.toNanos(delay))));
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit)
+	{
+		return this._simulation.schedule(this._simulation.new Task<V>(callable, this._simulation.at(unit.toNanos(delay))));
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit)
+	{
+		return this._simulation.schedule(this._simulation.new Task<Object>(command, this._simulation.at(unit.toNanos(initialDelay)),
+				unit.toNanos(period)));
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit)
+	{
+		return this._simulation.schedule(this._simulation.new Task<Object>(command, this._simulation.at(unit.toNanos(initialDelay)),
+				-unit.toNanos(delay)));
+	}
+
+	@Override
+	public void shutdown() {}
+
+	@Override
+	public List<Runnable> shutdownNow() { return Collections.emptyList(); }
+
+	@Override
+	public boolean isShutdown() { return false; }
+
+	@Override
+	public boolean isTerminated() { return false; }
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) { return false; }
+}
@@ -0,0 +1,237 @@
+/**
+ * Simulation.java
+ * Virtual clock and single-threaded scheduler for running a whole cluster deterministically:
+ * every timer, executor task and datagram of the nodes becomes an event, run one at a time in
+ * the order of its virtual time, ties broken by the order of scheduling. Time jumps from one
+ * event to the next, so idle time costs nothing, and a run is replayed exactly from its seed.
+ * Install it with Clock.simulate before creating the nodes, on the thread that then runs it.
+ */
+package main.java.io.kvstore.simulation;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+public class Simulation
+{
+	/**
+	 * Wall-clock time at the start of every simulation, so that expiry times are the same in every run.
+	 */
+	public static final long EPOCH_MS = 1700000000000L;
+
+	/**
+	 * Virtual System.nanoTime at the start, away from 0 so that no time looks like an unset one.
+	 */
+	private static final long START_NANOS = TimeUnit.HOURS.toNanos(1);
+
+	private static final int PURGE_THRESHOLD = 1024;
+
+	/**
+	 * An event: a task due at a virtual time, run once or periodically.
+	 */
+	class Task<V> extends FutureTask<V> implements RunnableScheduledFuture<V>
+	{
+		long time;
+		long sequence;
+
+		/**
+		 * 0 for a one-shot task, > 0 for a fixed rate, < 0 for a fixed delay, like ScheduledThreadPoolExecutor.
+		 */
+		final long period;
+
+		Task(Callable<V> callable, long time)
+		{
+			super(callable);
+			this.time = time;
+			this.period = 0;
+		}
+
+		Task(Runnable runnable, long time, long period)
+		{
+			super(runnable, null);
+			this.time = time;
+			this.period = period;
+		}
+
+		@Override
+		public void run()
+		{
+			if (this.period == 0)
+			{
+				super.run();
+			}
+			else if (super.runAndReset())
+			{
+				this.time = this.period > 0 ? this.time + this.period : Simulation.this._now - this.period;
+				Simulation.this.enqueue(this);
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled)
+			{
+				Simulation.this._cancelled++;
+			}
+			return cancelled;
+		}
+
+		@Override
+		public boolean isPeriodic() { return this.period != 0; }
+
+		@Override
+		public long getDelay(TimeUnit unit) { return unit.convert(this.time - Simulation.this._now, TimeUnit.NANOSECONDS); }
+
+		@Override
+		public int compareTo(Delayed other)
+		{
+			Task<?> task = (Task<?>) other;
+			return this.time != task.time ? Long.compare(this.time, task.time) : Long.compare(this.sequence, task.sequence);
+		}
+	}
+
+	private final PriorityQueue<Task<?>> _events = new PriorityQueue<>();
+	private final Random _random;
+	private final SimulatedExecutor _executor = new SimulatedExecutor(this);
+
+	/**
+	 * The only thread allowed to schedule events: a real thread doing so would make runs differ.
+	 */
+	private final Thread _thread = Thread.currentThread();
+
+	/**
+	 * Cancelled events still in the queue, e.g. the timeouts of answered requests, purged once they
+	 * make up half of it.
+	 */
+	private int _cancelled;
+
+	private long _now = START_NANOS;
+	private long _sequence;
+	private long _steps;
+
+	/**
+	 * @param seed seed of every random of the nodes
+	 */
+	public Simulation(long seed)
+	{
+		this._random = new Random(seed);
+	}
+
+	public long nanoTime() { return this._now; }
+
+	public long currentTimeMillis() { return EPOCH_MS + TimeUnit.NANOSECONDS.toMillis(this._now - START_NANOS); }
+
+	/**
+	 * @return virtual nanoseconds since the start of the simulation
+	 */
+	public long getElapsedNanos() { return this._now - START_NANOS; }
+
+	public Random getRandom() { return this._random; }
+
+	/**
+	 * @return the scheduler shared by the executors of the nodes
+	 */
+	public ScheduledExecutorService getExecutor() { return this._executor; }
+
+	/**
+	 * @return events run so far
+	 */
+	public long getSteps() { return this._steps; }
+
+	/**
+	 * Schedules an event.
+	 * @param task due at a time from at
+	 * @return the task
+	 */
+	<V> Task<V> schedule(Task<V> task)
+	{
+		this.enqueue(task);
+		return task;
+	}
+
+	/**
+	 * @param delayNanos negative delays count as 0
+	 * @return the virtual time after a delay from now
+	 */
+	long at(long delayNanos)
+	{
+		return this._now + Math.max(0, delayNanos);
+	}
+
+	private void enqueue(Task<?> task)
+	{
+		if (Thread.currentThread() != this._thread)
+		{
+			throw new IllegalStateException("Simulation event scheduled by " + Thread.currentThread().getName()
+					+ ": real threads break determinism");
+		}
+		task.sequence = this._sequence++;
+		this._events.add(task);
+		if (this._cancelled > PURGE_THRESHOLD && this._cancelled > this._events.size() / 2)
+		{
+			this._events.removeIf(Task::isCancelled);
+			this._cancelled = 0;
+		}
+	}
+
+	/**
+	 * Runs the next event, moving the clock to its time.
+	 * @return false if no event is left
+	 */
+	public boolean step()
+	{
+		Task<?> task = this._events.poll();
+		while (task != null && task.isCancelled())
+		{
+			this._cancelled--;
+			task = this._events.poll();
+		}
+		if (task == null)
+		{
+			return false;
+		}
+		this._now = Math.max(this._now, task.time);
+		this._steps++;
+		task.run();
+		return true;
+	}
+
+	/**
+	 * Runs the events due within a duration, then moves the clock to its end.
+	 * @param duration
+	 * @param unit
+	 */
+	public void runFor(long duration, TimeUnit unit)
+	{
+		long end = this._now + unit.toNanos(duration);
+		while (!this._events.isEmpty() && this._events.peek().time <= end)
+		{
+			this.step();
+		}
+		this._now = Math.max(this._now, end);
+	}
+
+	/**
+	 * Runs events until a condition holds.
+	 * @param condition
+	 * @throws IllegalStateException if no event is left while the condition does not hold
+	 */
+	public void runUntil(BooleanSupplier condition)
+	{
+		while (!condition.getAsBoolean())
+		{
+			if (!this.step())
+			{
+				throw new IllegalStateException("Simulation ran out of events");
+			}
+		}
+	}
+}
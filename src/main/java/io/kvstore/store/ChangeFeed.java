@@ -0,0 +1,308 @@
+/**
+ * ChangeFeed.java
+ * Pushes the changes of a store to its subscribers, in CHANGES batches read from its ChangeLog.
+ * A subscriber asks for the changes of a keyspace from a number on, then acknowledges each batch once it
+ * processed it, with the number after it and the number of batches it takes ahead of that (its window).
+ * The feed pushes new changes a little after they are written, as long as the window is not full, so a slow
+ * subscriber holds back its own batches only; if it falls behind the log, its next batch flags a gap.
+ * Batches not acknowledged in time are pushed again from the last acknowledged number, and subscribers
+ * that stopped acknowledging are dropped.
+ */
+package main.java.io.kvstore.store;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.log.EventLog;
+import main.java.io.kvstore.log.LogSite;
+import main.java.io.kvstore.metrics.Counter;
+import main.java.io.kvstore.metrics.Metrics;
+import main.java.io.kvstore.transport.Transport;
+import main.java.io.kvstore.utils.Clock;
+import main.java.io.kvstore.utils.Utils;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class ChangeFeed
+{
+	private static final LogSite PUSH_FAILED = LogSite.warn("store.push_failed", "subscriber");
+	private static final LogSite SUBSCRIBED = LogSite.info("store.subscribed", "subscriber", "keyspace", "from");
+	private static final LogSite UNSUBSCRIBED = LogSite.info("store.unsubscribed", "subscriber", "keyspace");
+
+	/**
+	 * A subscriber of the changes of a keyspace. Guarded by the feed.
+	 */
+	private static class Subscription
+	{
+		final byte[] id;
+		final SocketAddress address;
+		final int keyspace;
+		/**
+		 * Number after the changes the subscriber processed, where the next batch starts, and where the
+		 * next batch looks for changes, after changes of other keyspaces.
+		 */
+		long acked;
+		long sent;
+		long scanned;
+		int window;
+		/**
+		 * Number after each batch pushed and not acknowledged, oldest first.
+		 */
+		final ArrayDeque<Long> inFlight = new ArrayDeque<>();
+		/**
+		 * Whether the next batch is pushed even if it carries no changes, to confirm the subscription,
+		 * and whether batches flag a gap until one is acknowledged.
+		 */
+		boolean confirm = true;
+		boolean gap;
+		long ackedAtMs;
+		long progressAtMs;
+		Subscription(byte[] id, SocketAddress address, int keyspace, long from, int window, boolean gap)
+		{
+			this.id = id;
+			this.address = address;
+			this.keyspace = keyspace;
+			this.acked = from;
+			this.sent = from;
+			this.scanned = from;
+			this.window = window;
+			this.gap = gap;
+			this.ackedAtMs = Clock.currentTimeMillis();
+			this.progressAtMs = this.ackedAtMs;
+		}
+	}
+
+	private final ChangeLog _log = new ChangeLog();
+
+	private final Transport _socket;
+
+	/**
+	 * Runs the pushes and the retransmissions; the expirer of the store.
+	 */
+	private final ScheduledExecutorService _executor;
+
+	/**
+	 * Subscriptions by subscriber address and hex ID. Guarded by this, like the tick.
+	 */
+	private final LinkedHashMap<String, Subscription> _subscriptions = new LinkedHashMap<>();
+
+	/**
+	 * Retransmits and drops subscriptions, while there are some.
+	 */
+	private ScheduledFuture<?> _tick;
+
+	/**
+	 * Whether a push of the last changes is scheduled.
+	 */
+	private final AtomicBoolean _pushing = new AtomicBoolean();
+
+	/**
+	 * Whether anybody subscribed, read without the lock when recording.
+	 */
+	private volatile boolean _subscribed;
+
+	private final Counter _batches;
+	private final Counter _retransmits;
+
+	ChangeFeed(Transport socket, ScheduledExecutorService executor, Metrics metrics)
+	{
+		this._socket = socket;
+		this._executor = executor;
+		metrics.gauge("kvstore_store_changes", "Changes held for the change feed", this._log::size);
+		metrics.gauge("kvstore_store_subscribers", "Subscribers of the change feed", () -> {
+			synchronized (this) {
+				return this._subscriptions.size();
+			}
+		});
+		this._batches = metrics.counter("kvstore_store_change_batches_total", "Batches of changes pushed to subscribers");
+		this._retransmits = metrics.counter("kvstore_store_change_retransmits_total",
+				"Batches of changes pushed again after no acknowledgement");
+	}
+
+	/**
+	 * Records a change applied to a table, pushed to the subscribers after Config.CHANGE_FEED_DELAY_MS.
+	 * @param keyspace
+	 * @param key
+	 * @param value the value written, empty for a remove
+	 * @param version
+	 * @param expiresAt
+	 */
+	void record(int keyspace, byte[] key, byte[] value, int version, long expiresAt)
+	{
+		this._log.append(keyspace, key, value, version, expiresAt);
+		if (this._subscribed && this._pushing.compareAndSet(false, true))
+		{
+			this._executor.schedule(() -> {
+				this._pushing.set(false);
+				this.pushAll();
+			}, Config.CHANGE_FEED_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Subscribes to the changes of a keyspace, or subscribes again with the same ID, and pushes a first batch.
+	 * @param id
+	 * @param address
+	 * @param keyspace
+	 * @param request value of the SUBSCRIBE request: epoch, first number wanted, window
+	 */
+	synchronized void subscribe(byte[] id, SocketAddress address, int keyspace, byte[] request)
+	{
+		ByteBuffer value = ByteBuffer.wrap(request);
+		long epoch = value.getLong();
+		long from = value.getLong();
+		int window = value.getShort() & 0xFFFF;
+		boolean gap = false;
+		if (epoch != 0 && epoch != this._log.getEpoch())
+		{
+			from = 1; // numbers of a previous run of the store, whose changes are gone
+			gap = true;
+		}
+		else if (from <= 0)
+		{
+			from = this._log.getNext();
+		}
+		Subscription sub = new Subscription(id, address, keyspace, Math.min(from, this._log.getNext()), Math.max(1, window), gap);
+		this._subscriptions.put(key(address, id), sub);
+		this._subscribed = true;
+		if (this._tick == null)
+		{
+			this._tick = this._executor.scheduleWithFixedDelay(this::tick, Config.CHANGE_FEED_RETRANSMIT_MS,
+					Config.CHANGE_FEED_RETRANSMIT_MS, TimeUnit.MILLISECONDS);
+		}
+		EventLog.event(SUBSCRIBED, address, keyspace, sub.sent);
+		this.push(sub);
+	}
+
+	/**
+	 * Acknowledges the batches of a subscription up to a number, and pushes the next ones.
+	 * @param id
+	 * @param address
+	 * @param request value of the CHANGES_ACK request: number after the changes processed, window
+	 * @return null, or the UNRECOGNIZED_COMMAND response if there is no such subscription, e.g. after it was
+	 * dropped or the store restarted, so that the subscriber subscribes again
+	 */
+	synchronized byte[] ack(byte[] id, SocketAddress address, byte[] request)
+	{
+		Subscription sub = this._subscriptions.get(key(address, id));
+		if (sub == null)
+		{
+			return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.UNRECOGNIZED_COMMAND);
+		}
+		ByteBuffer value = ByteBuffer.wrap(request);
+		long next = value.getLong();
+		sub.window = Math.max(1, value.getShort() & 0xFFFF);
+		sub.ackedAtMs = Clock.currentTimeMillis();
+		if (next >= sub.acked && next <= sub.sent)
+		{
+			boolean progress = next > sub.acked;
+			while (!sub.inFlight.isEmpty() && sub.inFlight.peek() <= next)
+			{
+				sub.inFlight.poll(); // including batches without changes, e.g. the confirmation
+				progress = true;
+			}
+			if (progress)
+			{
+				sub.acked = next;
+				sub.gap = false;
+				sub.progressAtMs = sub.ackedAtMs;
+			}
+		}
+		this.push(sub);
+		return null;
+	}
+
+	private synchronized void pushAll()
+	{
+		for (Subscription sub : this._subscriptions.values())
+		{
+			this.push(sub);
+		}
+	}
+
+	/**
+	 * Pushes the batches of a subscription its window has room for.
+	 */
+	private void push(Subscription sub)
+	{
+		while (sub.inFlight.size() < sub.window && (sub.scanned < this._log.getNext() || sub.confirm))
+		{
+			byte[] batch = this._log.batch(sub.sent, sub.scanned, sub.keyspace, sub.gap);
+			long next = ByteBuffer.wrap(batch).getLong(16);
+			boolean gap = (batch[24] & StoreMessage.CHANGES_GAP) != 0;
+			if (batch.length == StoreMessage.CHANGES_HEADER_BYTES && !gap && !sub.confirm)
+			{
+				// no changes of the keyspace: skipped, and skipped by the next batch if others are in flight
+				sub.scanned = next;
+				if (sub.inFlight.isEmpty())
+				{
+					sub.acked = next;
+					sub.sent = next;
+				}
+				continue;
+			}
+			sub.gap = gap;
+			sub.confirm = false;
+			if (sub.inFlight.isEmpty())
+			{
+				sub.progressAtMs = Clock.currentTimeMillis();
+			}
+			sub.inFlight.add(next);
+			sub.sent = next;
+			sub.scanned = next;
+			this._batches.increment();
+			byte[] response = StoreMessage.createResponse(sub.id, StoreMessage.StoreResponseType.CHANGES, 0, batch);
+			try {
+				this._socket.send(new DatagramPacket(response, response.length, sub.address));
+			} catch (IOException e) {
+				EventLog.event(PUSH_FAILED, e, sub.address);
+			}
+		}
+	}
+
+	/**
+	 * Drops the subscriptions without acknowledgement for Config.CHANGE_FEED_TIMEOUT_MS, and pushes again
+	 * the batches not acknowledged for Config.CHANGE_FEED_RETRANSMIT_MS.
+	 */
+	private synchronized void tick()
+	{
+		long now = Clock.currentTimeMillis();
+		for (Iterator<Subscription> it = this._subscriptions.values().iterator(); it.hasNext(); )
+		{
+			Subscription sub = it.next();
+			if (now - sub.ackedAtMs >= Config.CHANGE_FEED_TIMEOUT_MS)
+			{
+				it.remove();
+				EventLog.event(UNSUBSCRIBED, sub.address, sub.keyspace);
+			}
+			else if (!sub.inFlight.isEmpty() && now - sub.progressAtMs >= Config.CHANGE_FEED_RETRANSMIT_MS)
+			{
+				this._retransmits.increment();
+				sub.inFlight.clear();
+				sub.sent = sub.acked;
+				sub.scanned = sub.acked;
+				sub.confirm = true;
+				this.push(sub);
+			}
+		}
+		if (this._subscriptions.isEmpty())
+		{
+			this._subscribed = false;
+			this._tick.cancel(false);
+			this._tick = null;
+		}
+	}
+
+	private static String key(SocketAddress address, byte[] id)
+	{
+		return address + "/" + Utils.hexString(id);
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * ChangeLog.java
+ * The last changes of the values of a store, in the order they were applied, numbered from 1: a ring of
+ * Config.CHANGE_LOG_CAPACITY changes, holding Config.CHANGE_LOG_BYTES of values at most, that the change
+ * feed reads batches from. A change is appended once it is in its table, so concurrent changes of a key
+ * may be appended out of order, like in a TableLog: readers keep the highest version. The log is in memory
+ * only; its epoch, the time the store started, tells the numbers of one run of the store from another's.
+ */
+package main.java.io.kvstore.store;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.utils.Clock;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+class ChangeLog
+{
+	/**
+	 * A value written, or a tombstone (empty value).
+	 */
+	private static class Change
+	{
+		final int keyspace;
+		final byte[] key;
+		final byte[] value;
+		final int version;
+		final long expiresAt;
+		Change(int keyspace, byte[] key, byte[] value, int version, long expiresAt)
+		{
+			this.keyspace = keyspace;
+			this.key = key;
+			this.value = value;
+			this.version = version;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * Largest change sent with its value; larger values are left out of the batches.
+	 */
+	private static final int CHANGE_MAX_BYTES = StoreMessage.VALUE_MAX_BYTES - StoreMessage.CHANGES_HEADER_BYTES;
+
+	private final long _epoch = Clock.currentTimeMillis();
+
+	/**
+	 * The changes held, change n at n % capacity. Guarded by this, like the fields below.
+	 */
+	private final Change[] _changes = new Change[Math.max(1, Config.CHANGE_LOG_CAPACITY)];
+
+	/**
+	 * Number of the oldest change held, and of the next one.
+	 */
+	private long _first = 1;
+	private long _next = 1;
+
+	/**
+	 * Bytes of the values held.
+	 */
+	private long _bytes;
+
+	long getEpoch() { return this._epoch; }
+
+	synchronized long getNext() { return this._next; }
+
+	synchronized long size() { return this._next - this._first; }
+
+	/**
+	 * Appends a change, dropping the oldest ones beyond the capacity or the bytes of the log. The last
+	 * change is kept whatever its size.
+	 * @return the number of the change
+	 */
+	synchronized long append(int keyspace, byte[] key, byte[] value, int version, long expiresAt)
+	{
+		if (this._next - this._first == this._changes.length)
+		{
+			this.drop();
+		}
+		this._changes[this.slot(this._next)] = new Change(keyspace, Arrays.copyOf(key, StoreMessage.KEY_BYTES), value, version, expiresAt);
+		this._bytes += value.length;
+		while (this._bytes > Config.CHANGE_LOG_BYTES && this._first < this._next)
+		{
+			this.drop();
+		}
+		return this._next++;
+	}
+
+	/**
+	 * Builds the value of a CHANGES batch with the changes of a keyspace from a number on, as many as fit.
+	 * @param from the number the batch starts at, after the previous batch
+	 * @param scanFrom the number to look for changes from, after changes of other keyspaces already skipped
+	 * @param keyspace
+	 * @param gap whether to flag a gap anyway; it is flagged too if changes from scanFrom on were dropped
+	 * @return the batch; it carries no changes if there are none of the keyspace after scanFrom
+	 */
+	synchronized byte[] batch(long from, long scanFrom, int keyspace, boolean gap)
+	{
+		ByteBuffer batch = ByteBuffer.allocate(StoreMessage.VALUE_MAX_BYTES);
+		batch.position(StoreMessage.CHANGES_HEADER_BYTES);
+		long seq = Math.max(scanFrom, this._first);
+		for (; seq < this._next; seq++)
+		{
+			Change change = this._changes[this.slot(seq)];
+			if (change.keyspace != keyspace)
+			{
+				continue;
+			}
+			byte[] value = StoreMessage.changeEntryBytes(change.value) > CHANGE_MAX_BYTES ? null : change.value;
+			if (batch.remaining() < StoreMessage.changeEntryBytes(value == null ? new byte[0] : value))
+			{
+				break;
+			}
+			StoreMessage.putChange(batch, seq, change.key, value, change.version, change.expiresAt);
+		}
+		int length = batch.position();
+		batch.position(0);
+		batch.putLong(this._epoch).putLong(from).putLong(seq).put((byte) (gap || scanFrom < this._first ? StoreMessage.CHANGES_GAP : 0));
+		return Arrays.copyOf(batch.array(), length);
+	}
+
+	private void drop()
+	{
+		int slot = this.slot(this._first++);
+		this._bytes -= this._changes[slot].value.length;
+		this._changes[slot] = null;
+	}
+
+	private int slot(long seq)
+	{
+		return (int) (seq % this._changes.length);
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * MerkleTree.java
+ * Incrementally updated Merkle tree over the token space of a store.
+ * Leaf i covers the keys whose token starts with the bits of i, so every leaf is a contiguous key range.
+ * A leaf hash is the XOR of the hashes of its entries: a write updates it in O(1) without reading the
+ * other entries. Interior hashes are only computed when a snapshot is taken.
+ * Nodes are numbered like a binary heap: 1 is the root, the children of i are 2i and 2i + 1,
+ * and leaf i is node leafCount + i.
+ */
+package main.java.io.kvstore.store;
+
+import main.java.io.kvstore.utils.Murmur3;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class MerkleTree
+{
+	private final int _depth;
+
+	private final AtomicLongArray _leaves;
+
+	public MerkleTree(int depth)
+	{
+		this._depth = depth;
+		this._leaves = new AtomicLongArray(1 << depth);
+	}
+
+	public int getLeafCount() { return this._leaves.length(); }
+
+	/**
+	 * @param token the key's token
+	 * @return the index of the leaf covering the token
+	 */
+	public int leaf(long token)
+	{
+		return (int) (token >>> (64 - this._depth));
+	}
+
+	/**
+	 * Replaces the hash of one entry of a leaf.
+	 * @param token the key's token
+	 * @param oldHash hash of the replaced entry, 0 if none
+	 * @param newHash hash of the new entry, 0 if none
+	 */
+	public void update(long token, long oldHash, long newHash)
+	{
+		long delta = oldHash ^ newHash;
+		if (delta != 0)
+		{
+			this._leaves.accumulateAndGet(this.leaf(token), delta, (a, b) -> a ^ b);
+		}
+	}
+
+	/**
+	 * Computes every node hash from the current leaves.
+	 * @return the hashes indexed by node number (index 0 is unused)
+	 */
+	public long[] snapshot()
+	{
+		int leafCount = this.getLeafCount();
+		long[] nodes = new long[2 * leafCount];
+		for (int i = 0; i < leafCount; i++)
+		{
+			nodes[leafCount + i] = this._leaves.get(i);
+		}
+		for (int i = leafCount - 1; i >= 1; i--)
+		{
+			nodes[i] = Murmur3.fmix64(nodes[2 * i] * 31 + nodes[2 * i + 1]);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Hash of one entry. Entries that were never written (version 0) hash to 0, i.e. they are absent.
+	 * @param key
+	 * @param value
+	 * @param version
+	 * @return
+	 */
+	public static long entryHash(byte[] key, byte[] value, int version)
+	{
+		if (version == 0)
+		{
+			return 0;
+		}
+		long seed = Murmur3.hash64(key) ^ Murmur3.fmix64(version);
+		return Murmur3.hash64(value, 0, value.length, seed) | 1; // never 0
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * PNCounter.java
+ * State of a convergent replicated counter: for each replica that applied increments, the total
+ * of its increments (P) and of its decrements (N). A replica only changes its own slot, and two
+ * states merge by taking the maximum of each slot, so replicas converge whatever the order, loss
+ * or duplication of the merges. The counter value is the sum of P minus the sum of N.
+ * Instances are immutable.
+ */
+package main.java.io.kvstore.store;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+public class PNCounter
+{
+	/**
+	 * Bytes of one slot: node ID, P, N.
+	 */
+	public static final int SLOT_BYTES = 24;
+
+	public static final PNCounter EMPTY = new PNCounter(new HashMap<>());
+
+	/**
+	 * P and N of each replica, by node ID.
+	 */
+	private final HashMap<Long, long[]> _slots;
+
+	private PNCounter(HashMap<Long, long[]> slots)
+	{
+		this._slots = slots;
+	}
+
+	/**
+	 * @param nodeId the replica applying the change
+	 * @param delta positive to increment, negative to decrement
+	 * @return the state with the change in the replica's slot
+	 */
+	public PNCounter add(long nodeId, long delta)
+	{
+		HashMap<Long, long[]> slots = new HashMap<>(this._slots);
+		long[] slot = slots.containsKey(nodeId) ? slots.get(nodeId).clone() : new long[2];
+		if (delta >= 0)
+		{
+			slot[0] += delta;
+		}
+		else
+		{
+			slot[1] -= delta;
+		}
+		slots.put(nodeId, slot);
+		return new PNCounter(slots);
+	}
+
+	/**
+	 * @param other
+	 * @return the least state holding both, slot by slot
+	 */
+	public PNCounter merge(PNCounter other)
+	{
+		HashMap<Long, long[]> slots = new HashMap<>(this._slots);
+		for (Map.Entry<Long, long[]> entry : other._slots.entrySet())
+		{
+			long[] mine = slots.get(entry.getKey());
+			long[] theirs = entry.getValue();
+			slots.put(entry.getKey(), mine == null ? theirs
+					: new long[] { Math.max(mine[0], theirs[0]), Math.max(mine[1], theirs[1]) });
+		}
+		return new PNCounter(slots);
+	}
+
+	/**
+	 * @param other
+	 * @return whether this state already holds every change of the other one
+	 */
+	public boolean covers(PNCounter other)
+	{
+		for (Map.Entry<Long, long[]> entry : other._slots.entrySet())
+		{
+			long[] mine = this._slots.get(entry.getKey());
+			if (mine == null || mine[0] < entry.getValue()[0] || mine[1] < entry.getValue()[1])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public long value()
+	{
+		long value = 0;
+		for (long[] slot : this._slots.values())
+		{
+			value += slot[0] - slot[1];
+		}
+		return value;
+	}
+
+	public int size() { return this._slots.size(); }
+
+	/**
+	 * @return the slots, SLOT_BYTES each
+	 */
+	public byte[] toBytes()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(this._slots.size() * SLOT_BYTES);
+		for (Map.Entry<Long, long[]> entry : this._slots.entrySet())
+		{
+			buffer.putLong(entry.getKey());
+			buffer.putLong(entry.getValue()[0]);
+			buffer.putLong(entry.getValue()[1]);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * @param bytes slots written by toBytes
+	 * @return
+	 */
+	public static PNCounter fromBytes(byte[] bytes)
+	{
+		HashMap<Long, long[]> slots = new HashMap<>();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.remaining() >= SLOT_BYTES)
+		{
+			slots.put(buffer.getLong(), new long[] { buffer.getLong(), buffer.getLong() });
+		}
+		return new PNCounter(slots);
+	}
+}
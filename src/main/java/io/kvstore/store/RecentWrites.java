@@ -0,0 +1,59 @@
+/**
+ * RecentWrites.java
+ * The versions written by the last Config.CONDITIONAL_WRITE_IDS conditional writes and counter additions
+ * of a store, by hex request ID, so that their retransmissions are not applied again. Lookups and
+ * insertions do not lock, so writes of different keys do not wait for each other; the oldest IDs are
+ * forgotten in the order they were recorded.
+ */
+package main.java.io.kvstore.store;
+
+import main.java.io.kvstore.Config;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class RecentWrites
+{
+	private final ConcurrentHashMap<String, Integer> _versions = new ConcurrentHashMap<>();
+
+	/**
+	 * The IDs recorded, oldest first, and their number.
+	 */
+	private final ConcurrentLinkedQueue<String> _order = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger _size = new AtomicInteger();
+
+	/**
+	 * @param id
+	 * @return the version written by the request, 0 for a counter addition, or null if it is not known
+	 */
+	Integer get(String id)
+	{
+		return this._versions.get(id);
+	}
+
+	/**
+	 * Records a request, unless it is already recorded.
+	 * @param id
+	 * @param version
+	 * @return whether it was recorded, false for a retransmission
+	 */
+	boolean add(String id, int version)
+	{
+		if (this._versions.putIfAbsent(id, version) != null)
+		{
+			return false;
+		}
+		this._order.add(id);
+		if (this._size.incrementAndGet() > Config.CONDITIONAL_WRITE_IDS)
+		{
+			String oldest = this._order.poll();
+			if (oldest != null)
+			{
+				this._versions.remove(oldest);
+				this._size.decrementAndGet();
+			}
+		}
+		return true;
+	}
+}
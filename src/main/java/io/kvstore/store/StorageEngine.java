@@ -0,0 +1,66 @@
+/**
+ * StorageEngine.java
+ * In-process access to a store, for a coordinator running in the same JVM.
+ * Responses have the same format as the ones sent over the network, so callers handle both alike.
+ */
+package main.java.io.kvstore.store;
+
+import main.java.io.kvstore.Keyspace;
+
+public interface StorageEngine
+{
+	/**
+	 * @param keyspace
+	 * @param key
+	 * @param withValue false to only return the version
+	 * @return response (response type, version, value)
+	 */
+	byte[] get(Keyspace keyspace, byte[] key, boolean withValue);
+
+	/**
+	 * @param keyspace
+	 * @param key
+	 * @param value empty to remove
+	 * @param version explicit version, or 0 to increment the current one
+	 * @param expiresAt expiry time in epoch milliseconds, 0 if the value does not expire
+	 * @return response (response type, version held after the put), OUT_OF_SPACE if the keyspace is full
+	 */
+	byte[] put(Keyspace keyspace, byte[] key, byte[] value, int version, long expiresAt);
+
+	/**
+	 * Conditional put, see Store.putIf.
+	 * @param keyspace
+	 * @param id the ID of the client request
+	 * @param key
+	 * @param value empty to remove
+	 * @param expected version the client read, or -1 to put only if the key does not exist
+	 * @param expiresAt expiry time in epoch milliseconds, 0 if the value does not expire
+	 * @return response (SUCCESSFUL, VERSION_CONFLICT or OUT_OF_SPACE, version held after the request)
+	 */
+	byte[] putIf(Keyspace keyspace, byte[] id, byte[] key, byte[] value, int expected, long expiresAt);
+
+	/**
+	 * Adds to this replica's slot of a counter, see Store.counterAdd.
+	 * @param keyspace
+	 * @param id the ID of the client request
+	 * @param key
+	 * @param delta
+	 * @return response (SUCCESSFUL, counter state after the change), OUT_OF_SPACE if the keyspace is full
+	 */
+	byte[] counterAdd(Keyspace keyspace, byte[] id, byte[] key, long delta);
+
+	/**
+	 * @param keyspace
+	 * @param key
+	 * @param counter state written with PNCounter.toBytes
+	 * @return response (SUCCESSFUL, merged counter state)
+	 */
+	byte[] counterMerge(Keyspace keyspace, byte[] key, byte[] counter);
+
+	/**
+	 * @param keyspace
+	 * @param key
+	 * @return response (SUCCESSFUL with the counter state, or NON_EXISTENT_KEY)
+	 */
+	byte[] counterGet(Keyspace keyspace, byte[] key);
+}
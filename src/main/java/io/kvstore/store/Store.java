@@ -1,54 +1,247 @@
 /**
  * Store.java
  * Store class is responsible for storing key-value pairs and serving requests from clients.
+ * Each keyspace has a Table of its own, kept in memory and, for durable keyspaces, logged to disk.
  */
 package main.java.io.kvstore.store;
 
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.Keyspace;
+import main.java.io.kvstore.log.EventLog;
+import main.java.io.kvstore.log.LogSite;
+import main.java.io.kvstore.metrics.Counter;
+import main.java.io.kvstore.metrics.Metrics;
+import main.java.io.kvstore.transport.Transport;
+import main.java.io.kvstore.transport.UdpTransport;
+import main.java.io.kvstore.utils.Clock;
+import main.java.io.kvstore.utils.Murmur3;
 import main.java.io.kvstore.utils.Utils;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.UncheckedIOException;
 import java.net.SocketException;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
-public class Store
+public class Store implements StorageEngine
 {
+	private static final LogSite REPLY_FAILED = LogSite.warn("store.reply_failed", "client");
+	private static final LogSite LOADED = LogSite.info("store.keyspace_loaded", "keyspace", "entries", "ms");
+	private static final LogSite LOG_FAILED = LogSite.error("store.log_failed", "keyspace");
+
 	/**
 	 * Value class is used to store the value and version of a key-value pair.
 	 */
-	class Value
+	static class Value
 	{
 		final byte[] value;
 		final int version;
+
+		/**
+		 * Expiry time in epoch milliseconds, 0 if the value does not expire.
+		 */
+		final long expiresAt;
 		Value(byte[] val, int ver)
+		{
+			this(val, ver, 0);
+		}
+		Value(byte[] val, int ver, long expiresAt)
 		{
 			this.value = val;
 			this.version = ver;
+			this.expiresAt = expiresAt;
 		}
+
+		/**
+		 * An expired value reads like a removed one, until the expirer turns it into a tombstone.
+		 */
+		boolean exists(long nowMs) { return this.value.length > 0 && (this.expiresAt == 0 || this.expiresAt > nowMs); }
 	}
 
 	/**
-	 * DatagramSocket object to receive and send packets.
+	 * Visitor of the key-value pairs held by a store.
+	 */
+	public interface EntryVisitor
+	{
+		/**
+		 * @param key
+		 * @param value
+		 * @param version
+		 * @param expiresAt epoch milliseconds, 0 if the value does not expire
+		 */
+		void visit(byte[] key, byte[] value, int version, long expiresAt);
+	}
+
+	/**
+	 * Request id of the direct calls of a coordinator in the same process.
+	 */
+	private static final byte[] LOCAL_ID = new byte[StoreMessage.ID_BYTES];
+
+	/**
+	 * Endpoint to receive and send packets: a UDP socket, or an endpoint of a simulated network.
+	 */
+	private final Transport _socket;
+
+	/**
+	 * The tables of the keyspaces, by keyspace number.
+	 */
+	private final Table[] _tables;
+
+	/**
+	 * Recent conditional writes and counter additions, so that their retransmissions are not applied again,
+	 * even after the key was overwritten.
+	 */
+	private final RecentWrites _recentWrites = new RecentWrites();
+
+	/**
+	 * Expires the values, syncs and compacts the logs of the durable keyspaces, and pushes the change feed.
+	 */
+	private final ScheduledExecutorService _expirer = Clock.newScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "store-expirer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Counter _expired;
+
+	/**
+	 * Pushes the changes of the values to the subscribers of the store.
+	 */
+	private final ChangeFeed _feed;
+
+	/**
+	 * Requests served, by StoreRequestType ordinal, from the network and from a local coordinator.
+	 */
+	private final Counter[] _requests = new Counter[StoreMessage.StoreRequestType.values().length];
+
+	/**
+	 * Writes refused because their keyspace reached its memory budget, by keyspace number.
 	 */
-	private final DatagramSocket _socket;
+	private final Counter[] _refused;
 
 	/**
-	 * ConcurrentHashMap to store key-value pairs.
+	 * ID of this replica's slot in the counters.
 	 */
-	private final ConcurrentHashMap<String, Value> _store;
+	private final long _nodeId;
 
 	/**
-	 * Constructor to initialize the Store object and the DatagramSocket object.
+	 * Constructor to initialize the Store object and its UDP socket.
 	 * @param port
 	 * @throws SocketException
 	 */
 	public Store(int port) throws SocketException
 	{
-		this._store = new ConcurrentHashMap<String, Value>();
-		this._socket = new DatagramSocket(port);
-		this._socket.setReuseAddress(true);
+		this(port, port);
+	}
+
+	/**
+	 * @param port
+	 * @param nodeId ID of this replica in the counters, unique in the cluster
+	 * @throws SocketException
+	 */
+	public Store(int port, long nodeId) throws SocketException
+	{
+		this(port, nodeId, new Metrics());
+	}
+
+	/**
+	 * @param port
+	 * @param nodeId ID of this replica in the counters, unique in the cluster
+	 * @param metrics registry of the request counts and the size of the store
+	 * @throws SocketException
+	 */
+	public Store(int port, long nodeId, Metrics metrics) throws SocketException
+	{
+		this(new UdpTransport(port), nodeId, metrics);
+	}
+
+	/**
+	 * @param transport the endpoint of the store, e.g. on a simulated network
+	 * @param nodeId ID of this replica in the counters, unique in the cluster
+	 * @param metrics registry of the request counts and the size of the store
+	 */
+	public Store(Transport transport, long nodeId, Metrics metrics)
+	{
+		this._nodeId = nodeId;
+		for (StoreMessage.StoreRequestType type : StoreMessage.StoreRequestType.values())
+		{
+			this._requests[type.ordinal()] = metrics.counter("kvstore_store_requests_total", "Store requests served, by type",
+					"type", type.name().toLowerCase());
+		}
+		this._expired = metrics.counter("kvstore_store_expired_total", "Values turned into tombstones by the expirer");
+		this._socket = transport;
+		this._feed = new ChangeFeed(transport, this._expirer, metrics);
+		List<Keyspace> keyspaces = Keyspace.all();
+		this._tables = new Table[keyspaces.size()];
+		this._refused = new Counter[keyspaces.size()];
+		File dir = new File(Config.DATA_DIR, String.valueOf(transport.getLocalAddress().getPort()));
+		boolean durable = false;
+		for (Keyspace keyspace : keyspaces)
+		{
+			Table table = new Table(keyspace, keyspace.getEngine() == Keyspace.Engine.DURABLE
+					? new TableLog(new File(dir, keyspace.getName() + ".log")) : null);
+			if (table.log != null)
+			{
+				this.load(table, dir);
+				durable = true;
+			}
+			this._tables[keyspace.getId()] = table;
+			String name = keyspace.getName();
+			this._refused[keyspace.getId()] = metrics.counter("kvstore_store_refused_total",
+					"Writes refused because their keyspace reached its memory budget", "keyspace", name);
+			metrics.gauge("kvstore_store_entries", "Keys held, tombstones included", () -> table.entries.size(), "keyspace", name);
+			metrics.gauge("kvstore_store_value_bytes", "Bytes of the values held", table.valueBytes::sum, "keyspace", name);
+			metrics.gauge("kvstore_store_memory_bytes", "Estimated memory of the values and counters held, against the budget",
+					table.memoryBytes::sum, "keyspace", name);
+			metrics.gauge("kvstore_store_counters", "Counters held", () -> table.counters.size(), "keyspace", name);
+			metrics.gauge("kvstore_store_pending_expiries", "Values waiting in the timing wheel", table.expiries::size,
+					"keyspace", name);
+			if (table.log != null)
+			{
+				metrics.gauge("kvstore_store_log_bytes", "Bytes of the log of a durable keyspace", table.log::getBytes,
+						"keyspace", name);
+			}
+		}
+		this._expirer.scheduleWithFixedDelay(this::expire, Config.TTL_TICK_MS, Config.TTL_TICK_MS, TimeUnit.MILLISECONDS);
+		if (durable && Config.DURABLE_SYNC_MS > 0)
+		{
+			this._expirer.scheduleWithFixedDelay(this::sync, Config.DURABLE_SYNC_MS, Config.DURABLE_SYNC_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Loads a durable table from its log, and compacts the log.
+	 * @param table
+	 * @param dir the directory of the logs, created if needed
+	 */
+	private void load(Table table, File dir)
+	{
+		long start = Clock.currentTimeMillis();
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs())
+			{
+				throw new IOException("Cannot create " + dir);
+			}
+			table.log.replay((key, value, version, expiresAt) -> table.entries.compute(Utils.hexString(key), (k, currVal) -> {
+				if (currVal != null && currVal.version > version)
+				{
+					return currVal; // appended after a newer version by a concurrent write
+				}
+				return this.replace(table, key, currVal, this.value(table, k, value, version, expiresAt));
+			}), (key, counter) -> table.counters.compute(Utils.hexString(key),
+					(k, curr) -> this.account(table, curr, curr == null ? counter : curr.merge(counter))));
+			table.log.compact(table);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		EventLog.event(LOADED, table.keyspace, table.entries.size(), Clock.currentTimeMillis() - start);
 	}
 
 	/**
@@ -57,117 +250,709 @@ public class Store
 	 */
 	public void serve(ExecutorService executor)
 	{
-		while (true)
-		{
-			byte[] request = new byte[StoreMessage.MAX_REQ_BYTES];
-			DatagramPacket packet = new DatagramPacket(request, request.length); // initialize packet
-			try {
-				this._socket.receive(packet); // receive packet
-				executor.execute(() -> { // execute the request in a separate thread
-					byte[] id = StoreMessage.id(request);
-					byte[] key = StoreMessage.key(request);
-					byte[] response;
-					switch (StoreMessage.storeRequestType(request))
-					{
-						case PUT:
-							response = put(id, key, StoreMessage.requestValue(request), StoreMessage.requestValueVersion(request));
-							break;
-						case GET:
-							response = get(id, key);
-							break;
-						case HEARTBEAT_REQ:
-							response = StoreMessage.createResponse(id, StoreMessage.StoreResponseType.HEARTBEAT_ACK);
-							break;
-						default:
-							response = StoreMessage.createResponse(id, StoreMessage.StoreResponseType.UNRECOGNIZED_COMMAND);
-							break;
-					}
-					packet.setData(response);
-					try {
-						this._socket.send(packet);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				});
-			} catch (IOException e) {
-				e.printStackTrace();
+		this._socket.listen(StoreMessage.MAX_REQ_BYTES, packet -> {
+			byte[] request = packet.getData();
+			executor.execute(() -> { // execute the request in a separate thread
+				byte[] id = StoreMessage.id(request);
+				byte[] key = StoreMessage.key(request);
+				Table table = this.table(StoreMessage.requestKeyspace(request));
+				byte[] response;
+				switch (table == null ? StoreMessage.StoreRequestType.UNKNOWN : StoreMessage.storeRequestType(request))
+				{
+					case PUT:
+						this.count(StoreMessage.StoreRequestType.PUT);
+						response = put(id, table, key, StoreMessage.requestValue(request), StoreMessage.requestValueVersion(request),
+								StoreMessage.requestExpiresAt(request));
+						break;
+					case GET:
+						response = get(id, table, key, true);
+						break;
+					case GET_VERSION:
+						response = get(id, table, key, false);
+						break;
+					case MERKLE_HASHES:
+						this.count(StoreMessage.StoreRequestType.MERKLE_HASHES);
+						response = merkleHashes(id, table, request);
+						break;
+					case MERKLE_KEYS:
+						this.count(StoreMessage.StoreRequestType.MERKLE_KEYS);
+						response = merkleKeys(id, table, request);
+						break;
+					case BATCH_PUT:
+						this.count(StoreMessage.StoreRequestType.BATCH_PUT);
+						response = batchPut(id, table, request);
+						break;
+					case PUT_IF_VERSION:
+						response = putIf(id, table, key, StoreMessage.requestValue(request), StoreMessage.requestValueVersion(request),
+								StoreMessage.requestExpiresAt(request));
+						break;
+					case PUT_IF_ABSENT:
+						response = putIf(id, table, key, StoreMessage.requestValue(request), -1, StoreMessage.requestExpiresAt(request));
+						break;
+					case COUNTER_ADD:
+						response = counterAdd(id, table, key, ByteBuffer.wrap(StoreMessage.requestValue(request)).getLong());
+						break;
+					case COUNTER_MERGE:
+						response = counterMerge(id, table, key, StoreMessage.requestValue(request));
+						break;
+					case COUNTER_GET:
+						response = counterGet(id, table, key);
+						break;
+					case SUBSCRIBE:
+						this.count(StoreMessage.StoreRequestType.SUBSCRIBE);
+						this._feed.subscribe(id, packet.getSocketAddress(), table.keyspace.getId(), StoreMessage.requestValue(request));
+						response = null; // answered by the feed
+						break;
+					case CHANGES_ACK:
+						this.count(StoreMessage.StoreRequestType.CHANGES_ACK);
+						response = this._feed.ack(id, packet.getSocketAddress(), StoreMessage.requestValue(request));
+						break;
+					case HEARTBEAT_REQ:
+						this.count(StoreMessage.StoreRequestType.HEARTBEAT_REQ);
+						response = StoreMessage.createResponse(id, StoreMessage.StoreResponseType.HEARTBEAT_ACK);
+						break;
+					default: // an unknown request type, or a keyspace this store does not have
+						this.count(StoreMessage.StoreRequestType.UNKNOWN);
+						response = StoreMessage.createResponse(id, StoreMessage.StoreResponseType.UNRECOGNIZED_COMMAND);
+						break;
+				}
+				if (response == null)
+				{
+					return;
+				}
+				packet.setData(response);
+				try {
+					this._socket.send(packet);
+				} catch (IOException e) {
+					EventLog.event(REPLY_FAILED, e, packet.getSocketAddress());
+				}
+			});
+		});
+	}
+
+	/**
+	 * Visits every key that has been written, including removed keys (empty value), so that
+	 * streams carry tombstones too. Values that expire are visited with their expiry time.
+	 * The iteration is weakly consistent and runs concurrently with requests.
+	 * @param keyspace
+	 * @param visitor
+	 */
+	public void forEach(Keyspace keyspace, EntryVisitor visitor)
+	{
+		this._tables[keyspace.getId()].entries.forEach((keyString, val) -> {
+			if (val.version > 0)
+			{
+				visitor.visit(Utils.hexBytes(keyString), val.value, val.version, val.expiresAt);
 			}
+		});
+	}
+
+	/**
+	 * @return expired values turned into tombstones by the expirer
+	 */
+	public long getExpired() { return this._expired.get(); }
+
+	/**
+	 * @return values waiting for their expiry in the timing wheel, including ones overwritten since
+	 */
+	public int getPendingExpiries()
+	{
+		int pending = 0;
+		for (Table table : this._tables)
+		{
+			pending += table.expiries.size();
 		}
+		return pending;
+	}
+
+	/**
+	 * @param keyspace
+	 * @return the estimated memory of the values and counters of a keyspace, checked against its budget
+	 */
+	public long getMemoryBytes(Keyspace keyspace) { return this._tables[keyspace.getId()].memoryBytes.sum(); }
+
+	/**
+	 * Visits every counter, with its state.
+	 * @param keyspace
+	 * @param visitor
+	 */
+	public void forEachCounter(Keyspace keyspace, BiConsumer<byte[], PNCounter> visitor)
+	{
+		this._tables[keyspace.getId()].counters.forEach((keyString, counter) -> visitor.accept(Utils.hexBytes(keyString), counter));
+	}
+
+	/**
+	 * Direct access from a coordinator in the same process.
+	 */
+	@Override
+	public byte[] get(Keyspace keyspace, byte[] key, boolean withValue)
+	{
+		return this.get(LOCAL_ID, this._tables[keyspace.getId()], key, withValue);
+	}
+
+	@Override
+	public byte[] put(Keyspace keyspace, byte[] key, byte[] value, int version, long expiresAt)
+	{
+		this.count(StoreMessage.StoreRequestType.PUT);
+		return this.put(LOCAL_ID, this._tables[keyspace.getId()], key, value, version, expiresAt);
+	}
+
+	@Override
+	public byte[] putIf(Keyspace keyspace, byte[] id, byte[] key, byte[] value, int expected, long expiresAt)
+	{
+		return this.putIf(id, this._tables[keyspace.getId()], key, value, expected, expiresAt);
+	}
+
+	@Override
+	public byte[] counterAdd(Keyspace keyspace, byte[] id, byte[] key, long delta)
+	{
+		return this.counterAdd(id, this._tables[keyspace.getId()], key, delta);
+	}
+
+	@Override
+	public byte[] counterMerge(Keyspace keyspace, byte[] key, byte[] counter)
+	{
+		return this.counterMerge(LOCAL_ID, this._tables[keyspace.getId()], key, counter);
+	}
+
+	@Override
+	public byte[] counterGet(Keyspace keyspace, byte[] key) { return this.counterGet(LOCAL_ID, this._tables[keyspace.getId()], key); }
+
+	/**
+	 * @param id the number of a keyspace
+	 * @return its table, or null if there is no such keyspace
+	 */
+	private Table table(int id)
+	{
+		return id < this._tables.length ? this._tables[id] : null;
 	}
 
 	/**
 	 * method to get the value of a key from the store.
 	 * @param id: request id
+	 * @param table: table of the keyspace
 	 * @param key: key
+	 * @param withValue: false to only return the version
 	 * @return response (id, response type, version, value)
 	 */
-	private byte[] get(byte[] id, byte[] key)
+	private byte[] get(byte[] id, Table table, byte[] key, boolean withValue)
 	{
+		this.count(withValue ? StoreMessage.StoreRequestType.GET : StoreMessage.StoreRequestType.GET_VERSION);
 		String keyString = Utils.hexString(key);
 
 		/**
-		 * If the key does not exist in the store, create a new key-value pair with an empty value.
-		 * This is to avoid null pointer exception when trying to access the value of a non-existent key
-		 * and to return uniform responses for all keys.
-		 * You can also return a response with response type NON_EXISTENT_KEY. (Optional)
+		 * A key that was never written reads like a removed key at version 0. It is not added to the map,
+		 * so that reads of missing keys take no memory from the budget of the keyspace.
 		 */
-		if (!this._store.containsKey(keyString))
+		Value currVal = table.entries.get(keyString);
+
+		// expired values are found lazily here, before the expirer gets to them
+		if (currVal == null || !currVal.exists(Clock.currentTimeMillis()))
 		{
-			this._store.put(keyString, new Value(new byte[0], 0));
+			return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.NON_EXISTENT_KEY,
+					currVal == null ? 0 : currVal.version, new byte[0]);
 		}
-
-		Value currVal = this._store.get(keyString);
-
-		StoreMessage.StoreResponseType response = currVal.value.length > 0 ? StoreMessage.StoreResponseType.SUCCESSFUL : StoreMessage.StoreResponseType.NON_EXISTENT_KEY;
 		
-		return StoreMessage.createResponse(id, response, currVal.version, currVal.value);
+		return StoreMessage.withExpiry(StoreMessage.createResponse(id, StoreMessage.StoreResponseType.SUCCESSFUL,
+				currVal.version, withValue ? currVal.value : new byte[0]), withValue ? currVal.expiresAt : 0);
 	}
 
 	/**
 	 * method to put a key-value pair in the store.
+	 * Values are refused while the keyspace is full; removes are always accepted.
 	 * @param id: request id
+	 * @param table: table of the keyspace
 	 * @param key: key
 	 * @param val: value
 	 * @param ver: version
-	 * @return
+	 * @param expiresAt: expiry time in epoch milliseconds, 0 if the value does not expire
+	 * @return response (id, response type, version held after the put)
 	 */
-	private byte[] put(byte[] id, byte[] key, byte[] val, int ver)
+	private byte[] put(byte[] id, Table table, byte[] key, byte[] val, int ver, long expiresAt)
 	{
+		if (val.length > 0 && table.isFull())
+		{
+			return this.refuse(id, table, 0);
+		}
 		String keyString = Utils.hexString(key);
+		StoreMessage.StoreResponseType[] response = new StoreMessage.StoreResponseType[1];
+		int[] version = new int[1];
+		Value[] written = new Value[1];
 
-		/**
-		 * Update the value of the key if the version is greater than 0.
-		 * If value's length == 0, the key does not exist in the store.
-		 */
-		if (ver > 0)
+		// the whole update runs atomically for the key, so the Merkle tree sees every replaced value exactly once
+		table.entries.compute(keyString, (k, currVal) -> {
+			/**
+			 * Update the value of the key if the version is greater than 0.
+			 * If value's length == 0, the key does not exist in the store.
+			 * Explicit versions come from repair and rebalance streams, so an older version never replaces a newer one.
+			 */
+			if (ver > 0)
+			{
+				response[0] = StoreMessage.StoreResponseType.SUCCESSFUL;
+				if (currVal != null && currVal.version >= ver)
+				{
+					return currVal;
+				}
+				return written[0] = this.replace(table, key, currVal, this.value(table, k, val, ver, expiresAt));
+			}
+
+			/**
+			 * If the key does not exist in the store, create a new key-value pair with an empty value.
+			 */
+			if (currVal == null)
+			{
+				currVal = new Value(new byte[0], 0);
+			}
+
+			/**
+			 * If the key not exist (value's length == 0) and the value to be put is empty (remove operation),
+			 * return a response with response type NON_EXISTENT_KEY.
+			 */
+			if (!currVal.exists(Clock.currentTimeMillis()) && val.length == 0)
+			{
+				response[0] = StoreMessage.StoreResponseType.NON_EXISTENT_KEY;
+				version[0] = currVal.version;
+				return currVal;
+			}
+
+			/**
+			 * Origin value is empty, but the value to be put is not empty.
+			 * Or origin value is not empty, but the value to be put is empty. (remove operation)
+			 */
+			response[0] = StoreMessage.StoreResponseType.SUCCESSFUL;
+			version[0] = currVal.version + 1;
+			return written[0] = this.replace(table, key, currVal, this.value(table, k, val, version[0], expiresAt));
+		});
+		if (!this.log(table, key, written[0]))
 		{
-			this._store.put(keyString, new Value(val, ver));
-			return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.SUCCESSFUL);
+			return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.OUT_OF_SPACE, version[0], new byte[0]);
 		}
+		return StoreMessage.createResponse(id, response[0], version[0], new byte[0]);
+	}
 
-		/**
-		 * If the key does not exist in the store, create a new key-value pair with an empty value.
-		 */
-		if (!this._store.containsKey(keyString))
+	/**
+	 * Conditional put, atomic with the other writes of the key.
+	 * With an expected version, the value is written at version expected + 1 unless the stored version
+	 * is newer than expected, i.e. somebody else wrote since the client read. A replica that is behind
+	 * (older version) accepts the write and catches up. Without (-1), the value is written only if the key
+	 * does not exist or was removed.
+	 * A retransmission of an applied write succeeds again, with the version it wrote, instead of conflicting.
+	 * A write that does not conflict is refused while the keyspace is full, unless it removes the key.
+	 * @param id the ID of the client request, the same for its retransmissions
+	 * @param table
+	 * @param key
+	 * @param val
+	 * @param expected
+	 * @param expiresAt epoch milliseconds, 0 if the value does not expire
+	 * @return response (SUCCESSFUL, VERSION_CONFLICT or OUT_OF_SPACE, version held after the request)
+	 */
+	private byte[] putIf(byte[] id, Table table, byte[] key, byte[] val, int expected, long expiresAt)
+	{
+		this.count(expected < 0 ? StoreMessage.StoreRequestType.PUT_IF_ABSENT : StoreMessage.StoreRequestType.PUT_IF_VERSION);
+		StoreMessage.StoreResponseType[] response = new StoreMessage.StoreResponseType[1];
+		int[] version = new int[1];
+		Value[] written = new Value[1];
+		String writeId = Utils.hexString(id);
+		table.entries.compute(Utils.hexString(key), (k, currVal) -> {
+			int currVersion = currVal == null ? 0 : currVal.version;
+			boolean exists = currVal != null && currVal.exists(Clock.currentTimeMillis());
+			Integer applied = this._recentWrites.get(writeId);
+			if (applied != null)
+			{
+				response[0] = StoreMessage.StoreResponseType.SUCCESSFUL;
+				version[0] = applied;
+				return currVal;
+			}
+			if (expected < 0 ? exists : currVersion > expected)
+			{
+				response[0] = StoreMessage.StoreResponseType.VERSION_CONFLICT;
+				version[0] = currVersion;
+				return currVal;
+			}
+			if (val.length > 0 && table.isFull())
+			{
+				response[0] = StoreMessage.StoreResponseType.OUT_OF_SPACE;
+				version[0] = currVersion;
+				return currVal;
+			}
+			response[0] = StoreMessage.StoreResponseType.SUCCESSFUL;
+			version[0] = Math.max(currVersion, expected) + 1;
+			this._recentWrites.add(writeId, version[0]);
+			return written[0] = this.replace(table, key, currVal, this.value(table, k, val, version[0], expiresAt));
+		});
+		if (response[0] == StoreMessage.StoreResponseType.OUT_OF_SPACE)
 		{
-			this._store.put(keyString, new Value(new byte[0], 0));
+			return this.refuse(id, table, version[0]);
 		}
-		Value currVal = this._store.get(keyString);
+		if (!this.log(table, key, written[0]))
+		{
+			return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.OUT_OF_SPACE, version[0], new byte[0]);
+		}
+		return StoreMessage.createResponse(id, response[0], version[0], new byte[0]);
+	}
 
-		/**
-		 * If the key not exist (value's length == 0) and the value to be put is empty (remove operation),
-		 * return a response with response type NON_EXISTENT_KEY.
-		 */
-		if (currVal.value.length == 0 && val.length == 0)
+	/**
+	 * Counts a write refused because its keyspace is full.
+	 * @return the OUT_OF_SPACE response
+	 */
+	private byte[] refuse(byte[] id, Table table, int version)
+	{
+		this._refused[table.keyspace.getId()].increment();
+		return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.OUT_OF_SPACE, version, new byte[0]);
+	}
+
+	/**
+	 * Appends a new value to the log of a durable keyspace, compacting the log in the background when due,
+	 * and records it in the change feed once it is logged.
+	 * @param table
+	 * @param key
+	 * @param val the value written, or null if the write changed nothing
+	 * @return false if the log could not be written; the value is in memory but may be lost by a restart,
+	 * and is not passed to the subscribers
+	 */
+	private boolean log(Table table, byte[] key, Value val)
+	{
+		if (val == null)
+		{
+			return true;
+		}
+		if (table.log != null)
+		{
+			try {
+				if (table.log.appendValue(key, val.value, val.version, val.expiresAt))
+				{
+					this._expirer.execute(() -> this.compact(table));
+				}
+			} catch (IOException e) {
+				EventLog.event(LOG_FAILED, e, table.keyspace);
+				return false;
+			}
+		}
+		this._feed.record(table.keyspace.getId(), key, val.value, val.version, val.expiresAt);
+		return true;
+	}
+
+	/**
+	 * Appends a new counter state to the log of a durable keyspace.
+	 * @return false if the log could not be written
+	 */
+	private boolean log(Table table, byte[] key, PNCounter counter)
+	{
+		if (table.log == null)
+		{
+			return true;
+		}
+		try {
+			if (table.log.appendCounter(key, counter))
+			{
+				this._expirer.execute(() -> this.compact(table));
+			}
+			return true;
+		} catch (IOException e) {
+			EventLog.event(LOG_FAILED, e, table.keyspace);
+			return false;
+		}
+	}
+
+	private void compact(Table table)
+	{
+		try {
+			table.log.compact(table);
+		} catch (IOException e) {
+			EventLog.event(LOG_FAILED, e, table.keyspace);
+		}
+	}
+
+	/**
+	 * Forces the logs of the durable keyspaces to the disk.
+	 */
+	private void sync()
+	{
+		for (Table table : this._tables)
+		{
+			if (table.log != null)
+			{
+				try {
+					table.log.sync();
+				} catch (IOException e) {
+					EventLog.event(LOG_FAILED, e, table.keyspace);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a value to store, scheduling its expiry. A value that already expired, e.g. streamed late
+	 * from another replica, is stored as a tombstone.
+	 * @param table
+	 * @param keyString the key in the map
+	 * @param val
+	 * @param ver
+	 * @param expiresAt
+	 * @return
+	 */
+	private Value value(Table table, String keyString, byte[] val, int ver, long expiresAt)
+	{
+		if (expiresAt == 0 || val.length == 0)
+		{
+			return new Value(val, ver);
+		}
+		if (expiresAt <= Clock.currentTimeMillis())
+		{
+			return new Value(new byte[0], ver);
+		}
+		table.expiries.schedule(keyString, expiresAt);
+		return new Value(val, ver, expiresAt);
+	}
+
+	/**
+	 * Turns the values due in the timing wheel into tombstones, keeping their version so that replicas
+	 * which missed the expiry are repaired like after a remove. Keys written again since are left alone.
+	 */
+	private void expire()
+	{
+		long now = Clock.currentTimeMillis();
+		for (Table table : this._tables)
+		{
+			for (String keyString : table.expiries.advance(now))
+			{
+				byte[] key = Utils.hexBytes(keyString);
+				Value[] written = new Value[1];
+				table.entries.computeIfPresent(keyString, (k, currVal) -> {
+					if (currVal.expiresAt == 0 || currVal.expiresAt > now || currVal.value.length == 0)
+					{
+						return currVal;
+					}
+					this._expired.increment();
+					return written[0] = this.replace(table, key, currVal, new Value(new byte[0], currVal.version));
+				});
+				this.log(table, key, written[0]);
+			}
+		}
+	}
+
+	/**
+	 * Adds to this replica's slot of a counter. A retransmission of an applied addition is not applied again.
+	 * Additions are refused while the keyspace is full.
+	 * @param id the ID of the client request, the same for its retransmissions
+	 * @param table
+	 * @param key
+	 * @param delta
+	 * @return response (SUCCESSFUL, counter state after the change)
+	 */
+	private byte[] counterAdd(byte[] id, Table table, byte[] key, long delta)
+	{
+		this.count(StoreMessage.StoreRequestType.COUNTER_ADD);
+		if (table.isFull())
+		{
+			return this.refuse(id, table, 0);
+		}
+		String writeId = Utils.hexString(id);
+		PNCounter counter = table.counters.compute(Utils.hexString(key), (k, curr) -> {
+			PNCounter state = curr == null ? PNCounter.EMPTY : curr;
+			if (!this._recentWrites.add(writeId, 0))
+			{
+				return state;
+			}
+			return this.account(table, curr, state.add(this._nodeId, delta));
+		});
+		if (!this.log(table, key, counter))
+		{
+			return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.OUT_OF_SPACE);
+		}
+		return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.SUCCESSFUL, 0, counter.toBytes());
+	}
+
+	/**
+	 * Merges a counter state from another replica into this one's.
+	 * @param id
+	 * @param table
+	 * @param key
+	 * @param counter
+	 * @return response (SUCCESSFUL, merged counter state)
+	 */
+	private byte[] counterMerge(byte[] id, Table table, byte[] key, byte[] counter)
+	{
+		this.count(StoreMessage.StoreRequestType.COUNTER_MERGE);
+		PNCounter other = PNCounter.fromBytes(counter);
+		PNCounter merged = table.counters.compute(Utils.hexString(key),
+				(k, curr) -> this.account(table, curr, curr == null ? other : curr.merge(other)));
+		if (!this.log(table, key, merged))
+		{
+			return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.OUT_OF_SPACE);
+		}
+		return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.SUCCESSFUL, 0, merged.toBytes());
+	}
+
+	private byte[] counterGet(byte[] id, Table table, byte[] key)
+	{
+		this.count(StoreMessage.StoreRequestType.COUNTER_GET);
+		PNCounter counter = table.counters.get(Utils.hexString(key));
+		if (counter == null)
 		{
 			return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.NON_EXISTENT_KEY);
 		}
+		return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.SUCCESSFUL, 0, counter.toBytes());
+	}
 
-		/**
-		 * Origin value is empty, but the value to be put is not empty.
-		 * Or origin value is not empty, but the value to be put is empty. (remove operation)
-		 */
-		this._store.put(keyString, new Value(val, currVal.version + 1));
+	/**
+	 * Writes the entries of a BATCH_PUT request, each with its explicit version.
+	 * @param id
+	 * @param table
+	 * @param request
+	 * @return
+	 */
+	private byte[] batchPut(byte[] id, Table table, byte[] request)
+	{
+		ByteBuffer entries = ByteBuffer.wrap(StoreMessage.requestValue(request));
+		while (entries.remaining() >= StoreMessage.KEY_BYTES + StoreMessage.VALUE_VER_BYTES + StoreMessage.EXPIRY_BYTES + StoreMessage.VALUE_LEN_BYTES)
+		{
+			byte[] key = new byte[StoreMessage.KEY_BYTES];
+			entries.get(key);
+			int version = entries.getShort() & 0xFFFF;
+			long expiresAt = entries.getLong();
+			byte[] value = new byte[Math.min(entries.getShort() & 0xFFFF, entries.remaining())];
+			entries.get(value);
+			if (version > 0)
+			{
+				put(id, table, key, value, version, expiresAt);
+			}
+		}
 		return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.SUCCESSFUL);
 	}
+
+	private void count(StoreMessage.StoreRequestType type)
+	{
+		this._requests[type.ordinal()].increment();
+	}
+
+	/**
+	 * Records the replacement of a value in the Merkle tree and in the byte counts of its table.
+	 * @param table
+	 * @param key
+	 * @param oldVal the replaced value, or null
+	 * @param newVal
+	 * @return newVal
+	 */
+	private Value replace(Table table, byte[] key, Value oldVal, Value newVal)
+	{
+		long delta = newVal.value.length - (oldVal == null ? 0 : oldVal.value.length);
+		table.valueBytes.add(delta);
+		table.memoryBytes.add(oldVal == null ? delta + Table.ENTRY_BYTES : delta);
+		long token = Murmur3.hash64(key);
+		if (oldVal == null)
+		{
+			table.leafKeys.get(table.tree.leaf(token)).add(Utils.hexString(key));
+		}
+		long oldHash = oldVal == null ? 0 : MerkleTree.entryHash(key, oldVal.value, oldVal.version);
+		table.tree.update(token, oldHash, MerkleTree.entryHash(key, newVal.value, newVal.version));
+		return newVal;
+	}
+
+	/**
+	 * Records the replacement of a counter state in the memory count of its table.
+	 * @param table
+	 * @param oldCounter the replaced state, or null
+	 * @param newCounter
+	 * @return newCounter
+	 */
+	private PNCounter account(Table table, PNCounter oldCounter, PNCounter newCounter)
+	{
+		long delta = (long) (newCounter.size() - (oldCounter == null ? 0 : oldCounter.size())) * PNCounter.SLOT_BYTES;
+		table.memoryBytes.add(oldCounter == null ? delta + Table.COUNTER_BYTES : delta);
+		return newCounter;
+	}
+
+	/**
+	 * Answers a Merkle tree exchange: the hashes of the requested nodes, in request order.
+	 * Request value: node numbers (2 bytes each). Response value: hashes (8 bytes each).
+	 * @param id
+	 * @param table
+	 * @param request
+	 * @return
+	 */
+	private byte[] merkleHashes(byte[] id, Table table, byte[] request)
+	{
+		long[] nodes = table.tree.snapshot();
+		ByteBuffer indices = ByteBuffer.wrap(StoreMessage.requestValue(request));
+		ByteBuffer hashes = ByteBuffer.allocate(indices.remaining() / 2 * 8);
+		while (indices.remaining() >= 2)
+		{
+			int node = indices.getShort() & 0xFFFF;
+			hashes.putLong(node > 0 && node < nodes.length ? nodes[node] : 0);
+		}
+		return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.SUCCESSFUL, 0, hashes.array());
+	}
+
+	/**
+	 * Answers the keys and versions held in the requested leaves.
+	 * Request value: leaf indices (2 bytes each). Response value: key (32 bytes) and version (2 bytes) per entry.
+	 * The response version is 1 if the entries did not fit in one response.
+	 * @param id
+	 * @param table
+	 * @param request
+	 * @return
+	 */
+	private byte[] merkleKeys(byte[] id, Table table, byte[] request)
+	{
+		HashSet<Integer> leaves = new HashSet<>();
+		ByteBuffer indices = ByteBuffer.wrap(StoreMessage.requestValue(request));
+		while (indices.remaining() >= 2)
+		{
+			leaves.add(indices.getShort() & 0xFFFF);
+		}
+		int entryBytes = StoreMessage.KEY_BYTES + StoreMessage.VALUE_VER_BYTES;
+		ByteBuffer entries = ByteBuffer.allocate(StoreMessage.VALUE_MAX_BYTES / entryBytes * entryBytes);
+		boolean[] truncated = new boolean[1];
+		this.forEachInLeaves(table.keyspace, leaves, (key, value, version, expiresAt) -> {
+			if (entries.remaining() < entryBytes)
+			{
+				truncated[0] = true;
+				return;
+			}
+			entries.put(key);
+			entries.putShort((short) version);
+		});
+		byte[] value = new byte[entries.position()];
+		System.arraycopy(entries.array(), 0, value, 0, value.length);
+		return StoreMessage.createResponse(id, StoreMessage.StoreResponseType.SUCCESSFUL, truncated[0] ? 1 : 0, value);
+	}
+
+	/**
+	 * @param keyspace
+	 * @return a snapshot of the Merkle tree of a keyspace, indexed by node number
+	 */
+	public long[] merkleSnapshot(Keyspace keyspace) { return this._tables[keyspace.getId()].tree.snapshot(); }
+
+	/**
+	 * @return the number of leaves of the Merkle trees, the same for every keyspace
+	 */
+	public int merkleLeafCount() { return this._tables[0].tree.getLeafCount(); }
+
+	/**
+	 * Visits the written keys of a keyspace (including removed ones) that fall in the given leaves,
+	 * from the keys indexed by leaf, so that the cost depends on the keys of those leaves only.
+	 * @param keyspace
+	 * @param leaves
+	 * @param visitor
+	 */
+	public void forEachInLeaves(Keyspace keyspace, Set<Integer> leaves, EntryVisitor visitor)
+	{
+		Table table = this._tables[keyspace.getId()];
+		for (int leaf : leaves)
+		{
+			if (leaf < 0 || leaf >= table.leafKeys.size())
+			{
+				continue;
+			}
+			for (String keyString : table.leafKeys.get(leaf))
+			{
+				Value val = table.entries.get(keyString);
+				if (val != null && val.version > 0)
+				{
+					visitor.visit(Utils.hexBytes(keyString), val.value, val.version, val.expiresAt);
+				}
+			}
+		}
+	}
 }
@@ -5,18 +5,65 @@
  */
 package main.java.io.kvstore.store;
 
+import main.java.io.kvstore.log.EventLog;
+import main.java.io.kvstore.log.LogSite;
+import main.java.io.kvstore.metrics.Counter;
+import main.java.io.kvstore.metrics.Histogram;
+import main.java.io.kvstore.metrics.Metrics;
+import main.java.io.kvstore.transport.Transport;
+import main.java.io.kvstore.transport.UdpTransport;
+import main.java.io.kvstore.utils.Clock;
 import main.java.io.kvstore.utils.Utils;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.util.concurrent.*;
 import java.util.function.Consumer;
 
 public class StoreClient
 {
+	private static final LogSite SEND_FAILED = LogSite.warn("store_client.send_failed", "store");
+
+	/**
+	 * Metrics of the requests to one store.
+	 */
+	private static class NodeMetrics
+	{
+		final Histogram rtt;
+		final Counter retransmits;
+		final Counter timeouts;
+		NodeMetrics(Metrics metrics, String node)
+		{
+			this.rtt = metrics.histogram("kvstore_store_client_rtt_seconds",
+					"Time from the first transmission of a store request to its response", "node", node);
+			this.retransmits = metrics.counter("kvstore_store_client_retransmits_total",
+					"Store requests sent again after no response", "node", node);
+			this.timeouts = metrics.counter("kvstore_store_client_timeouts_total",
+					"Store requests given up without response", "node", node);
+		}
+	}
+
+	/**
+	 * A request waiting for its response.
+	 */
+	private static class Pending
+	{
+		final Consumer<byte[]> onSuccess;
+		final Consumer<byte[]> onFailure;
+		final long sentNanos;
+		final NodeMetrics metrics;
+		Pending(Consumer<byte[]> onSuccess, Consumer<byte[]> onFailure, NodeMetrics metrics)
+		{
+			this.onSuccess = onSuccess;
+			this.onFailure = onFailure;
+			this.sentNanos = Clock.nanoTime();
+			this.metrics = metrics;
+		}
+	}
+
 	/**
 	 * The port number of the store server.
 	 */
@@ -33,32 +80,59 @@ public class StoreClient
 	private final int _timeoutMs;
 
 	/**
-	 * The socket for sending and receiving packets.
+	 * The endpoint for sending and receiving packets.
 	 */
-	private final DatagramSocket _socket;
+	private final Transport _socket;
 
 	/**
 	 * The executor for scheduling retry sends and timeout logic.
 	 */
-	private final ScheduledExecutorService _executor = Executors.newSingleThreadScheduledExecutor();
+	private final ScheduledExecutorService _executor = Clock.newScheduledExecutor();
 
 	/**
-	 * The map of request keys to success callbacks.
+	 * The requests waiting for a response, by request key. Whoever removes a request, the receiver or
+	 * the timeout, calls its callback.
 	 */
-	private final ConcurrentHashMap<String, Consumer<byte[]>> _onSuccess = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Pending> _pending = new ConcurrentHashMap<>();
+
+	private final Metrics _metrics;
 
 	/**
-	 * The map of request keys to failure callbacks.
+	 * Metrics by store.
 	 */
-	private final ConcurrentHashMap<String, Consumer<byte[]>> _onFailure = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<InetSocketAddress, NodeMetrics> _nodeMetrics = new ConcurrentHashMap<>();
 
 	public StoreClient(int port, int attempts, int timeoutMs) throws SocketException
 	{
+		this(port, attempts, timeoutMs, new Metrics());
+	}
+
+	/**
+	 * @param port
+	 * @param attempts
+	 * @param timeoutMs
+	 * @param metrics registry of the round-trip times, retransmits and timeouts, by store
+	 * @throws SocketException
+	 */
+	public StoreClient(int port, int attempts, int timeoutMs, Metrics metrics) throws SocketException
+	{
+		this(port, new UdpTransport(0), attempts, timeoutMs, metrics);
+	}
+
+	/**
+	 * @param port
+	 * @param transport the endpoint the requests are sent from, e.g. on a simulated network
+	 * @param attempts
+	 * @param timeoutMs
+	 * @param metrics registry of the round-trip times, retransmits and timeouts, by store
+	 */
+	public StoreClient(int port, Transport transport, int attempts, int timeoutMs, Metrics metrics)
+	{
+		this._metrics = metrics;
 		this._port = port;
 		this._attempts = attempts;
 		this._timeoutMs = timeoutMs;
-		this._socket = new DatagramSocket();
-		this._socket.setReuseAddress(true);
+		this._socket = transport;
 	}
 
 	/**
@@ -82,22 +156,43 @@ public class StoreClient
 	 * @param onFailure
 	 */
 	public void send(InetAddress addr, int port, byte[] data, Consumer<byte[]> onSuccess, Consumer<byte[]> onFailure)
+	{
+		send(addr, port, data, onSuccess, onFailure, this._attempts, this._timeoutMs);
+	}
+
+	/**
+	 * Send request with a specific number of attempts and timeout, e.g. single-shot heartbeats.
+	 * @param addr
+	 * @param port
+	 * @param data
+	 * @param onSuccess
+	 * @param onFailure
+	 * @param attempts
+	 * @param timeoutMs
+	 */
+	public void send(InetAddress addr, int port, byte[] data, Consumer<byte[]> onSuccess, Consumer<byte[]> onFailure,
+			int attempts, int timeoutMs)
 	{
 		String key = key(addr, port, StoreMessage.id(data));
-		this._onSuccess.put(key, onSuccess);
-		this._onFailure.put(key, onFailure);
+		NodeMetrics metrics = this._nodeMetrics.computeIfAbsent(new InetSocketAddress(addr, port),
+				node -> new NodeMetrics(this._metrics, addr.getHostAddress() + ":" + port));
+		this._pending.put(key, new Pending(onSuccess, onFailure, metrics));
 		
 		DatagramPacket packet = new DatagramPacket(data, data.length, addr, port);
 		
 		// Send with retries
-		for (int i = 0; i < this._attempts; i++) {
+		for (int i = 0; i < attempts; i++) {
+			boolean retransmit = i > 0;
 			this._executor.schedule(() -> {
 				// If response received, onSuccess will be called and the key will be removed from the map
-				if (this._onSuccess.containsKey(key)) {
+				if (this._pending.containsKey(key)) {
+					if (retransmit) {
+						metrics.retransmits.increment();
+					}
 					try {
 						this._socket.send(packet);
 					} catch (Exception e) {
-						e.printStackTrace();
+						EventLog.event(SEND_FAILED, e, packet.getSocketAddress());
 					}
 				}
 			}, (int) (i == 0 ? 0 : 250 * Math.pow(2, i)) , TimeUnit.MILLISECONDS);
@@ -105,12 +200,12 @@ public class StoreClient
 		 
 		// Give up if no response received
 		this._executor.schedule(() -> {
-			Consumer<byte[]> thisOnFailure = this._onFailure.remove(key);
-			if (thisOnFailure != null) {
-				thisOnFailure.accept(data);
-				this._onSuccess.remove(key);
+			Pending pending = this._pending.remove(key);
+			if (pending != null) {
+				metrics.timeouts.increment();
+				pending.onFailure.accept(data);
 			}
-		}, _timeoutMs, TimeUnit.MILLISECONDS);
+		}, timeoutMs, TimeUnit.MILLISECONDS);
 	}
 
 	/**
@@ -119,23 +214,16 @@ public class StoreClient
 	 */
 	public void receive(ExecutorService executor)
 	{
-		while (true)
-		{
-			byte[] response = new byte[StoreMessage.MAX_RES_BYTES];
-			DatagramPacket packet = new DatagramPacket(response, response.length);
-			try {
-				this._socket.receive(packet);
-				executor.execute(() -> {
-					String key = key(packet.getAddress(), packet.getPort(), StoreMessage.id(response));
-					Consumer<byte[]> onSuccess = this._onSuccess.remove(key);
-					if (onSuccess != null) {
-						onSuccess.accept(response); // call onSuccess callback
-						this._onFailure.remove(key);
-					}
-				});
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
+		this._socket.listen(StoreMessage.MAX_RES_BYTES, packet -> {
+			byte[] response = packet.getData();
+			executor.execute(() -> {
+				String key = key(packet.getAddress(), packet.getPort(), StoreMessage.id(response));
+				Pending pending = this._pending.remove(key);
+				if (pending != null) {
+					pending.metrics.rtt.record(Clock.nanoTime() - pending.sentNanos);
+					pending.onSuccess.accept(response); // call onSuccess callback
+				}
+			});
+		});
 	}
 }
@@ -4,8 +4,10 @@
  */
 package main.java.io.kvstore.store;
 
+import main.java.io.kvstore.utils.Clock;
+
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Random;
 
 public class StoreMessage
 {
@@ -14,6 +16,17 @@ public class StoreMessage
 		PUT,
 		GET,
 		HEARTBEAT_REQ,
+		GET_VERSION,
+		MERKLE_HASHES,
+		MERKLE_KEYS,
+		BATCH_PUT,
+		PUT_IF_VERSION,
+		PUT_IF_ABSENT,
+		COUNTER_ADD,
+		COUNTER_MERGE,
+		COUNTER_GET,
+		SUBSCRIBE,
+		CHANGES_ACK,
 		UNKNOWN
 	}
 
@@ -23,6 +36,8 @@ public class StoreMessage
 		NON_EXISTENT_KEY,
 		OUT_OF_SPACE,
 		HEARTBEAT_ACK,
+		VERSION_CONFLICT,
+		CHANGES,
 		UNRECOGNIZED_COMMAND
 	}
 	
@@ -32,9 +47,28 @@ public class StoreMessage
 	public static final int VALUE_VER_BYTES = 2;
 	public static final int VALUE_LEN_BYTES = 2;
 	public static final int VALUE_MAX_BYTES = 15000;
+	public static final int EXPIRY_BYTES = 8;
+	public static final int KEYSPACE_BYTES = 1;
 	public static final int MIN_BYTES = ID_BYTES + COMMAND_BYTES;
-	public static final int MAX_REQ_BYTES = MIN_BYTES + KEY_BYTES + VALUE_VER_BYTES + VALUE_LEN_BYTES + VALUE_MAX_BYTES;
-	public static final int MAX_RES_BYTES = MIN_BYTES + VALUE_VER_BYTES + VALUE_LEN_BYTES + VALUE_MAX_BYTES;
+	public static final int MAX_REQ_BYTES = MIN_BYTES + KEY_BYTES + VALUE_VER_BYTES + VALUE_LEN_BYTES + VALUE_MAX_BYTES + EXPIRY_BYTES
+			+ KEYSPACE_BYTES;
+	public static final int MAX_RES_BYTES = MIN_BYTES + VALUE_VER_BYTES + VALUE_LEN_BYTES + VALUE_MAX_BYTES + EXPIRY_BYTES;
+
+	/**
+	 * Header of a CHANGES batch: epoch of the store (8 bytes), sequence number of the first change it covers
+	 * (8 bytes), sequence number after the last one (8 bytes), flags (1 byte).
+	 */
+	public static final int CHANGES_HEADER_BYTES = 8 + 8 + 8 + 1;
+
+	/**
+	 * Flag of a CHANGES batch: changes before it were dropped from the log, or written before the store restarted.
+	 */
+	public static final int CHANGES_GAP = 0x01;
+
+	/**
+	 * Value length of a change whose value is too large for a batch and left out.
+	 */
+	public static final int CHANGE_VALUE_OMITTED = 0xFFFF;
 
 	/**
 	 * Extracts the ID from a message
@@ -53,7 +87,7 @@ public class StoreMessage
 	public static byte[] createId()
 	{
 		byte[] id = new byte[ID_BYTES];
-		new Random().nextBytes(id);
+		Clock.random().nextBytes(id);
 		return id;
 	}
 
@@ -69,6 +103,17 @@ public class StoreMessage
 			case 0x01: return StoreRequestType.PUT;
 			case 0x02: return StoreRequestType.GET;
 			case 0x03: return StoreRequestType.HEARTBEAT_REQ;
+			case 0x04: return StoreRequestType.GET_VERSION;
+			case 0x05: return StoreRequestType.MERKLE_HASHES;
+			case 0x06: return StoreRequestType.MERKLE_KEYS;
+			case 0x07: return StoreRequestType.BATCH_PUT;
+			case 0x08: return StoreRequestType.PUT_IF_VERSION;
+			case 0x09: return StoreRequestType.PUT_IF_ABSENT;
+			case 0x0A: return StoreRequestType.COUNTER_ADD;
+			case 0x0B: return StoreRequestType.COUNTER_MERGE;
+			case 0x0C: return StoreRequestType.COUNTER_GET;
+			case 0x0D: return StoreRequestType.SUBSCRIBE;
+			case 0x0E: return StoreRequestType.CHANGES_ACK;
 			default: return StoreRequestType.UNKNOWN;
 		}
 	}
@@ -85,6 +130,17 @@ public class StoreMessage
 			case PUT: return 0x01;
 			case GET: return 0x02;
 			case HEARTBEAT_REQ: return 0x03;
+			case GET_VERSION: return 0x04;
+			case MERKLE_HASHES: return 0x05;
+			case MERKLE_KEYS: return 0x06;
+			case BATCH_PUT: return 0x07;
+			case PUT_IF_VERSION: return 0x08;
+			case PUT_IF_ABSENT: return 0x09;
+			case COUNTER_ADD: return 0x0A;
+			case COUNTER_MERGE: return 0x0B;
+			case COUNTER_GET: return 0x0C;
+			case SUBSCRIBE: return 0x0D;
+			case CHANGES_ACK: return 0x0E;
 			default: return 0x00;
 		}
 	}
@@ -102,6 +158,8 @@ public class StoreMessage
 			case 0x02: return StoreResponseType.NON_EXISTENT_KEY;
 			case 0x03: return StoreResponseType.OUT_OF_SPACE;
 			case 0x04: return StoreResponseType.HEARTBEAT_ACK;
+			case 0x05: return StoreResponseType.VERSION_CONFLICT;
+			case 0x06: return StoreResponseType.CHANGES;
 			default: return StoreResponseType.UNRECOGNIZED_COMMAND;
 		}
 	}
@@ -119,6 +177,8 @@ public class StoreMessage
 			case NON_EXISTENT_KEY: return 0x02;
 			case OUT_OF_SPACE: return 0x03;
 			case HEARTBEAT_ACK: return 0x04;
+			case VERSION_CONFLICT: return 0x05;
+			case CHANGES: return 0x06;
 			default: return 0x00;
 		}
 	}
@@ -168,6 +228,28 @@ public class StoreMessage
 		return Arrays.copyOfRange(request, start, end);
 	}
 
+	/**
+	 * Extracts the expiry time of the value of a write request, stored after the value.
+	 * @param request
+	 * @return epoch milliseconds, 0 if the value does not expire
+	 */
+	public static long requestExpiresAt(byte[] request)
+	{
+		int start = MIN_BYTES + KEY_BYTES + VALUE_VER_BYTES + VALUE_LEN_BYTES + requestValue(request).length;
+		return request.length < start + EXPIRY_BYTES ? 0 : ByteBuffer.wrap(request, start, EXPIRY_BYTES).getLong();
+	}
+
+	/**
+	 * Extracts the number of the keyspace of a request, stored after the expiry time.
+	 * @param request
+	 * @return the number of the keyspace, 0 (the default keyspace) if absent
+	 */
+	public static int requestKeyspace(byte[] request)
+	{
+		int start = MIN_BYTES + KEY_BYTES + VALUE_VER_BYTES + VALUE_LEN_BYTES + requestValue(request).length + EXPIRY_BYTES;
+		return request.length < start + KEYSPACE_BYTES ? 0 : request[start] & 0xFF;
+	}
+
 	/**
 	 * Extracts the value version from a response message
 	 * @param response
@@ -203,6 +285,17 @@ public class StoreMessage
 		return Arrays.copyOfRange(response, start, end);
 	}
 
+	/**
+	 * Extracts the expiry time of the value of a GET response, stored after the value.
+	 * @param response
+	 * @return epoch milliseconds, 0 if the value does not expire
+	 */
+	public static long responseExpiresAt(byte[] response)
+	{
+		int start = MIN_BYTES + VALUE_VER_BYTES + VALUE_LEN_BYTES + responseValue(response).length;
+		return response.length < start + EXPIRY_BYTES ? 0 : ByteBuffer.wrap(response, start, EXPIRY_BYTES).getLong();
+	}
+
 	/**
 	 * Creates a GET request
 	 * @param id
@@ -214,6 +307,181 @@ public class StoreMessage
 		return createRequest(createId(), StoreRequestType.GET, key, new byte[0], 0);
 	}
 
+	/**
+	 * Creates a version-only GET request. The response carries the version but no value.
+	 * @param id
+	 * @param key
+	 * @return
+	 */
+	public static byte[] createGetVersionRequest(byte[] id, byte[] key)
+	{
+		return createRequest(createId(), StoreRequestType.GET_VERSION, key, new byte[0], 0);
+	}
+
+	/**
+	 * Creates a request for the hashes of Merkle tree nodes.
+	 * @param nodes node numbers
+	 * @return
+	 */
+	public static byte[] createMerkleHashesRequest(int[] nodes)
+	{
+		return createRequest(createId(), StoreRequestType.MERKLE_HASHES, new byte[0], shorts(nodes), 0);
+	}
+
+	/**
+	 * Creates a request for the keys and versions of Merkle tree leaves.
+	 * @param leaves leaf indices
+	 * @return
+	 */
+	public static byte[] createMerkleKeysRequest(int[] leaves)
+	{
+		return createRequest(createId(), StoreRequestType.MERKLE_KEYS, new byte[0], shorts(leaves), 0);
+	}
+
+	/**
+	 * Creates a request writing several entries with explicit versions.
+	 * @param entries entries written with putBatchEntry
+	 * @return
+	 */
+	public static byte[] createBatchPutRequest(byte[] entries)
+	{
+		return createRequest(createId(), StoreRequestType.BATCH_PUT, new byte[0], entries, 0);
+	}
+
+	/**
+	 * Creates a request adding to the receiving replica's slot of a counter.
+	 * The response carries the replica's counter state after the change.
+	 * @param id the ID of the client request, so that the replica applies its retransmissions once
+	 * @param key
+	 * @param delta positive to increment, negative to decrement
+	 * @return
+	 */
+	public static byte[] createCounterAddRequest(byte[] id, byte[] key, long delta)
+	{
+		return createRequest(id, StoreRequestType.COUNTER_ADD, key, ByteBuffer.allocate(Long.BYTES).putLong(delta).array(), 0);
+	}
+
+	/**
+	 * Creates a request merging a counter state into the receiving replica's.
+	 * The response carries the merged state.
+	 * @param key
+	 * @param counter state written with PNCounter.toBytes
+	 * @return
+	 */
+	public static byte[] createCounterMergeRequest(byte[] key, byte[] counter)
+	{
+		return createRequest(createId(), StoreRequestType.COUNTER_MERGE, key, counter, 0);
+	}
+
+	/**
+	 * Creates a request for the counter state of a key.
+	 * @param key
+	 * @return
+	 */
+	public static byte[] createCounterGetRequest(byte[] key)
+	{
+		return createRequest(createId(), StoreRequestType.COUNTER_GET, key, new byte[0], 0);
+	}
+
+	/**
+	 * @param value
+	 * @return size of an entry of a BATCH_PUT request
+	 */
+	public static int batchEntryBytes(byte[] value)
+	{
+		return KEY_BYTES + VALUE_VER_BYTES + EXPIRY_BYTES + VALUE_LEN_BYTES + value.length;
+	}
+
+	/**
+	 * Appends an entry to the value of a BATCH_PUT request: key, version (2 bytes), expiry time (8 bytes),
+	 * value length (2 bytes), value.
+	 * @param entries
+	 * @param key
+	 * @param value
+	 * @param version
+	 * @param expiresAt epoch milliseconds, 0 if the value does not expire
+	 */
+	public static void putBatchEntry(ByteBuffer entries, byte[] key, byte[] value, int version, long expiresAt)
+	{
+		entries.put(key, 0, KEY_BYTES);
+		entries.putShort((short) version);
+		entries.putLong(expiresAt);
+		entries.putShort((short) value.length);
+		entries.put(value);
+	}
+
+	/**
+	 * Creates a request subscribing to the change feed of a store. The store answers with CHANGES batches,
+	 * pushed as changes are written, and with an empty one at once.
+	 * @param id the ID of the subscription, carried by its batches and acknowledgements
+	 * @param epoch the epoch of the store from its last batch, or 0 for none
+	 * @param from the sequence number of the first change wanted, 0 for the changes after the subscription
+	 * @param window number of batches the store may push ahead of the acknowledgements
+	 * @return
+	 */
+	public static byte[] createSubscribeRequest(byte[] id, long epoch, long from, int window)
+	{
+		byte[] value = ByteBuffer.allocate(8 + 8 + 2).putLong(epoch).putLong(from).putShort((short) window).array();
+		return createRequest(id, StoreRequestType.SUBSCRIBE, new byte[0], value, 0);
+	}
+
+	/**
+	 * Creates the acknowledgement of the CHANGES batches of a subscription, which the store does not answer.
+	 * @param id the ID of the subscription
+	 * @param next the sequence number after the last batch processed
+	 * @param window number of batches the store may push ahead of it
+	 * @return
+	 */
+	public static byte[] createChangesAckRequest(byte[] id, long next, int window)
+	{
+		byte[] value = ByteBuffer.allocate(8 + 2).putLong(next).putShort((short) window).array();
+		return createRequest(id, StoreRequestType.CHANGES_ACK, new byte[0], value, 0);
+	}
+
+	/**
+	 * @param value
+	 * @return size of a change in a CHANGES batch
+	 */
+	public static int changeEntryBytes(byte[] value)
+	{
+		return 8 + batchEntryBytes(value);
+	}
+
+	/**
+	 * Appends a change to a CHANGES batch: sequence number (8 bytes), then a batch entry, whose value
+	 * length is CHANGE_VALUE_OMITTED and value empty if the value is left out.
+	 * @param entries
+	 * @param seq
+	 * @param key
+	 * @param value the value, empty for a tombstone, or null to leave it out
+	 * @param version
+	 * @param expiresAt
+	 */
+	public static void putChange(ByteBuffer entries, long seq, byte[] key, byte[] value, int version, long expiresAt)
+	{
+		entries.putLong(seq);
+		if (value == null)
+		{
+			entries.put(key, 0, KEY_BYTES);
+			entries.putShort((short) version);
+			entries.putLong(expiresAt);
+			entries.putShort((short) CHANGE_VALUE_OMITTED);
+			return;
+		}
+		putBatchEntry(entries, key, value, version, expiresAt);
+	}
+
+	private static byte[] shorts(int[] values)
+	{
+		byte[] result = new byte[values.length * 2];
+		for (int i = 0; i < values.length; i++)
+		{
+			result[2 * i] = (byte) ((values[i] >> 8) & 0xFF);
+			result[2 * i + 1] = (byte) (values[i] & 0xFF);
+		}
+		return result;
+	}
+
 	/**
 	 * Creates a PUT request
 	 * @param id
@@ -228,12 +496,57 @@ public class StoreMessage
 	}
 
 	/**
-	 * Creates a HEARTBEAT request
+	 * Creates a PUT request of a value that expires.
+	 * @param id
+	 * @param key
+	 * @param value
+	 * @param version
+	 * @param expiresAt epoch milliseconds, 0 if the value does not expire
+	 * @return
+	 */
+	public static byte[] createPutRequest(byte[] id, byte[] key, byte[] value, int version, long expiresAt)
+	{
+		return withExpiry(createRequest(createId(), StoreRequestType.PUT, key, value, version), expiresAt);
+	}
+
+	/**
+	 * Creates a conditional PUT, applied only if the stored version is not newer than the expected one.
+	 * An empty value removes the key.
+	 * @param id the ID of the client request, so that replicas recognize its retransmissions
+	 * @param key
+	 * @param value
+	 * @param expected
+	 * @param expiresAt epoch milliseconds, 0 if the value does not expire
+	 * @return
+	 */
+	public static byte[] createPutIfVersionRequest(byte[] id, byte[] key, byte[] value, int expected, long expiresAt)
+	{
+		return withExpiry(createRequest(id, StoreRequestType.PUT_IF_VERSION, key, value, expected), expiresAt);
+	}
+
+	/**
+	 * Creates a PUT applied only if the key does not exist.
+	 * @param id the ID of the client request
+	 * @param key
+	 * @param value
+	 * @param expiresAt epoch milliseconds, 0 if the value does not expire
+	 * @return
+	 */
+	public static byte[] createPutIfAbsentRequest(byte[] id, byte[] key, byte[] value, long expiresAt)
+	{
+		return withExpiry(createRequest(id, StoreRequestType.PUT_IF_ABSENT, key, value, 0), expiresAt);
+	}
+
+	/**
+	 * Creates a HEARTBEAT request. Only the ID and the request type are sent.
 	 * @return
 	 */
 	public static byte[] createHeartbeatRequest()
 	{
-		return createRequest(createId(), StoreRequestType.HEARTBEAT_REQ, new byte[0], new byte[0], 0);
+		byte[] result = new byte[MIN_BYTES];
+		System.arraycopy(createId(), 0, result, 0, ID_BYTES);
+		result[ID_BYTES] = storeRequestType(StoreRequestType.HEARTBEAT_REQ);
+		return result;
 	}
 
 	/**
@@ -260,6 +573,43 @@ public class StoreMessage
 		return result;
 	}
 
+	/**
+	 * Appends an expiry time to a message ending with its value. Nothing is appended for 0 (no expiry).
+	 * @param message
+	 * @param expiresAt
+	 * @return
+	 */
+	public static byte[] withExpiry(byte[] message, long expiresAt)
+	{
+		if (expiresAt == 0)
+		{
+			return message;
+		}
+		return ByteBuffer.allocate(message.length + EXPIRY_BYTES).put(message).putLong(expiresAt).array();
+	}
+
+	/**
+	 * Appends the number of a keyspace to a request ending with its value or its expiry time, with an expiry
+	 * time of 0 first if it has none. Nothing is appended for the default keyspace (0).
+	 * @param request
+	 * @param keyspace
+	 * @return
+	 */
+	public static byte[] withKeyspace(byte[] request, int keyspace)
+	{
+		if (keyspace == 0)
+		{
+			return request;
+		}
+		int end = MIN_BYTES + KEY_BYTES + VALUE_VER_BYTES + VALUE_LEN_BYTES + requestValue(request).length;
+		ByteBuffer result = ByteBuffer.allocate(end + EXPIRY_BYTES + KEYSPACE_BYTES).put(request);
+		if (request.length == end)
+		{
+			result.putLong(0);
+		}
+		return result.put((byte) keyspace).array();
+	}
+
 	/**
 	 * Create a response message
 	 * @param id
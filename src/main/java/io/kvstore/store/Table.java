@@ -0,0 +1,90 @@
+/**
+ * Table.java
+ * The data of one keyspace in a store: its values with their Merkle tree and pending expiries, its counters,
+ * and an estimate of the memory they take, checked against the budget of the keyspace. Tables of durable
+ * keyspaces also have the log their changes are appended to.
+ */
+package main.java.io.kvstore.store;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.Keyspace;
+import main.java.io.kvstore.utils.Clock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+class Table
+{
+	/**
+	 * Estimated memory of an entry besides its value: the hex key, the Value and the node of the map.
+	 */
+	static final int ENTRY_BYTES = 200;
+
+	/**
+	 * Estimated memory of a counter besides its slots.
+	 */
+	static final int COUNTER_BYTES = 150;
+
+	final Keyspace keyspace;
+
+	final ConcurrentHashMap<String, Store.Value> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Merkle tree over the entries, compared with other replicas by anti-entropy.
+	 */
+	final MerkleTree tree = new MerkleTree(Config.MERKLE_DEPTH);
+
+	/**
+	 * Hex keys of the entries by leaf of the tree, so that the entries of a few leaves are listed without
+	 * a scan. Entries are never removed (removes leave tombstones), so keys are only added.
+	 */
+	final List<Set<String>> leafKeys;
+
+	/**
+	 * Keys of the values that expire, by expiry time.
+	 */
+	final TimingWheel<String> expiries = new TimingWheel<String>(Config.TTL_TICK_MS,
+			Config.TTL_WHEEL_BITS, Config.TTL_WHEEL_LEVELS, Clock.currentTimeMillis());
+
+	/**
+	 * Counter states, by hex key. Counters and values are separate key spaces.
+	 */
+	final ConcurrentHashMap<String, PNCounter> counters = new ConcurrentHashMap<>();
+
+	/**
+	 * Bytes of the values held, tombstones excluded.
+	 */
+	final LongAdder valueBytes = new LongAdder();
+
+	/**
+	 * Estimated memory of the entries, tombstones included, and of the counters.
+	 */
+	final LongAdder memoryBytes = new LongAdder();
+
+	/**
+	 * The log of a durable keyspace, null in memory.
+	 */
+	final TableLog log;
+
+	Table(Keyspace keyspace, TableLog log)
+	{
+		this.keyspace = keyspace;
+		this.log = log;
+		this.leafKeys = new ArrayList<>(this.tree.getLeafCount());
+		for (int i = 0; i < this.tree.getLeafCount(); i++)
+		{
+			this.leafKeys.add(ConcurrentHashMap.newKeySet());
+		}
+	}
+
+	/**
+	 * @return whether the table reached the memory budget of its keyspace
+	 */
+	boolean isFull()
+	{
+		return this.keyspace.getMemoryBytes() > 0 && this.memoryBytes.sum() >= this.keyspace.getMemoryBytes();
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * TableLog.java
+ * Append-only file of the changes of a durable keyspace in a store, replayed when the store starts.
+ * Record: kind (1 byte), key (32 bytes), version (2 bytes), expiry time (8 bytes), length (2 bytes), then
+ * the value, or the state of a counter. A change is appended once it is in the table, so concurrent changes
+ * of a key may be appended out of order: replay keeps the highest version of a value, the last one of equal
+ * versions, and merges the states of a counter. Each record is written with a single call, so a crash of the
+ * process loses at most a partial last record, which replay ignores; the file is fsynced every Config.DURABLE_SYNC_MS.
+ * Once it reaches Config.DURABLE_COMPACT_BYTES and doubled since its last compaction, the file is rewritten
+ * with only the current entries of its table.
+ */
+package main.java.io.kvstore.store;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.function.BiConsumer;
+
+class TableLog
+{
+	private static final byte VALUE = 1;
+	private static final byte COUNTER = 2;
+
+	private static final int HEADER_BYTES = 1 + StoreMessage.KEY_BYTES + StoreMessage.VALUE_VER_BYTES
+			+ StoreMessage.EXPIRY_BYTES + StoreMessage.VALUE_LEN_BYTES;
+
+	private final File _file;
+
+	/**
+	 * Open stream to the end of the file. Guarded by this.
+	 */
+	private FileOutputStream _out;
+
+	private long _bytes;
+
+	/**
+	 * Size of the file after its last compaction.
+	 */
+	private long _compactedBytes;
+
+	/**
+	 * Whether records were written since the last fsync, and whether a compaction is due or running.
+	 */
+	private boolean _dirty;
+	private boolean _compacting;
+
+	TableLog(File file)
+	{
+		this._file = file;
+	}
+
+	/**
+	 * Reads the complete records of the file, oldest first. A truncated last record is ignored.
+	 * @param values visits the records of values
+	 * @param counters visits the records of counters
+	 * @throws IOException
+	 */
+	void replay(Store.EntryVisitor values, BiConsumer<byte[], PNCounter> counters) throws IOException
+	{
+		if (!this._file.exists())
+		{
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this._file)))) {
+			while (true)
+			{
+				byte kind = in.readByte();
+				byte[] key = new byte[StoreMessage.KEY_BYTES];
+				in.readFully(key);
+				int version = in.readUnsignedShort();
+				long expiresAt = in.readLong();
+				byte[] value = new byte[in.readUnsignedShort()];
+				in.readFully(value);
+				if (kind == COUNTER)
+				{
+					counters.accept(key, PNCounter.fromBytes(value));
+				}
+				else
+				{
+					values.visit(key, value, version, expiresAt);
+				}
+			}
+		} catch (EOFException e) {
+			// end of the file, or a record cut by a crash
+		}
+	}
+
+	synchronized long getBytes() { return this._bytes; }
+
+	/**
+	 * Appends the new value of a key.
+	 * @return whether the file is due for a compaction; true only once until it is compacted
+	 * @throws IOException
+	 */
+	boolean appendValue(byte[] key, byte[] value, int version, long expiresAt) throws IOException
+	{
+		return this.append(record(VALUE, key, value, version, expiresAt));
+	}
+
+	/**
+	 * Appends the new state of a counter.
+	 * @return whether the file is due for a compaction; true only once until it is compacted
+	 * @throws IOException
+	 */
+	boolean appendCounter(byte[] key, PNCounter counter) throws IOException
+	{
+		return this.append(record(COUNTER, key, counter.toBytes(), 0, 0));
+	}
+
+	private synchronized boolean append(byte[] record) throws IOException
+	{
+		if (this._out == null)
+		{
+			this._out = new FileOutputStream(this._file, true);
+		}
+		this._out.write(record);
+		this._bytes += record.length;
+		this._dirty = true;
+		if (Config.DURABLE_SYNC_MS == 0)
+		{
+			this.sync();
+		}
+		if (this._compacting || this._bytes < Config.DURABLE_COMPACT_BYTES || this._bytes < 2 * this._compactedBytes)
+		{
+			return false;
+		}
+		this._compacting = true;
+		return true;
+	}
+
+	/**
+	 * Forces the records written so far to the disk. Appends wait only for the lock, not for the disk.
+	 * @throws IOException
+	 */
+	void sync() throws IOException
+	{
+		FileChannel channel;
+		synchronized (this) {
+			if (!this._dirty)
+			{
+				return;
+			}
+			this._dirty = false;
+			channel = this._out.getChannel();
+		}
+		try {
+			channel.force(false);
+		} catch (ClosedChannelException e) {
+			// compacted meanwhile, which synced the new file
+		}
+	}
+
+	/**
+	 * Replaces the file with the current entries and counters of its table. Appends wait for the end of the
+	 * compaction, so a change it missed in the table is appended to the new file after it.
+	 * @param table
+	 * @throws IOException
+	 */
+	synchronized void compact(Table table) throws IOException
+	{
+		File compacted = new File(this._file.getPath() + ".compacting");
+		long[] bytes = new long[1];
+		try (FileOutputStream file = new FileOutputStream(compacted);
+				OutputStream out = new BufferedOutputStream(file, 1 << 16)) {
+			IOException[] failure = new IOException[1];
+			table.entries.forEach((keyString, val) -> {
+				if (val.version > 0 && failure[0] == null)
+				{
+					byte[] record = record(VALUE, Utils.hexBytes(keyString), val.value, val.version, val.expiresAt);
+					try {
+						out.write(record);
+					} catch (IOException e) {
+						failure[0] = e;
+					}
+					bytes[0] += record.length;
+				}
+			});
+			table.counters.forEach((keyString, counter) -> {
+				if (failure[0] == null)
+				{
+					byte[] record = record(COUNTER, Utils.hexBytes(keyString), counter.toBytes(), 0, 0);
+					try {
+						out.write(record);
+					} catch (IOException e) {
+						failure[0] = e;
+					}
+					bytes[0] += record.length;
+				}
+			});
+			if (failure[0] != null)
+			{
+				throw failure[0];
+			}
+			out.flush();
+			file.getChannel().force(false);
+		} finally {
+			this._compacting = false;
+		}
+		if (this._out != null)
+		{
+			this._out.close();
+			this._out = null;
+		}
+		Files.move(compacted.toPath(), this._file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this._bytes = bytes[0];
+		this._compactedBytes = bytes[0];
+		this._dirty = false;
+	}
+
+	private static byte[] record(byte kind, byte[] key, byte[] value, int version, long expiresAt)
+	{
+		ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + value.length);
+		record.put(kind);
+		record.put(key, 0, StoreMessage.KEY_BYTES);
+		record.putShort((short) version);
+		record.putLong(expiresAt);
+		record.putShort((short) value.length);
+		record.put(value);
+		return record.array();
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * TimingWheel.java
+ * Hierarchical timing wheel: levels of 2^bits slots, each slot of level l spanning 2^(bits * l) ticks.
+ * An item is scheduled in the lowest level whose range reaches its deadline, in O(1). When time enters
+ * a slot of a higher level, the slot's items cascade to the lower levels, and items reaching the
+ * slot of the current tick in level 0 are due. Advancing costs O(1) per tick plus O(levels) per item,
+ * whatever the number of items, so nothing is scanned to find the due ones.
+ * Deadlines beyond the top level are kept in its farthest slot and rescheduled when it cascades.
+ * Items are not removed when their deadline changes: the caller checks them when they are due.
+ */
+package main.java.io.kvstore.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimingWheel<T>
+{
+	private static class Timer<T>
+	{
+		final T item;
+		final long deadlineTick;
+		Timer(T item, long deadlineTick)
+		{
+			this.item = item;
+			this.deadlineTick = deadlineTick;
+		}
+	}
+
+	private final long _tickMs;
+
+	private final int _bits;
+
+	private final int _mask;
+
+	/**
+	 * Slots by level. A null slot is empty.
+	 */
+	private final ArrayList<Timer<T>>[][] _slots;
+
+	/**
+	 * Last tick processed, in ticks since the epoch.
+	 */
+	private long _tick;
+
+	private int _size;
+
+	/**
+	 * @param tickMs resolution of the deadlines
+	 * @param bits log2 of the number of slots per level
+	 * @param levels
+	 * @param nowMs current time, epoch milliseconds
+	 */
+	public TimingWheel(long tickMs, int bits, int levels, long nowMs)
+	{
+		this._tickMs = tickMs;
+		this._bits = bits;
+		this._mask = (1 << bits) - 1;
+		// generic arrays cannot be created; the slots only ever hold lists of Timer<T>
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		ArrayList<Timer<T>>[][] slots = new ArrayList[levels][1 << bits];
+		this._slots = slots;
+		this._tick = nowMs / tickMs;
+	}
+
+	/**
+	 * @param item
+	 * @param deadlineMs epoch milliseconds. Past deadlines are due at the next tick.
+	 */
+	public synchronized void schedule(T item, long deadlineMs)
+	{
+		long deadlineTick = (deadlineMs + this._tickMs - 1) / this._tickMs; // never before the deadline
+		this.insert(new Timer<T>(item, Math.max(deadlineTick, this._tick + 1)));
+		this._size++;
+	}
+
+	/**
+	 * Moves the wheel to the current time.
+	 * @param nowMs epoch milliseconds
+	 * @return the items whose deadline passed, in deadline order (within a tick, in no particular order)
+	 */
+	public synchronized List<T> advance(long nowMs)
+	{
+		ArrayList<T> due = new ArrayList<T>();
+		long target = nowMs / this._tickMs;
+		while (this._tick < target)
+		{
+			this._tick++;
+			// cascade from the highest level whose slot starts at this tick, so items fall through every level
+			for (int level = this._slots.length - 1; level > 0; level--)
+			{
+				if ((this._tick & ((1L << (this._bits * level)) - 1)) == 0)
+				{
+					this.cascade(level, (int) ((this._tick >>> (this._bits * level)) & this._mask));
+				}
+			}
+			int slot = (int) (this._tick & this._mask);
+			ArrayList<Timer<T>> timers = this._slots[0][slot];
+			this._slots[0][slot] = null;
+			if (timers == null)
+			{
+				continue;
+			}
+			for (Timer<T> timer : timers)
+			{
+				if (timer.deadlineTick <= this._tick)
+				{
+					due.add(timer.item);
+					this._size--;
+				}
+				else
+				{
+					this.insert(timer);
+				}
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * @return items scheduled and not due yet
+	 */
+	public synchronized int size() { return this._size; }
+
+	private void cascade(int level, int slot)
+	{
+		ArrayList<Timer<T>> timers = this._slots[level][slot];
+		this._slots[level][slot] = null;
+		if (timers != null)
+		{
+			for (Timer<T> timer : timers)
+			{
+				this.insert(timer);
+			}
+		}
+	}
+
+	/**
+	 * Puts a timer in the lowest level whose range reaches it. A slot of level l is processed when the
+	 * current tick enters it, so the deadline must be less than 2^bits slots of that level ahead.
+	 */
+	private void insert(Timer<T> timer)
+	{
+		int top = this._slots.length - 1;
+		for (int level = 0; level <= top; level++)
+		{
+			int shift = this._bits * level;
+			long ahead = (timer.deadlineTick >>> shift) - (this._tick >>> shift);
+			if (ahead <= this._mask || level == top)
+			{
+				long slotTick = ahead <= this._mask ? timer.deadlineTick >>> shift : (this._tick >>> shift) + this._mask;
+				int slot = (int) (slotTick & this._mask);
+				if (this._slots[level][slot] == null)
+				{
+					this._slots[level][slot] = new ArrayList<Timer<T>>(4);
+				}
+				this._slots[level][slot].add(timer);
+				return;
+			}
+		}
+	}
+}
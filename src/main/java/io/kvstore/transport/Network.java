@@ -0,0 +1,19 @@
+/**
+ * Network.java
+ * Creates the transports of the nodes: UDP sockets, or endpoints of a simulated network.
+ */
+package main.java.io.kvstore.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+public interface Network
+{
+	/**
+	 * Opens an endpoint.
+	 * @param address host and port of the endpoint, port 0 for any free port
+	 * @return
+	 * @throws IOException if the port is taken
+	 */
+	Transport bind(InetSocketAddress address) throws IOException;
+}
@@ -0,0 +1,380 @@
+/**
+ * SimulatedNetwork.java
+ * In-memory network for running a cluster in one process under reproducible faults: datagrams
+ * are lost, delayed, duplicated and partitioned as configured, and delivered by a timer thread,
+ * or the scheduler of a Simulation, to the receiver or the queue of their endpoint. Random delays
+ * reorder datagrams like a real network would. Faults can be changed while the cluster runs.
+ * Hosts are distinguished by address, so each node of a simulated cluster gets its own address,
+ * e.g. 10.0.0.1, and partitions split hosts.
+ */
+package main.java.io.kvstore.transport;
+
+import main.java.io.kvstore.utils.Clock;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+public class SimulatedNetwork implements Network
+{
+	/**
+	 * Distribution of the one-way delay of datagrams.
+	 */
+	public interface Delay
+	{
+		/**
+		 * @param random
+		 * @return a delay in nanoseconds
+		 */
+		long nanos(Random random);
+
+		static Delay constant(double ms)
+		{
+			long nanos = (long) (ms * 1e6);
+			return random -> nanos;
+		}
+
+		static Delay uniform(double minMs, double maxMs)
+		{
+			return random -> (long) ((minMs + random.nextDouble() * (maxMs - minMs)) * 1e6);
+		}
+
+		/**
+		 * Exponential tail above a minimum, e.g. queueing on a busy link.
+		 */
+		static Delay exponential(double minMs, double meanMs)
+		{
+			return random -> (long) ((minMs - Math.log(1 - random.nextDouble()) * (meanMs - minMs)) * 1e6);
+		}
+
+		/**
+		 * Pareto tail above a minimum: rare, very long delays, e.g. GC pauses or retransmissions of
+		 * the links. The smaller the shape, the heavier the tail.
+		 */
+		static Delay pareto(double minMs, double shape, double maxMs)
+		{
+			return random -> (long) (Math.min(maxMs, minMs / Math.pow(1 - random.nextDouble(), 1 / shape)) * 1e6);
+		}
+	}
+
+	/**
+	 * Datagrams an endpoint holds before dropping more, like the receive buffer of a socket.
+	 */
+	public static final int RECEIVE_QUEUE_DATAGRAMS = 4096;
+
+	private static final int FIRST_EPHEMERAL_PORT = 49152;
+
+	private static class Datagram
+	{
+		final byte[] data;
+		final InetSocketAddress source;
+		Datagram(byte[] data, InetSocketAddress source)
+		{
+			this.data = data;
+			this.source = source;
+		}
+	}
+
+	/**
+	 * Marks a closed endpoint in its queue, to wake its receivers.
+	 */
+	private static final Datagram CLOSED = new Datagram(new byte[0], null);
+
+	private class Endpoint implements Transport
+	{
+		final InetSocketAddress address;
+		final LinkedBlockingQueue<Datagram> queue = new LinkedBlockingQueue<Datagram>(RECEIVE_QUEUE_DATAGRAMS);
+		volatile boolean closed;
+
+		/**
+		 * Takes the datagrams once listen was called; guarded by this.
+		 */
+		Consumer<DatagramPacket> receiver;
+		int bytes;
+
+		Endpoint(InetSocketAddress address)
+		{
+			this.address = address;
+		}
+
+		@Override
+		public void receive(DatagramPacket packet) throws IOException
+		{
+			Datagram datagram;
+			try {
+				datagram = this.queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SocketException("Interrupted");
+			}
+			if (datagram == CLOSED)
+			{
+				this.queue.offer(CLOSED); // for the other receivers
+				throw new SocketException("Socket is closed");
+			}
+			copy(datagram, packet);
+		}
+
+		@Override
+		public void listen(int bytes, Consumer<DatagramPacket> receiver)
+		{
+			ArrayList<Datagram> queued = new ArrayList<Datagram>();
+			synchronized (this) {
+				this.receiver = receiver;
+				this.bytes = bytes;
+				this.queue.drainTo(queued);
+			}
+			for (Datagram datagram : queued)
+			{
+				this.accept(datagram);
+			}
+		}
+
+		/**
+		 * Delivers a datagram to the receiver, or to the queue if no one listens.
+		 * @return false if the queue is full
+		 */
+		boolean deliver(Datagram datagram)
+		{
+			synchronized (this) {
+				if (this.receiver == null)
+				{
+					return this.queue.offer(datagram);
+				}
+			}
+			this.accept(datagram);
+			return true;
+		}
+
+		private void accept(Datagram datagram)
+		{
+			if (datagram == CLOSED)
+			{
+				return;
+			}
+			DatagramPacket packet = new DatagramPacket(new byte[this.bytes], this.bytes);
+			copy(datagram, packet);
+			this.receiver.accept(packet);
+		}
+
+		@Override
+		public void send(DatagramPacket packet) throws IOException
+		{
+			if (this.closed)
+			{
+				throw new SocketException("Socket is closed");
+			}
+			byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+			SimulatedNetwork.this.transmit(new Datagram(data, this.address), (InetSocketAddress) packet.getSocketAddress());
+		}
+
+		@Override
+		public InetSocketAddress getLocalAddress() { return this.address; }
+
+		@Override
+		public void close()
+		{
+			this.closed = true;
+			SimulatedNetwork.this._endpoints.remove(this.address, this);
+			this.queue.clear();
+			this.queue.offer(CLOSED);
+		}
+	}
+
+	private static void copy(Datagram datagram, DatagramPacket packet)
+	{
+		int length = Math.min(datagram.data.length, packet.getData().length - packet.getOffset());
+		System.arraycopy(datagram.data, 0, packet.getData(), packet.getOffset(), length);
+		packet.setLength(length);
+		packet.setSocketAddress(datagram.source);
+	}
+
+	private final ConcurrentHashMap<InetSocketAddress, Endpoint> _endpoints = new ConcurrentHashMap<>();
+	private final AtomicInteger _nextPort = new AtomicInteger(FIRST_EPHEMERAL_PORT);
+	private final Random _random;
+
+	/**
+	 * Delivers the delayed datagrams: a thread, or the scheduler of the simulation.
+	 */
+	private final ScheduledExecutorService _timer;
+
+	private volatile Delay _delay = Delay.constant(0);
+	private volatile double _loss;
+	private volatile double _duplication;
+
+	/**
+	 * Side of each partitioned host; hosts missing from the map are together on side 0.
+	 */
+	private volatile Map<InetAddress, Integer> _sides = new HashMap<>();
+
+	private final LongAdder _sent = new LongAdder();
+	private final LongAdder _lost = new LongAdder();
+	private final LongAdder _cut = new LongAdder();
+	private final LongAdder _duplicated = new LongAdder();
+	private final LongAdder _overflowed = new LongAdder();
+
+	/**
+	 * A network without faults until configured.
+	 * @param seed seed of the faults and delays, for runs that can be repeated
+	 */
+	public SimulatedNetwork(long seed)
+	{
+		this._random = new Random(seed);
+		this._timer = Clock.newScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "simulated-network");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public Transport bind(InetSocketAddress address) throws IOException
+	{
+		if (address.getPort() != 0)
+		{
+			return this.bind(address.getAddress(), address.getPort());
+		}
+		while (true)
+		{
+			try {
+				return this.bind(address.getAddress(), this._nextPort.getAndIncrement());
+			} catch (BindException e) {
+				// taken by an explicit bind, try the next one
+			}
+		}
+	}
+
+	private Endpoint bind(InetAddress host, int port) throws BindException
+	{
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		Endpoint endpoint = new Endpoint(address);
+		if (this._endpoints.putIfAbsent(address, endpoint) != null)
+		{
+			throw new BindException(address + " is already bound");
+		}
+		return endpoint;
+	}
+
+	/**
+	 * @param delay distribution of the one-way delay of each datagram
+	 */
+	public void setDelay(Delay delay) { this._delay = delay; }
+
+	/**
+	 * @param loss probability that a datagram is dropped
+	 */
+	public void setLoss(double loss) { this._loss = loss; }
+
+	/**
+	 * @param duplication probability that a datagram is delivered twice, each copy with its own delay
+	 */
+	public void setDuplication(double duplication) { this._duplication = duplication; }
+
+	/**
+	 * Splits the hosts: datagrams between hosts of different sides are dropped. The hosts of no side
+	 * form one more side together.
+	 * @param sides
+	 */
+	@SafeVarargs
+	public final void partition(Collection<InetAddress>... sides)
+	{
+		HashMap<InetAddress, Integer> map = new HashMap<>();
+		for (int i = 0; i < sides.length; i++)
+		{
+			for (InetAddress host : sides[i])
+			{
+				map.put(host, i + 1);
+			}
+		}
+		this._sides = map;
+	}
+
+	/**
+	 * Ends the partitions.
+	 */
+	public void heal() { this._sides = new HashMap<>(); }
+
+	/**
+	 * Sends a datagram through the faults. Datagrams to an address without endpoint are dropped.
+	 */
+	private void transmit(Datagram datagram, InetSocketAddress destination)
+	{
+		this._sent.increment();
+		Map<InetAddress, Integer> sides = this._sides;
+		if (!sides.getOrDefault(datagram.source.getAddress(), 0).equals(sides.getOrDefault(destination.getAddress(), 0)))
+		{
+			this._cut.increment();
+			return;
+		}
+		if (this._random.nextDouble() < this._loss)
+		{
+			this._lost.increment();
+			return;
+		}
+		int copies = 1;
+		if (this._random.nextDouble() < this._duplication)
+		{
+			this._duplicated.increment();
+			copies = 2;
+		}
+		for (int i = 0; i < copies; i++)
+		{
+			long delay = this._delay.nanos(this._random);
+			if (delay <= 0)
+			{
+				this.deliver(datagram, destination);
+			}
+			else
+			{
+				this._timer.schedule(() -> this.deliver(datagram, destination), delay, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
+	private void deliver(Datagram datagram, InetSocketAddress destination)
+	{
+		Endpoint endpoint = this._endpoints.get(destination);
+		if (endpoint == null || !endpoint.deliver(datagram))
+		{
+			this._overflowed.increment();
+		}
+	}
+
+	/**
+	 * @return datagrams sent, including the ones dropped
+	 */
+	public long getSent() { return this._sent.sum(); }
+
+	/**
+	 * @return datagrams dropped by the loss probability
+	 */
+	public long getLost() { return this._lost.sum(); }
+
+	/**
+	 * @return datagrams dropped by a partition
+	 */
+	public long getCut() { return this._cut.sum(); }
+
+	public long getDuplicated() { return this._duplicated.sum(); }
+
+	/**
+	 * @return datagrams dropped because their endpoint was full or did not exist
+	 */
+	public long getOverflowed() { return this._overflowed.sum(); }
+}
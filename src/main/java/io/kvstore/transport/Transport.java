@@ -0,0 +1,61 @@
+/**
+ * Transport.java
+ * Datagram endpoint of a coordinator, a store or a store client: a UDP socket, or an endpoint
+ * of a simulated network.
+ */
+package main.java.io.kvstore.transport;
+
+import main.java.io.kvstore.log.EventLog;
+import main.java.io.kvstore.log.LogSite;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.util.function.Consumer;
+
+public interface Transport extends Closeable
+{
+	LogSite LISTEN_FAILED = LogSite.error("transport.listen_failed", "endpoint");
+
+	/**
+	 * Waits for a datagram. Like DatagramSocket.receive, copies it into the buffer of the packet,
+	 * truncated to the length of the packet, and sets the length and the sender of the packet.
+	 * @param packet
+	 * @throws IOException if the transport is closed
+	 */
+	void receive(DatagramPacket packet) throws IOException;
+
+	/**
+	 * Sends the data of a packet to its address. The datagram may be lost, duplicated or reordered.
+	 * @param packet
+	 * @throws IOException
+	 */
+	void send(DatagramPacket packet) throws IOException;
+
+	/**
+	 * Receives datagrams forever, passing each one to the receiver on the calling thread, which should
+	 * hand it over to an executor. Endpoints that deliver datagrams by themselves, like the simulated
+	 * ones, instead call the receiver as each datagram arrives, and return at once.
+	 * @param bytes size of the largest datagram
+	 * @param receiver
+	 */
+	default void listen(int bytes, Consumer<DatagramPacket> receiver)
+	{
+		while (true)
+		{
+			DatagramPacket packet = new DatagramPacket(new byte[bytes], bytes);
+			try {
+				this.receive(packet);
+				receiver.accept(packet);
+			} catch (Exception e) {
+				EventLog.event(LISTEN_FAILED, e, this.getLocalAddress());
+			}
+		}
+	}
+
+	/**
+	 * @return the address datagrams to this endpoint are sent to
+	 */
+	InetSocketAddress getLocalAddress();
+}
@@ -0,0 +1,17 @@
+/**
+ * UdpNetwork.java
+ * The real network: every endpoint is a UDP socket bound to its port on all local addresses.
+ */
+package main.java.io.kvstore.transport;
+
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+public class UdpNetwork implements Network
+{
+	@Override
+	public Transport bind(InetSocketAddress address) throws SocketException
+	{
+		return new UdpTransport(address.getPort());
+	}
+}
@@ -0,0 +1,47 @@
+/**
+ * UdpTransport.java
+ * Transport over a UDP socket, bound to a port of every local address.
+ */
+package main.java.io.kvstore.transport;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+public class UdpTransport implements Transport
+{
+	private final DatagramSocket _socket;
+
+	/**
+	 * @param port the port to bind, 0 for any free port
+	 * @throws SocketException
+	 */
+	public UdpTransport(int port) throws SocketException
+	{
+		this._socket = new DatagramSocket(port);
+		this._socket.setReuseAddress(true);
+	}
+
+	@Override
+	public void receive(DatagramPacket packet) throws IOException
+	{
+		this._socket.receive(packet);
+	}
+
+	@Override
+	public void send(DatagramPacket packet) throws IOException
+	{
+		this._socket.send(packet);
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() { return (InetSocketAddress) this._socket.getLocalSocketAddress(); }
+
+	@Override
+	public void close()
+	{
+		this._socket.close();
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * Clock.java
+ * Time, timers, threads and randomness of the nodes. By default the system clock, executor threads
+ * and thread-local randoms; once a Simulation is installed, its virtual clock, its single-threaded
+ * scheduler and its seeded random, so that a whole cluster runs deterministically in one thread.
+ */
+package main.java.io.kvstore.utils;
+
+import main.java.io.kvstore.simulation.Simulation;
+
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class Clock
+{
+	/**
+	 * The simulation driving the nodes, null for real time.
+	 */
+	private static volatile Simulation _simulation;
+
+	private Clock() {}
+
+	/**
+	 * Runs the nodes created from now on in a simulation. Install it before creating any node.
+	 * @param simulation
+	 */
+	public static void simulate(Simulation simulation)
+	{
+		_simulation = simulation;
+	}
+
+	/**
+	 * @return the simulation, or null in real time
+	 */
+	public static Simulation getSimulation() { return _simulation; }
+
+	/**
+	 * @return like System.nanoTime
+	 */
+	public static long nanoTime()
+	{
+		Simulation simulation = _simulation;
+		return simulation == null ? System.nanoTime() : simulation.nanoTime();
+	}
+
+	/**
+	 * @return like System.currentTimeMillis
+	 */
+	public static long currentTimeMillis()
+	{
+		Simulation simulation = _simulation;
+		return simulation == null ? System.currentTimeMillis() : simulation.currentTimeMillis();
+	}
+
+	/**
+	 * @return a random for the current thread, or the seeded random of the simulation
+	 */
+	public static Random random()
+	{
+		Simulation simulation = _simulation;
+		return simulation == null ? ThreadLocalRandom.current() : simulation.getRandom();
+	}
+
+	/**
+	 * @return a single-threaded scheduled executor, or the scheduler of the simulation
+	 */
+	public static ScheduledExecutorService newScheduledExecutor()
+	{
+		Simulation simulation = _simulation;
+		return simulation == null ? Executors.newSingleThreadScheduledExecutor() : simulation.getExecutor();
+	}
+
+	/**
+	 * @param factory creates the thread in real time
+	 * @return a single-threaded scheduled executor, or the scheduler of the simulation
+	 */
+	public static ScheduledExecutorService newScheduledExecutor(ThreadFactory factory)
+	{
+		Simulation simulation = _simulation;
+		return simulation == null ? Executors.newSingleThreadScheduledExecutor(factory) : simulation.getExecutor();
+	}
+
+	/**
+	 * @return a single-threaded executor, or the scheduler of the simulation
+	 */
+	public static ExecutorService newExecutor()
+	{
+		Simulation simulation = _simulation;
+		return simulation == null ? Executors.newSingleThreadExecutor() : simulation.getExecutor();
+	}
+
+	/**
+	 * Runs a task in a new thread, or right away in a simulation, where it must not block,
+	 * e.g. the serve loop of a simulated transport.
+	 * @param task
+	 */
+	public static void start(Runnable task)
+	{
+		if (_simulation == null)
+		{
+			new Thread(task).start();
+		}
+		else
+		{
+			task.run();
+		}
+	}
+
+	/**
+	 * Sleeps. A simulation runs its events until the time is up.
+	 * @param nanos
+	 */
+	public static void sleep(long nanos)
+	{
+		Simulation simulation = _simulation;
+		if (simulation != null)
+		{
+			simulation.runFor(nanos, TimeUnit.NANOSECONDS);
+			return;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits until a future completes, normally or not; its result is left to get or join.
+	 * A simulation runs its events until then.
+	 * @param future
+	 */
+	public static void await(CompletableFuture<?> future)
+	{
+		Simulation simulation = _simulation;
+		if (simulation != null)
+		{
+			simulation.runUntil(future::isDone);
+			return;
+		}
+		future.handle((result, error) -> null).join();
+	}
+}
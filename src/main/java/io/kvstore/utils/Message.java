@@ -1,7 +1,6 @@
 package main.java.io.kvstore.utils;
 
 import java.util.Arrays;
-import java.util.Random;
 
 public class Message
 {
@@ -12,6 +11,16 @@ public class Message
 		REMOVE,
 		SHUTDOWN,
 		HEARTBEAT_REQ,
+		GOSSIP,
+		LEAVE,
+		CAS,
+		PUT_IF_ABSENT,
+		REMOVE_IF_VERSION,
+		INCREMENT,
+		DECREMENT,
+		GET_COUNTER,
+		STATS,
+		SLOW_LOG,
 		UNKNOWN
 	}
 	
@@ -23,7 +32,8 @@ public class Message
 		SYSTEM_OVERLOAD,
 		INTERNAL_FAILURE,
 		UNRECOGNIZED_COMMAND,
-		HEARTBEAT_ACK
+		HEARTBEAT_ACK,
+		VERSION_CONFLICT
 	}
 	
 	public static final int ID_BYTES = 16;
@@ -31,10 +41,14 @@ public class Message
 	public static final int CODE_BYTES = 1;
 	public static final int KEY_BYTES = 32;
 	public static final int VALUE_LENGTH_BYTES = 2;
+	public static final int VERSION_BYTES = 2;
+	public static final int TTL_BYTES = 4;
+	public static final int KEYSPACE_BYTES = 1;
 	public static final int VALUE_BYTES = 15000;
 	public static final int MIN_BYTES = ID_BYTES + COMMAND_BYTES;
-	public static final int REQ_MAX_BYTES = MIN_BYTES + KEY_BYTES + VALUE_LENGTH_BYTES + VALUE_BYTES;
-	public static final int RES_MAX_BYTES = MIN_BYTES + VALUE_LENGTH_BYTES + VALUE_BYTES;
+	public static final int REQ_MAX_BYTES = MIN_BYTES + KEY_BYTES + VALUE_LENGTH_BYTES + VALUE_BYTES + VERSION_BYTES + TTL_BYTES
+			+ KEYSPACE_BYTES;
+	public static final int RES_MAX_BYTES = MIN_BYTES + VALUE_LENGTH_BYTES + VALUE_BYTES + VERSION_BYTES;
 	
 	private Message() {}
 	
@@ -67,6 +81,16 @@ public class Message
 			case 0x03: return Command.REMOVE;
 			case 0x04: return Command.SHUTDOWN;
 			case 0x05: return Command.HEARTBEAT_REQ;
+			case 0x07: return Command.GOSSIP;
+			case 0x08: return Command.LEAVE;
+			case 0x09: return Command.CAS;
+			case 0x0A: return Command.PUT_IF_ABSENT;
+			case 0x0B: return Command.REMOVE_IF_VERSION;
+			case 0x0C: return Command.INCREMENT;
+			case 0x0D: return Command.DECREMENT;
+			case 0x0E: return Command.GET_COUNTER;
+			case 0x0F: return Command.STATS;
+			case 0x10: return Command.SLOW_LOG;
 			default: return Command.UNKNOWN;
 		}
 	}
@@ -80,6 +104,16 @@ public class Message
 			case REMOVE: return 0x03;
 			case SHUTDOWN: return 0x04;
 			case HEARTBEAT_REQ: return 0x05;
+			case GOSSIP: return 0x07;
+			case LEAVE: return 0x08;
+			case CAS: return 0x09;
+			case PUT_IF_ABSENT: return 0x0A;
+			case REMOVE_IF_VERSION: return 0x0B;
+			case INCREMENT: return 0x0C;
+			case DECREMENT: return 0x0D;
+			case GET_COUNTER: return 0x0E;
+			case STATS: return 0x0F;
+			case SLOW_LOG: return 0x10;
 			default: return 0x06;
 		}
 	}
@@ -94,6 +128,7 @@ public class Message
 			case 0x03: return Code.SYSTEM_OVERLOAD;
 			case 0x04: return Code.INTERNAL_FAILURE;
 			case 0x06: return Code.HEARTBEAT_ACK;
+			case 0x07: return Code.VERSION_CONFLICT;
 			default: return Code.UNRECOGNIZED_COMMAND;
 		}
 	}
@@ -108,6 +143,7 @@ public class Message
 			case SYSTEM_OVERLOAD: return 0x03;
 			case INTERNAL_FAILURE: return 0x04;
 			case HEARTBEAT_ACK: return 0x06;
+			case VERSION_CONFLICT: return 0x07;
 			default: return 0x05;
 		}
 	}
@@ -131,15 +167,182 @@ public class Message
 		return Arrays.copyOfRange(request, start, end);
 	}
 	
+	/**
+	 * Extracts the expected version of a CAS or REMOVE_IF_VERSION request, stored after the value.
+	 * @param request
+	 * @return
+	 */
+	public static int requestVersion(byte[] request)
+	{
+		int start = MIN_BYTES + KEY_BYTES + VALUE_LENGTH_BYTES + requestValue(request).length;
+		if (request.length < start + VERSION_BYTES)
+		{
+			return 0;
+		}
+		return (request[start] & 0xFF) + ((request[start + 1] << 8) & 0xFF00);
+	}
+
+	/**
+	 * Extracts the TTL of a write request, stored after the version field.
+	 * @param request
+	 * @return milliseconds, 0 if absent (the value does not expire)
+	 */
+	public static long requestTtl(byte[] request)
+	{
+		int start = MIN_BYTES + KEY_BYTES + VALUE_LENGTH_BYTES + requestValue(request).length + VERSION_BYTES;
+		if (request.length < start + TTL_BYTES)
+		{
+			return 0;
+		}
+		return (request[start] & 0xFFL) + ((request[start + 1] & 0xFFL) << 8) + ((request[start + 2] & 0xFFL) << 16)
+				+ ((request[start + 3] & 0xFFL) << 24);
+	}
+
+	/**
+	 * Extracts the number of the keyspace of a key request, stored after the TTL field.
+	 * @param request
+	 * @return the number of the keyspace, 0 (the default keyspace) if absent
+	 */
+	public static int requestKeyspace(byte[] request)
+	{
+		int start = MIN_BYTES + KEY_BYTES + VALUE_LENGTH_BYTES + requestValue(request).length + VERSION_BYTES + TTL_BYTES;
+		if (request.length < start + KEYSPACE_BYTES)
+		{
+			return 0;
+		}
+		return request[start] & 0xFF;
+	}
+
+	/**
+	 * Extracts the version of the value of a response, stored after the value. 0 if absent.
+	 * GET responses carry the version read, and successful writes the version written.
+	 * @param response
+	 * @return
+	 */
+	public static int responseVersion(byte[] response)
+	{
+		int start = MIN_BYTES + VALUE_LENGTH_BYTES + responseValue(response).length;
+		if (response.length < start + VERSION_BYTES)
+		{
+			return 0;
+		}
+		return (response[start] & 0xFF) + ((response[start + 1] << 8) & 0xFF00);
+	}
+
+	public static byte[] responseValue(byte[] response)
+	{
+		if (response.length < MIN_BYTES + VALUE_LENGTH_BYTES)
+		{
+			return new byte[0];
+		}
+		int firstByteIndex = MIN_BYTES;
+		int secondByteIndex = firstByteIndex + 1;
+		int length = (response[firstByteIndex] & 0xFF) + ((response[secondByteIndex] << 8) & 0xFF00);
+		int start = MIN_BYTES + VALUE_LENGTH_BYTES;
+		return Arrays.copyOfRange(response, start, start + length);
+	}
+	
 	public static byte[] createRequest(Command command)
 	{
 		byte[] req = new byte[MIN_BYTES];
-		Random r = new Random();
-		r.nextBytes(req);
+		Clock.random().nextBytes(req);
 		req[req.length - 1] = command(command);
 		return req;
 	}
 	
+	/**
+	 * Creates a client request for a key.
+	 * @param id
+	 * @param command
+	 * @param key
+	 * @param value the value of a PUT, or null
+	 * @return
+	 */
+	public static byte[] createRequest(byte[] id, Command command, byte[] key, byte[] value)
+	{
+		return createRequest(id, command, key, value, -1);
+	}
+
+	/**
+	 * Creates a conditional client request for a key.
+	 * @param id
+	 * @param command
+	 * @param key
+	 * @param value
+	 * @param version the expected version, or -1 for none
+	 * @return
+	 */
+	public static byte[] createRequest(byte[] id, Command command, byte[] key, byte[] value, int version)
+	{
+		return createRequest(id, command, key, value, version, 0);
+	}
+
+	/**
+	 * Creates a client request for a key, whose value expires.
+	 * @param id
+	 * @param command
+	 * @param key
+	 * @param value
+	 * @param version the expected version, or -1 for none
+	 * @param ttlMs time to live of the value in milliseconds (at most 2^32 - 1), or 0 for none.
+	 *        Written after the version field, which is then present even without a version.
+	 * @return
+	 */
+	public static byte[] createRequest(byte[] id, Command command, byte[] key, byte[] value, int version, long ttlMs)
+	{
+		return createRequest(id, command, key, value, version, ttlMs, 0);
+	}
+
+	/**
+	 * Creates a client request for a key of a keyspace.
+	 * @param id
+	 * @param command
+	 * @param key
+	 * @param value
+	 * @param version the expected version, or -1 for none
+	 * @param ttlMs time to live of the value in milliseconds, or 0 for none
+	 * @param keyspace the number of the keyspace, or 0 for the default one. Written after the TTL field,
+	 *        which is then present even without a TTL.
+	 * @return
+	 */
+	public static byte[] createRequest(byte[] id, Command command, byte[] key, byte[] value, int version, long ttlMs, int keyspace)
+	{
+		if (value == null && (version >= 0 || ttlMs > 0 || keyspace > 0))
+		{
+			value = new byte[0];
+		}
+		int valueLength = value == null ? 0 : Math.min(value.length, VALUE_BYTES);
+		int versionBytes = version >= 0 || ttlMs > 0 || keyspace > 0 ? VERSION_BYTES : 0;
+		int ttlBytes = ttlMs > 0 || keyspace > 0 ? TTL_BYTES : 0;
+		int keyspaceBytes = keyspace > 0 ? KEYSPACE_BYTES : 0;
+		byte[] result = new byte[MIN_BYTES + KEY_BYTES + (value == null ? 0 : VALUE_LENGTH_BYTES + valueLength) + versionBytes + ttlBytes
+				+ keyspaceBytes];
+		System.arraycopy(id, 0, result, 0, Math.min(id.length, ID_BYTES));
+		result[ID_BYTES] = command(command);
+		System.arraycopy(key, 0, result, MIN_BYTES, Math.min(key.length, KEY_BYTES));
+		if (value != null)
+		{
+			result[MIN_BYTES + KEY_BYTES] = (byte) (valueLength & 0xFF);
+			result[MIN_BYTES + KEY_BYTES + 1] = (byte) ((valueLength >> 8) & 0xFF);
+			System.arraycopy(value, 0, result, MIN_BYTES + KEY_BYTES + VALUE_LENGTH_BYTES, valueLength);
+		}
+		int ttlStart = result.length - keyspaceBytes - ttlBytes;
+		if (version >= 0)
+		{
+			result[ttlStart - 2] = (byte) (version & 0xFF);
+			result[ttlStart - 1] = (byte) ((version >> 8) & 0xFF);
+		}
+		for (int i = 0; i < ttlBytes; i++)
+		{
+			result[ttlStart + i] = (byte) ((ttlMs >> (8 * i)) & 0xFF);
+		}
+		if (keyspaceBytes > 0)
+		{
+			result[result.length - 1] = (byte) keyspace;
+		}
+		return result;
+	}
+
 	public static byte[] createResponse(byte[] id, Code code)
 	{
 		byte[] result = new byte[MIN_BYTES];
@@ -149,14 +352,33 @@ public class Message
 	}
 
 	public static byte[] createResponse(byte[] id, Code code, byte[] value)
+	{
+		return createResponse(id, code, value, -1);
+	}
+
+	/**
+	 * Creates a response carrying the version of its value after the value.
+	 * @param id
+	 * @param code
+	 * @param value
+	 * @param version the version, or -1 for none
+	 * @return
+	 */
+	public static byte[] createResponse(byte[] id, Code code, byte[] value, int version)
 	{
 		int valueLength = Math.min(value.length, VALUE_BYTES);
-		byte[] result = new byte[ID_BYTES + CODE_BYTES + VALUE_LENGTH_BYTES + valueLength];
+		int versionBytes = version >= 0 ? VERSION_BYTES : 0;
+		byte[] result = new byte[ID_BYTES + CODE_BYTES + VALUE_LENGTH_BYTES + valueLength + versionBytes];
 		System.arraycopy(id, 0, result, 0, Math.min(id.length, ID_BYTES));
 		result[ID_BYTES] = code(code);
 		result[ID_BYTES + CODE_BYTES] = (byte) (valueLength & 0xFF);
 		result[ID_BYTES + CODE_BYTES + 1] = (byte) ((valueLength >> 8) & 0xFF);
 		System.arraycopy(value, 0, result, ID_BYTES + CODE_BYTES + VALUE_LENGTH_BYTES, valueLength);
+		if (version >= 0)
+		{
+			result[result.length - 2] = (byte) (version & 0xFF);
+			result[result.length - 1] = (byte) ((version >> 8) & 0xFF);
+		}
 		return result;
 	}
 }
@@ -0,0 +1,138 @@
+/**
+ * Murmur3.java
+ * Allocation-free MurmurHash3 (x64, 128-bit variant) returning the first 64 bits.
+ */
+package main.java.io.kvstore.utils;
+
+public class Murmur3
+{
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private Murmur3() {}
+
+	/**
+	 * Hashes the whole array with seed 0.
+	 * @param data
+	 * @return the 64-bit hash
+	 */
+	public static long hash64(byte[] data)
+	{
+		return hash64(data, 0, data.length, 0);
+	}
+
+	/**
+	 * Hashes data[offset, offset + length).
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param seed
+	 * @return the 64-bit hash
+	 */
+	@SuppressWarnings("fallthrough") // the tail cases fall through on purpose, as in the reference implementation
+	public static long hash64(byte[] data, int offset, int length, long seed)
+	{
+		long h1 = seed;
+		long h2 = seed;
+		int blocks = length >>> 4;
+
+		for (int i = 0; i < blocks; i++)
+		{
+			int pos = offset + (i << 4);
+			long k1 = getLong(data, pos);
+			long k2 = getLong(data, pos + 8);
+
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		// tail
+		long k1 = 0;
+		long k2 = 0;
+		int tail = offset + (blocks << 4);
+		switch (length & 15)
+		{
+			case 15: k2 ^= ((long) data[tail + 14] & 0xFF) << 48;
+			case 14: k2 ^= ((long) data[tail + 13] & 0xFF) << 40;
+			case 13: k2 ^= ((long) data[tail + 12] & 0xFF) << 32;
+			case 12: k2 ^= ((long) data[tail + 11] & 0xFF) << 24;
+			case 11: k2 ^= ((long) data[tail + 10] & 0xFF) << 16;
+			case 10: k2 ^= ((long) data[tail + 9] & 0xFF) << 8;
+			case 9:  k2 ^= ((long) data[tail + 8] & 0xFF);
+				h2 ^= mixK2(k2);
+			case 8:  k1 ^= ((long) data[tail + 7] & 0xFF) << 56;
+			case 7:  k1 ^= ((long) data[tail + 6] & 0xFF) << 48;
+			case 6:  k1 ^= ((long) data[tail + 5] & 0xFF) << 40;
+			case 5:  k1 ^= ((long) data[tail + 4] & 0xFF) << 32;
+			case 4:  k1 ^= ((long) data[tail + 3] & 0xFF) << 24;
+			case 3:  k1 ^= ((long) data[tail + 2] & 0xFF) << 16;
+			case 2:  k1 ^= ((long) data[tail + 1] & 0xFF) << 8;
+			case 1:  k1 ^= ((long) data[tail] & 0xFF);
+				h1 ^= mixK1(k1);
+			default: break;
+		}
+
+		// finalization
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix64(h1);
+		h2 = fmix64(h2);
+		h1 += h2;
+		return h1;
+	}
+
+	/**
+	 * Final avalanche step; also useful on its own to scramble a long.
+	 * @param k
+	 * @return
+	 */
+	public static long fmix64(long k)
+	{
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	private static long mixK1(long k1)
+	{
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		k1 *= C2;
+		return k1;
+	}
+
+	private static long mixK2(long k2)
+	{
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		k2 *= C1;
+		return k2;
+	}
+
+	/**
+	 * Reads a little-endian long.
+	 */
+	private static long getLong(byte[] b, int i)
+	{
+		return ((long) b[i] & 0xFF)
+				| (((long) b[i + 1] & 0xFF) << 8)
+				| (((long) b[i + 2] & 0xFF) << 16)
+				| (((long) b[i + 3] & 0xFF) << 24)
+				| (((long) b[i + 4] & 0xFF) << 32)
+				| (((long) b[i + 5] & 0xFF) << 40)
+				| (((long) b[i + 6] & 0xFF) << 48)
+				| (((long) b[i + 7] & 0xFF) << 56);
+	}
+}
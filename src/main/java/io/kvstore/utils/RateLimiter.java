@@ -0,0 +1,67 @@
+/**
+ * RateLimiter.java
+ * Smooth rate limiter: permits are handed out at a fixed rate, with at most one second of unused permits saved up.
+ */
+package main.java.io.kvstore.utils;
+
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiter
+{
+	/**
+	 * Time it takes to earn one permit.
+	 */
+	private final double _nanosPerPermit;
+
+	/**
+	 * How far in the past the next free slot may lie, i.e. the saved-up burst.
+	 */
+	private final long _maxBurstNanos = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Time at which the next permits are free. Guarded by this.
+	 */
+	private long _nextFreeNanos = Clock.nanoTime();
+
+	public RateLimiter(double permitsPerSecond)
+	{
+		this._nanosPerPermit = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+	}
+
+	/**
+	 * Takes permits, sleeping as long as needed to respect the rate.
+	 * @param permits
+	 */
+	public void acquire(long permits)
+	{
+		long waitNanos;
+		synchronized (this)
+		{
+			long now = Clock.nanoTime();
+			this._nextFreeNanos = Math.max(this._nextFreeNanos, now - this._maxBurstNanos);
+			waitNanos = this._nextFreeNanos - now;
+			this._nextFreeNanos += (long) (permits * this._nanosPerPermit);
+		}
+		if (waitNanos > 0)
+		{
+			Clock.sleep(waitNanos);
+		}
+	}
+
+	/**
+	 * Takes permits if they are available right now.
+	 * @param permits
+	 * @return whether the permits were taken
+	 */
+	public synchronized boolean tryAcquire(long permits)
+	{
+		long now = Clock.nanoTime();
+		this._nextFreeNanos = Math.max(this._nextFreeNanos, now - this._maxBurstNanos);
+		if (this._nextFreeNanos > now)
+		{
+			return false;
+		}
+		this._nextFreeNanos += (long) (permits * this._nanosPerPermit);
+		return true;
+	}
+}
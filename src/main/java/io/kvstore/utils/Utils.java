@@ -11,6 +11,11 @@ public class Utils {
 		return DatatypeConverter.printHexBinary(bytes);
 	}
 
+	public static byte[] hexBytes(String hex)
+	{
+		return DatatypeConverter.parseHexBinary(hex);
+	}
+
 	public static void print(Object o)
 	{
 		System.out.println(o);
@@ -0,0 +1,512 @@
+package test.java.io.kvstore;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.utils.Message;
+import main.java.io.kvstore.utils.Utils;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * YCSB-style load generator speaking the client protocol of Message to the coordinators of a running cluster
+ * (see Runner), each request to a random coordinator.
+ *
+ * In closed loop, each of `threads` clients sends a request, waits for its response or the timeout, and sends
+ * the next one, so the offered load adapts to the latency. In open loop, requests are sent at a fixed `rate`
+ * whatever the responses, and latency is measured from the time a request was due rather than sent, so a
+ * stalled sender does not hide the queueing it causes (coordinated omission).
+ *
+ * Latencies go into HDR histograms per operation. Every second, a row of throughput and latency of the last
+ * second is appended to OUT-throughput.csv; at the end, the percentiles after warmup are printed and written to
+ * OUT-latency.csv, and the full distribution of each operation to OUT-OP.hgrm (HdrHistogram's percentile format).
+ *
+ * Options, as name=value arguments:
+ *   mode=closed|open    threads=8            rate=1000 (ops/s, open loop)
+ *   duration=30 (s)     warmup=5 (s, excluded from the percentiles)
+ *   read=0.95  write=0.05  remove=0 (operation mix, normalized)
+ *   keys=10000          distribution=zipfian|uniform          theta=0.99
+ *   valuesize=constant:N | uniform:MIN:MAX | zipfian:MIN:MAX (bytes, at most Message.VALUE_BYTES)
+ *   preload=true (write every key once before the run)       timeout=1000 (ms)
+ *   host=localhost      out=loadgen
+ */
+public class LoadGenerator
+{
+	private enum Op { READ, WRITE, REMOVE }
+
+	private static final Op[] OPS = Op.values();
+
+	private static final long REPORT_INTERVAL_MS = 1000;
+
+	private static final long SWEEP_INTERVAL_MS = 10;
+
+	/**
+	 * Values are prefixes of this buffer.
+	 */
+	private static final byte[] VALUE_POOL = new byte[Message.VALUE_BYTES];
+
+	private final InetAddress _addr;
+	private final int[] _ports = Config.PORT_COORDINATOR;
+	private final int _threads;
+	private final int _keys;
+	private final ZipfianGenerator _keyRanks; // null for uniform keys
+	private final double[] _mix = new double[OPS.length]; // cumulative
+	private final String _sizeDistribution;
+	private final int _minSize;
+	private final int _maxSize;
+	private final ZipfianGenerator _sizeRanks;
+	private final long _timeoutNanos;
+
+	private final Recorder[] _recorders = new Recorder[OPS.length];
+	private final Histogram[] _totals = new Histogram[OPS.length];
+	private final LongAdder _errors = new LongAdder();
+	private final LongAdder _timeouts = new LongAdder();
+	private long _totalErrors;
+	private long _totalTimeouts;
+
+	/**
+	 * Request IDs: a sequence number, then a salt unique to the run, so that coordinators never take a request
+	 * of this run for a retransmission of an earlier one.
+	 */
+	private final AtomicLong _sequence = new AtomicLong();
+	private final long _salt = new Random().nextLong();
+
+	/**
+	 * Open loop: the due time and operation of the requests waiting for a response, by sequence number.
+	 */
+	private final ConcurrentHashMap<Long, long[]> _pending = new ConcurrentHashMap<>();
+
+	private volatile boolean _running = true;
+
+	public static void main(String[] args) throws Exception
+	{
+		HashMap<String, String> options = new HashMap<>();
+		String[][] defaults = {{"mode", "closed"}, {"threads", "8"}, {"rate", "1000"}, {"duration", "30"},
+				{"warmup", "5"}, {"read", "0.95"}, {"write", "0.05"}, {"remove", "0"}, {"keys", "10000"},
+				{"distribution", "zipfian"}, {"theta", String.valueOf(ZipfianGenerator.THETA)},
+				{"valuesize", "constant:100"}, {"preload", "true"}, {"timeout", "1000"}, {"host", "localhost"},
+				{"out", "loadgen"}};
+		for (String[] option : defaults)
+		{
+			options.put(option[0], option[1]);
+		}
+		for (String arg : args)
+		{
+			String[] option = arg.split("=", 2);
+			if (option.length != 2 || !options.containsKey(option[0]))
+			{
+				throw new IllegalArgumentException("Unknown option " + arg + ", expected one of " + options.keySet());
+			}
+			options.put(option[0], option[1]);
+		}
+		new LoadGenerator(options).run(options);
+		System.exit(0);
+	}
+
+	private LoadGenerator(Map<String, String> options) throws IOException
+	{
+		new Random(0).nextBytes(VALUE_POOL);
+		this._addr = InetAddress.getByName(options.get("host"));
+		this._threads = Integer.parseInt(options.get("threads"));
+		this._keys = Integer.parseInt(options.get("keys"));
+		this._keyRanks = options.get("distribution").equals("zipfian")
+				? new ZipfianGenerator(this._keys, Double.parseDouble(options.get("theta"))) : null;
+		double sum = 0;
+		for (Op op : OPS)
+		{
+			sum += Double.parseDouble(options.get(op.name().toLowerCase()));
+			this._mix[op.ordinal()] = sum;
+		}
+		for (Op op : OPS)
+		{
+			this._mix[op.ordinal()] /= sum;
+		}
+		String[] sizes = options.get("valuesize").split(":");
+		this._sizeDistribution = sizes[0];
+		this._minSize = Math.min(Integer.parseInt(sizes[1]), Message.VALUE_BYTES);
+		this._maxSize = sizes.length > 2 ? Math.min(Integer.parseInt(sizes[2]), Message.VALUE_BYTES) : this._minSize;
+		this._sizeRanks = this._sizeDistribution.equals("zipfian")
+				? new ZipfianGenerator(this._maxSize - this._minSize + 1, ZipfianGenerator.THETA) : null;
+		this._timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(options.get("timeout")));
+		for (Op op : OPS)
+		{
+			this._recorders[op.ordinal()] = new Recorder(3);
+			this._totals[op.ordinal()] = new Histogram(3);
+		}
+	}
+
+	private void run(Map<String, String> options) throws Exception
+	{
+		if (Boolean.parseBoolean(options.get("preload")))
+		{
+			this.preload();
+		}
+		String out = options.get("out");
+		long durationMs = TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("duration")));
+		long warmupMs = TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("warmup")));
+		long start = System.nanoTime();
+		long end = start + TimeUnit.MILLISECONDS.toNanos(warmupMs + durationMs);
+
+		List<Thread> threads = new ArrayList<>();
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		if (options.get("mode").equals("open"))
+		{
+			DatagramSocket socket = new DatagramSocket();
+			double rate = Double.parseDouble(options.get("rate"));
+			threads.add(new Thread(() -> this.openLoopSend(socket, rate, start, end)));
+			Thread receiver = new Thread(() -> this.openLoopReceive(socket));
+			receiver.setDaemon(true);
+			receiver.start();
+			executor.scheduleAtFixedRate(this::sweep, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		}
+		else
+		{
+			for (int i = 0; i < this._threads; i++)
+			{
+				threads.add(new Thread(() -> this.closedLoop(end)));
+			}
+		}
+
+		try (PrintStream series = new PrintStream(out + "-throughput.csv")) {
+			series.println("time_s,read_ops_s,write_ops_s,remove_ops_s,ops_s,errors,timeouts,p50_ms,p99_ms,p99.9_ms");
+			long[] last = {start};
+			executor.scheduleAtFixedRate(() -> {
+				long now = System.nanoTime();
+				this.report(series, now - start, now - last[0], now - start > TimeUnit.MILLISECONDS.toNanos(warmupMs));
+				last[0] = now;
+			}, REPORT_INTERVAL_MS, REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+			for (Thread thread : threads)
+			{
+				thread.start();
+			}
+			for (Thread thread : threads)
+			{
+				thread.join();
+			}
+			// give the last open-loop requests their timeout, then account for what is left
+			Thread.sleep(TimeUnit.NANOSECONDS.toMillis(this._timeoutNanos) + SWEEP_INTERVAL_MS);
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+			this._running = false;
+			this.sweep();
+			long now = System.nanoTime();
+			this.report(series, now - start, now - last[0], true);
+		}
+		this.summary(out);
+	}
+
+	/**
+	 * Writes every key once, with the configured value sizes, without recording latencies.
+	 */
+	private void preload() throws InterruptedException
+	{
+		AtomicLong next = new AtomicLong();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < this._threads; i++)
+		{
+			threads.add(new Thread(() -> {
+				try (DatagramSocket socket = new DatagramSocket()) {
+					byte[] response = new byte[Message.RES_MAX_BYTES];
+					Random random = ThreadLocalRandom.current();
+					for (long k = next.getAndIncrement(); k < this._keys; k = next.getAndIncrement())
+					{
+						byte[] request = Message.createRequest(this.id(), Message.Command.PUT, key(k), this.value(random));
+						this.sendAndWait(socket, random, request, response);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}));
+		}
+		for (Thread thread : threads)
+		{
+			thread.start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		Utils.print("Preloaded " + this._keys + " keys");
+	}
+
+	private void closedLoop(long end)
+	{
+		try (DatagramSocket socket = new DatagramSocket()) {
+			byte[] response = new byte[Message.RES_MAX_BYTES];
+			Random random = ThreadLocalRandom.current();
+			while (System.nanoTime() < end)
+			{
+				Op op = this.op(random);
+				byte[] request = this.request(op, this.id(), random);
+				long sent = System.nanoTime();
+				if (!this.sendAndWait(socket, random, request, response))
+				{
+					this._timeouts.increment();
+				}
+				else if (ok(response))
+				{
+					this._recorders[op.ordinal()].recordValue(System.nanoTime() - sent);
+				}
+				else
+				{
+					this._errors.increment();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends a request to a random coordinator and waits for its response, skipping late responses
+	 * to earlier requests.
+	 * @return false on timeout
+	 */
+	private boolean sendAndWait(DatagramSocket socket, Random random, byte[] request, byte[] response) throws IOException
+	{
+		int port = this._ports[random.nextInt(this._ports.length)];
+		socket.send(new DatagramPacket(request, request.length, this._addr, port));
+		long deadline = System.nanoTime() + this._timeoutNanos;
+		while (true)
+		{
+			long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remainingMs <= 0)
+			{
+				return false;
+			}
+			socket.setSoTimeout((int) remainingMs);
+			try {
+				socket.receive(new DatagramPacket(response, response.length));
+			} catch (SocketTimeoutException e) {
+				return false;
+			}
+			if (Message.sameId(request, response))
+			{
+				return true;
+			}
+		}
+	}
+
+	private void openLoopSend(DatagramSocket socket, double rate, long start, long end)
+	{
+		Random random = ThreadLocalRandom.current();
+		double periodNanos = 1e9 / rate;
+		for (long i = 0; ; i++)
+		{
+			long due = start + (long) (i * periodNanos);
+			if (due >= end)
+			{
+				return;
+			}
+			// behind schedule, requests go out back to back and their latency includes the delay
+			while (System.nanoTime() < due)
+			{
+				LockSupport.parkNanos(due - System.nanoTime());
+			}
+			Op op = this.op(random);
+			long sequence = this._sequence.getAndIncrement();
+			byte[] request = this.request(op, this.id(sequence), random);
+			this._pending.put(sequence, new long[] {due, op.ordinal()});
+			int port = this._ports[random.nextInt(this._ports.length)];
+			try {
+				socket.send(new DatagramPacket(request, request.length, this._addr, port));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void openLoopReceive(DatagramSocket socket)
+	{
+		byte[] response = new byte[Message.RES_MAX_BYTES];
+		while (this._running)
+		{
+			try {
+				socket.receive(new DatagramPacket(response, response.length));
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			long[] pending = this._pending.remove(ByteBuffer.wrap(response).getLong());
+			if (pending == null)
+			{
+				continue; // timed out already
+			}
+			if (ok(response))
+			{
+				this._recorders[(int) pending[1]].recordValue(System.nanoTime() - pending[0]);
+			}
+			else
+			{
+				this._errors.increment();
+			}
+		}
+	}
+
+	/**
+	 * Counts the open-loop requests past their timeout as timed out, or all of them once the run is over.
+	 */
+	private void sweep()
+	{
+		long now = System.nanoTime();
+		for (Iterator<long[]> it = this._pending.values().iterator(); it.hasNext(); )
+		{
+			if (!this._running || now - it.next()[0] > this._timeoutNanos)
+			{
+				it.remove();
+				this._timeouts.increment();
+			}
+		}
+	}
+
+	/**
+	 * Appends the throughput and latency of the last interval to the time series.
+	 * @param series
+	 * @param elapsedNanos since the start of the run
+	 * @param intervalNanos
+	 * @param measured false during the warmup, whose latencies are left out of the totals
+	 */
+	private synchronized void report(PrintStream series, long elapsedNanos, long intervalNanos, boolean measured)
+	{
+		Histogram all = new Histogram(3);
+		StringBuilder row = new StringBuilder(String.format("%.1f", elapsedNanos / 1e9));
+		double seconds = intervalNanos / 1e9;
+		for (Op op : OPS)
+		{
+			Histogram interval = this._recorders[op.ordinal()].getIntervalHistogram();
+			all.add(interval);
+			if (measured)
+			{
+				this._totals[op.ordinal()].add(interval);
+			}
+			row.append(String.format(",%.0f", interval.getTotalCount() / seconds));
+		}
+		long errors = this._errors.sumThenReset();
+		long timeouts = this._timeouts.sumThenReset();
+		if (measured)
+		{
+			this._totalErrors += errors;
+			this._totalTimeouts += timeouts;
+		}
+		row.append(String.format(",%.0f,%d,%d,%.3f,%.3f,%.3f", all.getTotalCount() / seconds, errors, timeouts,
+				ms(all.getValueAtPercentile(50)), ms(all.getValueAtPercentile(99)), ms(all.getValueAtPercentile(99.9))));
+		series.println(row);
+		series.flush();
+	}
+
+	private void summary(String out) throws FileNotFoundException
+	{
+		double[] percentiles = {50, 90, 99, 99.9, 99.99};
+		String header = "op,count,mean_ms,p50_ms,p90_ms,p99_ms,p99.9_ms,p99.99_ms,max_ms";
+		try (PrintStream latency = new PrintStream(out + "-latency.csv")) {
+			latency.println(header);
+			Utils.print(header.replace(',', '\t'));
+			for (Op op : OPS)
+			{
+				Histogram total = this._totals[op.ordinal()];
+				if (total.getTotalCount() == 0)
+				{
+					continue;
+				}
+				StringBuilder row = new StringBuilder(op.name()).append(',').append(total.getTotalCount())
+						.append(String.format(",%.3f", total.getMean() / 1e6));
+				for (double percentile : percentiles)
+				{
+					row.append(String.format(",%.3f", ms(total.getValueAtPercentile(percentile))));
+				}
+				row.append(String.format(",%.3f", ms(total.getMaxValue())));
+				latency.println(row);
+				Utils.print(row.toString().replace(',', '\t'));
+				try (PrintStream hgrm = new PrintStream(out + "-" + op.name().toLowerCase() + ".hgrm")) {
+					total.outputPercentileDistribution(hgrm, 1e6); // in milliseconds
+				}
+			}
+		}
+		Utils.print("errors\t" + this._totalErrors + "\ttimeouts\t" + this._totalTimeouts);
+	}
+
+	private Op op(Random random)
+	{
+		double u = random.nextDouble();
+		for (Op op : OPS)
+		{
+			if (u < this._mix[op.ordinal()])
+			{
+				return op;
+			}
+		}
+		return OPS[OPS.length - 1];
+	}
+
+	private byte[] request(Op op, byte[] id, Random random)
+	{
+		long k = this._keyRanks == null ? random.nextInt(this._keys) : this._keyRanks.nextScrambled(random);
+		switch (op)
+		{
+			case WRITE: return Message.createRequest(id, Message.Command.PUT, key(k), this.value(random));
+			case REMOVE: return Message.createRequest(id, Message.Command.REMOVE, key(k), null);
+			default: return Message.createRequest(id, Message.Command.GET, key(k), null);
+		}
+	}
+
+	private byte[] value(Random random)
+	{
+		int size;
+		switch (this._sizeDistribution)
+		{
+			case "uniform": size = this._minSize + random.nextInt(this._maxSize - this._minSize + 1); break;
+			case "zipfian": size = this._minSize + (int) this._sizeRanks.next(random); break; // small values most often
+			default: size = this._minSize; break;
+		}
+		return Arrays.copyOf(VALUE_POOL, size);
+	}
+
+	private byte[] id()
+	{
+		return this.id(this._sequence.getAndIncrement());
+	}
+
+	private byte[] id(long sequence)
+	{
+		return ByteBuffer.allocate(Message.ID_BYTES).putLong(sequence).putLong(this._salt).array();
+	}
+
+	private static byte[] key(long k)
+	{
+		return ByteBuffer.allocate(Message.KEY_BYTES).putLong(k).array();
+	}
+
+	private static boolean ok(byte[] response)
+	{
+		Message.Code code = Message.code(response);
+		return code == Message.Code.SUCCESSFUL || code == Message.Code.NON_EXISTENT_KEY;
+	}
+
+	private static double ms(long nanos)
+	{
+		return nanos / 1e6;
+	}
+}
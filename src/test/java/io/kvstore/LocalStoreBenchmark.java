@@ -0,0 +1,97 @@
+package test.java.io.kvstore;
+
+import main.java.io.kvstore.Keyspace;
+import main.java.io.kvstore.store.StorageEngine;
+import main.java.io.kvstore.store.Store;
+import main.java.io.kvstore.store.StoreClient;
+import main.java.io.kvstore.store.StoreMessage;
+import main.java.io.kvstore.utils.Utils;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Latency of one replica operation issued by a coordinator to the store of its own process:
+ * through StoreClient over the loopback socket, and through the StorageEngine interface.
+ * Operations are issued one at a time, so the average is the latency per op.
+ */
+public class LocalStoreBenchmark
+{
+	private static final int PORT = 56100;
+	private static final int WARMUP_OPS = 20000;
+	private static final int MEASURED_OPS = 50000;
+	private static final int NUM_KEYS = 1024;
+
+	public static void main(String[] args) throws Exception
+	{
+		ExecutorService executor = Executors.newCachedThreadPool();
+		InetAddress addr = InetAddress.getByName("localhost");
+		Store store = new Store(PORT);
+		new Thread(() -> store.serve(executor)).start();
+		StoreClient client = new StoreClient(0, 3, 1000);
+		new Thread(() -> client.receive(executor)).start();
+
+		byte[][] keys = new byte[NUM_KEYS][];
+		byte[] value = new byte[100];
+		for (int i = 0; i < NUM_KEYS; i++)
+		{
+			keys[i] = TestHelper.createRandomKey();
+			store.put(Keyspace.DEFAULT, keys[i], value, 0, 0);
+		}
+
+		Op socket = (key, put) -> {
+			byte[] request = put ? StoreMessage.createPutRequest(null, key, value, 0) : StoreMessage.createGetRequest(null, key);
+			CompletableFuture<byte[]> response = new CompletableFuture<>();
+			client.send(addr, PORT, request, response::complete, req -> response.completeExceptionally(new Exception("timeout")));
+			response.get();
+		};
+		StorageEngine engine = store;
+		Op direct = (key, put) -> {
+			if (put)
+			{
+				engine.put(Keyspace.DEFAULT, key, value, 0, 0);
+			}
+			else
+			{
+				engine.get(Keyspace.DEFAULT, key, true);
+			}
+		};
+
+		Utils.print("Path\tGET us/op\tPUT us/op");
+		double[] viaSocket = run("socket", socket, keys);
+		double[] viaEngine = run("direct", direct, keys);
+		Utils.print(String.format("saved\t%.2f\t%.2f", viaSocket[0] - viaEngine[0], viaSocket[1] - viaEngine[1]));
+		System.exit(0);
+	}
+
+	private interface Op
+	{
+		void run(byte[] key, boolean put) throws Exception;
+	}
+
+	/**
+	 * @return average GET and PUT latencies in microseconds
+	 */
+	private static double[] run(String name, Op op, byte[][] keys) throws Exception
+	{
+		double[] result = new double[2];
+		for (int kind = 0; kind < 2; kind++)
+		{
+			boolean put = kind == 1;
+			for (int i = 0; i < WARMUP_OPS; i++)
+			{
+				op.run(keys[i & (NUM_KEYS - 1)], put);
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < MEASURED_OPS; i++)
+			{
+				op.run(keys[i & (NUM_KEYS - 1)], put);
+			}
+			result[kind] = (System.nanoTime() - start) / 1000.0 / MEASURED_OPS;
+		}
+		Utils.print(String.format("%s\t%.2f\t%.2f", name, result[0], result[1]));
+		return result;
+	}
+}
@@ -0,0 +1,121 @@
+package test.java.io.kvstore;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.coordinator.DigestPartitioner;
+import main.java.io.kvstore.coordinator.Monitor;
+import main.java.io.kvstore.coordinator.Murmur3Partitioner;
+import main.java.io.kvstore.coordinator.Node;
+import main.java.io.kvstore.coordinator.Partitioner;
+import main.java.io.kvstore.store.Store;
+import main.java.io.kvstore.store.StoreClient;
+import main.java.io.kvstore.utils.Utils;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * JMH-style throughput comparison of Monitor.getSuccessors with each partitioner,
+ * from 1 to 32 threads. Each run does warmup iterations followed by measured iterations.
+ */
+public class PartitionerBenchmark
+{
+	private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int MEASUREMENT_ITERATIONS = 5;
+	private static final int ITERATION_MS = 500;
+	private static final int NUM_KEYS = 4096;
+
+	public static void main(String[] args) throws Exception
+	{
+		ExecutorService executor = Executors.newCachedThreadPool();
+		InetAddress addr = InetAddress.getByName("localhost");
+		Node[] nodes = new Node[Config.PORT_COORDINATOR.length];
+		for (int i = 0; i < nodes.length; i++)
+		{
+			nodes[i] = new Node(addr, Config.PORT_COORDINATOR[i], Config.PORT_STORE[i], true);
+			// real stores answer the heartbeats, so all nodes stay available
+			Store store = new Store(Config.PORT_STORE[i]);
+			new Thread(() -> store.serve(executor)).start();
+		}
+
+		StoreClient client = new StoreClient(0, 1, 1000);
+		new Thread(() -> client.receive(executor)).start();
+
+		byte[][] keys = new byte[NUM_KEYS][];
+		for (int i = 0; i < NUM_KEYS; i++)
+		{
+			keys[i] = TestHelper.createRandomKey();
+		}
+
+		Partitioner[] partitioners = {new Murmur3Partitioner(), new DigestPartitioner("SHA-512")};
+		Utils.print("Benchmark\tThreads\tops/ms");
+		for (Partitioner partitioner : partitioners)
+		{
+			Monitor monitor = new Monitor(nodes, client, partitioner);
+			while (!allAvailable(nodes))
+			{
+				Thread.sleep(100);
+			}
+			for (int threads : THREADS)
+			{
+				for (int i = 0; i < WARMUP_ITERATIONS; i++)
+				{
+					run(monitor, keys, threads);
+				}
+				double total = 0;
+				for (int i = 0; i < MEASUREMENT_ITERATIONS; i++)
+				{
+					total += run(monitor, keys, threads);
+				}
+				Utils.print(partitioner.getClass().getSimpleName() + "\t" + threads + "\t"
+						+ String.format("%.1f", total / MEASUREMENT_ITERATIONS));
+			}
+		}
+		System.exit(0);
+	}
+
+	private static boolean allAvailable(Node[] nodes)
+	{
+		for (Node node : nodes)
+		{
+			if (!node.getAvailable())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Runs one iteration and returns the throughput in ops/ms.
+	 */
+	private static double run(Monitor monitor, byte[][] keys, int threads) throws InterruptedException
+	{
+		LongAdder ops = new LongAdder();
+		AtomicBoolean running = new AtomicBoolean(true);
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++)
+		{
+			final int offset = t * 97;
+			new Thread(() -> {
+				long count = 0;
+				int i = offset;
+				while (running.get())
+				{
+					monitor.getSuccessors(keys[i++ & (NUM_KEYS - 1)], Config.REPLICATION_FACTOR);
+					count++;
+				}
+				ops.add(count);
+				done.countDown();
+			}).start();
+		}
+		Thread.sleep(ITERATION_MS);
+		running.set(false);
+		done.await();
+		return ops.sum() / (double) ITERATION_MS;
+	}
+}
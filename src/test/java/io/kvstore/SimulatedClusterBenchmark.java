@@ -0,0 +1,253 @@
+package test.java.io.kvstore;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.Runner;
+import main.java.io.kvstore.coordinator.Node;
+import main.java.io.kvstore.transport.SimulatedNetwork;
+import main.java.io.kvstore.transport.Transport;
+import main.java.io.kvstore.utils.Message;
+import main.java.io.kvstore.utils.Utils;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tail latency and throughput of a cluster under network faults, on one machine: the nodes of Config
+ * run in this process on a SimulatedNetwork, each on its own address (10.0.0.1, ...), and closed-loop
+ * clients send GETs and PUTs to random coordinators while the faults change every `seconds`:
+ *
+ *   baseline      0.1 to 0.5 ms of delay
+ *   loss-1%       1% of the datagrams lost
+ *   loss-5%       5% lost
+ *   long-tail     Pareto delays from 0.1 ms, shape 1.5, up to 200 ms
+ *   duplicate-10% 10% of the datagrams delivered twice
+ *   partition     the last two nodes cut from the others and from the clients
+ *   healed        back to the baseline
+ *
+ * A client retransmits a request to the next coordinator after `timeout` ms, `attempts` times, and counts
+ * it as failed afterwards; latency is measured from the first transmission. Faults and client choices
+ * come from `seed`, so runs can be compared, within the noise of thread scheduling.
+ *
+ * Options, as name=value arguments:
+ *   seconds=10   threads=8   keys=1000   read=0.9   timeout=200 (ms)   attempts=3   seed=42
+ */
+public class SimulatedClusterBenchmark
+{
+	private static final int VALUE_BYTES = 100;
+
+	private final SimulatedNetwork _network;
+	private final List<InetSocketAddress> _coordinators = new ArrayList<>();
+	private final Transport _transport;
+	private final ConcurrentHashMap<String, CompletableFuture<byte[]>> _pending = new ConcurrentHashMap<>();
+	private final int _threads;
+	private final int _keys;
+	private final double _read;
+	private final int _timeoutMs;
+	private final int _attempts;
+	private final long _seed;
+
+	private final Recorder _recorder = new Recorder(3);
+	private final LongAdder _failures = new LongAdder();
+
+	private volatile boolean _running;
+
+	public SimulatedClusterBenchmark(Map<String, String> options) throws Exception
+	{
+		this._threads = Integer.parseInt(options.getOrDefault("threads", "8"));
+		this._keys = Integer.parseInt(options.getOrDefault("keys", "1000"));
+		this._read = Double.parseDouble(options.getOrDefault("read", "0.9"));
+		this._timeoutMs = Integer.parseInt(options.getOrDefault("timeout", "200"));
+		this._attempts = Integer.parseInt(options.getOrDefault("attempts", "3"));
+		this._seed = Long.parseLong(options.getOrDefault("seed", "42"));
+		this._network = new SimulatedNetwork(this._seed);
+
+		int numNodes = Config.PORT_COORDINATOR.length;
+		Node[] nodes = new Node[numNodes];
+		for (int i = 0; i < numNodes; i++)
+		{
+			nodes[i] = new Node(host(i + 1), Config.PORT_COORDINATOR[i], Config.PORT_STORE[i], false);
+			this._coordinators.add(new InetSocketAddress(nodes[i].getAddress(), nodes[i].getCoordinatorPort()));
+		}
+		ExecutorService executor = Executors.newCachedThreadPool();
+		for (Node node : nodes)
+		{
+			Runner.startNode(node, nodes, new ArrayList<>(), executor, this._network);
+		}
+
+		this._transport = this._network.bind(new InetSocketAddress(host(100), 0));
+		Thread receiver = new Thread(this::receive);
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	private static InetAddress host(int i) throws IOException
+	{
+		return InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) i});
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args)
+		{
+			String[] pair = arg.split("=", 2);
+			options.put(pair[0], pair[1]);
+		}
+		int seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+		SimulatedClusterBenchmark benchmark = new SimulatedClusterBenchmark(options);
+		SimulatedNetwork network = benchmark._network;
+		List<InetAddress> minority = Arrays.asList(host(Config.PORT_COORDINATOR.length - 1), host(Config.PORT_COORDINATOR.length));
+
+		network.setDelay(SimulatedNetwork.Delay.uniform(0.1, 0.5));
+		Thread.sleep(2000); // a few heartbeats, so that the failure detectors know the nodes
+		benchmark.preload();
+
+		Utils.print("Scenario\tops/s\tp50 ms\tp99 ms\tp99.9 ms\tmax ms\tfailed\tlost\tcut\tduplicated");
+		benchmark.run("baseline", seconds);
+		network.setLoss(0.01);
+		benchmark.run("loss-1%", seconds);
+		network.setLoss(0.05);
+		benchmark.run("loss-5%", seconds);
+		network.setLoss(0);
+		network.setDelay(SimulatedNetwork.Delay.pareto(0.1, 1.5, 200));
+		benchmark.run("long-tail", seconds);
+		network.setDelay(SimulatedNetwork.Delay.uniform(0.1, 0.5));
+		network.setDuplication(0.1);
+		benchmark.run("duplicate-10%", seconds);
+		network.setDuplication(0);
+		network.partition(minority);
+		benchmark.run("partition", seconds);
+		network.heal();
+		benchmark.run("healed", seconds);
+		System.exit(0);
+	}
+
+	/**
+	 * Writes every key once.
+	 */
+	private void preload() throws Exception
+	{
+		Random random = new Random(this._seed);
+		for (int key = 0; key < this._keys; key++)
+		{
+			this.request(Message.Command.PUT, key, random);
+		}
+	}
+
+	/**
+	 * Runs the clients for a while and prints their throughput and latency, and the faults of the network.
+	 */
+	private void run(String scenario, int seconds) throws Exception
+	{
+		long lost = this._network.getLost();
+		long cut = this._network.getCut();
+		long duplicated = this._network.getDuplicated();
+		this._failures.reset();
+		this._recorder.reset();
+		this._running = true;
+		List<Thread> clients = new ArrayList<>();
+		for (int i = 0; i < this._threads; i++)
+		{
+			Random random = new Random(this._seed * 31 + i);
+			Thread client = new Thread(() -> {
+				while (this._running)
+				{
+					int key = random.nextInt(this._keys);
+					this.request(random.nextDouble() < this._read ? Message.Command.GET : Message.Command.PUT, key, random);
+				}
+			});
+			client.start();
+			clients.add(client);
+		}
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		this._running = false;
+		for (Thread client : clients)
+		{
+			client.join();
+		}
+		Histogram histogram = this._recorder.getIntervalHistogram();
+		Utils.print(String.format("%s\t%.0f\t%.3f\t%.3f\t%.3f\t%.3f\t%d\t%d\t%d\t%d", scenario,
+				(double) histogram.getTotalCount() / seconds, ms(histogram.getValueAtPercentile(50)),
+				ms(histogram.getValueAtPercentile(99)), ms(histogram.getValueAtPercentile(99.9)), ms(histogram.getMaxValue()),
+				this._failures.sum(), this._network.getLost() - lost, this._network.getCut() - cut,
+				this._network.getDuplicated() - duplicated));
+	}
+
+	/**
+	 * Sends a request to a random coordinator and waits for its response, retransmitting it to the next
+	 * coordinator on timeout. Records its latency if answered.
+	 */
+	private void request(Message.Command command, int key, Random random)
+	{
+		byte[] id = new byte[Message.ID_BYTES];
+		random.nextBytes(id);
+		byte[] keyBytes = Arrays.copyOf(Integer.toString(key).getBytes(), Message.KEY_BYTES);
+		byte[] request = Message.createRequest(id, command, keyBytes, command == Message.Command.PUT ? new byte[VALUE_BYTES] : null);
+		CompletableFuture<byte[]> response = new CompletableFuture<>();
+		String pendingKey = Utils.hexString(id);
+		this._pending.put(pendingKey, response);
+		int first = random.nextInt(this._coordinators.size());
+		long start = System.nanoTime();
+		try {
+			for (int attempt = 0; attempt < this._attempts; attempt++)
+			{
+				InetSocketAddress coordinator = this._coordinators.get((first + attempt) % this._coordinators.size());
+				this._transport.send(new DatagramPacket(request, request.length, coordinator));
+				try {
+					response.get(this._timeoutMs, TimeUnit.MILLISECONDS);
+					this._recorder.recordValue(System.nanoTime() - start);
+					return;
+				} catch (TimeoutException e) {
+					// retransmit
+				}
+			}
+			this._failures.increment();
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			this._pending.remove(pendingKey);
+		}
+	}
+
+	private void receive()
+	{
+		while (true)
+		{
+			byte[] buffer = new byte[Message.RES_MAX_BYTES];
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				this._transport.receive(packet);
+			} catch (IOException e) {
+				return;
+			}
+			CompletableFuture<byte[]> response = this._pending.get(Utils.hexString(Message.id(buffer)));
+			if (response != null)
+			{
+				response.complete(Arrays.copyOf(buffer, packet.getLength()));
+			}
+		}
+	}
+
+	private static double ms(long nanos)
+	{
+		return nanos / 1e6;
+	}
+}
@@ -0,0 +1,301 @@
+package test.java.io.kvstore;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.Runner;
+import main.java.io.kvstore.coordinator.Coordinator;
+import main.java.io.kvstore.coordinator.Node;
+import main.java.io.kvstore.simulation.Simulation;
+import main.java.io.kvstore.transport.SimulatedNetwork;
+import main.java.io.kvstore.transport.Transport;
+import main.java.io.kvstore.utils.Clock;
+import main.java.io.kvstore.utils.Message;
+import main.java.io.kvstore.utils.Utils;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the nodes of Config and an open-loop client in a deterministic Simulation: one thread, a virtual
+ * clock and a SimulatedNetwork seeded from `seed`. Requests arrive at `rate` per second (Poisson), to
+ * random coordinators, and are retransmitted to the next coordinator after `timeout` ms, `attempts` times.
+ * Datagrams get 0.1 ms of delay plus an exponential tail of mean 0.5 ms and are lost with probability `loss`;
+ * the last two nodes are cut from the others and from the client between the `partition` seconds.
+ *
+ * Prints the latency (in virtual time) of every `interval` seconds, the slowest requests with their virtual
+ * time, and a fingerprint of every response and latency: the same seed gives the same fingerprint, so an
+ * anomaly is replayed exactly by running the same seed again, e.g. with `hours` ending right after it.
+ *
+ * Options, as name=value arguments:
+ *   seed=42   hours=1   rate=100   keys=1000   read=0.9   timeout=200 (ms)   attempts=3   loss=0.01
+ *   interval=300 (s)   partition=1800-1920 (s, "none" for no partition)
+ */
+public class SimulationRunner
+{
+	private static final int VALUE_BYTES = 100;
+	private static final int SLOWEST = 5;
+
+	/**
+	 * A request of the client, until answered or given up.
+	 */
+	private class Request
+	{
+		final long number;
+		final Message.Command command;
+		final int key;
+		final byte[] datagram;
+		final int first;
+		final long start = Clock.nanoTime();
+		int attempt;
+		ScheduledFuture<?> timeout;
+
+		Request(long number, Message.Command command, int key, byte[] datagram, int first)
+		{
+			this.number = number;
+			this.command = command;
+			this.key = key;
+			this.datagram = datagram;
+			this.first = first;
+		}
+	}
+
+	/**
+	 * A request of the slowest ones: its latency and its virtual start time.
+	 */
+	private static class Slow
+	{
+		final long latency;
+		final String description;
+		Slow(long latency, String description)
+		{
+			this.latency = latency;
+			this.description = description;
+		}
+	}
+
+	private final Simulation _simulation;
+	private final ScheduledExecutorService _executor;
+	private final SimulatedNetwork _network;
+	private final List<InetSocketAddress> _coordinators = new ArrayList<>();
+	private final List<Coordinator> _nodes = new ArrayList<>();
+	private final Transport _transport;
+	private final Random _random;
+	private final HashMap<String, Request> _pending = new HashMap<>();
+
+	private final double _rate;
+	private final int _keys;
+	private final double _read;
+	private final int _timeoutMs;
+	private final int _attempts;
+
+	private final Histogram _interval = new Histogram(3);
+	private final Histogram _total = new Histogram(3);
+	private final PriorityQueue<Slow> _slowest = new PriorityQueue<>((a, b) -> Long.compare(a.latency, b.latency));
+	private long _requests;
+	private long _failures;
+	private long _intervalFailures;
+	private long _fingerprint = 17;
+
+	public SimulationRunner(Map<String, String> options) throws Exception
+	{
+		long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+		this._rate = Double.parseDouble(options.getOrDefault("rate", "100"));
+		this._keys = Integer.parseInt(options.getOrDefault("keys", "1000"));
+		this._read = Double.parseDouble(options.getOrDefault("read", "0.9"));
+		this._timeoutMs = Integer.parseInt(options.getOrDefault("timeout", "200"));
+		this._attempts = Integer.parseInt(options.getOrDefault("attempts", "3"));
+		this._random = new Random(seed * 31);
+
+		deleteHints(new File(Config.HINT_DIR)); // hints left by an earlier run would change this one
+		this._simulation = new Simulation(seed);
+		Clock.simulate(this._simulation);
+		this._executor = this._simulation.getExecutor();
+		this._network = new SimulatedNetwork(seed);
+		this._network.setDelay(SimulatedNetwork.Delay.exponential(0.1, 0.6));
+		this._network.setLoss(Double.parseDouble(options.getOrDefault("loss", "0.01")));
+
+		int numNodes = Config.PORT_COORDINATOR.length;
+		Node[] nodes = new Node[numNodes];
+		for (int i = 0; i < numNodes; i++)
+		{
+			nodes[i] = new Node(host(i + 1), Config.PORT_COORDINATOR[i], Config.PORT_STORE[i], false);
+			this._coordinators.add(new InetSocketAddress(nodes[i].getAddress(), nodes[i].getCoordinatorPort()));
+		}
+		for (Node node : nodes)
+		{
+			this._nodes.add(Runner.startNode(node, nodes, new ArrayList<>(), this._executor, this._network));
+		}
+		this._transport = this._network.bind(new InetSocketAddress(host(100), 0));
+		this._transport.listen(Message.RES_MAX_BYTES, this::receive);
+	}
+
+	private static InetAddress host(int i) throws IOException
+	{
+		return InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) i});
+	}
+
+	private static void deleteHints(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				deleteHints(child);
+			}
+		}
+		file.delete();
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args)
+		{
+			String[] pair = arg.split("=", 2);
+			options.put(pair[0], pair[1]);
+		}
+		long duration = (long) (Double.parseDouble(options.getOrDefault("hours", "1")) * TimeUnit.HOURS.toNanos(1));
+		long interval = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("interval", "300")));
+		String partition = options.getOrDefault("partition", "1800-1920");
+
+		long wallStart = System.nanoTime();
+		SimulationRunner runner = new SimulationRunner(options);
+		Simulation simulation = runner._simulation;
+		if (!partition.equals("none"))
+		{
+			String[] window = partition.split("-");
+			List<InetAddress> minority = Arrays.asList(host(Config.PORT_COORDINATOR.length - 1), host(Config.PORT_COORDINATOR.length));
+			runner._executor.schedule(() -> runner._network.partition(minority), Long.parseLong(window[0]), TimeUnit.SECONDS);
+			runner._executor.schedule(runner._network::heal, Long.parseLong(window[1]), TimeUnit.SECONDS);
+		}
+		simulation.runFor(2, TimeUnit.SECONDS); // a few heartbeats, so that the failure detectors know the nodes
+		runner.scheduleArrival();
+
+		Utils.print("Virtual s\tops/s\tp50 ms\tp99 ms\tp99.9 ms\tmax ms\tfailed");
+		while (simulation.getElapsedNanos() < duration)
+		{
+			long step = Math.min(interval, duration - simulation.getElapsedNanos());
+			simulation.runFor(step, TimeUnit.NANOSECONDS);
+			runner.print(String.format("%.0f", simulation.getElapsedNanos() / 1e9), runner._interval, runner._intervalFailures,
+					step);
+			runner._interval.reset();
+			runner._intervalFailures = 0;
+		}
+		long wall = System.nanoTime() - wallStart;
+		runner.print("total", runner._total, runner._failures, simulation.getElapsedNanos());
+
+		Utils.print("Slowest requests:");
+		List<Slow> slowest = new ArrayList<>(runner._slowest);
+		slowest.sort((a, b) -> Long.compare(b.latency, a.latency));
+		for (Slow slow : slowest)
+		{
+			Utils.print(String.format("  %.3f ms\t%s", ms(slow.latency), slow.description));
+		}
+		long slowLogged = 0;
+		for (Coordinator coordinator : runner._nodes)
+		{
+			slowLogged += coordinator.getSlowLog().getLogged();
+		}
+		Utils.print(String.format("Requests %d, slow-logged %d, datagrams %d (lost %d, cut %d), events %d", runner._requests,
+				slowLogged, runner._network.getSent(), runner._network.getLost(), runner._network.getCut(), simulation.getSteps()));
+		Utils.print(String.format("Simulated %.0f s in %.1f s of wall time: %.0fx", simulation.getElapsedNanos() / 1e9, wall / 1e9,
+				(double) simulation.getElapsedNanos() / wall));
+		Utils.print(String.format("Fingerprint %016x", runner._fingerprint));
+		System.exit(0);
+	}
+
+	/**
+	 * Schedules the arrival of the next request, after an exponential gap.
+	 */
+	private void scheduleArrival()
+	{
+		long gap = (long) (-Math.log(1 - this._random.nextDouble()) / this._rate * 1e9);
+		this._executor.schedule(() -> {
+			this.arrive();
+			this.scheduleArrival();
+		}, gap, TimeUnit.NANOSECONDS);
+	}
+
+	private void arrive()
+	{
+		Message.Command command = this._random.nextDouble() < this._read ? Message.Command.GET : Message.Command.PUT;
+		int key = this._random.nextInt(this._keys);
+		byte[] id = new byte[Message.ID_BYTES];
+		this._random.nextBytes(id);
+		byte[] keyBytes = Arrays.copyOf(Integer.toString(key).getBytes(), Message.KEY_BYTES);
+		byte[] datagram = Message.createRequest(id, command, keyBytes, command == Message.Command.PUT ? new byte[VALUE_BYTES] : null);
+		Request request = new Request(this._requests++, command, key, datagram, this._random.nextInt(this._coordinators.size()));
+		this._pending.put(Utils.hexString(id), request);
+		this.transmit(request);
+	}
+
+	/**
+	 * Sends a request to its next coordinator, and gives up after the last attempt.
+	 */
+	private void transmit(Request request)
+	{
+		if (request.attempt == this._attempts)
+		{
+			this._pending.remove(Utils.hexString(Message.id(request.datagram)));
+			this._failures++;
+			this._intervalFailures++;
+			this._fingerprint = this._fingerprint * 31 - request.number;
+			return;
+		}
+		InetSocketAddress coordinator = this._coordinators.get((request.first + request.attempt++) % this._coordinators.size());
+		try {
+			this._transport.send(new DatagramPacket(request.datagram, request.datagram.length, coordinator));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		request.timeout = this._executor.schedule(() -> this.transmit(request), this._timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	private void receive(DatagramPacket packet)
+	{
+		byte[] response = packet.getData();
+		Request request = this._pending.remove(Utils.hexString(Message.id(response)));
+		if (request == null)
+		{
+			return; // a duplicate, or a response after the client gave up
+		}
+		request.timeout.cancel(false);
+		long latency = Clock.nanoTime() - request.start;
+		this._interval.recordValue(latency);
+		this._total.recordValue(latency);
+		this._fingerprint = (this._fingerprint * 31 + request.number) * 31 + latency + Message.code(response).ordinal();
+		this._slowest.add(new Slow(latency, String.format("%s %d at %.6f s, %d attempts", request.command, request.key,
+				(this._simulation.getElapsedNanos() - latency) / 1e9, request.attempt)));
+		if (this._slowest.size() > SLOWEST)
+		{
+			this._slowest.poll();
+		}
+	}
+
+	private void print(String label, Histogram histogram, long failures, long nanos)
+	{
+		Utils.print(String.format("%s\t%.0f\t%.3f\t%.3f\t%.3f\t%.3f\t%d", label, histogram.getTotalCount() / (nanos / 1e9),
+				ms(histogram.getValueAtPercentile(50)), ms(histogram.getValueAtPercentile(99)),
+				ms(histogram.getValueAtPercentile(99.9)), ms(histogram.getMaxValue()), failures));
+	}
+
+	private static double ms(long nanos)
+	{
+		return nanos / 1e6;
+	}
+}
@@ -0,0 +1,156 @@
+package test.java.io.kvstore;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.coordinator.Coordinator;
+import main.java.io.kvstore.coordinator.Monitor;
+import main.java.io.kvstore.coordinator.Node;
+import main.java.io.kvstore.coordinator.Partitioner;
+import main.java.io.kvstore.store.Store;
+import main.java.io.kvstore.store.StoreClient;
+import main.java.io.kvstore.store.StoreMessage;
+import main.java.io.kvstore.utils.Message;
+import main.java.io.kvstore.utils.Utils;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read latency through a coordinator when one of the five stores answers SLOW_MS late,
+ * with replicas picked in ring order and with latency-aware selection.
+ */
+public class SlowReplicaBenchmark
+{
+	private static final int SLOW_MS = 20;
+	private static final int PROXY_PORT = 56299;
+	private static final int NUM_KEYS = 200;
+	private static final int WARMUP_READS = 500;
+	private static final int MEASURED_READS = 2000;
+
+	public static void main(String[] args) throws Exception
+	{
+		ExecutorService executor = Executors.newCachedThreadPool();
+		InetAddress addr = InetAddress.getLocalHost();
+		Node[] nodes = new Node[5];
+		for (int i = 0; i < nodes.length; i++)
+		{
+			Store store = new Store(56200 + i);
+			new Thread(() -> store.serve(executor)).start();
+			// the first store is reached through a proxy that delays its requests
+			nodes[i] = new Node(addr, 56210 + i, i == 0 ? PROXY_PORT : 56200 + i, true);
+		}
+		startDelayProxy(PROXY_PORT, addr, 56200, SLOW_MS);
+
+		StoreClient client = new StoreClient(0, 3, 1000);
+		new Thread(() -> client.receive(executor)).start();
+
+		Monitor ringOrder = new Monitor(nodes, client, Partitioner.forName(Config.HASHING_ALGORITHM))
+		{
+			@Override
+			public List<Node> getReadReplicas(byte[] key, int numAvailable)
+			{
+				return this.getRing().walk(key, numAvailable, Node::getAvailable);
+			}
+		};
+		Monitor latencyAware = new Monitor(nodes, client);
+		Coordinator[] coordinators = {
+			new Coordinator(56220, ringOrder, client),
+			new Coordinator(56221, latencyAware, client)
+		};
+		for (Coordinator coordinator : coordinators)
+		{
+			new Thread(() -> coordinator.serve(executor)).start();
+		}
+		while (!nodes[0].getAvailable())
+		{
+			Thread.sleep(100);
+		}
+
+		UdpClient udp = new UdpClient(3, 1000);
+		byte[][] keys = new byte[NUM_KEYS][];
+		byte[] response = new byte[Message.RES_MAX_BYTES];
+		for (int i = 0; i < NUM_KEYS; i++)
+		{
+			keys[i] = TestHelper.createRandomKey();
+			udp.sendAndReceive(addr, 56220, TestHelper.createPutRequest(keys[i], new byte[100]), response);
+		}
+
+		Utils.print("Selection\tmean ms\tp50 ms\tp99 ms");
+		String[] names = {"ring order", "latency-aware"};
+		for (int c = 0; c < coordinators.length; c++)
+		{
+			int port = 56220 + c;
+			for (int i = 0; i < WARMUP_READS; i++)
+			{
+				udp.sendAndReceive(addr, port, TestHelper.createGetRequest(keys[i % NUM_KEYS]), response);
+			}
+			long[] latencies = new long[MEASURED_READS];
+			for (int i = 0; i < MEASURED_READS; i++)
+			{
+				long start = System.nanoTime();
+				udp.sendAndReceive(addr, port, TestHelper.createGetRequest(keys[i % NUM_KEYS]), response);
+				latencies[i] = System.nanoTime() - start;
+			}
+			Arrays.sort(latencies);
+			Utils.print(String.format("%s\t%.2f\t%.2f\t%.2f", names[c], Arrays.stream(latencies).average().getAsDouble() / 1e6,
+					latencies[MEASURED_READS / 2] / 1e6, latencies[MEASURED_READS * 99 / 100] / 1e6));
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Forwards the datagrams received on a port to a store after a delay, and the store's responses back.
+	 */
+	private static void startDelayProxy(int port, InetAddress storeAddr, int storePort, int delayMs) throws Exception
+	{
+		DatagramSocket front = new DatagramSocket(port);
+		DatagramSocket back = new DatagramSocket();
+		ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor();
+		ConcurrentHashMap<String, SocketAddress> senders = new ConcurrentHashMap<>();
+		new Thread(() -> {
+			while (true)
+			{
+				try {
+					DatagramPacket packet = new DatagramPacket(new byte[StoreMessage.MAX_REQ_BYTES], StoreMessage.MAX_REQ_BYTES);
+					front.receive(packet);
+					byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+					senders.put(Utils.hexString(StoreMessage.id(data)), packet.getSocketAddress());
+					delayer.schedule(() -> {
+						try {
+							back.send(new DatagramPacket(data, data.length, storeAddr, storePort));
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}, delayMs, TimeUnit.MILLISECONDS);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}).start();
+		new Thread(() -> {
+			while (true)
+			{
+				try {
+					DatagramPacket packet = new DatagramPacket(new byte[StoreMessage.MAX_RES_BYTES], StoreMessage.MAX_RES_BYTES);
+					back.receive(packet);
+					byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+					SocketAddress sender = senders.remove(Utils.hexString(StoreMessage.id(data)));
+					if (sender != null)
+					{
+						front.send(new DatagramPacket(data, data.length, sender));
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}).start();
+	}
+}
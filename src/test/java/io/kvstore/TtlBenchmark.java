@@ -0,0 +1,78 @@
+package test.java.io.kvstore;
+
+import main.java.io.kvstore.Config;
+import main.java.io.kvstore.Keyspace;
+import main.java.io.kvstore.store.StorageEngine;
+import main.java.io.kvstore.store.Store;
+import main.java.io.kvstore.utils.Utils;
+
+/**
+ * Cost of the TTL bookkeeping of a store: heap per entry with and without a TTL, and how fast
+ * the timing wheel reclaims entries that expire together.
+ * Run with a heap large enough for two stores of NUM_KEYS entries, e.g. -Xmx1g.
+ */
+public class TtlBenchmark
+{
+	private static final int NUM_KEYS = 200000;
+	private static final int VALUE_BYTES = 32;
+	private static final int TTL_MS = 10000;
+
+	public static void main(String[] args) throws Exception
+	{
+		byte[][] keys = new byte[NUM_KEYS][];
+		for (int i = 0; i < NUM_KEYS; i++)
+		{
+			keys[i] = TestHelper.createRandomKey();
+		}
+		byte[] value = new byte[VALUE_BYTES];
+
+		long base = usedHeap();
+		Store plain = new Store(56300);
+		fill(plain, keys, value, 0);
+		long plainBytes = usedHeap() - base;
+
+		base = usedHeap();
+		Store expiring = new Store(56301);
+		long expiresAt = System.currentTimeMillis() + TTL_MS;
+		fill(expiring, keys, value, expiresAt);
+		long expiringBytes = usedHeap() - base;
+
+		Utils.print("Entries\tbytes/entry (no TTL)\tbytes/entry (TTL)\tTTL overhead");
+		Utils.print(String.format("%d\t%.1f\t%.1f\t%.1f", NUM_KEYS, (double) plainBytes / NUM_KEYS,
+				(double) expiringBytes / NUM_KEYS, (double) (expiringBytes - plainBytes) / NUM_KEYS));
+
+		// every entry is due at expiresAt: time the expirer from then on
+		while (System.currentTimeMillis() < expiresAt)
+		{
+			Thread.sleep(1);
+		}
+		long start = System.nanoTime();
+		while (expiring.getExpired() < NUM_KEYS)
+		{
+			Thread.sleep(1);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		Utils.print("Expired\tseconds after deadline\texpired/s (including up to one " + Config.TTL_TICK_MS + "ms tick)");
+		Utils.print(String.format("%d\t%.3f\t%.0f", expiring.getExpired(), seconds, NUM_KEYS / seconds));
+		System.exit(0);
+	}
+
+	private static void fill(StorageEngine engine, byte[][] keys, byte[] value, long expiresAt)
+	{
+		for (byte[] key : keys)
+		{
+			engine.put(Keyspace.DEFAULT, key, value, 0, expiresAt);
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException
+	{
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+			Thread.sleep(100);
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,89 @@
+package test.java.io.kvstore;
+
+import java.util.Random;
+
+/**
+ * Zipfian ranks in [0, items): rank 0 is the most frequent, and the frequency of rank i is proportional
+ * to 1 / (i + 1)^theta. Gray et al., "Quickly Generating Billion-Record Synthetic Databases", as in YCSB.
+ * The constants are computed once, in O(items); each draw is O(1).
+ */
+public class ZipfianGenerator
+{
+	/**
+	 * YCSB's default skew.
+	 */
+	public static final double THETA = 0.99;
+
+	private final long _items;
+	private final double _theta;
+	private final double _zetan;
+	private final double _alpha;
+	private final double _eta;
+
+	/**
+	 * @param items number of ranks
+	 * @param theta skew, in (0, 1)
+	 */
+	public ZipfianGenerator(long items, double theta)
+	{
+		this._items = items;
+		this._theta = theta;
+		this._zetan = zeta(items, theta);
+		this._alpha = 1 / (1 - theta);
+		this._eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / this._zetan);
+	}
+
+	/**
+	 * @param random
+	 * @return a rank in [0, items)
+	 */
+	public long next(Random random)
+	{
+		double u = random.nextDouble();
+		double uz = u * this._zetan;
+		if (uz < 1)
+		{
+			return 0;
+		}
+		if (uz < 1 + Math.pow(0.5, this._theta))
+		{
+			return Math.min(1, this._items - 1);
+		}
+		return Math.min((long) (this._items * Math.pow(this._eta * u - this._eta + 1, this._alpha)), this._items - 1);
+	}
+
+	/**
+	 * Like next, with the ranks spread over [0, items) by a hash, so that the hot items are not
+	 * neighbours, e.g. not all on the same replicas.
+	 * @param random
+	 * @return
+	 */
+	public long nextScrambled(Random random)
+	{
+		return Long.remainderUnsigned(fnv(this.next(random)), this._items);
+	}
+
+	private static double zeta(long n, double theta)
+	{
+		double sum = 0;
+		for (long i = 1; i <= n; i++)
+		{
+			sum += 1 / Math.pow(i, theta);
+		}
+		return sum;
+	}
+
+	/**
+	 * 64-bit FNV-1a of the bytes of a long.
+	 */
+	private static long fnv(long value)
+	{
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < 8; i++)
+		{
+			hash ^= (value >>> (8 * i)) & 0xFF;
+			hash *= 0x100000001B3L;
+		}
+		return hash;
+	}
+}